@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.collect.Lists;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Allows a running query to be cancelled from another thread.
+ * FTGS iterations check the token between terms and resources registered with it (e.g. Imhotep sessions) are
+ * closed as soon as it is cancelled so that the daemons can free them without waiting for the query to notice.
+ * @author vladimir
+ */
+public class CancellationToken {
+    private static final Logger log = Logger.getLogger(CancellationToken.class);
+
+    private volatile String cancelReason;
+    private final List<Closeable> resources = Lists.newArrayList();
+
+    /**
+     * Cancels the query and closes all the registered resources. Only the first call has any effect.
+     * @return true if this call cancelled the token
+     */
+    public boolean cancel(String reason) {
+        final List<Closeable> toClose;
+        synchronized (this) {
+            if (cancelReason != null) {
+                return false;
+            }
+            cancelReason = reason;
+            toClose = Lists.newArrayList(resources);
+            resources.clear();
+        }
+        log.info("Cancelling query: " + reason);
+        // closing outside of the lock as the resources may unregister themselves while closing
+        for (Closeable resource : toClose) {
+            Closeables2.closeQuietly(resource, log);
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelReason != null;
+    }
+
+    @Nullable
+    public String getCancelReason() {
+        return cancelReason;
+    }
+
+    /**
+     * @throws QueryCancelledException if the token has been cancelled
+     */
+    public void checkCancelled() {
+        final String reason = cancelReason;
+        if (reason != null) {
+            throw new QueryCancelledException(reason);
+        }
+    }
+
+    /**
+     * Registers a resource to be closed on cancellation. If the token is already cancelled the resource is closed
+     * right away.
+     */
+    public void register(Closeable resource) {
+        synchronized (this) {
+            if (cancelReason == null) {
+                resources.add(resource);
+                return;
+            }
+        }
+        Closeables2.closeQuietly(resource, log);
+    }
+
+    public synchronized void unregister(Closeable resource) {
+        resources.remove(resource);
+    }
+}
@@ -14,8 +14,11 @@
  package com.indeed.imhotep.ez;
 
 import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
 import com.indeed.imhotep.RemoteImhotepMultiSession;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.io.Closeables2;
@@ -47,6 +50,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
 
 import static com.indeed.imhotep.ez.Field.IntField;
 import static com.indeed.imhotep.ez.Field.StringField;
@@ -71,16 +76,55 @@ public class EZImhotepSession implements Closeable {
     public static int GROUP_LIMIT = 1000000;    // 1 mil
 
     private final ImhotepSession session;
-    private final Deque<StatReference> statStack = new ArrayDeque<StatReference>();
+    private final Deque<PushedStat> statStack = new ArrayDeque<PushedStat>();
+    // depths of the single stats on the daemon stack by their pushes so that identical stats are pushed only once
+    private final Map<List<String>, Integer> pushedStatDepths = Maps.newHashMap();
     private final Map<String, DynamicMetric> dynamicMetrics = Maps.newHashMap();
     private int stackDepth = 0;
     private int numGroups = 2;
     private boolean closed = false;
+    private volatile CancellationToken cancellationToken;
+    private ExecutorService ftgsSplitExecutor;
+    private int ftgsSplits = 1;
 
     public EZImhotepSession(ImhotepSession session) {
         this.session = session;
     }
 
+    /**
+     * Makes FTGS iterations over this session stop once the token is cancelled. The session is closed on cancellation.
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+        cancellationToken.register(this);
+    }
+
+    /**
+     * Makes ftgsIterateSplit() aggregate the terms in up to numSplits hash partitioned splits in parallel on the executor.
+     */
+    public void setFtgsSplitting(ExecutorService ftgsSplitExecutor, int ftgsSplits) {
+        this.ftgsSplitExecutor = ftgsSplitExecutor;
+        this.ftgsSplits = ftgsSplits;
+    }
+
+    void checkCancelled() {
+        final CancellationToken token = cancellationToken;
+        if (token != null) {
+            token.checkCancelled();
+        }
+    }
+
+    /**
+     * Failures of a session that was closed by a cancellation are reported as the cancellation.
+     */
+    RuntimeException propagateFailure(RuntimeException e) {
+        final CancellationToken token = cancellationToken;
+        if (token != null && token.isCancelled() && !(e instanceof QueryCancelledException)) {
+            return new QueryCancelledException(token.getCancelReason(), e);
+        }
+        return e;
+    }
+
     public StatReference pushStatGeneric(Stat stat) throws ImhotepOutOfMemoryException {
         if(stat instanceof Stats.AggregateBinOpStat) {
             return pushStatComposite((Stats.AggregateBinOpStat) stat);
@@ -93,14 +137,26 @@ public class EZImhotepSession implements Closeable {
         if(stat instanceof Stats.AggregateBinOpStat) {
             throw new IllegalArgumentException("Aggregate operations have to be pushed with pushStatGeneric");
         }
-        final int initialDepth = stackDepth;
-        for (String statToPush : stat.pushes(this)) {
-            stackDepth = session.pushStat(statToPush);
-        }
-        if (initialDepth + 1 != stackDepth) {
-            throw new RuntimeException("Bug! Did not change stack depth by exactly 1.");
+        final List<String> pushes = stat.pushes(this);
+        final boolean reusable = isReusable(pushes);
+        final Integer pushedDepth = reusable ? pushedStatDepths.get(pushes) : null;
+        final int depth;
+        if (pushedDepth != null) {
+            // an identical stat is already on the stack and stays there at least as long as this one
+            depth = pushedDepth;
+        } else {
+            depth = stackDepth;
+            for (String statToPush : pushes) {
+                stackDepth = session.pushStat(statToPush);
+            }
+            if (depth + 1 != stackDepth) {
+                throw new RuntimeException("Bug! Did not change stack depth by exactly 1.");
+            }
+            if (reusable) {
+                pushedStatDepths.put(pushes, depth);
+            }
         }
-        SingleStatReference statReference = new SingleStatReference(initialDepth, stat.toString(), this);
+        SingleStatReference statReference = new SingleStatReference(depth, stat.toString(), this);
         if(stat instanceof Stats.AggregateBinOpConstStat) { // hacks for handling division by a constant
             final Stats.AggregateBinOpConstStat statAsConstAggregate = (Stats.AggregateBinOpConstStat) stat;
             if(!"/".equals(statAsConstAggregate.getOp())) {
@@ -109,10 +165,22 @@ public class EZImhotepSession implements Closeable {
             statReference = new ConstantDivideSingleStatReference(statReference, statAsConstAggregate.getValue(), this);
         }
 
-        statStack.push(statReference);
+        statStack.push(new PushedStat(statReference, pushedDepth == null && reusable ? pushes : null, pushedDepth == null));
         return statReference;
     }
 
+    /**
+     * Stats referring to other stack entries or to dynamic metrics that can change are always pushed
+     */
+    private static boolean isReusable(List<String> pushes) {
+        for (String push : pushes) {
+            if (push.startsWith("ref ") || push.startsWith("dynamic ")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public CompositeStatReference pushStatComposite(Stats.AggregateBinOpStat stat) throws ImhotepOutOfMemoryException {
         final int initialDepth = stackDepth;
         for (String statToPush : stat.pushes(this)) {
@@ -124,15 +192,36 @@ public class EZImhotepSession implements Closeable {
         final SingleStatReference stat1 = new SingleStatReference(initialDepth, stat.toString(), this);
         final SingleStatReference stat2 = new SingleStatReference(initialDepth + 1, stat.toString(), this);
         final CompositeStatReference statReference = new CompositeStatReference(stat1, stat2);
-        statStack.push(statReference);
+        statStack.push(new PushedStat(statReference, null, true));
         return statReference;
     }
 
+    /**
+     * Pops the last pushed stat. A stat that reused an identical stat pushed before it only invalidates its reference.
+     */
     public StatReference popStat() {
-        stackDepth = session.popStat();
-        final StatReference poppedStat = statStack.pop();
-        poppedStat.invalidate();
-        return poppedStat;
+        final PushedStat poppedStat = statStack.pop();
+        if (poppedStat.onDaemonStack) {
+            stackDepth = session.popStat();
+            if (poppedStat.pushes != null) {
+                pushedStatDepths.remove(poppedStat.pushes);
+            }
+        }
+        poppedStat.reference.invalidate();
+        return poppedStat.reference;
+    }
+
+    private static final class PushedStat {
+        private final StatReference reference;
+        // set for single stats that can be reused by identical stats pushed later
+        private final @Nullable List<String> pushes;
+        private final boolean onDaemonStack;
+
+        private PushedStat(StatReference reference, @Nullable List<String> pushes, boolean onDaemonStack) {
+            this.reference = reference;
+            this.pushes = pushes;
+            this.onDaemonStack = onDaemonStack;
+        }
     }
 
     public int getStackDepth() {
@@ -185,41 +274,130 @@ public class EZImhotepSession implements Closeable {
         performIteration(callback, ftgsIterator);
     }
 
+    /**
+     * Same as ftgsIterate but the terms are aggregated in parallel by splits of the callback if FTGS splitting is enabled.
+     * The splits are merged into the callback before returning.
+     */
+    public <C extends FTGSCallback & SplittableFTGSCallback<C>> void ftgsIterateSplit(List<Field> fields, C callback) {
+        if (ftgsSplitExecutor == null || ftgsSplits <= 1) {
+            ftgsIterate(fields, callback);
+            return;
+        }
+        final FTGSIterator ftgsIterator = getFtgsIterator(fields);
+        new SplitFTGSIteration<C>(this, callback, ftgsSplitExecutor, ftgsSplits).iterate(ftgsIterator);
+    }
+
     private void performIteration(FTGSCallback callback, FTGSIterator ftgsIterator) {
+        final boolean copyStats = callback.readsStats();
         try {
             while (ftgsIterator.nextField()) {
                 final String field = ftgsIterator.fieldName();
                 if (ftgsIterator.fieldIsIntType()) {
                     while (ftgsIterator.nextTerm()) {
+                        checkCancelled();
                         final long term = ftgsIterator.termIntVal();
 
                         while (ftgsIterator.nextGroup()) {
                             final int group = ftgsIterator.group();
-                            ftgsIterator.groupStats(callback.stats);
+                            if (copyStats) {
+                                ftgsIterator.groupStats(callback.stats);
+                            }
                             callback.intTermGroup(field, term, group);
                         }
                     }
                 } else {
                     while (ftgsIterator.nextTerm()) {
+                        checkCancelled();
                         final String term = ftgsIterator.termStringVal();
                         while (ftgsIterator.nextGroup()) {
                             final int group = ftgsIterator.group();
-                            ftgsIterator.groupStats(callback.stats);
+                            if (copyStats) {
+                                ftgsIterator.groupStats(callback.stats);
+                            }
                             callback.stringTermGroup(field, term, group);
                         }
                     }
                 }
             }
+        } catch (RuntimeException e) {
+            throw propagateFailure(e);
         } finally {
             Closeables2.closeQuietly(ftgsIterator, log);
         }
     }
 
+    /**
+     * Lazy version of ftgsIterate: each next() on the returned iterator passes all the groups of the next term to the
+     * callback. The elements themselves are null. The FTGS iterator is closed when the end is reached.
+     */
+    public Iterator<Void> ftgsIterateByTerm(List<Field> fields, FTGSCallback callback) {
+        return new TermStepIterator(callback, getFtgsIterator(fields));
+    }
+
+    public Iterator<Void> ftgsSubsetIterateByTerm(Map<Field, List<?>> fieldsToTermsSubsets, FTGSCallback callback) {
+        return new TermStepIterator(callback, getFtgsSubsetIterator(fieldsToTermsSubsets));
+    }
+
+    private final class TermStepIterator extends AbstractIterator<Void> {
+        private final FTGSCallback callback;
+        private final FTGSIterator ftgsIterator;
+        private final boolean copyStats;
+        private String field;
+        private boolean isIntField;
+        private boolean fieldOver = true;
+
+        private TermStepIterator(FTGSCallback callback, FTGSIterator ftgsIterator) {
+            this.callback = callback;
+            this.ftgsIterator = ftgsIterator;
+            this.copyStats = callback.readsStats();
+        }
+
+        @Override
+        protected Void computeNext() {
+            try {
+                while (!fieldOver || ftgsIterator.nextField()) {
+                    if (fieldOver) {
+                        field = ftgsIterator.fieldName();
+                        isIntField = ftgsIterator.fieldIsIntType();
+                        fieldOver = false;
+                    }
+                    if (ftgsIterator.nextTerm()) {
+                        checkCancelled();
+                        if (isIntField) {
+                            final long term = ftgsIterator.termIntVal();
+                            while (ftgsIterator.nextGroup()) {
+                                if (copyStats) {
+                                    ftgsIterator.groupStats(callback.stats);
+                                }
+                                callback.intTermGroup(field, term, ftgsIterator.group());
+                            }
+                        } else {
+                            final String term = ftgsIterator.termStringVal();
+                            while (ftgsIterator.nextGroup()) {
+                                if (copyStats) {
+                                    ftgsIterator.groupStats(callback.stats);
+                                }
+                                callback.stringTermGroup(field, term, ftgsIterator.group());
+                            }
+                        }
+                        return null;
+                    }
+                    fieldOver = true;
+                }
+            } catch (RuntimeException e) {
+                Closeables2.closeQuietly(ftgsIterator, log);
+                throw propagateFailure(e);
+            }
+            Closeables2.closeQuietly(ftgsIterator, log);
+            return endOfData();
+        }
+    }
+
     public <E> Iterator<E> ftgsGetSubsetIterator(Map<Field, List<?>> fieldsToTermsSubsets, final FTGSIteratingCallback<E> callback) {
         final FTGSIterator ftgsIterator = getFtgsSubsetIterator(fieldsToTermsSubsets);
 
         // TODO: make sure ftgsIterator gets closed
-        return new FTGSCallbackIterator<E>(callback, ftgsIterator);
+        return new FTGSCallbackIterator<E>(callback, ftgsIterator, this);
     }
 
     private FTGSIterator getFtgsSubsetIterator(Map<Field, List<?>> fieldsToTermsSubsets) {
@@ -262,7 +440,7 @@ public class EZImhotepSession implements Closeable {
         final FTGSIterator ftgsIterator = getFtgsIterator(fields);
 
         // TODO: make sure ftgsIterator gets closed
-        return new FTGSCallbackIterator<E>(callback, ftgsIterator);
+        return new FTGSCallbackIterator<E>(callback, ftgsIterator, this);
     }
 
     private FTGSIterator getFtgsIterator(List<Field> fields) {
@@ -283,80 +461,83 @@ public class EZImhotepSession implements Closeable {
     }
 
     public void filter(IntField field, Predicate<Long> predicate) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
-        }
         final TLongArrayList intTerms = intFieldTerms(field, session, predicate);
-        final long[] longs = intTerms.toNativeArray();
-        for (int group = 1; group < numGroups; group++) {
-            session.intOrRegroup(field.getFieldName(), longs, group, 0, group);
-        }
+        intTermsFilter(field.getFieldName(), intTerms.toNativeArray(), false);
     }
 
     public void filterNegation(IntField field, Predicate<Long> predicate) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
-        }
         final TLongArrayList intTerms = intFieldTerms(field, session, predicate);
-        final long[] longs = intTerms.toNativeArray();
-        for (int group = 1; group < numGroups; group++) {
-            session.intOrRegroup(field.getFieldName(), longs, group, group, 0);
-        }
+        intTermsFilter(field.getFieldName(), intTerms.toNativeArray(), true);
     }
 
     public void filter(IntField field, long[] terms) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
-        }
-        for (int group = 1; group < numGroups; group++) {
-            session.intOrRegroup(field.getFieldName(), terms, group, 0, group);
-        }
+        intTermsFilter(field.getFieldName(), terms, false);
     }
 
     public void filterNegation(IntField field, long[] terms) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
-        }
-        for (int group = 1; group < numGroups; group++) {
-            session.intOrRegroup(field.getFieldName(), terms, group, group, 0);
-        }
+        intTermsFilter(field.getFieldName(), terms, true);
     }
 
     public void filter(StringField field, Predicate<String> predicate) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
-        }
         final List<String> stringTerms = stringFieldTerms(field, session, predicate);
-        for (int group = 1; group < numGroups; group++) {
-            session.stringOrRegroup(field.getFieldName(), stringTerms.toArray(new String[stringTerms.size()]), group, 0, group);
-        }
+        stringTermsFilter(field.getFieldName(), stringTerms.toArray(new String[stringTerms.size()]), false);
     }
 
     public void filterNegation(StringField field, Predicate<String> predicate) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
-        }
         final List<String> stringTerms = stringFieldTerms(field, session, predicate);
-        for (int group = 1; group < numGroups; group++) {
-            session.stringOrRegroup(field.getFieldName(), stringTerms.toArray(new String[stringTerms.size()]), group, group, 0);
-        }
+        stringTermsFilter(field.getFieldName(), stringTerms.toArray(new String[stringTerms.size()]), true);
     }
 
     public void filter(StringField field, String[] terms) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
+        stringTermsFilter(field.getFieldName(), terms, false);
+    }
+    public void filterNegation(StringField field, String[] terms) throws ImhotepOutOfMemoryException {
+        stringTermsFilter(field.getFieldName(), terms, true);
+    }
+
+    private void intTermsFilter(String fieldName, long[] terms, boolean negation) throws ImhotepOutOfMemoryException {
+        if (numGroups <= 2 || terms.length == 0) {
+            for (int group = 1; group < numGroups; group++) {
+                session.intOrRegroup(fieldName, terms, group, negation ? group : 0, negation ? 0 : group);
+            }
+            return;
         }
-        for (int group = 1; group < numGroups; group++) {
-            session.stringOrRegroup(field.getFieldName(), terms, group, 0, group);
+        terms = distinct(terms);
+        final RegroupCondition[] conditions = new RegroupCondition[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            conditions[i] = new RegroupCondition(fieldName, true, terms[i], null, false);
         }
+        termsFilter(conditions, negation);
     }
-    public void filterNegation(StringField field, String[] terms) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
+
+    private void stringTermsFilter(String fieldName, String[] terms, boolean negation) throws ImhotepOutOfMemoryException {
+        if (numGroups <= 2 || terms.length == 0) {
+            for (int group = 1; group < numGroups; group++) {
+                session.stringOrRegroup(fieldName, terms, group, negation ? group : 0, negation ? 0 : group);
+            }
+            return;
+        }
+        terms = distinct(terms);
+        final RegroupCondition[] conditions = new RegroupCondition[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            conditions[i] = new RegroupCondition(fieldName, false, 0, terms[i], false);
         }
+        termsFilter(conditions, negation);
+    }
+
+    /**
+     * Filters all the groups with a single regroup instead of a term regroup per group.
+     * Docs of a group that match any of the conditions stay in the group or are removed with negation.
+     */
+    private void termsFilter(RegroupCondition[] conditions, boolean negation) throws ImhotepOutOfMemoryException {
+        final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[numGroups - 1];
         for (int group = 1; group < numGroups; group++) {
-            session.stringOrRegroup(field.getFieldName(), terms, group, group, 0);
+            final int[] positiveGroups = new int[conditions.length];
+            Arrays.fill(positiveGroups, negation ? 0 : group);
+            rules[group - 1] = new GroupMultiRemapRule(group, negation ? group : 0, positiveGroups, conditions);
         }
+        // groups keep their numbers like with the per group term regroups so numGroups doesn't change
+        session.regroup(rules, true);
     }
 
     public void filter(SingleStatReference stat, long min, long max) throws ImhotepOutOfMemoryException {
@@ -372,7 +553,7 @@ public class EZImhotepSession implements Closeable {
 
     public void filter(Query query) throws ImhotepOutOfMemoryException {
         if (numGroups > 2) {
-            System.err.println("WARNING: performing a query filter with more than one group. Consider filtering before regrouping.");
+            log.warn("Performing a query filter with more than one group. Consider filtering before regrouping.");
         }
         for (int group = 1; group < numGroups; group++) {
             session.regroup(new QueryRemapRule(group, query, 0, group));
@@ -381,7 +562,7 @@ public class EZImhotepSession implements Closeable {
 
     public void filterNegation(Query query) throws ImhotepOutOfMemoryException {
         if (numGroups > 2) {
-            System.err.println("WARNING: performing a query filter with more than one group. Consider filtering before regrouping.");
+            log.warn("Performing a query filter with more than one group. Consider filtering before regrouping.");
         }
         for (int group = 1; group < numGroups; group++) {
             session.regroup(new QueryRemapRule(group, query, group, 0));
@@ -395,7 +576,7 @@ public class EZImhotepSession implements Closeable {
      */
     public void filterSample(Field field, double p, String salt) throws ImhotepOutOfMemoryException {
         if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
+            log.warn("Performing a term filter with more than one group. Consider filtering before regrouping.");
         }
         for (int group = 1; group < numGroups; group++) {
             session.randomRegroup(field.getFieldName(), field.isIntField(), salt, p, group, 0, group);
@@ -407,12 +588,7 @@ public class EZImhotepSession implements Closeable {
      * @param regex regex to test with
      */
     public void filterRegex(Field field, String regex) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a filter with more than one group. Consider filtering before regrouping.");
-        }
-        for (int group = 1; group < numGroups; group++) {
-            session.regexRegroup(field.getFieldName(), regex, group, 0, group);
-        }
+        regexFilter(field, regex, false);
     }
 
     /**
@@ -420,11 +596,12 @@ public class EZImhotepSession implements Closeable {
      * @param regex regex to test with
      */
     public void filterRegexNegation(Field field, String regex) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a filter with more than one group. Consider filtering before regrouping.");
-        }
+        regexFilter(field, regex, true);
+    }
+
+    private void regexFilter(Field field, String regex, boolean negation) throws ImhotepOutOfMemoryException {
         for (int group = 1; group < numGroups; group++) {
-            session.regexRegroup(field.getFieldName(), regex, group, group, 0);
+            session.regexRegroup(field.getFieldName(), regex, group, negation ? group : 0, negation ? 0 : group);
         }
     }
 
@@ -438,6 +615,7 @@ public class EZImhotepSession implements Closeable {
         if(terms.length == 0) {
             return Maps.newHashMap();
         }
+        terms = distinct(terms);
         checkGroupLimitWithFactor(terms.length);
         final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[numGroups-1];
         final Map<Integer, GroupKey> ret = groupKeys == null ? null : Maps.<Integer, GroupKey>newHashMap();
@@ -464,6 +642,7 @@ public class EZImhotepSession implements Closeable {
         if(terms.length == 0) {
             return Maps.newHashMap();
         }
+        terms = distinct(terms);
         checkGroupLimitWithFactor(terms.length);
         final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[numGroups-1];
         final Map<Integer, GroupKey> ret = groupKeys == null ? null : Maps.<Integer, GroupKey>newHashMap();
@@ -486,6 +665,18 @@ public class EZImhotepSession implements Closeable {
         return ret;
     }
 
+    /**
+     * Removes repeated terms keeping the first occurrence since a multi regroup fails on conditions that collide.
+     */
+    private static long[] distinct(long[] terms) {
+        return Longs.toArray(Sets.newLinkedHashSet(Longs.asList(terms)));
+    }
+
+    private static String[] distinct(String[] terms) {
+        final Collection<String> distinctTerms = Sets.newLinkedHashSet(Arrays.asList(terms));
+        return distinctTerms.toArray(new String[distinctTerms.size()]);
+    }
+
     private void checkGroupLimitWithFactor(int factor) {
         final double newNumGroups = (double)(numGroups-1) * factor;
         checkGroupLimit(newNumGroups);
@@ -692,18 +883,18 @@ public class EZImhotepSession implements Closeable {
         final Map<Integer, GroupKey> ret = Maps.newHashMap();
         final int gutterBuckets = noGutters ? 0 : 2;
         final int numBuckets = (int)((max-min-1)/intervalSize + 1 + gutterBuckets);
+        final List<String> bucketLabels = metricBucketLabels(min, max, intervalSize, noGutters, stringifier);
+        final int rangeBuckets = bucketLabels.size() - gutterBuckets;
         for (int group = 1; group < numGroups; group++) {
-            int bucket = 1;
             int newGroupOffset = (group - 1) * numBuckets;
             final GroupKey<String> groupKey = groupKeys != null ? groupKeys.get(group) : GroupKey.empty();
-            for (long i = min; i < max; i += intervalSize, bucket++) {
-                final String bucketString = String.format("[%s, %s)", stringifier.toString(i), stringifier.toString(i + intervalSize));
-                ret.put(newGroupOffset + bucket, groupKey.add(bucketString));
+            for (int bucket = 1; bucket <= rangeBuckets; bucket++) {
+                ret.put(newGroupOffset + bucket, groupKey.add(bucketLabels.get(bucket - 1)));
             }
 
             if(!noGutters) {
-                ret.put(newGroupOffset + numBuckets - 1, groupKey.add(String.format("< %s", stringifier.toString(min))));
-                ret.put(newGroupOffset + numBuckets, groupKey.add(String.format(">= %s", stringifier.toString(max))));
+                ret.put(newGroupOffset + numBuckets - 1, groupKey.add(bucketLabels.get(rangeBuckets)));
+                ret.put(newGroupOffset + numBuckets, groupKey.add(bucketLabels.get(rangeBuckets + 1)));
             }
         }
         final int newExpectedNumberOfGroups = (numGroups-1) * numBuckets;
@@ -715,30 +906,63 @@ public class EZImhotepSession implements Closeable {
         return ret;
     }
 
+    /**
+     * Returns the group key terms metricRegroup assigns to the buckets of each group in the bucket order.
+     */
+    public static List<String> metricBucketLabels(long min, long max, long intervalSize, boolean noGutters,
+                                                  Stringifier<Long> stringifier) {
+        final List<String> ret = Lists.newArrayList();
+        for (long i = min; i < max; i += intervalSize) {
+            ret.add(String.format("[%s, %s)", stringifier.toString(i), stringifier.toString(i + intervalSize)));
+        }
+        if(!noGutters) {
+            ret.add(String.format("< %s", stringifier.toString(min)));
+            ret.add(String.format(">= %s", stringifier.toString(max)));
+        }
+        return ret;
+    }
+
     public Map<Integer, GroupKey> metricRegroup2D(SingleStatReference xStat, long xMin, long xMax, long xIntervalSize,
                                    SingleStatReference yStat, long yMin, long yMax, long yIntervalSize) throws ImhotepOutOfMemoryException {
         final Map<Integer, GroupKey> ret = Maps.newTreeMap();
         numGroups = session.metricRegroup2D(xStat.depth, xMin, xMax, xIntervalSize, yStat.depth, yMin, yMax, yIntervalSize);
+        final SortedMap<Integer, String> bucketLabels = metricBucketLabels2D(xMin, xMax, xIntervalSize, yMin, yMax, yIntervalSize);
+        final int numBuckets = bucketLabels.lastKey();
+        for (Map.Entry<Integer, String> entry : bucketLabels.entrySet()) {
+            ret.put(entry.getKey(), GroupKey.singleton(entry.getValue()));
+        }
+        for (int group = numGroups; group <= numBuckets; group++) {
+            ret.remove(group);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the group key terms metricRegroup2D assigns to its groups sorted by group.
+     */
+    public static SortedMap<Integer, String> metricBucketLabels2D(long xMin, long xMax, long xIntervalSize,
+                                                                  long yMin, long yMax, long yIntervalSize) {
+        final SortedMap<Integer, String> ret = Maps.newTreeMap();
         final int xBuckets = (int)(((xMax - 1) - xMin) / xIntervalSize + 3);
         final int yBuckets = (int)(((yMax - 1) - yMin) / yIntervalSize + 3);
         final int numBuckets = xBuckets * yBuckets;
-        ret.put(1, GroupKey.singleton(String.format("< %d, < %d", xMin, yMin)));
-        ret.put(numBuckets, GroupKey.singleton(String.format(">= %d, >= %d", xMax, yMax)));
-        ret.put(xBuckets, GroupKey.singleton(String.format(">= %d, < %d", xMax, yMin)));
-        ret.put((yBuckets-1)*xBuckets+1, GroupKey.singleton(String.format("< %d, >= %d", xMin, yMax)));
+        ret.put(1, String.format("< %d, < %d", xMin, yMin));
+        ret.put(numBuckets, String.format(">= %d, >= %d", xMax, yMax));
+        ret.put(xBuckets, String.format(">= %d, < %d", xMax, yMin));
+        ret.put((yBuckets-1)*xBuckets+1, String.format("< %d, >= %d", xMin, yMax));
         {
             int index = 2;
             for (long x = xMin; x < xMax; x+=xIntervalSize) {
-                ret.put(index, GroupKey.singleton(String.format("[%d, %d), < %d", x, x+xIntervalSize, yMin)));
-                ret.put(index+(yBuckets-1)*xBuckets, GroupKey.singleton(String.format("[%d, %d), >= %d", x, x+xIntervalSize, yMax)));
+                ret.put(index, String.format("[%d, %d), < %d", x, x+xIntervalSize, yMin));
+                ret.put(index+(yBuckets-1)*xBuckets, String.format("[%d, %d), >= %d", x, x+xIntervalSize, yMax));
                 index++;
             }
         }
         {
             int index = 1;
             for (long y = yMin; y < yMax; y+=yIntervalSize) {
-                ret.put(index*xBuckets+1, GroupKey.singleton(String.format("< %d, [%d, %d)", xMin, y, y+yIntervalSize)));
-                ret.put((index+1)*xBuckets, GroupKey.singleton(String.format(">= %d, [%d, %d)", xMax, y, y+yIntervalSize)));
+                ret.put(index*xBuckets+1, String.format("< %d, [%d, %d)", xMin, y, y+yIntervalSize));
+                ret.put((index+1)*xBuckets, String.format(">= %d, [%d, %d)", xMax, y, y+yIntervalSize));
                 index++;
             }
         }
@@ -749,13 +973,10 @@ public class EZImhotepSession implements Closeable {
                 for (int yBucket = 1; yBucket < yBuckets-1; yBucket++) {
                     final long yStart = (yBucket-1)*yIntervalSize;
                     final long yEnd = yStart+yIntervalSize;
-                    ret.put(yBucket*xBuckets+xBucket, GroupKey.singleton(String.format("[%d, %d), [%d, %d)", xStart, xEnd, yStart, yEnd)));
+                    ret.put(yBucket*xBuckets+xBucket, String.format("[%d, %d), [%d, %d)", xStart, xEnd, yStart, yEnd));
                 }
             }
         }
-        for (int group = numGroups; group <= numBuckets; group++) {
-            ret.remove(group);
-        }
         return ret;
     }
 
@@ -777,13 +998,13 @@ public class EZImhotepSession implements Closeable {
         return ret;
     }
 
-    private static final class GetGroupTermsCallback extends FTGSCallback {
+    private static final class GetGroupTermsCallback extends FTGSCallback implements SplittableFTGSCallback<GetGroupTermsCallback> {
 
         final TIntObjectHashMap<TLongArrayList> intTermListsMap = new TIntObjectHashMap<TLongArrayList>();
         final TIntObjectHashMap<List<String>> stringTermListsMap = new TIntObjectHashMap<List<String>>();
 
-        public GetGroupTermsCallback(final int numStats) {
-            super(numStats);
+        public GetGroupTermsCallback() {
+            super(0);
         }
 
         public void intTermGroup(final String field, final long term, int group) {
@@ -799,17 +1020,142 @@ public class EZImhotepSession implements Closeable {
             }
             stringTermListsMap.get(group).add(term);
         }
+
+        @Override
+        public GetGroupTermsCallback newSplit() {
+            return new GetGroupTermsCallback();
+        }
+
+        /**
+         * Keeps the terms of each group sorted as they come from FTGS. The terms of a group in a split are sorted already
+         * so they are merged in a single pass over all the splits.
+         */
+        @Override
+        public void merge(List<GetGroupTermsCallback> splits) {
+            final TIntObjectHashMap<List<TLongArrayList>> groupToIntTerms = new TIntObjectHashMap<List<TLongArrayList>>();
+            final TIntObjectHashMap<List<List<String>>> groupToStringTerms = new TIntObjectHashMap<List<List<String>>>();
+            for (GetGroupTermsCallback split : splits) {
+                for (TIntObjectIterator<TLongArrayList> iterator = split.intTermListsMap.iterator(); iterator.hasNext();) {
+                    iterator.advance();
+                    if (!groupToIntTerms.containsKey(iterator.key())) {
+                        groupToIntTerms.put(iterator.key(), Lists.<TLongArrayList>newArrayList());
+                    }
+                    groupToIntTerms.get(iterator.key()).add(iterator.value());
+                }
+                for (TIntObjectIterator<List<String>> iterator = split.stringTermListsMap.iterator(); iterator.hasNext();) {
+                    iterator.advance();
+                    if (!groupToStringTerms.containsKey(iterator.key())) {
+                        groupToStringTerms.put(iterator.key(), Lists.<List<String>>newArrayList());
+                    }
+                    groupToStringTerms.get(iterator.key()).add(iterator.value());
+                }
+            }
+            for (TIntObjectIterator<List<TLongArrayList>> iterator = groupToIntTerms.iterator(); iterator.hasNext();) {
+                iterator.advance();
+                intTermListsMap.put(iterator.key(), mergeIntTerms(iterator.value()));
+            }
+            for (TIntObjectIterator<List<List<String>>> iterator = groupToStringTerms.iterator(); iterator.hasNext();) {
+                iterator.advance();
+                stringTermListsMap.put(iterator.key(), mergeStringTerms(iterator.value()));
+            }
+        }
+
+        private static TLongArrayList mergeIntTerms(final List<TLongArrayList> termLists) {
+            if (termLists.size() == 1) {
+                return termLists.get(0);
+            }
+            int size = 0;
+            for (TLongArrayList terms : termLists) {
+                size += terms.size();
+            }
+            final TLongArrayList merged = new TLongArrayList(size);
+            final int[] positions = new int[termLists.size()];
+            // indexes of the lists by their next term
+            final PriorityQueue<Integer> heads = new PriorityQueue<Integer>(termLists.size(), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Longs.compare(termLists.get(a).get(positions[a]), termLists.get(b).get(positions[b]));
+                }
+            });
+            for (int i = 0; i < termLists.size(); i++) {
+                if (!termLists.get(i).isEmpty()) {
+                    heads.add(i);
+                }
+            }
+            while (!heads.isEmpty()) {
+                final int i = heads.poll();
+                final TLongArrayList terms = termLists.get(i);
+                merged.add(terms.get(positions[i]++));
+                if (positions[i] < terms.size()) {
+                    heads.add(i);
+                }
+            }
+            return merged;
+        }
+
+        private static List<String> mergeStringTerms(final List<List<String>> termLists) {
+            if (termLists.size() == 1) {
+                return termLists.get(0);
+            }
+            int size = 0;
+            for (List<String> terms : termLists) {
+                size += terms.size();
+            }
+            final List<String> merged = Lists.newArrayListWithCapacity(size);
+            final int[] positions = new int[termLists.size()];
+            final PriorityQueue<Integer> heads = new PriorityQueue<Integer>(termLists.size(), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return compareStringTerms(termLists.get(a).get(positions[a]), termLists.get(b).get(positions[b]));
+                }
+            });
+            for (int i = 0; i < termLists.size(); i++) {
+                if (!termLists.get(i).isEmpty()) {
+                    heads.add(i);
+                }
+            }
+            while (!heads.isEmpty()) {
+                final int i = heads.poll();
+                final List<String> terms = termLists.get(i);
+                merged.add(terms.get(positions[i]++));
+                if (positions[i] < terms.size()) {
+                    heads.add(i);
+                }
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Compares string terms in the order FTGS returns them, which is the order of their UTF-8 bytes. That is the order
+     * of the code points and differs from String.compareTo() for characters above the surrogates.
+     */
+    public static int compareStringTerms(String a, String b) {
+        final int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            int ca = a.charAt(i);
+            int cb = b.charAt(i);
+            if (ca != cb) {
+                if (ca >= Character.MIN_SURROGATE && cb >= Character.MIN_SURROGATE) {
+                    // surrogates encode code points above any other char
+                    ca = ca <= Character.MAX_SURROGATE ? ca + 0x2000 : ca - 0x800;
+                    cb = cb <= Character.MAX_SURROGATE ? cb + 0x2000 : cb - 0x800;
+                }
+                return ca - cb;
+            }
+        }
+        return a.length() - b.length();
     }
 
     private TIntObjectHashMap<List<String>> getStringGroupTerms(StringField field) {
-        final GetGroupTermsCallback callback = new GetGroupTermsCallback(stackDepth);
-        ftgsIterate(Arrays.asList((Field)field), callback);
+        final GetGroupTermsCallback callback = new GetGroupTermsCallback();
+        ftgsIterateSplit(Arrays.asList((Field)field), callback);
         return callback.stringTermListsMap;
     }
 
     private TIntObjectHashMap<TLongArrayList> getIntGroupTerms(IntField field) {
-        final GetGroupTermsCallback callback = new GetGroupTermsCallback(stackDepth);
-        ftgsIterate(Arrays.asList((Field)field), callback);
+        final GetGroupTermsCallback callback = new GetGroupTermsCallback();
+        ftgsIterateSplit(Arrays.asList((Field)field), callback);
         return callback.intTermListsMap;
     }
 
@@ -901,8 +1247,8 @@ public class EZImhotepSession implements Closeable {
         private String lastStringTerm = null;
         private boolean firstIteration = true;
 
-        public FieldTermsCallback(final int numStats, @Nullable Predicate<Long> predicateInt, @Nullable Predicate<String> predicateString) {
-            super(numStats);
+        public FieldTermsCallback(@Nullable Predicate<Long> predicateInt, @Nullable Predicate<String> predicateString) {
+            super(0);
 
             this.predicateInt = predicateInt;
             this.predicateString = predicateString;
@@ -931,25 +1277,32 @@ public class EZImhotepSession implements Closeable {
         }
     }
     public TLongArrayList intFieldTerms(IntField field, ImhotepSession session, @Nullable Predicate<Long> filterPredicate) throws ImhotepOutOfMemoryException {
-        final FieldTermsCallback callback = new FieldTermsCallback(stackDepth, filterPredicate, null);
+        final FieldTermsCallback callback = new FieldTermsCallback(filterPredicate, null);
         new EZImhotepSession(session).ftgsIterate(Arrays.asList((Field)field), callback);
         return callback.intTerms;
     }
 
     public List<String> stringFieldTerms(StringField field, ImhotepSession session, @Nullable Predicate<String> filterPredicate) throws ImhotepOutOfMemoryException {
-        final FieldTermsCallback callback = new FieldTermsCallback(stackDepth, null, filterPredicate);
+        final FieldTermsCallback callback = new FieldTermsCallback(null, filterPredicate);
         new EZImhotepSession(session).ftgsIterate(Arrays.asList((Field)field), callback);
         return callback.stringTerms;
     }
 
+    /**
+     * Callbacks that don't read stats pass 0 as numStats so that iteration doesn't copy the group stats for every term.
+     */
     public static abstract class FTGSCallback {
 
-        private final long[] stats;
+        final long[] stats;
 
         public FTGSCallback(int numStats) {
             stats = new long[numStats];
         }
 
+        final boolean readsStats() {
+            return stats.length > 0;
+        }
+
         protected final double getStat(StatReference ref) {
             requireValid(ref);
             return ref.getValue(stats);
@@ -967,6 +1320,10 @@ public class EZImhotepSession implements Closeable {
             stats = new long[numStats];
         }
 
+        final boolean readsStats() {
+            return stats.length > 0;
+        }
+
         protected final double getStat(StatReference ref) {
             requireValid(ref);
             return ref.getValue(stats);
@@ -978,8 +1335,8 @@ public class EZImhotepSession implements Closeable {
 
     public class FTGSDoNothingCallback extends FTGSCallback {
 
-        public FTGSDoNothingCallback(final int numStats) {
-            super(numStats);
+        public FTGSDoNothingCallback() {
+            super(0);
         }
 
         protected void intTermGroup(final String field, final long term, int group) {}
@@ -988,10 +1345,14 @@ public class EZImhotepSession implements Closeable {
     }
 
     @Override
-    public void close() {
+    public synchronized void close() {
         if (!closed) {
-            session.close();
             closed = true;
+            final CancellationToken token = cancellationToken;
+            if (token != null) {
+                token.unregister(this);
+            }
+            session.close();
         }
     }
 
@@ -34,15 +34,27 @@ public class FTGSCallbackIterator<E> extends AbstractIterator<E> implements Peek
 
     private final EZImhotepSession.FTGSIteratingCallback<E> callback;
     private final FTGSIterator ftgsIterator;
+    private final EZImhotepSession session;
+    private final boolean copyStats;
 
-    public FTGSCallbackIterator(EZImhotepSession.FTGSIteratingCallback<E> callback, FTGSIterator ftgsIterator) {
+    public FTGSCallbackIterator(EZImhotepSession.FTGSIteratingCallback<E> callback, FTGSIterator ftgsIterator, EZImhotepSession session) {
         this.callback = callback;
         this.ftgsIterator = ftgsIterator;
+        this.session = session;
+        this.copyStats = callback.readsStats();
     }
 
 
     @Override
     protected E computeNext() {
+        try {
+            return iterate();
+        } catch (RuntimeException e) {
+            throw session.propagateFailure(e);
+        }
+    }
+
+    private E iterate() {
         while (!fieldOver || ftgsIterator.nextField()) {
             if(fieldOver) {
                 field = ftgsIterator.fieldName();
@@ -51,6 +63,7 @@ public class FTGSCallbackIterator<E> extends AbstractIterator<E> implements Peek
             }
             while (!termOver || ftgsIterator.nextTerm()) {
                 if(termOver) {
+                    session.checkCancelled();
                     if(isIntField) {
                         termInt = ftgsIterator.termIntVal();
                     } else {
@@ -60,7 +73,9 @@ public class FTGSCallbackIterator<E> extends AbstractIterator<E> implements Peek
                 }
                 if (ftgsIterator.nextGroup()) {
                     final int group = ftgsIterator.group();
-                    ftgsIterator.groupStats(callback.stats);
+                    if (copyStats) {
+                        ftgsIterator.groupStats(callback.stats);
+                    }
                     if (isIntField) {
                         return callback.intTermGroup(field, termInt, group);
                     } else {
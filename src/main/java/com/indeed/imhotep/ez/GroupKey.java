@@ -13,23 +13,27 @@
  */
  package com.indeed.imhotep.ez;
 
-import com.google.common.collect.AbstractIterator;
-import com.google.common.collect.Lists;
+import com.google.common.collect.Iterators;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nullable;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
+ * Immutable list of group terms, one per grouping level.
+ * Each key only stores its last term and a reference to the parent key so all keys created from the same parent
+ * share its terms and add() is O(1). Terms are read back in a single walk over the parents.
  * @author jplaisance
  */
 public final class GroupKey<E> implements Iterable<E> {
     private static final Logger log = Logger.getLogger(GroupKey.class);
 
-    private final @Nullable List<E> front;
-    private final @Nullable List<E> back;
+    private final @Nullable GroupKey<E> parent;
+    private final @Nullable E last;
+    private final int size;
 
-    private static final GroupKey EMPTY = new GroupKey(null, null);
+    private static final GroupKey EMPTY = new GroupKey(null, null, 0);
 
     public static <E> GroupKey<E> empty() {
         return EMPTY;
@@ -39,106 +43,104 @@ public final class GroupKey<E> implements Iterable<E> {
         return EMPTY.add(e);
     }
 
-    private GroupKey(final @Nullable List<E> front, final @Nullable List<E> back) {
-        this.front = front;
-        this.back = back;
+    private GroupKey(final @Nullable GroupKey<E> parent, final @Nullable E last, final int size) {
+        this.parent = parent;
+        this.last = last;
+        this.size = size;
     }
 
+    @SuppressWarnings("unchecked")
     public Iterator<E> iterator() {
-        return new AbstractIterator<E>() {
-            GroupKey<E> current = GroupKey.this;
-
-            protected E computeNext() {
-                if (current.isEmpty()) return endOfData();
-                final E ret = current.head();
-                current = current.tail();
-                return ret;
-            }
-        };
+        return (Iterator<E>) Iterators.forArray(toArray());
     }
 
-    private static final class List<E> {
-        private final E head;
-
-        private final List<E> tail;
-
-        private List(final E head, final @Nullable List<E> tail) {
-            this.head = head;
-            this.tail = tail;
+    /**
+     * Returns the terms of this key from the first level to the last one.
+     */
+    public Object[] toArray() {
+        final Object[] ret = new Object[size];
+        GroupKey<E> current = this;
+        for (int i = size - 1; i >= 0; i--) {
+            ret[i] = current.last;
+            current = current.parent;
         }
+        return ret;
+    }
 
-        public boolean equals(final Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            final List list = (List) o;
-
-            if (head != null ? !head.equals(list.head) : list.head != null) return false;
-            if (tail != null ? !tail.equals(list.tail) : list.tail != null) return false;
+    public int size() {
+        return size;
+    }
 
-            return true;
+    public E head() {
+        if (size == 0) throw new IllegalStateException("empty key has no head");
+        GroupKey<E> current = this;
+        while (current.size > 1) {
+            current = current.parent;
         }
+        return current.last;
+    }
 
-        public int hashCode() {
-            int result = head != null ? head.hashCode() : 0;
-            result = 31 * result + (tail != null ? tail.hashCode() : 0);
-            return result;
-        }
+    /**
+     * Returns the key without the last term. Keys created from the same key return the same instance.
+     */
+    public @Nullable GroupKey<E> parent() {
+        return parent;
     }
 
-    public E head() {
-        if (front == null) {
-            if (back == null) throw new IllegalStateException("empty key has no head");
-            List<E> ptr = back;
-            while (ptr.tail != null) {
-                ptr = ptr.tail;
-            }
-            return ptr.head;
-        }
-        return front.head;
+    /**
+     * Returns the term of the last level or null for the empty key.
+     */
+    public @Nullable E last() {
+        return last;
     }
 
+    /**
+     * Prefer iterating over the key as this has to copy all the remaining terms.
+     */
+    @SuppressWarnings("unchecked")
     public GroupKey<E> tail() {
-        if (front == null) {
-            if (back == null) throw new IllegalStateException("empty key has no tail");
-            List<E> reversed = null;
-            List<E> current = back;
-            while (current.tail != null) {
-                reversed = new List<E>(current.head, reversed);
-                current = current.tail;
-            }
-            return new GroupKey<E>(reversed, null);
+        if (size == 0) throw new IllegalStateException("empty key has no tail");
+        final Object[] terms = toArray();
+        GroupKey<E> ret = empty();
+        for (int i = 1; i < terms.length; i++) {
+            ret = ret.add((E) terms[i]);
         }
-        return new GroupKey<E>(front.tail, back);
+        return ret;
     }
 
     public GroupKey<E> add(E e) {
-        return new GroupKey<E>(front, new List<E>(e, back));
+        return new GroupKey<E>(this, e, size + 1);
     }
 
     public boolean isEmpty() {
-        return front == null && back == null;
+        return size == 0;
     }
 
     public String toString() {
-        return Lists.newArrayList(this).toString();
+        return Arrays.toString(toArray());
     }
 
     public boolean equals(final Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
 
-        final GroupKey groupKey = (GroupKey) o;
-
-        if (back != null ? !back.equals(groupKey.back) : groupKey.back != null) return false;
-        if (front != null ? !front.equals(groupKey.front) : groupKey.front != null) return false;
-
+        GroupKey a = this;
+        GroupKey b = (GroupKey) o;
+        if (a.size != b.size) return false;
+        // keys created from the same parent share it so we can stop as soon as the references match
+        while (a != b) {
+            if (a.last != null ? !a.last.equals(b.last) : b.last != null) return false;
+            a = a.parent;
+            b = b.parent;
+        }
         return true;
     }
 
     public int hashCode() {
-        int result = front != null ? front.hashCode() : 0;
-        result = 31 * result + (back != null ? back.hashCode() : 0);
+        int result = 1;
+        for (GroupKey current = this; current.size > 0; current = current.parent) {
+            result = 31 * result + (current.last != null ? current.last.hashCode() : 0);
+        }
         return result;
     }
 }
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+/**
+ * Thrown when a query notices that its {@link CancellationToken} has been cancelled.
+ * @author vladimir
+ */
+public class QueryCancelledException extends RuntimeException {
+    public QueryCancelledException(String reason) {
+        super("Query was cancelled: " + reason);
+    }
+
+    public QueryCancelledException(String reason, Throwable cause) {
+        super("Query was cancelled: " + reason, cause);
+    }
+}
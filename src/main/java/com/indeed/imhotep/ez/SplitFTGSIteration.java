@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Consumes an FTGS iterator with the terms partitioned by hash into splits that are aggregated in parallel.
+ * The iterator is read on the calling thread which batches the (term, group, stats) tuples of each split and hands
+ * the batches to the executor. The batches of a split are applied one at a time in order to the callback of the split
+ * so callbacks don't have to be thread safe. Once everything is applied the splits are merged into the callback.
+ * @author vladimir
+ */
+final class SplitFTGSIteration<C extends EZImhotepSession.FTGSCallback & SplittableFTGSCallback<C>> {
+    private static final Logger log = Logger.getLogger(SplitFTGSIteration.class);
+
+    private static final int BATCH_SIZE = 4096;
+    private static final int MAX_BATCHES_PER_SPLIT = 4;
+
+    private final EZImhotepSession session;
+    private final C callback;
+    private final ExecutorService executor;
+    private final int numStats;
+    private final List<Split> splits;
+    // limits the memory used by batches that are waiting for the workers
+    private final int maxBatches;
+    private final Semaphore batchPermits;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    SplitFTGSIteration(EZImhotepSession session, C callback, ExecutorService executor, int numSplits) {
+        this.session = session;
+        this.callback = callback;
+        this.executor = executor;
+        numStats = callback.readsStats() ? callback.stats.length : 0;
+        splits = Lists.newArrayListWithCapacity(numSplits);
+        for (int i = 0; i < numSplits; i++) {
+            splits.add(new Split(callback.newSplit()));
+        }
+        maxBatches = numSplits * MAX_BATCHES_PER_SPLIT;
+        batchPermits = new Semaphore(maxBatches);
+    }
+
+    void iterate(FTGSIterator ftgsIterator) {
+        try {
+            while (ftgsIterator.nextField()) {
+                final String field = ftgsIterator.fieldName();
+                final boolean isIntField = ftgsIterator.fieldIsIntType();
+                while (ftgsIterator.nextTerm()) {
+                    session.checkCancelled();
+                    checkFailure();
+                    if (isIntField) {
+                        final long term = ftgsIterator.termIntVal();
+                        final Split split = splits.get(splitIndex((int) (term ^ (term >>> 32))));
+                        while (ftgsIterator.nextGroup()) {
+                            split.batch(field, true).addInt(term, ftgsIterator);
+                        }
+                    } else {
+                        final String term = ftgsIterator.termStringVal();
+                        final Split split = splits.get(splitIndex(term.hashCode()));
+                        while (ftgsIterator.nextGroup()) {
+                            split.batch(field, false).addString(term, ftgsIterator);
+                        }
+                    }
+                }
+            }
+            for (Split split : splits) {
+                split.flush();
+            }
+            // all the permits are back once every batch is applied
+            batchPermits.acquire(maxBatches);
+            batchPermits.release(maxBatches);
+            checkFailure();
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
+            throw session.propagateFailure(new RuntimeException("Interrupted while waiting for FTGS splits", e));
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);  // remaining batches are skipped
+            throw session.propagateFailure(e);
+        } finally {
+            Closeables2.closeQuietly(ftgsIterator, log);
+        }
+        final List<C> splitCallbacks = Lists.newArrayListWithCapacity(splits.size());
+        for (Split split : splits) {
+            splitCallbacks.add(split.callback);
+        }
+        callback.merge(splitCallbacks);
+    }
+
+    private int splitIndex(int hash) {
+        // smears the bits as term hashes of int fields are often sequential
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return (hash & Integer.MAX_VALUE) % splits.size();
+    }
+
+    private void checkFailure() {
+        final Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private final class Split implements Runnable {
+        private final C callback;
+        private final ConcurrentLinkedQueue<Batch> pending = new ConcurrentLinkedQueue<Batch>();
+        // true while a worker is applying the pending batches
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private Batch current;
+
+        private Split(C callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * Returns the batch to add the next tuple of the field to
+         */
+        Batch batch(String field, boolean isIntField) throws InterruptedException {
+            if (current != null && (current.size == BATCH_SIZE || !current.field.equals(field))) {
+                flush();
+            }
+            if (current == null) {
+                current = new Batch(field, isIntField);
+            }
+            return current;
+        }
+
+        void flush() throws InterruptedException {
+            if (current == null) {
+                return;
+            }
+            batchPermits.acquire();
+            pending.add(current);
+            current = null;
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    run();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Batch batch;
+                while ((batch = pending.poll()) != null) {
+                    try {
+                        if (failure.get() == null) {
+                            batch.apply(callback);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        batchPermits.release();
+                    }
+                }
+                scheduled.set(false);
+                // a batch may have been added after the last poll but before the flag was cleared
+                if (pending.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private final class Batch {
+        private final String field;
+        private final boolean isIntField;
+        private final long[] intTerms;
+        private final String[] stringTerms;
+        private final int[] groups = new int[BATCH_SIZE];
+        private final long[] stats = new long[BATCH_SIZE * numStats];
+        private int size = 0;
+
+        private Batch(String field, boolean isIntField) {
+            this.field = field;
+            this.isIntField = isIntField;
+            intTerms = isIntField ? new long[BATCH_SIZE] : null;
+            stringTerms = isIntField ? null : new String[BATCH_SIZE];
+        }
+
+        void addInt(long term, FTGSIterator ftgsIterator) {
+            intTerms[size] = term;
+            add(ftgsIterator);
+        }
+
+        void addString(String term, FTGSIterator ftgsIterator) {
+            stringTerms[size] = term;
+            add(ftgsIterator);
+        }
+
+        private void add(FTGSIterator ftgsIterator) {
+            groups[size] = ftgsIterator.group();
+            if (numStats > 0) {
+                ftgsIterator.groupStats(callback.stats);
+                System.arraycopy(callback.stats, 0, stats, size * numStats, numStats);
+            }
+            size++;
+        }
+
+        void apply(C splitCallback) {
+            for (int i = 0; i < size; i++) {
+                if (numStats > 0) {
+                    System.arraycopy(stats, i * numStats, splitCallback.stats, 0, numStats);
+                }
+                if (isIntField) {
+                    splitCallback.intTermGroup(field, intTerms[i], groups[i]);
+                } else {
+                    splitCallback.stringTermGroup(field, stringTerms[i], groups[i]);
+                }
+            }
+        }
+    }
+}
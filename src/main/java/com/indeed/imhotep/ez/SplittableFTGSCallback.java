@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import java.util.List;
+
+/**
+ * FTGS callback whose aggregation can be split by term: every split is aggregated by its own callback from newSplit()
+ * and the splits are merged back into the original callback once the iteration is done.
+ * Each (term, group) pair is passed to exactly one split.
+ * @author vladimir
+ */
+public interface SplittableFTGSCallback<C> {
+    /**
+     * Returns a new empty callback with the same configuration as this one
+     */
+    C newSplit();
+
+    /**
+     * Adds the aggregates of all the splits to this callback. The splits are in no particular order of terms.
+     */
+    void merge(List<C> splits);
+}
@@ -74,6 +74,22 @@ public class Stats {
         }
     }
 
+    /**
+     * Returns true if the value of the stat for a group is the sum of its values over disjoint subsets of documents,
+     * so results computed on separate sessions (e.g. different time ranges) can be merged by addition.
+     */
+    public static boolean isAdditive(Stat stat) {
+        return !(stat instanceof AggregateBinOpStat);
+    }
+
+    /**
+     * Returns what is pushed to compute the stat. Stats with equal pushes have the same values so unlike toString()
+     * the pushes identify a stat. References to stats on the stack of a session are not supported.
+     */
+    public static List<String> getPushes(Stat stat) {
+        return stat.pushes(null);
+    }
+
     static void requireValid(StatReference ref) {
         if (!ref.isValid()) {
             throw new IllegalArgumentException("Stat reference is no longer valid!");
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Maps;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.SplittableFTGSCallback;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a HyperLogLog sketch of the terms in each group for any number of fields iterated in the same FTGS pass.
+ * Terms of fields without a precision are ignored.
+ * @author vladimir
+ */
+public class ApproxDistinctFTGSCallback extends EZImhotepSession.FTGSCallback implements SplittableFTGSCallback<ApproxDistinctFTGSCallback> {
+    private final Map<String, Integer> fieldPrecisions;
+    private final int groupCount;
+    private final Map<String, HyperLogLog[]> fieldToGroupSketches = Maps.newHashMap();
+
+    // terms are passed once per group they are in so the current field sketches and term hash are reused
+    private String currentField;
+    private HyperLogLog[] currentSketches;
+    private int currentPrecision;
+    private boolean currentTermIsInt;
+    private long currentIntTerm;
+    private String currentStringTerm;
+    private long currentHash;
+
+    /**
+     * @param fieldPrecisions HyperLogLog precision to use for each field name
+     */
+    public ApproxDistinctFTGSCallback(Map<String, Integer> fieldPrecisions, int groupCount) {
+        super(0);   // only hashes terms, so group stats are never copied
+        this.fieldPrecisions = fieldPrecisions;
+        this.groupCount = groupCount;
+    }
+
+    @Override
+    protected void intTermGroup(String field, long term, int group) {
+        if (!selectField(field)) {
+            return;
+        }
+        if (!currentTermIsInt || term != currentIntTerm) {
+            currentTermIsInt = true;
+            currentStringTerm = null;
+            currentIntTerm = term;
+            currentHash = HyperLogLog.hash(term);
+        }
+        getSketch(group).addHash(currentHash);
+    }
+
+    @Override
+    protected void stringTermGroup(String field, String term, int group) {
+        if (!selectField(field)) {
+            return;
+        }
+        if (currentTermIsInt || !term.equals(currentStringTerm)) {
+            currentTermIsInt = false;
+            currentStringTerm = term;
+            currentHash = HyperLogLog.hash(term);
+        }
+        getSketch(group).addHash(currentHash);
+    }
+
+    /**
+     * Makes the field current and returns false if it isn't sketched
+     */
+    private boolean selectField(String field) {
+        if (!field.equals(currentField)) {
+            currentField = field;
+            final Integer precision = fieldPrecisions.get(field);
+            currentPrecision = precision != null ? precision : 0;
+            currentSketches = fieldToGroupSketches.get(field);
+            if (currentSketches == null && precision != null) {
+                currentSketches = new HyperLogLog[groupCount + 1];
+                fieldToGroupSketches.put(field, currentSketches);
+            }
+        }
+        return currentSketches != null;
+    }
+
+    private HyperLogLog getSketch(int group) {
+        HyperLogLog sketch = currentSketches[group];
+        if (sketch == null) {
+            sketch = new HyperLogLog(currentPrecision);
+            currentSketches[group] = sketch;
+        }
+        return sketch;
+    }
+
+    @Override
+    public ApproxDistinctFTGSCallback newSplit() {
+        return new ApproxDistinctFTGSCallback(fieldPrecisions, groupCount);
+    }
+
+    @Override
+    public void merge(List<ApproxDistinctFTGSCallback> splits) {
+        for (ApproxDistinctFTGSCallback split : splits) {
+            for (Map.Entry<String, HyperLogLog[]> entry : split.fieldToGroupSketches.entrySet()) {
+                final HyperLogLog[] sketches = fieldToGroupSketches.get(entry.getKey());
+                if (sketches == null) {
+                    fieldToGroupSketches.put(entry.getKey(), entry.getValue());
+                    continue;
+                }
+                final HyperLogLog[] splitSketches = entry.getValue();
+                for (int group = 0; group < splitSketches.length; group++) {
+                    if (splitSketches[group] == null) {
+                        continue;
+                    }
+                    if (sketches[group] == null) {
+                        sketches[group] = splitSketches[group];
+                    } else {
+                        sketches[group].merge(splitSketches[group]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the sketches of the field indexed by group number. Groups without terms have no sketch.
+     */
+    public HyperLogLog[] getResults(String field) {
+        final HyperLogLog[] sketches = fieldToGroupSketches.get(field);
+        return sketches != null ? sketches : new HyperLogLog[groupCount + 1];
+    }
+}
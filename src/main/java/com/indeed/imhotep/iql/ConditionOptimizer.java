@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.indeed.imhotep.ez.Field;
+import com.indeed.imhotep.ez.Stats;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites the list of WHERE conditions, which are all applied as filters, to need fewer and cheaper round trips.
+ * Negated IN conditions on the same field are merged into one and so are metric ranges on the same stat.
+ * Conditions are then ordered so that the ones filtered out by the daemons in a single call go first and the ones that
+ * iterate over all terms of a field go last when the working set is the smallest.
+ * Positive IN conditions on the same field are not merged as a field can have multiple terms per doc (e.g. grp).
+ * @author vladimir
+ */
+public final class ConditionOptimizer {
+    private ConditionOptimizer() {
+    }
+
+    public static List<Condition> optimize(List<Condition> conditions) {
+        final List<Condition> optimized = merge(conditions);
+        // the sort is stable so conditions of the same cost keep the order they were written in
+        Collections.sort(optimized, COST_COMPARATOR);
+        return optimized;
+    }
+
+    /**
+     * Returns the conditions with the time range condition merged into a metric condition on the time field or null
+     * if there isn't one and the time range has to be filtered separately.
+     */
+    @Nullable
+    public static List<Condition> mergeTimeCondition(MetricCondition timeCondition, List<Condition> conditions) {
+        final Object timeStatKey = getMergeKey(timeCondition);
+        for (int i = 0; i < conditions.size(); i++) {
+            final Condition condition = conditions.get(i);
+            if (timeStatKey.equals(getMergeKey(condition))) {
+                final List<Condition> merged = Lists.newArrayList(conditions);
+                merged.set(i, mergeMetricConditions(Arrays.<Condition>asList(timeCondition, condition)));
+                return merged;
+            }
+        }
+        return null;
+    }
+
+    private static List<Condition> merge(List<Condition> conditions) {
+        // conditions that can be merged share the key, the rest are keyed by themselves
+        final Map<Object, List<Condition>> keyToConditions = Maps.newLinkedHashMap();
+        for (Condition condition : conditions) {
+            final Object mergeKey = getMergeKey(condition);
+            final Object key = mergeKey != null ? mergeKey : condition;
+            List<Condition> keyConditions = keyToConditions.get(key);
+            if (keyConditions == null) {
+                keyConditions = Lists.newArrayList();
+                keyToConditions.put(key, keyConditions);
+            }
+            keyConditions.add(condition);
+        }
+        final List<Condition> merged = Lists.newArrayList();
+        for (List<Condition> keyConditions : keyToConditions.values()) {
+            final Condition first = keyConditions.get(0);
+            if (keyConditions.size() == 1) {
+                merged.add(first);
+            } else if (first instanceof StringInCondition) {
+                merged.add(mergeStringInConditions(keyConditions));
+            } else if (first instanceof IntInCondition) {
+                merged.add(mergeIntInConditions(keyConditions));
+            } else {
+                merged.add(mergeMetricConditions(keyConditions));
+            }
+        }
+        return merged;
+    }
+
+    @Nullable
+    private static Object getMergeKey(Condition condition) {
+        if (condition instanceof StringInCondition && ((StringInCondition) condition).isNegation()) {
+            return "not in string:" + ((StringInCondition) condition).getStringField().getFieldName();
+        } else if (condition instanceof IntInCondition && ((IntInCondition) condition).isNegation()) {
+            return "not in int:" + ((IntInCondition) condition).getIntField().getFieldName();
+        } else if (condition instanceof MetricCondition && !((MetricCondition) condition).isNegation()) {
+            return Arrays.asList("metric", Stats.getPushes(((MetricCondition) condition).getStat()));
+        }
+        return null;
+    }
+
+    /**
+     * A doc has none of the terms of any of the negated IN conditions
+     */
+    private static Condition mergeStringInConditions(List<Condition> conditions) {
+        final Field.StringField field = ((StringInCondition) conditions.get(0)).getStringField();
+        final Set<String> values = Sets.newTreeSet();  // terms have to be sorted for stringOrRegroup()
+        for (Condition condition : conditions) {
+            values.addAll(Arrays.asList(((StringInCondition) condition).getValues()));
+        }
+        return new StringInCondition(field, true, values.size() == 1, values.toArray(new String[values.size()]));
+    }
+
+    private static Condition mergeIntInConditions(List<Condition> conditions) {
+        final Field.IntField field = ((IntInCondition) conditions.get(0)).getIntField();
+        final Set<Long> values = Sets.newTreeSet();    // terms have to be sorted for intOrRegroup()
+        for (Condition condition : conditions) {
+            for (long value : ((IntInCondition) condition).getValues()) {
+                values.add(value);
+            }
+        }
+        final long[] mergedValues = new long[values.size()];
+        int i = 0;
+        for (long value : values) {
+            mergedValues[i++] = value;
+        }
+        return new IntInCondition(field, true, mergedValues);
+    }
+
+    /**
+     * A doc has the stat value in all of the ranges
+     */
+    private static Condition mergeMetricConditions(List<Condition> conditions) {
+        final MetricCondition first = (MetricCondition) conditions.get(0);
+        long min = first.getMin();
+        long max = first.getMax();
+        for (Condition condition : conditions) {
+            min = Math.max(min, ((MetricCondition) condition).getMin());
+            max = Math.min(max, ((MetricCondition) condition).getMax());
+        }
+        return new MetricCondition(first.getStat(), min, max, false);
+    }
+
+    private static final Comparator<Condition> COST_COMPARATOR = new Comparator<Condition>() {
+        @Override
+        public int compare(Condition o1, Condition o2) {
+            final int costDiff = getCost(o1) - getCost(o2);
+            if (costDiff != 0) {
+                return costDiff;
+            }
+            return getTermCount(o1) - getTermCount(o2);
+        }
+    };
+
+    /**
+     * Conditions with a lower cost are applied first
+     */
+    private static int getCost(Condition condition) {
+        if (condition instanceof StringInCondition) {
+            return ((StringInCondition) condition).isNegation() ? 4 : 0;
+        } else if (condition instanceof IntInCondition) {
+            return ((IntInCondition) condition).isNegation() ? 4 : 0;
+        } else if (condition instanceof MetricCondition) {
+            return ((MetricCondition) condition).isNegation() ? 4 : 1;
+        } else if (condition instanceof QueryCondition) {
+            return ((QueryCondition) condition).isNegation() ? 4 : 2;
+        } else if (condition instanceof SampleCondition) {
+            return 3;
+        } else if (condition instanceof RegexCondition) {
+            return 5;   // daemons go through all terms of the field
+        } else if (condition instanceof IntPredicateCondition || condition instanceof StringPredicateCondition) {
+            return 6;   // FTGS over the field to find the terms and then a regroup
+        }
+        return 3;
+    }
+
+    /**
+     * IN conditions with fewer terms are cheaper and usually more selective
+     */
+    private static int getTermCount(Condition condition) {
+        if (condition instanceof StringInCondition) {
+            return ((StringInCondition) condition).getValues().length;
+        } else if (condition instanceof IntInCondition) {
+            return ((IntInCondition) condition).getValues().length;
+        }
+        return 0;
+    }
+}
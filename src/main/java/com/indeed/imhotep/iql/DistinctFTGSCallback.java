@@ -13,43 +13,86 @@
  */
  package com.indeed.imhotep.iql;
 
+import com.google.common.collect.Maps;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.SplittableFTGSCallback;
 import gnu.trove.TIntIntHashMap;
+import gnu.trove.TIntIntIterator;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
+ * Counts the terms in each group for any number of fields iterated in the same FTGS pass.
+ * Terms of fields that are not counted are ignored.
  * @author vladimir
  */
 
-public class DistinctFTGSCallback extends EZImhotepSession.FTGSCallback {
-    private final TIntIntHashMap groupToCounts;
+public class DistinctFTGSCallback extends EZImhotepSession.FTGSCallback implements SplittableFTGSCallback<DistinctFTGSCallback> {
+    private final Map<Integer, GroupKey> groupKeys;
+    private final Map<String, TIntIntHashMap> fieldToGroupCounts = Maps.newHashMap();
 
-    public DistinctFTGSCallback(int numStats, Map<Integer, GroupKey> groupKeys) {
-        super(numStats);
+    // FTGS goes through the fields one by one so the counts of the current field are kept at hand
+    private String currentField;
+    private TIntIntHashMap currentGroupCounts;
 
-        groupToCounts  = new TIntIntHashMap(groupKeys.size());
+    public DistinctFTGSCallback(Map<Integer, GroupKey> groupKeys, Collection<String> fieldNames) {
+        super(0);   // only counts terms, so group stats are never copied
+        this.groupKeys = groupKeys;
+
+        for (String fieldName : fieldNames) {
+            fieldToGroupCounts.put(fieldName, new TIntIntHashMap(groupKeys.size()));
+        }
     }
 
     @Override
     protected void intTermGroup(String field, long term, int group) {
-        incrementGroupCounts(group);
+        incrementGroupCounts(field, group);
     }
 
-    private void incrementGroupCounts(int group) {
-        groupToCounts.put(group, groupToCounts.get(group) + 1);
+    private void incrementGroupCounts(String field, int group) {
+        if (!field.equals(currentField)) {
+            currentField = field;
+            currentGroupCounts = fieldToGroupCounts.get(field);
+        }
+        if (currentGroupCounts != null) {
+            currentGroupCounts.put(group, currentGroupCounts.get(group) + 1);
+        }
     }
 
     @Override
     protected void stringTermGroup(String field, String term, int group) {
-        incrementGroupCounts(group);
+        incrementGroupCounts(field, group);
+    }
+
+    @Override
+    public DistinctFTGSCallback newSplit() {
+        return new DistinctFTGSCallback(groupKeys, fieldToGroupCounts.keySet());
+    }
+
+    /**
+     * Splits count disjoint sets of terms so the counts are summed
+     */
+    @Override
+    public void merge(List<DistinctFTGSCallback> splits) {
+        for (DistinctFTGSCallback split : splits) {
+            for (Map.Entry<String, TIntIntHashMap> entry : split.fieldToGroupCounts.entrySet()) {
+                final TIntIntHashMap groupCounts = fieldToGroupCounts.get(entry.getKey());
+                for (TIntIntIterator iterator = entry.getValue().iterator(); iterator.hasNext();) {
+                    iterator.advance();
+                    groupCounts.put(iterator.key(), groupCounts.get(iterator.key()) + iterator.value());
+                }
+            }
+        }
     }
 
     /**
-     * Returns map of group numbers to field term counts
+     * Returns map of group numbers to term counts of the field
      */
-    public TIntIntHashMap getResults() {
-        return groupToCounts;
+    public TIntIntHashMap getResults(String field) {
+        final TIntIntHashMap groupToCounts = fieldToGroupCounts.get(field);
+        return groupToCounts != null ? groupToCounts : new TIntIntHashMap();
     }
 }
@@ -14,11 +14,15 @@
  package com.indeed.imhotep.iql;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.Field;
 import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.SplittableFTGSCallback;
 import com.indeed.imhotep.ez.StatReference;
+import gnu.trove.TIntDoubleHashMap;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntIntHashMap;
 import gnu.trove.TIntObjectHashMap;
@@ -27,6 +31,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author vladimir
@@ -36,14 +41,60 @@ public class DistinctGrouping extends Grouping {
     // Fields to get distinct term counts for and their positions in the stats list
     private final List<Field> fields = Lists.newArrayList();
     private final List<Integer> distinctProjectionPositions = Lists.newArrayList();
+    // Fields to estimate distinct term counts for with HyperLogLog sketches of the given precisions
+    private final List<Field> approxFields = Lists.newArrayList();
+    private final List<Integer> approxPrecisions = Lists.newArrayList();
+    private final List<Integer> approxProjectionPositions = Lists.newArrayList();
 
     public void addField(Field field, int projectionPosition) {
         fields.add(field);
         distinctProjectionPositions.add(projectionPosition);
     }
 
+    public void addApproxField(Field field, int projectionPosition, int precision) {
+        approxFields.add(field);
+        approxPrecisions.add(precision);
+        approxProjectionPositions.add(projectionPosition);
+    }
+
     public List<Field> getFields() {
-        return Lists.newArrayList(fields);
+        final List<Field> allFields = Lists.newArrayList(fields);
+        allFields.addAll(approxFields);
+        return allFields;
+    }
+
+    /**
+     * Returns the relative standard error of each approximate distinct count e.g. "country=1.63%" or null if there are none
+     */
+    public String getApproxErrors() {
+        if (approxFields.isEmpty()) {
+            return null;
+        }
+        final StringBuilder errors = new StringBuilder();
+        final Map<String, Integer> fieldPrecisions = getApproxFieldPrecisions();
+        for (Field field : approxFields) {
+            if (errors.length() > 0) {
+                errors.append(", ");
+            }
+            final double error = HyperLogLog.relativeError(fieldPrecisions.get(field.getFieldName()));
+            errors.append(field.getFieldName()).append('=').append(String.format("%.2f%%", error * 100));
+        }
+        return errors.toString();
+    }
+
+    /**
+     * A field gets a single sketch with the highest precision requested for it
+     */
+    private Map<String, Integer> getApproxFieldPrecisions() {
+        final Map<String, Integer> fieldPrecisions = Maps.newLinkedHashMap();
+        for (int i = 0; i < approxFields.size(); i++) {
+            final String fieldName = approxFields.get(i).getFieldName();
+            final Integer precision = fieldPrecisions.get(fieldName);
+            if (precision == null || precision < approxPrecisions.get(i)) {
+                fieldPrecisions.put(fieldName, approxPrecisions.get(i));
+            }
+        }
+        return fieldPrecisions;
     }
 
     @Override
@@ -60,15 +111,16 @@ public class DistinctGrouping extends Grouping {
         final List<GroupStats> result = Lists.newArrayList();
 
         // list to set for use in lookups
-        final TIntHashSet distinctProjectionPositionsSet = new TIntHashSet(distinctProjectionPositions.size());
+        final TIntHashSet distinctProjectionPositionsSet = new TIntHashSet(distinctProjectionPositions.size() + approxProjectionPositions.size());
         for(int pos : distinctProjectionPositions) {
             distinctProjectionPositionsSet.add(pos);
         }
-
-        // TODO: don't auto-get group stats on each FTGS iteration
+        for(int pos : approxProjectionPositions) {
+            distinctProjectionPositionsSet.add(pos);
+        }
 
         // map of groups -> projection positions -> values
-        TIntObjectHashMap<TIntIntHashMap> distinctData = getDistinctData(session, groupKeys);
+        TIntObjectHashMap<TIntDoubleHashMap> distinctData = getDistinctData(session, groupKeys);
 
 
         // get values for the normal stats
@@ -76,10 +128,10 @@ public class DistinctGrouping extends Grouping {
 
         // combine normal stats with distinct counts
         for (int groupNum = 1; groupNum <= groupCount; groupNum++) {
-            TIntIntHashMap groupDistinctData = distinctData.get(groupNum);
+            TIntDoubleHashMap groupDistinctData = distinctData.get(groupNum);
             double[] statsVals = statsResults != null ? statsResults.get(groupNum) : null;
 
-            double[] values = new double[statCount + fields.size()];
+            double[] values = new double[statCount + fields.size() + approxFields.size()];
             for(int i = 0, statsValsIndex = 0; i < values.length; i++) {
                 if(distinctProjectionPositionsSet.contains(i)) {    // distinct value
                     values[i] = groupDistinctData != null ? groupDistinctData.get(i) : 0;
@@ -97,31 +149,104 @@ public class DistinctGrouping extends Grouping {
         return result.iterator();
     }
 
-    private TIntObjectHashMap<TIntIntHashMap> getDistinctData(EZImhotepSession session, Map<Integer, GroupKey> groupKeys) {
-        TIntObjectHashMap<TIntIntHashMap> distinctData = new TIntObjectHashMap<TIntIntHashMap>();
+    private TIntObjectHashMap<TIntDoubleHashMap> getDistinctData(EZImhotepSession session, Map<Integer, GroupKey> groupKeys) {
+        TIntObjectHashMap<TIntDoubleHashMap> distinctData = new TIntObjectHashMap<TIntDoubleHashMap>();
+
+        // count and estimate distinct terms of all the fields in one FTGS pass
+        final List<Field> iteratedFields = Lists.newArrayList();
+        final Set<String> exactFieldNames = Sets.newHashSet();
+        for(Field field : fields) {
+            exactFieldNames.add(field.getFieldName());
+            if(!iteratedFields.contains(field)) {
+                iteratedFields.add(field);
+            }
+        }
+        for(Field field : approxFields) {
+            if(!iteratedFields.contains(field)) {
+                iteratedFields.add(field);
+            }
+        }
+        final DistinctFTGSCallback exactCallback = new DistinctFTGSCallback(groupKeys, exactFieldNames);
+        final ApproxDistinctFTGSCallback approxCallback = new ApproxDistinctFTGSCallback(getApproxFieldPrecisions(), groupKeys.size());
+        if(approxFields.isEmpty()) {
+            session.ftgsIterateSplit(iteratedFields, exactCallback);
+        } else if(fields.isEmpty()) {
+            session.ftgsIterateSplit(iteratedFields, approxCallback);
+        } else {
+            session.ftgsIterateSplit(iteratedFields, new BothFTGSCallback(exactCallback, approxCallback));
+        }
 
-        // get distinct data
         for(int i = 0; i < fields.size(); i++) {
-            final Field field = fields.get(i);
+            final TIntIntHashMap distinctResults = exactCallback.getResults(fields.get(i).getFieldName());
             final int projectionPosition = distinctProjectionPositions.get(i);
-
-            final DistinctFTGSCallback callback = new DistinctFTGSCallback(session.getStackDepth(), groupKeys);
-            session.ftgsIterate(Lists.newArrayList(field), callback);
-            final TIntIntHashMap distinctResults = callback.getResults();
             for(int groupNum : groupKeys.keySet()) {
                 final int distinctResult = distinctResults.get(groupNum);
-
-                TIntIntHashMap groupDistinctData = distinctData.get(groupNum);
-                if(groupDistinctData == null) {
-                    groupDistinctData = new TIntIntHashMap(distinctProjectionPositions.size());
-                    distinctData.put(groupNum, groupDistinctData);
-                }
-                groupDistinctData.put(projectionPosition, distinctResult);
+                getGroupDistinctData(distinctData, groupNum).put(projectionPosition, distinctResult);
+            }
+        }
+        for(int i = 0; i < approxFields.size(); i++) {
+            final HyperLogLog[] sketches = approxCallback.getResults(approxFields.get(i).getFieldName());
+            final int projectionPosition = approxProjectionPositions.get(i);
+            for(int groupNum : groupKeys.keySet()) {
+                final HyperLogLog sketch = groupNum < sketches.length ? sketches[groupNum] : null;
+                getGroupDistinctData(distinctData, groupNum).put(projectionPosition, sketch != null ? sketch.estimate() : 0);
             }
         }
         return distinctData;
     }
 
+    /**
+     * Passes the terms to both the exact and the approximate callbacks. Neither of them uses stats.
+     */
+    private static class BothFTGSCallback extends EZImhotepSession.FTGSCallback implements SplittableFTGSCallback<BothFTGSCallback> {
+        private final DistinctFTGSCallback exactCallback;
+        private final ApproxDistinctFTGSCallback approxCallback;
+
+        private BothFTGSCallback(DistinctFTGSCallback exactCallback, ApproxDistinctFTGSCallback approxCallback) {
+            super(0);
+            this.exactCallback = exactCallback;
+            this.approxCallback = approxCallback;
+        }
+
+        @Override
+        protected void intTermGroup(String field, long term, int group) {
+            exactCallback.intTermGroup(field, term, group);
+            approxCallback.intTermGroup(field, term, group);
+        }
+
+        @Override
+        protected void stringTermGroup(String field, String term, int group) {
+            exactCallback.stringTermGroup(field, term, group);
+            approxCallback.stringTermGroup(field, term, group);
+        }
+
+        @Override
+        public BothFTGSCallback newSplit() {
+            return new BothFTGSCallback(exactCallback.newSplit(), approxCallback.newSplit());
+        }
+
+        @Override
+        public void merge(List<BothFTGSCallback> splits) {
+            final List<DistinctFTGSCallback> exactSplits = Lists.newArrayListWithCapacity(splits.size());
+            final List<ApproxDistinctFTGSCallback> approxSplits = Lists.newArrayListWithCapacity(splits.size());
+            for (BothFTGSCallback split : splits) {
+                exactSplits.add(split.exactCallback);
+                approxSplits.add(split.approxCallback);
+            }
+            exactCallback.merge(exactSplits);
+            approxCallback.merge(approxSplits);
+        }
+    }
+
+    private TIntDoubleHashMap getGroupDistinctData(TIntObjectHashMap<TIntDoubleHashMap> distinctData, int groupNum) {
+        TIntDoubleHashMap groupDistinctData = distinctData.get(groupNum);
+        if(groupDistinctData == null) {
+            groupDistinctData = new TIntDoubleHashMap(distinctProjectionPositions.size() + approxProjectionPositions.size());
+            distinctData.put(groupNum, groupDistinctData);
+        }
+        return groupDistinctData;
+    }
+
     private TIntObjectHashMap<double[]> getGroupStatsValues(EZImhotepSession session, List<StatReference> statRefs, int groupCount) {
         final int statCount = statRefs.size();
         final double[][] statGroupValues = new double[statCount][];
@@ -130,13 +130,16 @@ public final class FieldGrouping extends Grouping {
             return Collections.<GroupStats>emptyList().iterator();  // so no point doing FTGS
         }
         if (topK > 0) {
-            //TODO have some way of not potentially pushing counts() twice
+            // reuses the stat if it's already pushed for the select clause
             final StatReference countStat = session.pushStatGeneric(sortStat);
             final TopKGroupingFTGSCallback callback = new TopKGroupingFTGSCallback(session.getStackDepth(), topK, countStat, statRefs, groupKeys, isBottom);
-            session.ftgsIterate(Arrays.asList(field), callback);
+            session.ftgsIterateSplit(Arrays.asList(field), callback);
             return callback.getResults().iterator();
-        } else if(noExplode) {
-            final GroupingFTGSCallbackNoExplode callback = new GroupingFTGSCallbackNoExplode(session.getStackDepth(), statRefs, groupKeys);
+        }
+        // group stats are only copied when there are stats to read from them
+        final int numStats = statRefs.isEmpty() ? 0 : session.getStackDepth();
+        if(noExplode) {
+            final GroupingFTGSCallbackNoExplode callback = new GroupingFTGSCallbackNoExplode(numStats, statRefs, groupKeys);
             if(!isTermSubset()) {
                 return session.ftgsGetIterator(Arrays.asList(field), callback);
             } else {
@@ -145,15 +148,15 @@ public final class FieldGrouping extends Grouping {
                 return session.ftgsGetSubsetIterator(fieldsToTermsSubsets, callback);
             }
         } else {
-            final GroupingFTGSCallback callback = new GroupingFTGSCallback(session.getStackDepth(), statRefs, groupKeys);
+            // FTGS runs while the rows are consumed
+            final GroupingFTGSCallback callback = GroupingFTGSCallback.create(field, numStats, statRefs, groupKeys);
             if(!isTermSubset()) {
-                session.ftgsIterate(Arrays.asList(field), callback);
+                return callback.getResults(session.ftgsIterateByTerm(Arrays.asList(field), callback));
             } else {
                 final Map<Field, List<?>> fieldsToTermsSubsets = Maps.newHashMap();
                 fieldsToTermsSubsets.put(field, termSubset);
-                session.ftgsSubsetIterate(fieldsToTermsSubsets, callback);
+                return callback.getResults(session.ftgsSubsetIterateByTerm(fieldsToTermsSubsets, callback));
             }
-            return callback.getResults().iterator();
         }
     }
 
@@ -165,6 +168,14 @@ public final class FieldGrouping extends Grouping {
         return topK;
     }
 
+    public Stat getSortStat() {
+        return sortStat;
+    }
+
+    public boolean isBottom() {
+        return isBottom;
+    }
+
     public boolean isNoExplode() {
         return noExplode;
     }
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.iql.cache.AbortableOutputStream;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed binary encoding of result rows used for the query cache and for spilling rows to disk.
+ * Rows are stored independently of the output format so TSV, CSV and event stream outputs can all be rendered from it.
+ * Group terms are dictionary encoded per grouping level, with a special code for a term repeated from the previous row,
+ * and stats are stored as raw doubles. The whole row stream is deflate compressed.
+ * The stream ends with an end marker so truncated data is detected on read.
+ * @author vladimir
+ */
+public final class GroupStatsCacheFormat {
+    private static final Logger log = Logger.getLogger(GroupStatsCacheFormat.class);
+
+    /** Suffix of the cache file names holding data in this format */
+    public static final String FILE_SUFFIX = ".rows";
+
+    private static final int MAGIC = 0x49514c52; // "IQLR"
+    private static final byte FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // limits memory used by dictionaries of levels with many unique terms
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private static final byte TERM_SAME_AS_PREVIOUS = 0;
+    private static final byte TERM_DICTIONARY = 1;
+    private static final byte TERM_LONG = 2;
+    private static final byte TERM_STRING = 3;
+
+    private GroupStatsCacheFormat() {
+    }
+
+    /**
+     * Writes all rows to the stream and closes it.
+     * If reading the rows or writing fails the stream is aborted instead so that a cache stream doesn't store partial data.
+     * @return number of rows written
+     */
+    public static int write(Iterator<GroupStats> rows, OutputStream os) throws IOException {
+        final RowWriter writer;
+        try {
+            writer = new RowWriter(os);
+        } catch (IOException e) {
+            AbortableOutputStream.abortQuietly(os, log);
+            throw e;
+        }
+        int rowsWritten = 0;
+        boolean success = false;
+        try {
+            while (rows.hasNext()) {
+                final GroupStats row = rows.next();
+                if (row == null) {
+                    continue;
+                }
+                writer.write(row);
+                rowsWritten++;
+            }
+            writer.close();
+            success = true;
+        } finally {
+            if (!success) {
+                writer.discard();
+                AbortableOutputStream.abortQuietly(os, log);
+            }
+        }
+        return rowsWritten;
+    }
+
+    /**
+     * Returns the rows stored in the stream. The stream is closed when the end is reached.
+     * If the rows are not read to the end the stream has to be closed by the caller.
+     */
+    public static Iterator<GroupStats> read(InputStream is) throws IOException {
+        return new RowReader(is);
+    }
+
+    public static final class RowWriter implements Closeable {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final DataOutputStream out;
+        private final List<Map<Object, Integer>> levelDictionaries = Lists.newArrayList();
+        private Object[] previousTerms = new Object[0];
+        private boolean closed = false;
+
+        public RowWriter(OutputStream os) throws IOException {
+            final DataOutputStream header = new DataOutputStream(os);
+            header.writeInt(MAGIC);
+            header.writeByte(FORMAT_VERSION);
+            out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(os, deflater, BUFFER_SIZE), BUFFER_SIZE));
+        }
+
+        public void write(GroupStats row) throws IOException {
+            final Object[] terms = row.groupKey.toArray();
+            // row marker also holding the number of terms. 0 marks the end of data
+            writeVarInt(out, terms.length + 1);
+            for (int level = 0; level < terms.length; level++) {
+                writeTerm(level, terms[level]);
+            }
+            previousTerms = terms;
+
+            writeVarInt(out, row.stats.length);
+            for (double stat : row.stats) {
+                out.writeDouble(stat);
+            }
+        }
+
+        private void writeTerm(int level, Object term) throws IOException {
+            if (term != null && level < previousTerms.length && term.equals(previousTerms[level])) {
+                out.writeByte(TERM_SAME_AS_PREVIOUS);
+                return;
+            }
+            if (term instanceof Long) { // int terms are as short as dictionary ids so don't need dictionary encoding
+                out.writeByte(TERM_LONG);
+                writeVarLong(out, (Long) term);
+                return;
+            }
+            // other term types are only ever printed with toString() so keeping the string form is enough
+            final String stringTerm = String.valueOf(term);
+            while (levelDictionaries.size() <= level) {
+                levelDictionaries.add(Maps.<Object, Integer>newHashMap());
+            }
+            final Map<Object, Integer> dictionary = levelDictionaries.get(level);
+            final Integer id = dictionary.get(stringTerm);
+            if (id != null) {
+                out.writeByte(TERM_DICTIONARY);
+                writeVarInt(out, id);
+                return;
+            }
+            if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+                dictionary.put(stringTerm, dictionary.size());
+            }
+            final byte[] bytes = stringTerm.getBytes(Charsets.UTF_8);
+            out.writeByte(TERM_STRING);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * Writes the end marker and closes the underlying stream.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeVarInt(out, 0);
+                out.close();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /**
+         * Releases the resources without writing the end marker or closing the underlying stream.
+         * Used when writing fails so that the caller can abort the underlying stream.
+         */
+        public void discard() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            deflater.end();
+        }
+    }
+
+    public static final class RowReader extends AbstractIterator<GroupStats> implements Closeable {
+        private final Inflater inflater = new Inflater();
+        private final DataInputStream in;
+        private final List<List<String>> levelDictionaries = Lists.newArrayList();
+        private Object[] previousTerms = new Object[0];
+        private boolean closed = false;
+
+        public RowReader(InputStream is) throws IOException {
+            final DataInputStream header = new DataInputStream(is);
+            try {
+                final int magic = header.readInt();
+                final byte version = header.readByte();
+                if (magic != MAGIC || version != FORMAT_VERSION) {
+                    throw new IOException("Unsupported cached rows format");
+                }
+            } catch (IOException e) {
+                inflater.end();
+                Closeables2.closeQuietly(is, log);
+                throw e;
+            }
+            in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(is, inflater, BUFFER_SIZE), BUFFER_SIZE));
+        }
+
+        @Override
+        protected GroupStats computeNext() {
+            if (closed) {
+                return endOfData();
+            }
+            try {
+                final int marker = readVarInt(in);
+                if (marker == 0) {
+                    // reading past the end verifies the compressed stream checksum
+                    if (in.read() != -1 || !inflater.finished()) {
+                        throw new IOException("Unexpected data after the end of cached rows");
+                    }
+                    close();
+                    return endOfData();
+                }
+                final Object[] terms = new Object[marker - 1];
+                GroupKey groupKey = GroupKey.empty();
+                for (int level = 0; level < terms.length; level++) {
+                    terms[level] = readTerm(level);
+                    //noinspection unchecked
+                    groupKey = groupKey.add(terms[level]);
+                }
+                previousTerms = terms;
+
+                final double[] stats = new double[readVarInt(in)];
+                for (int i = 0; i < stats.length; i++) {
+                    stats[i] = in.readDouble();
+                }
+                return new GroupStats(groupKey, stats);
+            } catch (EOFException e) {
+                close();
+                throw new RuntimeException("Cached rows are truncated", e);
+            } catch (IOException e) {
+                close();
+                throw Throwables.propagate(e);
+            }
+        }
+
+        private Object readTerm(int level) throws IOException {
+            final byte type = in.readByte();
+            switch (type) {
+                case TERM_SAME_AS_PREVIOUS:
+                    return previousTerms[level];
+                case TERM_LONG:
+                    return readVarLong(in);
+                case TERM_DICTIONARY:
+                    return levelDictionaries.get(level).get(readVarInt(in));
+                case TERM_STRING:
+                    final byte[] bytes = new byte[readVarInt(in)];
+                    in.readFully(bytes);
+                    final String term = new String(bytes, Charsets.UTF_8);
+                    while (levelDictionaries.size() <= level) {
+                        levelDictionaries.add(Lists.<String>newArrayList());
+                    }
+                    final List<String> dictionary = levelDictionaries.get(level);
+                    if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+                        dictionary.add(term);
+                    }
+                    return term;
+                default:
+                    throw new IOException("Unknown term type in cached rows: " + type);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Closeables2.closeQuietly(in, log);
+            inflater.end();
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    /**
+     * Writes the value using 7 bits per byte. Negative values always take 10 bytes which is fine for int terms
+     * as they are mostly positive.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length number in cached rows");
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External merge sort for result rows.
+ * Rows are sorted by the group columns and then by the select columns.
+ * Up to maxRowsInMemory rows are sorted in memory at a time and each sorted run is spilled to a temp file
+ * in the compressed GroupStatsCacheFormat.
+ * The runs are then merged lazily while the returned iterator is consumed so the output can be streamed.
+ * @author vladimir
+ */
+public final class GroupStatsSorter implements Closeable {
+    private static final Logger log = Logger.getLogger(GroupStatsSorter.class);
+
+    private final Comparator<GroupStats> comparator;
+    private final int maxRowsInMemory;
+    private final List<File> runFiles = Lists.newArrayList();
+    private final List<RunReader> runReaders = Lists.newArrayList();
+
+    public GroupStatsSorter(int groupingColumns, int selectColumns, int maxRowsInMemory) {
+        this.comparator = new GroupStatsComparator(groupingColumns, selectColumns);
+        this.maxRowsInMemory = Math.max(maxRowsInMemory, 1);
+    }
+
+    /**
+     * Returns the rows in sorted order. Temp files that may have been created are deleted when the returned iterator
+     * is exhausted or when the sorter is closed.
+     */
+    public Iterator<GroupStats> sort(Iterator<GroupStats> rows) {
+        final List<GroupStats> buffer = Lists.newArrayList();
+        try {
+            while (rows.hasNext()) {
+                final GroupStats row = rows.next();
+                if (row == null) {
+                    continue;
+                }
+                buffer.add(row);
+                if (buffer.size() >= maxRowsInMemory) {
+                    spillRun(buffer);
+                    buffer.clear();
+                }
+            }
+            Collections.sort(buffer, comparator);
+            if (runFiles.isEmpty()) {
+                return buffer.iterator();
+            }
+            if (!buffer.isEmpty()) {
+                spillRun(buffer);
+                buffer.clear();
+            }
+            for (File runFile : runFiles) {
+                runReaders.add(new RunReader(runFile));
+            }
+        } catch (IOException e) {
+            close();
+            throw Throwables.propagate(e);
+        }
+        log.trace("Merging " + runFiles.size() + " sorted runs");
+        return new MergingIterator();
+    }
+
+    private void spillRun(List<GroupStats> buffer) throws IOException {
+        final long started = System.currentTimeMillis();
+        Collections.sort(buffer, comparator);
+        final File runFile = File.createTempFile(IQLQuery.TEMP_FILE_PREFIX, ".run");
+        runFiles.add(runFile);
+        GroupStatsCacheFormat.write(buffer.iterator(), new FileOutputStream(runFile));
+        log.trace("Spilled " + buffer.size() + " rows to " + runFile.getPath() + " in " + (System.currentTimeMillis() - started) + "ms");
+    }
+
+    @Override
+    public void close() {
+        for (RunReader runReader : runReaders) {
+            runReader.rows.close();
+        }
+        runReaders.clear();
+        for (File runFile : runFiles) {
+            if (runFile.exists() && !runFile.delete()) {
+                log.info("Failed to delete: " + runFile.getPath());
+            }
+        }
+        runFiles.clear();
+    }
+
+    private static final class RunReader {
+        private final GroupStatsCacheFormat.RowReader rows;
+        private GroupStats current;
+
+        private RunReader(File runFile) throws IOException {
+            rows = new GroupStatsCacheFormat.RowReader(new FileInputStream(runFile));
+        }
+
+        /**
+         * Reads the next row into current. Returns false when the run is over.
+         */
+        private boolean advance() {
+            current = rows.hasNext() ? rows.next() : null;
+            return current != null;
+        }
+    }
+
+    private final class MergingIterator extends AbstractIterator<GroupStats> {
+        private PriorityQueue<RunReader> queue;
+
+        @Override
+        protected GroupStats computeNext() {
+            try {
+                if (queue == null) {
+                    queue = new PriorityQueue<RunReader>(runReaders.size(), new Comparator<RunReader>() {
+                        @Override
+                        public int compare(RunReader o1, RunReader o2) {
+                            return comparator.compare(o1.current, o2.current);
+                        }
+                    });
+                    for (RunReader runReader : runReaders) {
+                        if (runReader.advance()) {
+                            queue.add(runReader);
+                        }
+                    }
+                }
+                final RunReader head = queue.poll();
+                if (head == null) {
+                    close();
+                    return endOfData();
+                }
+                final GroupStats ret = head.current;
+                if (head.advance()) {
+                    queue.add(head);
+                }
+                return ret;
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Orders rows by group terms and then by stat values.
+     * Int terms are compared numerically and other terms by their string form.
+     */
+    static final class GroupStatsComparator implements Comparator<GroupStats> {
+        private final int groupingColumns;
+        private final int selectColumns;
+
+        GroupStatsComparator(int groupingColumns, int selectColumns) {
+            this.groupingColumns = groupingColumns;
+            this.selectColumns = selectColumns;
+        }
+
+        @Override
+        public int compare(GroupStats o1, GroupStats o2) {
+            final Object[] terms1 = o1.groupKey.toArray();
+            final Object[] terms2 = o2.groupKey.toArray();
+            final int termCount = Math.min(groupingColumns, Math.min(terms1.length, terms2.length));
+            for (int i = 0; i < termCount; i++) {
+                final int result = compareTerms(terms1[i], terms2[i]);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            if (terms1.length != terms2.length) {
+                return terms1.length < terms2.length ? -1 : 1;
+            }
+            final int statCount = Math.min(selectColumns, Math.min(o1.stats.length, o2.stats.length));
+            for (int i = 0; i < statCount; i++) {
+                final int result = Double.compare(o1.stats[i], o2.stats[i]);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        private static int compareTerms(Object a, Object b) {
+            if (a instanceof Long && b instanceof Long) {
+                return ((Long) a).compareTo((Long) b);
+            }
+            // same order as the terms are returned in by FTGS
+            return EZImhotepSession.compareStringTerms(String.valueOf(a), String.valueOf(b));
+        }
+    }
+}
@@ -13,94 +13,151 @@
  */
  package com.indeed.imhotep.iql;
 
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.collect.AbstractIterator;
 import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.Field;
 import com.indeed.imhotep.ez.GroupKey;
 import com.indeed.imhotep.ez.StatReference;
-import gnu.trove.TIntObjectHashMap;
-import org.apache.log4j.Logger;
 
 import java.text.DecimalFormat;
-import java.util.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * Collects stats for every term/group pair of an exploded grouping.
+ * Stats are kept in a single flat array indexed by (term ordinal, group, stat) so no objects are allocated per pair.
+ * Terms are stored by the int and string term specializations.
+ * Rows of the first group are returned as soon as FTGS moves past their term so only the other groups, whose rows
+ * follow them in the output, have to be collected. With a single group nothing is collected.
  * @author jplaisance
  */
-public final class GroupingFTGSCallback extends EZImhotepSession.FTGSCallback {
-    private static final Logger log = Logger.getLogger(GroupingFTGSCallbackNoExplode.class);
-    private final List<StatReference> statRefs;
+public abstract class GroupingFTGSCallback extends EZImhotepSession.FTGSCallback {
+    private final StatReference[] statRefs;
     private final Map<Integer, GroupKey> groupKeys;
-    private final List<Object> allTerms = Lists.newArrayList();
-    private final TIntObjectHashMap<Map<Object, double[]>> groupToTermsStats = new TIntObjectHashMap<Map<Object, double[]>>();
+    private final int numGroups;
+    // stats of groups 2..numGroups for each collected term
+    private final int rowSize;
     private final int termLimit;
+    private double[] termsStats = new double[0];
+    private int termCapacity = 0;
+    private int termCount = 0;
+    private int totalTermCount = 0;
+    // stats of the current term in the first group
+    private final double[] firstGroupStats;
 
-    public GroupingFTGSCallback(int numStats, List<StatReference> statRefs, Map<Integer, GroupKey> groupKeys) {
+    protected GroupingFTGSCallback(int numStats, List<StatReference> statRefs, Map<Integer, GroupKey> groupKeys) {
         super(numStats);
-        this.statRefs = statRefs;
+        this.statRefs = statRefs.toArray(new StatReference[statRefs.size()]);
         this.groupKeys = groupKeys;
-        termLimit = EZImhotepSession.GROUP_LIMIT / Math.max(groupKeys.size(), 1);
+        numGroups = groupKeys.size();
+        rowSize = Math.max(numGroups - 1, 0) * this.statRefs.length;
+        termLimit = EZImhotepSession.GROUP_LIMIT / Math.max(numGroups, 1);
+        firstGroupStats = new double[this.statRefs.length];
     }
 
-    protected void intTermGroup(final String field, final long term, final int group) {
-        termGroup(term, group);
+    public static GroupingFTGSCallback create(Field field, int numStats, List<StatReference> statRefs, Map<Integer, GroupKey> groupKeys) {
+        if(field.isIntField()) {
+            return new IntGroupingFTGSCallback(numStats, statRefs, groupKeys);
+        } else {
+            return new StringGroupingFTGSCallback(numStats, statRefs, groupKeys);
+        }
     }
 
-    protected void stringTermGroup(final String field, final String term, final int group) {
-        termGroup(term, group);
+    protected final int getTermCount() {
+        return termCount;
     }
 
-    private void termGroup(Object term, int group) {
-        final int allTermsCount = allTerms.size();
-
-        if(allTermsCount == 0 || !allTerms.get(allTermsCount-1).equals(term)) {
-            allTerms.add(term); // got a new term. relying on terms being passed in sorted order
-            if(allTermsCount > termLimit) {
-                throw new IllegalArgumentException("Number of groups exceeds the limit " +
-                        new DecimalFormat("###,###").format(EZImhotepSession.GROUP_LIMIT) +
-                        ". Please simplify the query. " +
-                        "Try adding [] suffix to non-first groupings to disable addition of 0 rows. (e.g. 'group by country, lang[]')");
-            }
+    /**
+     * Allocates space for a new term which becomes the current one. Relies on terms being passed in sorted order.
+     * @return ordinal of the new term
+     */
+    protected final int addTerm() {
+        if(totalTermCount > termLimit) {
+            throw new IllegalArgumentException("Number of groups exceeds the limit " +
+                    new DecimalFormat("###,###").format(EZImhotepSession.GROUP_LIMIT) +
+                    ". Please simplify the query. " +
+                    "Try adding [] suffix to non-first groupings to disable addition of 0 rows. (e.g. 'group by country, lang[]')");
         }
-        Map<Object, double[]> groupTerms = groupToTermsStats.get(group);
-        if(groupTerms == null) {
-            groupTerms = Maps.newHashMap();
-            groupToTermsStats.put(group, groupTerms);
+        if(termCount == termCapacity) {
+            // terms past the limit + 1 are never stored so there is no point in growing beyond that
+            termCapacity = Math.min(Math.max(termCapacity * 2, 16), termLimit + 1);
+            termsStats = Arrays.copyOf(termsStats, termCapacity * rowSize);
+            resizeTerms(termCapacity);
         }
-        groupTerms.put(term, getStats());
+        Arrays.fill(firstGroupStats, 0);
+        totalTermCount++;
+        return termCount++;
     }
 
-    private double[] getStats() {
-        final double[] stats = new double[statRefs.size()];
-        for (int i = 0; i < statRefs.size(); i++) {
-            stats[i] = getStat(statRefs.get(i));
+    /**
+     * Records stats of the current term for the given group.
+     */
+    protected final void addGroupStats(int group) {
+        if(group < 1 || group > numGroups) {
+            return;
+        }
+        if(group == 1) {
+            for (int i = 0; i < statRefs.length; i++) {
+                firstGroupStats[i] = getStat(statRefs[i]);
+            }
+            return;
+        }
+        final int offset = (termCount - 1) * rowSize + (group - 2) * statRefs.length;
+        for (int i = 0; i < statRefs.length; i++) {
+            termsStats[offset + i] = getStat(statRefs[i]);
         }
-        return stats;
     }
 
-    public List<GroupStats> getResults() {
-        final List<GroupStats> ret = Lists.newArrayList();
-        // warning: we are reusing the same array instance for all blank rows to save memory
-        final double[] emptyArray = new double[statRefs.size()];
+    protected abstract void resizeTerms(int capacity);
 
-        for (int group = 1; group <= groupKeys.size(); group++) {
-            final Map<Object, double[]> termsStats = groupToTermsStats.get(group);
+    protected abstract Object getTerm(int termOrdinal);
 
-            if(termsStats == null) { // this grouping was skipped by FTGS, so assigning 0 stats to all terms
-                for(Object missingTerm : allTerms) {
-                    ret.add(new GroupStats(groupKeys.get(group).add(missingTerm), emptyArray));
-                }
-                continue;
-            }
+    /**
+     * Returns a row for each term in each group, ordered by group and then term. Terms that were not seen in a group
+     * get 0 stats. FTGS is driven by the returned iterator so the rows of the first group are available right away.
+     * @param termSteps passes the groups of one more term to this callback on each next(), e.g. from
+     *                  {@link EZImhotepSession#ftgsIterateByTerm}
+     */
+    public Iterator<GroupStats> getResults(final Iterator<?> termSteps) {
+        return new AbstractIterator<GroupStats>() {
+            int group = 1;
+            int termOrdinal = 0;
 
-            for(Object term : allTerms) {
-                double[] stats = termsStats.get(term);
-                if(stats == null) {
-                    stats = emptyArray;
+            @Override
+            protected GroupStats computeNext() {
+                if(group == 1) {
+                    while(true) {
+                        // hasNext() may already be the one advancing FTGS
+                        final int previousTermCount = totalTermCount;
+                        if(!termSteps.hasNext()) {
+                            break;
+                        }
+                        termSteps.next();
+                        if(totalTermCount != previousTermCount) {
+                            final GroupKey groupKey = groupKeys.get(1).add(getTerm(termCount - 1));
+                            if(numGroups == 1) {
+                                termCount = 0;  // no other group needs the term
+                            }
+                            return new GroupStats(groupKey, firstGroupStats.clone());
+                        }
+                    }
+                    group = 2;
+                }
+                if(termOrdinal == termCount) {
+                    termOrdinal = 0;
+                    group++;
                 }
-                ret.add(new GroupStats(groupKeys.get(group).add(term), stats));
+                if(termCount == 0 || group > numGroups) {
+                    return endOfData();
+                }
+                final int offset = termOrdinal * rowSize + (group - 2) * statRefs.length;
+                final double[] stats = Arrays.copyOfRange(termsStats, offset, offset + statRefs.length);
+                final GroupStats row = new GroupStats(groupKeys.get(group).add(getTerm(termOrdinal)), stats);
+                termOrdinal++;
+                return row;
             }
-        }
-        return ret;
+        };
     }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct hashed terms added to it.
+ * The relative standard error is 1.04 / sqrt(2^precision). Sketches of the same precision can be merged so a sketch of
+ * a union of term sets doesn't require seeing the terms again.
+ * Small sketches keep the updated registers in a list and switch to an array of all registers once it gets as large.
+ * @author vladimir
+ */
+public final class HyperLogLog {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 16;
+
+    private final int precision;
+    private final int registerCount;
+    // entries of register index << 6 | register value while the sketch is sparse
+    private int[] sparse = new int[16];
+    private int sparseSize = 0;
+    private byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("HyperLogLog precision has to be between " + MIN_PRECISION + " and " +
+                    MAX_PRECISION + " but was " + precision);
+        }
+        this.precision = precision;
+        registerCount = 1 << precision;
+    }
+
+    /**
+     * Returns the smallest precision with the relative standard error not above the given one
+     */
+    public static int precisionForError(double relativeError) {
+        for (int precision = MIN_PRECISION; precision < MAX_PRECISION; precision++) {
+            if (relativeError(precision) <= relativeError) {
+                return precision;
+            }
+        }
+        return MAX_PRECISION;
+    }
+
+    public static double relativeError(int precision) {
+        return 1.04 / Math.sqrt(1 << precision);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public double getRelativeError() {
+        return relativeError(precision);
+    }
+
+    public static long hash(long term) {
+        return mix(term + 0x9e3779b97f4a7c15L);
+    }
+
+    public static long hash(String term) {
+        // FNV-1a over the chars followed by a finalizer to spread the bits
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            hash ^= term.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe53e2b87L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public void addHash(long hash) {
+        final int index = (int) (hash >>> (64 - precision));
+        // position of the first 1 bit among the remaining bits limited to 64 - precision + 1
+        final int value = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        update(index, value);
+    }
+
+    private void update(int index, int value) {
+        if (registers != null) {
+            if (registers[index] < value) {
+                registers[index] = (byte) value;
+            }
+            return;
+        }
+        if (sparseSize == sparse.length) {
+            // the list can take as much memory as the registers before it has to be compacted
+            if (sparse.length < registerCount / 4) {
+                sparse = Arrays.copyOf(sparse, sparse.length * 2);
+            } else {
+                compactSparse();
+                if (sparseSize > sparse.length / 2) {
+                    toDense();
+                    update(index, value);
+                    return;
+                }
+            }
+        }
+        sparse[sparseSize++] = index << 6 | value;
+    }
+
+    /**
+     * Sorts the sparse entries and leaves only the largest value for each register
+     */
+    private void compactSparse() {
+        Arrays.sort(sparse, 0, sparseSize);
+        int size = 0;
+        for (int i = 0; i < sparseSize; i++) {
+            // values of a register are sorted so the last one is the largest
+            if (size > 0 && sparse[size - 1] >>> 6 == sparse[i] >>> 6) {
+                size--;
+            }
+            sparse[size++] = sparse[i];
+        }
+        sparseSize = size;
+    }
+
+    private void toDense() {
+        registers = new byte[registerCount];
+        for (int i = 0; i < sparseSize; i++) {
+            final int index = sparse[i] >>> 6;
+            registers[index] = (byte) Math.max(registers[index], sparse[i] & 0x3f);
+        }
+        sparse = null;
+        sparseSize = 0;
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Can't merge HyperLogLog sketches of precision " + other.precision +
+                    " into precision " + precision);
+        }
+        if (other.registers != null) {
+            if (registers == null) {
+                toDense();
+            }
+            for (int i = 0; i < registerCount; i++) {
+                if (registers[i] < other.registers[i]) {
+                    registers[i] = other.registers[i];
+                }
+            }
+        } else {
+            for (int i = 0; i < other.sparseSize; i++) {
+                update(other.sparse[i] >>> 6, other.sparse[i] & 0x3f);
+            }
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int zeroRegisters = 0;
+        if (registers != null) {
+            for (int i = 0; i < registerCount; i++) {
+                if (registers[i] == 0) {
+                    zeroRegisters++;
+                }
+                sum += 1.0 / (1L << registers[i]);
+            }
+        } else {
+            compactSparse();
+            for (int i = 0; i < sparseSize; i++) {
+                sum += 1.0 / (1L << (sparse[i] & 0x3f));
+            }
+            zeroRegisters = registerCount - sparseSize;
+            sum += zeroRegisters;
+        }
+        final double estimate = alpha() * registerCount * registerCount / sum;
+        if (estimate <= 2.5 * registerCount && zeroRegisters > 0) {
+            // linear counting is more accurate for small cardinalities
+            return Math.round(registerCount * Math.log((double) registerCount / zeroRegisters));
+        }
+        return Math.round(estimate);
+    }
+
+    private double alpha() {
+        switch (registerCount) {
+            case 16: return 0.673;
+            case 32: return 0.697;
+            case 64: return 0.709;
+            default: return 0.7213 / (1 + 1.079 / registerCount);
+        }
+    }
+
+    /**
+     * Serializes the sketch as the precision byte followed by all the registers
+     */
+    public byte[] toBytes() {
+        final byte[] bytes = new byte[registerCount + 1];
+        bytes[0] = (byte) precision;
+        if (registers != null) {
+            System.arraycopy(registers, 0, bytes, 1, registerCount);
+        } else {
+            for (int i = 0; i < sparseSize; i++) {
+                final int index = (sparse[i] >>> 6) + 1;
+                bytes[index] = (byte) Math.max(bytes[index], sparse[i] & 0x3f);
+            }
+        }
+        return bytes;
+    }
+
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        final HyperLogLog sketch = new HyperLogLog(bytes[0]);
+        if (bytes.length != sketch.registerCount + 1) {
+            throw new IllegalArgumentException("Expected " + (sketch.registerCount + 1) + " bytes for a HyperLogLog of precision " +
+                    sketch.precision + " but got " + bytes.length);
+        }
+        sketch.registers = Arrays.copyOfRange(bytes, 1, bytes.length);
+        sketch.sparse = null;
+        return sketch;
+    }
+}
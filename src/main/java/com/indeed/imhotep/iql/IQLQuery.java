@@ -13,9 +13,9 @@
  */
  package com.indeed.imhotep.iql;
 
-import au.com.bytecode.opencsv.CSVWriter;
 import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.UncheckedTimeoutException;
@@ -25,9 +25,12 @@ import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepSession;
 import com.indeed.imhotep.client.ImhotepClient;
 import com.indeed.imhotep.client.ShardIdWithVersion;
+import com.indeed.imhotep.ez.CancellationToken;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.QueryCancelledException;
 import com.indeed.imhotep.ez.StatReference;
+import com.indeed.imhotep.ez.Stats;
 import com.indeed.imhotep.web.ImhotepMetadataCache;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.io.Closeables2;
@@ -38,6 +41,7 @@ import org.joda.time.Period;
 import org.joda.time.format.PeriodFormat;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -51,11 +55,18 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.text.DecimalFormat;
-import java.util.Collection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static com.indeed.imhotep.ez.Stats.Stat;
 
@@ -64,6 +75,7 @@ import static com.indeed.imhotep.ez.Stats.Stat;
  */
 public final class IQLQuery implements Closeable {
     private static final int IN_MEMORY_ROW_LIMIT = 50000;
+    private static final int SORT_BUFFER_ROW_LIMIT = 200000;
     private static final Logger log = Logger.getLogger(IQLQuery.class);
     private static final Period executionTimeout = Period.minutes(6);
     public static final String TEMP_FILE_PREFIX = "iql_tmp";
@@ -80,8 +92,20 @@ public final class IQLQuery implements Closeable {
     private final List<ShardIdWithVersion> shardVersionList;
     private final List<Interval> timeIntervalsMissingShards;
     private final ImhotepClient.SessionBuilder sessionBuilder;
+    private final ImhotepClient client;
+    private final String username;
+    private final long imhotepLocalTempFileSizeLimit;
+    private final long imhotepDaemonTempFileSizeLimit;
     // session used for the current execution
     private EZImhotepSession session;
+    // sessions used for the time slices of the current execution
+    private final List<EZImhotepSession> sliceSessions = Collections.synchronizedList(Lists.<EZImhotepSession>newArrayList());
+    private ExecutorService timeSliceExecutor;
+    private int maxTimeSlices = 1;
+    private TimeSliceCache timeSliceCache;
+    private ExecutorService ftgsSplitExecutor;
+    private int ftgsSplits = 1;
+    private CancellationToken cancellationToken = new CancellationToken();
 
     public IQLQuery(ImhotepClient client, final List<Stat> stats, final String dataset, final DateTime start, final DateTime end,
                     final @Nonnull List<Condition> conditions, final @Nonnull List<Grouping> groupings, final int rowLimit,
@@ -101,6 +125,10 @@ public final class IQLQuery implements Closeable {
         this.groupings = groupings;
         this.rowLimit = rowLimit;
         this.metadata = metadata;
+        this.client = client;
+        this.username = username;
+        this.imhotepLocalTempFileSizeLimit = imhotepLocalTempFileSizeLimit;
+        this.imhotepDaemonTempFileSizeLimit = imhotepDaemonTempFileSizeLimit;
 
         sessionBuilder = client.sessionBuilder(dataset, start, end)
                 .localTempFileSizeLimit(imhotepLocalTempFileSizeLimit)
@@ -109,6 +137,31 @@ public final class IQLQuery implements Closeable {
         timeIntervalsMissingShards = sessionBuilder.getTimeIntervalsMissingShards();
     }
 
+    /**
+     * Enables splitting the query time range by shard boundaries into up to maxTimeSlices ranges that are executed
+     * in parallel on separate Imhotep sessions. Only used when the results of the slices can be merged.
+     */
+    public void setTimeSlicing(ExecutorService timeSliceExecutor, int maxTimeSlices) {
+        this.timeSliceExecutor = timeSliceExecutor;
+        this.maxTimeSlices = maxTimeSlices;
+    }
+
+    /**
+     * Enables caching the results of time slices split at fixed shard or day boundaries so later queries that differ
+     * only in the time range reuse them. Only used together with time slicing.
+     */
+    public void setTimeSliceCache(TimeSliceCache timeSliceCache) {
+        this.timeSliceCache = timeSliceCache;
+    }
+
+    /**
+     * Enables aggregating the terms of FTGS iterations in up to ftgsSplits splits in parallel on ftgsSplitExecutor.
+     */
+    public void setFtgsSplitting(ExecutorService ftgsSplitExecutor, int ftgsSplits) {
+        this.ftgsSplitExecutor = ftgsSplitExecutor;
+        this.ftgsSplits = ftgsSplits;
+    }
+
     /**
      * Not thread safe due to session reference caching for close().
      */
@@ -116,10 +169,23 @@ public final class IQLQuery implements Closeable {
         //if outputStream passed, update on progress
         final PrintWriter out = progress ? new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(outputStream), Charsets.UTF_8)) : null;
 
+        if(timeSliceExecutor != null && isTimeSliceable()) {
+            final TimeSliceCache sliceCache = timeSliceCache != null && isTimeSliceCacheable() ? timeSliceCache : null;
+            // cached slices have to be aligned so that queries with overlapping time ranges share them
+            final List<Interval> timeSlices = sliceCache != null ? sliceCache.getTimeSlices(start, end, shardVersionList) :
+                    getTimeSlices(Math.max(maxTimeSlices, 1));
+            if(timeSlices.size() > 1 || sliceCache != null) {
+                return executeTimeSliced(progress, out, getTotals, timeSlices, sliceCache);
+            }
+        }
+
         final TreeTimer timer = new TreeTimer();
         timer.push("Imhotep session creation");
+        cancellationToken.checkCancelled();
         final ImhotepSession imhotepSession = sessionBuilder.build();
         session = new EZImhotepSession(imhotepSession);
+        session.setCancellationToken(cancellationToken);
+        session.setFtgsSplitting(ftgsSplitExecutor, ftgsSplits);
         timer.pop();
 
         final long timeoutTS = System.currentTimeMillis() + executionTimeout.toStandardSeconds().getSeconds() * 1000;
@@ -135,14 +201,14 @@ public final class IQLQuery implements Closeable {
                 out.flush();
             }
             timer.push("Time filter");
-            timeFilter(session);
+            final List<Condition> filterConditions = timeFilter(session, shardVersionList, start, end);
             timer.pop();
             if(progress) {
                 out.print(": Time filtering finished" + EVENT_SOURCE_END);
                 out.flush();
             }
 
-            for (Condition condition : conditions) {
+            for (Condition condition : filterConditions) {
                 checkTimeout(timeoutTS);
                 timer.push("Filtering " + condition.getClass().getSimpleName());
                 condition.filter(session);
@@ -158,7 +224,7 @@ public final class IQLQuery implements Closeable {
                     statRefs = pushStats(session);
                     timer.pop();
                     timer.push("Getting totals");
-                    totals = getStats(statRefs);
+                    totals = getStats(session, statRefs);
                     timer.pop();
                 }
 
@@ -188,7 +254,7 @@ public final class IQLQuery implements Closeable {
                 final List<StatReference> statRefs = pushStats(session);
                 timer.pop();
                 timer.push("Getting stats");
-                final double[] stats = getStats(statRefs);
+                final double[] stats = getStats(session, statRefs);
                 timer.pop();
                 count = updateProgress(progress, out, count);
                 final List<GroupStats> result = Lists.newArrayList();
@@ -196,9 +262,19 @@ public final class IQLQuery implements Closeable {
                 return new ExecutionResult(result.iterator(), stats, timer.toString(), session.getTempFilesBytesWritten());
             }
         } catch (Throwable t) {
-            log.error("Error while executing the query", t);
-            throw Throwables.propagate(t);
+            throw propagateFailure(t);
+        }
+    }
+
+    private RuntimeException propagateFailure(Throwable t) {
+        if (cancellationToken.isCancelled()) {
+            // failures caused by the sessions being closed under the query are reported as the cancellation
+            log.info("Query execution stopped: " + cancellationToken.getCancelReason());
+            return t instanceof QueryCancelledException ? (QueryCancelledException) t :
+                    new QueryCancelledException(cancellationToken.getCancelReason(), t);
         }
+        log.error("Error while executing the query", t);
+        throw Throwables.propagate(t);
     }
 
     private int updateProgress(boolean progress, PrintWriter out, int count) {
@@ -207,11 +283,15 @@ public final class IQLQuery implements Closeable {
             out.println("event: chunkcomplete");
             out.print("data: " + count + EVENT_SOURCE_END);
             out.flush();
+            // PrintWriter swallows the IOException so this is where a client disconnect shows up
+            if (out.checkError()) {
+                cancellationToken.cancel("Client disconnected");
+            }
         }
         return count;
     }
 
-    private double[] getStats(List<StatReference> statRefs) {
+    private static double[] getStats(EZImhotepSession session, List<StatReference> statRefs) {
         final double[] stats = new double[statRefs.size()];
         for (int i = 0; i < statRefs.size(); i++) {
             final double[] groupStat = session.getGroupStats(statRefs.get(i));
@@ -220,6 +300,274 @@ public final class IQLQuery implements Closeable {
         return stats;
     }
 
+    /**
+     * Returns whether results of executing the query on disjoint time ranges can be merged into the result of the
+     * whole range. Requires additive stats and groupings that don't depend on the data in other time ranges.
+     * Exploded field groupings are only supported as the last grouping.
+     * Top K groupings are not supported as every slice would have to return all terms to rank them after merging.
+     */
+    private boolean isTimeSliceable() {
+        return isTimeSliceable(stats, groupings);
+    }
+
+    static boolean isTimeSliceable(List<Stat> stats, List<Grouping> groupings) {
+        for (Stat stat : stats) {
+            if (!Stats.isAdditive(stat)) {
+                return false;
+            }
+        }
+        for (int i = 0; i < groupings.size(); i++) {
+            final Grouping grouping = groupings.get(i);
+            final boolean isLast = i == groupings.size() - 1;
+            if (grouping instanceof StatRangeGrouping || grouping instanceof StatRangeGrouping2D) {
+                continue;
+            }
+            if (!(grouping instanceof FieldGrouping)) {
+                return false;
+            }
+            final FieldGrouping fieldGrouping = (FieldGrouping) grouping;
+            if (!isLast && !fieldGrouping.isNoExplode() && !fieldGrouping.isTermSubset()) {
+                return false;   // exploding depends on terms present in the time range
+            }
+            if (fieldGrouping.isTopK()) {
+                return false;   // top terms of a time slice are not the top terms of the whole range
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether results of time slices can be reused by queries with a different time range.
+     * 2D metric buckets are excluded as their labels don't identify the bucket boundaries.
+     */
+    private boolean isTimeSliceCacheable() {
+        for (Grouping grouping : groupings) {
+            if (grouping instanceof StatRangeGrouping2D) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Describes the parts of the translated groupings that depend on the query time range and are not part of the
+     * query text, i.e. the boundaries of the (time) buckets.
+     */
+    private String getTimeSliceGroupingsKey() {
+        final StringBuilder key = new StringBuilder();
+        for (Grouping grouping : groupings) {
+            if (grouping instanceof StatRangeGrouping) {
+                key.append(((StatRangeGrouping) grouping).getBucketGrid());
+            }
+            key.append(';');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Splits the query time range into up to maxSlices ranges with roughly equal number of shards.
+     * Slice boundaries are always at a shard start so no shard has to be opened by more than one slice.
+     */
+    private List<Interval> getTimeSlices(int maxSlices) {
+        final List<ShardIdWithVersion> shards = Lists.newArrayList(shardVersionList);
+        final List<Interval> slices = Lists.newArrayList();
+        Collections.sort(shards, new Comparator<ShardIdWithVersion>() {
+            @Override
+            public int compare(ShardIdWithVersion o1, ShardIdWithVersion o2) {
+                return o1.getRange().start.compareTo(o2.getRange().start);
+            }
+        });
+        final int sliceCount = Math.min(maxSlices, shards.size());
+        DateTime sliceStart = start;
+        for (int i = 1; i < sliceCount; i++) {
+            final DateTime boundary = shards.get(i * shards.size() / sliceCount).getRange().start;
+            if (boundary.isAfter(sliceStart) && boundary.isBefore(end)) {
+                slices.add(new Interval(sliceStart, boundary));
+                sliceStart = boundary;
+            }
+        }
+        slices.add(new Interval(sliceStart, end));
+        return slices;
+    }
+
+    private ExecutionResult executeTimeSliced(final boolean progress, final PrintWriter out, final boolean getTotals,
+                                              final List<Interval> timeSlices, @Nullable final TimeSliceCache sliceCache) {
+        final TreeTimer timer = new TreeTimer();
+        final long timeoutTS = System.currentTimeMillis() + executionTimeout.toStandardSeconds().getSeconds() * 1000;
+
+        final Grouping lastGrouping = groupings.isEmpty() ? null : groupings.get(groupings.size() - 1);
+        final boolean[] termLevels = new boolean[groupings.size()];
+        for (int i = 0; i < groupings.size(); i++) {
+            termLevels[i] = groupings.get(i) instanceof FieldGrouping;
+        }
+        final boolean explodeLastLevel = lastGrouping instanceof FieldGrouping && !((FieldGrouping) lastGrouping).isNoExplode();
+        final TimeSliceMerger merger = new TimeSliceMerger(stats.size(), termLevels, explodeLastLevel);
+        final String groupingsKey = sliceCache != null ? getTimeSliceGroupingsKey() : null;
+        for (int i = 0; i < groupings.size(); i++) {
+            final Grouping grouping = groupings.get(i);
+            if (grouping instanceof StatRangeGrouping) {
+                final List<String> bucketLabels = ((StatRangeGrouping) grouping).getBucketLabels();
+                if (sliceCache != null) {
+                    // cached slices may come from queries with a different time range and so have buckets outside of this one
+                    merger.setBucketLabels(i, bucketLabels);
+                } else {
+                    merger.setBucketOrder(i, bucketLabels);
+                }
+            } else if (grouping instanceof StatRangeGrouping2D) {
+                merger.setBucketOrder(i, ((StatRangeGrouping2D) grouping).getBucketLabels());
+            }
+        }
+
+        try {
+            if(progress) {
+                out.println(": Beginning IQL Query");
+                out.println("event: totalsteps");
+                out.print("data: " + timeSlices.size() + EVENT_SOURCE_END);
+                out.flush();
+            }
+            timer.push("Time sliced execution (" + timeSlices.size() + " slices)");
+            final List<Future<SliceResult>> futures = Lists.newArrayList();
+            for (final Interval timeSlice : timeSlices) {
+                futures.add(timeSliceExecutor.submit(new Callable<SliceResult>() {
+                    @Override
+                    public SliceResult call() throws Exception {
+                        // cached slices always include the totals so they can be used by any query
+                        return executeSlice(timeSlice, timeSlices.size(), groupings, stats,
+                                getTotals || sliceCache != null, timeoutTS, sliceCache, groupingsKey);
+                    }
+                }));
+            }
+
+            final double[] totals = new double[getTotals || groupings.isEmpty() ? stats.size() : 0];
+            long tempFilesBytesWritten = 0;
+            int count = 0;
+            int cachedSlices = 0;
+            try {
+                // merging in slice order keeps the output deterministic
+                for (Future<SliceResult> future : futures) {
+                    final SliceResult sliceResult = future.get();
+                    merger.addAll(sliceResult.rows.iterator());
+                    if (sliceResult.cached) {
+                        cachedSlices++;
+                    }
+                    for (int i = 0; i < totals.length; i++) {
+                        totals[i] += sliceResult.totals[i];
+                    }
+                    if (tempFilesBytesWritten >= 0) {
+                        tempFilesBytesWritten = sliceResult.tempFilesBytesWritten >= 0 ?
+                                tempFilesBytesWritten + sliceResult.tempFilesBytesWritten : -1;
+                    }
+                    count = updateProgress(progress, out, count);
+                }
+            } finally {
+                for (Future<SliceResult> future : futures) {
+                    future.cancel(true);
+                }
+            }
+            timer.pop();
+            if (sliceCache != null) {
+                log.debug("Reused " + cachedSlices + " of " + timeSlices.size() + " cached time slices");
+                timer.push("Reused " + cachedSlices + " cached slices");
+                timer.pop();
+            }
+            return new ExecutionResult(merger.getResults(), totals, timer.toString(), tempFilesBytesWritten);
+        } catch (ExecutionException e) {
+            throw propagateFailure(e.getCause());
+        } catch (Throwable t) {
+            throw propagateFailure(t);
+        }
+    }
+
+    private SliceResult executeSlice(Interval timeSlice, int sliceCount, List<Grouping> sliceGroupings, List<Stat> sliceStats,
+                                     boolean getTotals, long timeoutTS, @Nullable TimeSliceCache sliceCache,
+                                     @Nullable String groupingsKey) throws ImhotepOutOfMemoryException {
+        // split the temp file limits between the slices so the whole query still honors them
+        final ImhotepClient.SessionBuilder sliceSessionBuilder = client.sessionBuilder(dataset, timeSlice.getStart(), timeSlice.getEnd())
+                .localTempFileSizeLimit(splitLimit(imhotepLocalTempFileSizeLimit, sliceCount))
+                .daemonTempFileSizeLimit(splitLimit(imhotepDaemonTempFileSizeLimit, sliceCount)).username(username);
+        final List<ShardIdWithVersion> sliceShards = sliceSessionBuilder.getChosenShards();
+        // the key includes the shard versions so slices with updated shards are executed again
+        final String cacheFileName = sliceCache != null ? sliceCache.getFileName(groupingsKey, timeSlice, sliceShards) : null;
+        if (cacheFileName != null) {
+            final Pair<double[], List<GroupStats>> cached = sliceCache.read(cacheFileName);
+            if (cached != null) {
+                return new SliceResult(cached.getSecond(), cached.getFirst(), 0, true);
+            }
+        }
+        final SliceResult result;
+        cancellationToken.checkCancelled();
+        final EZImhotepSession sliceSession = new EZImhotepSession(sliceSessionBuilder.build());
+        sliceSessions.add(sliceSession);
+        sliceSession.setCancellationToken(cancellationToken);
+        sliceSession.setFtgsSplitting(ftgsSplitExecutor, ftgsSplits);
+        try {
+            final List<Condition> filterConditions = timeFilter(sliceSession, sliceShards, timeSlice.getStart(), timeSlice.getEnd());
+            for (Condition condition : filterConditions) {
+                checkTimeout(timeoutTS);
+                condition.filter(sliceSession);
+            }
+
+            final double[] totals = new double[stats.size()];
+            final List<GroupStats> rows = Lists.newArrayList();
+            if (sliceGroupings.isEmpty()) {
+                final double[] sliceStatValues = getStats(sliceSession, pushStats(sliceSession, sliceStats));
+                System.arraycopy(sliceStatValues, 0, totals, 0, totals.length);
+                rows.add(new GroupStats(GroupKey.<Comparable>empty(), sliceStatValues));
+            } else {
+                List<StatReference> statRefs = null;
+                if (getTotals) {
+                    statRefs = pushStats(sliceSession, sliceStats);
+                    final double[] sliceTotals = getStats(sliceSession, statRefs);
+                    System.arraycopy(sliceTotals, 0, totals, 0, totals.length);
+                }
+                Map<Integer, GroupKey> groupKeys = EZImhotepSession.newGroupKeys();
+                for (int i = 0; i < sliceGroupings.size() - 1; i++) {
+                    checkTimeout(timeoutTS);
+                    groupKeys = sliceGroupings.get(i).regroup(sliceSession, groupKeys);
+                }
+                checkTimeout(timeoutTS);
+                if (!getTotals) {
+                    statRefs = pushStats(sliceSession, sliceStats);
+                }
+                final Iterator<GroupStats> sliceRows = sliceGroupings.get(sliceGroupings.size() - 1)
+                        .getGroupStats(sliceSession, groupKeys, statRefs, timeoutTS);
+                while (sliceRows.hasNext()) {
+                    rows.add(sliceRows.next());
+                }
+            }
+            result = new SliceResult(rows, totals, sliceSession.getTempFilesBytesWritten(), false);
+        } finally {
+            // free the daemon resources as soon as the slice is done
+            Closeables2.closeQuietly(sliceSession, log);
+            sliceSessions.remove(sliceSession);
+        }
+        if (cacheFileName != null) {
+            sliceCache.write(cacheFileName, result.totals, result.rows);
+        }
+        return result;
+    }
+
+    private static long splitLimit(long limit, int parts) {
+        if (limit <= 0 || limit == Long.MAX_VALUE) {
+            return limit;   // no limit
+        }
+        return Math.max(1, limit / parts);
+    }
+
+    private static class SliceResult {
+        private final List<GroupStats> rows;
+        private final double[] totals;
+        private final long tempFilesBytesWritten;
+        private final boolean cached;
+
+        private SliceResult(List<GroupStats> rows, double[] totals, long tempFilesBytesWritten, boolean cached) {
+            this.rows = rows;
+            this.totals = totals;
+            this.tempFilesBytesWritten = tempFilesBytesWritten;
+            this.cached = cached;
+        }
+    }
+
     public static class ExecutionResult {
         private final Iterator<GroupStats> rows;
         private final double[] totals;
@@ -250,21 +598,33 @@ public final class IQLQuery implements Closeable {
         }
     }
 
-    private void timeFilter(EZImhotepSession session) throws ImhotepOutOfMemoryException {
-        final Pair<Long, Long> shardsMinMax = getShardsMinMax(shardVersionList);
+    /**
+     * Filters out the docs outside of the time range if the shards cover more than it.
+     * Returns the conditions to filter by after that which may have the time range merged into a condition on the time field.
+     */
+    private List<Condition> timeFilter(EZImhotepSession session, List<ShardIdWithVersion> shards, DateTime start, DateTime end) throws ImhotepOutOfMemoryException {
+        final Pair<Long, Long> shardsMinMax = getShardsMinMax(shards);
         final long min = shardsMinMax.getFirst();
         final long max = shardsMinMax.getSecond();
         if (min < start.getMillis() || max > end.getMillis()) {
-            new MetricCondition(EZImhotepSession.intField(getTimeField()),
-                    (int)(start.getMillis()/1000), (int)((end.getMillis()-1)/1000), false).filter(session);
+            final MetricCondition timeCondition = new MetricCondition(EZImhotepSession.intField(getTimeField()),
+                    (int)(start.getMillis()/1000), (int)((end.getMillis()-1)/1000), false);
+            final List<Condition> mergedConditions = ConditionOptimizer.mergeTimeCondition(timeCondition, conditions);
+            if (mergedConditions != null) {
+                return mergedConditions;
+            }
+            timeCondition.filter(session);
         }
+        return conditions;
     }
 
     /**
-     * Throws UncheckedTimeoutException if current time is past the provided timeout timestamp.
+     * Throws UncheckedTimeoutException if current time is past the provided timeout timestamp and
+     * QueryCancelledException if the query has been cancelled.
      * @param timeoutTS timestamp of when the query times out in milliseconds
      */
     public void checkTimeout(long timeoutTS) {
+        cancellationToken.checkCancelled();
         if(System.currentTimeMillis() > timeoutTS) {
             throw new UncheckedTimeoutException("The query took longer than the allowed timeout of " + executionTimeout.toString(PeriodFormat.getDefault()));
         }
@@ -294,6 +654,10 @@ public final class IQLQuery implements Closeable {
     }
 
     private List<StatReference> pushStats(EZImhotepSession session) throws ImhotepOutOfMemoryException {
+        return pushStats(session, stats);
+    }
+
+    private static List<StatReference> pushStats(EZImhotepSession session, List<Stat> stats) throws ImhotepOutOfMemoryException {
         final List<StatReference> statRefs = Lists.newArrayList();
         for (Stat stat : stats) {
             final StatReference statReference = session.pushStatGeneric(stat);
@@ -302,15 +666,30 @@ public final class IQLQuery implements Closeable {
         return statRefs;
     }
 
-    private boolean requiresSorting() {
-        // TODO: enable sorting
-//        if(groupings.size() > 0) {
-//            final Grouping lastGrouping = groupings.get(groupings.size() - 1);
-//            if(lastGrouping instanceof FieldGrouping && ((FieldGrouping)lastGrouping).isNoExplode()) {
-//                return true;    // currently we only have to sort when using non-exploded field grouping as the last grouping
-//            }
-//        }
-        return false;
+    /**
+     * FTGS iterates over terms before groups so a non-exploded field grouping as the last grouping returns rows ordered
+     * by its terms rather than by the preceding groups. Rows are reordered only when all preceding groupings are field
+     * groupings since their terms sort the same way as the groups they produced. Top K and term subset groupings
+     * order their groups by rank or by the listed terms so they are never sorted by term.
+     */
+    static boolean requiresSorting(List<Grouping> groupings) {
+        if(groupings.size() < 2) {
+            return false;   // only one group to iterate over so FTGS order is already correct
+        }
+        final Grouping lastGrouping = groupings.get(groupings.size() - 1);
+        if(!(lastGrouping instanceof FieldGrouping) || !((FieldGrouping)lastGrouping).isNoExplode()) {
+            return false;
+        }
+        for(Grouping grouping : groupings) {
+            if(!(grouping instanceof FieldGrouping)) {
+                return false;
+            }
+            final FieldGrouping fieldGrouping = (FieldGrouping) grouping;
+            if(fieldGrouping.isTopK() || fieldGrouping.isTermSubset()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public static class WriteResults {
@@ -332,10 +711,42 @@ public final class IQLQuery implements Closeable {
     }
 
     @Nonnull
-    public WriteResults outputResults(final Iterator<GroupStats> rows, OutputStream httpOutStream, final boolean csv, final boolean progress, final int rowLimit, int groupingColumns, int selectColumns, boolean cacheDisabled) {
+    /**
+     * @param sharedRows if not null all rows that are output are also added to this buffer
+     */
+    public WriteResults outputResults(final Iterator<GroupStats> rows, OutputStream httpOutStream, final boolean csv, final boolean progress, final int rowLimit, int groupingColumns, int selectColumns, boolean cacheDisabled, @Nullable ReplayableRowBuffer sharedRows) {
         final long timeStarted = System.currentTimeMillis();
-        final boolean requiresSorting = requiresSorting();
-        if(cacheDisabled && !requiresSorting) { // just stream the rows out. don't have to worry about keeping a copy at all
+        if(!requiresSorting(groupings)) {
+            return outputRows(tee(rows, sharedRows), httpOutStream, csv, progress, rowLimit, cacheDisabled, timeStarted);
+        }
+        final GroupStatsSorter sorter = newRowSorter(groupingColumns, selectColumns);
+        try {
+            final Iterator<GroupStats> sortedRows = sorter.sort(rows);
+            log.trace("Sorted rows in " + (System.currentTimeMillis() - timeStarted) + "ms");
+            return outputRows(tee(sortedRows, sharedRows), httpOutStream, csv, progress, rowLimit, cacheDisabled, timeStarted);
+        } finally {
+            sorter.close();
+        }
+    }
+
+    public static GroupStatsSorter newRowSorter(int groupingColumns, int selectColumns) {
+        return new GroupStatsSorter(groupingColumns, selectColumns, SORT_BUFFER_ROW_LIMIT);
+    }
+
+    /**
+     * Returns the rows in the order outputResults writes them.
+     * @param sorter used only when the rows have to be reordered and has to be closed by the caller
+     */
+    public Iterator<GroupStats> getOutputOrder(Iterator<GroupStats> rows, GroupStatsSorter sorter) {
+        return requiresSorting(groupings) ? sorter.sort(rows) : rows;
+    }
+
+    private static Iterator<GroupStats> tee(Iterator<GroupStats> rows, @Nullable ReplayableRowBuffer sharedRows) {
+        return sharedRows != null ? sharedRows.tee(rows) : rows;
+    }
+
+    private WriteResults outputRows(final Iterator<GroupStats> rows, OutputStream httpOutStream, final boolean csv, final boolean progress, final int rowLimit, boolean cacheDisabled, long timeStarted) {
+        if(cacheDisabled) { // just stream the rows out. don't have to worry about keeping a copy at all
             final int rowsWritten = writeRowsToStream(rows, httpOutStream, csv, rowLimit, progress);
             return new WriteResults(rowsWritten, null, null, System.currentTimeMillis() - timeStarted);
         }
@@ -356,33 +767,21 @@ public final class IQLQuery implements Closeable {
         // TODO: figure out the size of the resulting data for reporting or limiting?
         if(!cacheOverflow) {
             // results fit in memory. stream them out
-            // TODO: in memory sort if necessary? or just always defer to gnu sort?
             final int rowsWritten = writeRowsToStream(resultsCache.iterator(), httpOutStream, csv, rowLimit, progress);
             return new WriteResults(rowsWritten, null, resultsCache.iterator(), System.currentTimeMillis() - timeStarted);
         } else {    // have to work with the files on the hard drive to avoid OOM
             try {
                 final File unsortedFile = File.createTempFile(TEMP_FILE_PREFIX, null);
-                final FileOutputStream fileOutputStream = new FileOutputStream(unsortedFile);
                 final long started = System.currentTimeMillis();
-                int rowsWritten = 0;
-                // flush cache
-                rowsWritten += writeRowsToStream(resultsCache.iterator(), fileOutputStream, csv, Integer.MAX_VALUE, false);
+                // stored in the cache format so that the file can be uploaded to the cache as is
+                final Iterator<GroupStats> allRows = Iterators.concat(resultsCache.iterator(), rows);
                 //noinspection UnusedAssignment
-                resultsCache = null;    // let it be GC'd
-                // save the remaining rows to disk
-                rowsWritten += writeRowsToStream(rows, fileOutputStream, csv, Integer.MAX_VALUE, false);
-                fileOutputStream.close();
+                resultsCache = null;    // let it be GC'd as the rows are written out
+                final int rowsWritten = GroupStatsCacheFormat.write(allRows, new FileOutputStream(unsortedFile));
                 log.trace("Stored on disk to " + unsortedFile.getPath() + " in " + (System.currentTimeMillis() - started) + "ms");
 
-                final File sortedFile;
-                if(requiresSorting) { // do on disk sort with gnu sort
-                    sortedFile = sortFile(unsortedFile, groupingColumns, selectColumns);
-                } else {
-                    sortedFile = unsortedFile;
-                }
-
                 // send the results out to the client
-                copyStream(new FileInputStream(sortedFile), httpOutStream, rowLimit, progress);
+                writeCachedRowsToStream(new FileInputStream(unsortedFile), httpOutStream, csv, rowLimit, progress);
 
                 return new WriteResults(rowsWritten, unsortedFile, null, System.currentTimeMillis() - timeStarted);
             } catch (IOException e) {
@@ -392,48 +791,22 @@ public final class IQLQuery implements Closeable {
     }
 
     /**
-     * Sorts the given file by invoking gnu 'sort' command and returns a reference to the sorted copy.
-     * Expects inputFile to have ".tmp" in the name
+     * Renders rows stored in GroupStatsCacheFormat to the output stream in the requested format.
+     * Input stream is closed; output stream is flushed but not closed when done.
      */
-    private File sortFile(File inputFile, int groupingColumns, int selectColumns) {
+    public static int writeCachedRowsToStream(InputStream inputStream, OutputStream outputStream, boolean csv, int rowLimit, boolean progress) {
+        GroupStatsCacheFormat.RowReader rows = null;
         try {
-            final long started;
-            final File sortedFile;
-            started = System.currentTimeMillis();
-            sortedFile = new File(inputFile.getPath().replace(".tmp", ".sorted.tmp"));
-            final List<String> sortCmd = Lists.newArrayList("sort", "-o", sortedFile.getPath(), "-t", "\t");
-
-            // TODO: custom sorting orders
-            for(int i = 1; i <= groupingColumns; i++) {
-                sortCmd.add("-k" + i + "," + i);
-            }
-            for(int i = groupingColumns + 1; i <= groupingColumns + selectColumns; i++) {
-                sortCmd.add("-k" + i + "," + i + "n");
-            }
-            sortCmd.add(inputFile.getPath());
-            log.trace(IQLQuery.join(sortCmd, " "));
-
-            final Process sortProc = Runtime.getRuntime().exec(sortCmd.toArray(new String[sortCmd.size()]), null);
-            sortProc.waitFor();
-            log.trace("Sorted to: " + sortedFile.getPath() + " in " + (System.currentTimeMillis() - started) + "ms");
-            return sortedFile;
+            rows = new GroupStatsCacheFormat.RowReader(inputStream);
+            return writeRowsToStream(rows, outputStream, csv, rowLimit, progress);
         } catch (IOException e) {
             throw Throwables.propagate(e);
-        } catch (InterruptedException e) {
-            throw Throwables.propagate(e);
-        }
-    }
-
-    private static String join(Collection items, String delimiter) {
-        final StringBuilder sb = new StringBuilder(items.size() * 7);
-
-        for (final Iterator it = items.iterator(); it.hasNext(); ) {
-            sb.append(it.next());
-            if (it.hasNext()) {
-                sb.append(delimiter);
+        } finally {
+            if (rows != null) {
+                rows.close();   // rows may not have been read to the end because of the row limit
             }
+            Closeables2.closeQuietly(inputStream, log);
         }
-        return sb.toString();
     }
 
     /**
@@ -446,7 +819,23 @@ public final class IQLQuery implements Closeable {
             if(!eventSource && (lineLimit == Integer.MAX_VALUE || lineLimit <= 0)) {
                 // no need to count rows so copy streams completely
                 // we can't do this if we need the eventSource data
-                ByteStreams.copy(inputStream, outputStream);
+                if(inputStream instanceof FileInputStream) {
+                    // local cache files are transferred without copying through a heap buffer where possible
+                    outputStream.flush();
+                    final FileChannel channel = ((FileInputStream) inputStream).getChannel();
+                    final WritableByteChannel outputChannel = Channels.newChannel(outputStream);
+                    final long size = channel.size();
+                    long position = 0;
+                    while(position < size) {
+                        final long transferred = channel.transferTo(position, size - position, outputChannel);
+                        if(transferred <= 0) {
+                            break;
+                        }
+                        position += transferred;
+                    }
+                } else {
+                    ByteStreams.copy(inputStream, outputStream);
+                }
                 outputStream.flush();
                 return 0;    // unknown how many rows were copied as we haven't counted
             }
@@ -489,71 +878,65 @@ public final class IQLQuery implements Closeable {
     }
 
     public static int writeRowsToStream(final Iterator<GroupStats> rows, OutputStream os, final boolean csv, final int rowLimit, final boolean progress) {
-        // TODO: how much precision do we want?
-        final DecimalFormat format = new DecimalFormat("#.#######");
-        final String tsvDelimiter = "\t";
-        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(os), Charsets.UTF_8));
-
-        final CSVWriter csvWriter;
-        final List<String> csvFields;
-        if(csv) {
-            csvWriter = new CSVWriter(out);
-            csvFields = Lists.newArrayList();
-        } else {
-            csvWriter = null;
-            csvFields = null;
-        }
+        final RowEncoder encoder = new RowEncoder(os, csv);
         int rowsProcessed = 0;
-
-        if(progress) {
-            out.println("event: resultstream");
-        }
-
-        while (rows.hasNext()) {
-            final GroupStats entry = rows.next();
-            if (entry == null) {
-                continue;
-            }
-            if (progress) {
-                out.print("data: ");
+        try {
+            if(progress) {
+                encoder.writeString("event: resultstream");
+                encoder.writeLineEnd();
             }
-            if(!csv) { // TSV
-                GroupKey current = entry.groupKey;
-                while (!current.isEmpty()) {
-                    out.print(current.head());
-                    current = current.tail();
-                    if (!current.isEmpty()) {
-                        out.print(tsvDelimiter);
-                    }
-                }
-                for (double l : entry.stats) {
-                    out.print(tsvDelimiter);
-                    out.print(Double.isNaN(l) ? "NaN" : format.format(l));
+
+            while (rows.hasNext()) {
+                final GroupStats entry = rows.next();
+                if (entry == null) {
+                    continue;
                 }
-                out.println();
-            } else {    // csv
-                GroupKey current = entry.groupKey;
-                while (!current.isEmpty()) {
-                    csvFields.add(current.head().toString());
-                    current = current.tail();
+                if (progress) {
+                    encoder.writeString("data: ");
                 }
-                for (double l : entry.stats) {
-                    csvFields.add(format.format(l));
+                encoder.writeRow(entry);
+                if(++rowsProcessed >= rowLimit) {
+                    break;   // reached the requested row limit
                 }
-                csvWriter.writeNext(csvFields.toArray(new String[csvFields.size()]));
-                csvFields.clear();  // reused on next iteration
             }
-            if(++rowsProcessed >= rowLimit) {
-                break;   // reached the requested row limit
+            if(progress) {
+                encoder.writeString("\nevent: complete\ndata: :)" + EVENT_SOURCE_END);
             }
+            encoder.flush();
+        } catch (IOException e) {
+            // stops producing rows for a disconnected client
+            throw new QueryCancelledException("Client disconnected", e);
         }
-        if(progress) {
-            out.print("\nevent: complete\ndata: :)" + EVENT_SOURCE_END);
-        }
-        out.flush();
         return rowsProcessed;
     }
 
+    /**
+     * Returns the relative amount of work per shard the groupings require compared to a query without groupings.
+     * Used to estimate the cost of the query before it is executed.
+     */
+    public double getGroupingCostFactor() {
+        double factor = 1;
+        for (Grouping grouping : groupings) {
+            if (grouping instanceof FieldGrouping) {
+                final FieldGrouping fieldGrouping = (FieldGrouping) grouping;
+                if (fieldGrouping.isNoExplode() || fieldGrouping.isTermSubset()) {
+                    factor *= 2;
+                } else if (fieldGrouping.isTopK()) {
+                    factor *= 3;
+                } else {
+                    factor *= 4;    // regroups into a group per term
+                }
+            } else if (grouping instanceof StatRangeGrouping) {
+                factor *= 1 + Math.log10(((StatRangeGrouping) grouping).getBucketCount());
+            } else if (grouping instanceof DistinctGrouping || grouping instanceof PercentileGrouping || grouping instanceof DiffGrouping) {
+                factor *= 3;    // iterate over all terms
+            } else {
+                factor *= 1.5;
+            }
+        }
+        return factor;
+    }
+
     public List<ShardIdWithVersion> getShardVersionList() {
         return shardVersionList;
     }
@@ -562,14 +945,43 @@ public final class IQLQuery implements Closeable {
         return timeIntervalsMissingShards;
     }
 
+    /**
+     * Returns the error bounds of the estimated distinct counts in the results or null if all counts are exact
+     */
+    @Nullable
+    public String getApproxDistinctErrors() {
+        for (Grouping grouping : groupings) {
+            if (grouping instanceof DistinctGrouping) {
+                return ((DistinctGrouping) grouping).getApproxErrors();
+            }
+        }
+        return null;
+    }
+
     public int getRowLimit() {
         return rowLimit;
     }
 
+    /**
+     * Cancelling the token stops the execution and closes all the Imhotep sessions of the query.
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
     @Override
     public void close() throws IOException {
         if(session != null) {
             Closeables2.closeQuietly(session, log);
         }
+        synchronized (sliceSessions) {
+            for (EZImhotepSession sliceSession : sliceSessions) {
+                Closeables2.closeQuietly(sliceSession, log);
+            }
+        }
     }
 }
@@ -49,4 +49,20 @@ public final class MetricCondition implements Condition {
             session.popStat();
         }
     }
+
+    public Stats.Stat getStat() {
+        return stat;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public boolean isNegation() {
+        return negation;
+    }
 }
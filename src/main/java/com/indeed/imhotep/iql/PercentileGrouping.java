@@ -14,6 +14,7 @@
  package com.indeed.imhotep.iql;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
@@ -25,6 +26,8 @@ import com.indeed.imhotep.ez.Stats.Stat;
 import gnu.trove.TIntObjectHashMap;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2LongMap;
 import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
@@ -32,7 +35,6 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongList;
 
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -48,15 +50,26 @@ public class PercentileGrouping extends Grouping {
     private final List<Field> fields = Lists.newArrayList();
     private final List<Double> percentiles = Lists.newArrayList();
     private final List<Integer> fieldProjectionPositions = Lists.newArrayList();
+    // whether each percentile is estimated with a t-digest instead of being found exactly
+    private final List<Boolean> approximate = Lists.newArrayList();
 
     public PercentileGrouping(final Stat countStat) {
         this.countStat = countStat;
     }
 
     public void addPercentileQuery(final Field field, final double percentile, final int fieldProjectionPosition) {
+        addPercentileQuery(field, percentile, fieldProjectionPosition, false);
+    }
+
+    public void addApproxPercentileQuery(final Field field, final double percentile, final int fieldProjectionPosition) {
+        addPercentileQuery(field, percentile, fieldProjectionPosition, true);
+    }
+
+    private void addPercentileQuery(final Field field, final double percentile, final int fieldProjectionPosition, final boolean isApprox) {
         fields.add(field);
         percentiles.add(percentile);
         fieldProjectionPositions.add(fieldProjectionPosition);
+        approximate.add(isApprox);
     }
 
     @Override
@@ -72,7 +85,7 @@ public class PercentileGrouping extends Grouping {
         final StatReference countStatRef = session.pushStat(countStat);
         final long[] counts = getCounts(countStatRef);
 
-        final Int2ObjectMap<Int2LongMap> groupToPositionToStats = getPercentileStats(session, groupKeys, countStatRef, counts);
+        final Int2ObjectMap<Int2DoubleMap> groupToPositionToStats = getPercentileStats(session, groupKeys, countStatRef, counts);
 
         final List<GroupStats> result = Lists.newArrayList();
 
@@ -84,7 +97,7 @@ public class PercentileGrouping extends Grouping {
 
         // combine normal stats with distinct counts
         for (int groupNum = 1; groupNum < groupCount; groupNum++) {
-            final Int2LongMap groupPercentileData = groupToPositionToStats.get(groupNum);
+            final Int2DoubleMap groupPercentileData = groupToPositionToStats.get(groupNum);
             double[] statsVals = statsResults != null ? statsResults.get(groupNum) : null;
 
             double[] values = new double[statCount + fields.size()];
@@ -105,24 +118,41 @@ public class PercentileGrouping extends Grouping {
         return result.iterator();
     }
 
-    private Int2ObjectMap<Int2LongMap> getPercentileStats(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys, final StatReference countStatRef, final long[] counts) {
-        final Set<Field> uniqueFields = Sets.newHashSet(fields);
+    private Int2ObjectMap<Int2DoubleMap> getPercentileStats(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys, final StatReference countStatRef, final long[] counts) {
+        final Set<Field> uniqueFields = Sets.newLinkedHashSet(fields);
 
-        final Int2ObjectMap<Int2LongMap> groupToPositionToStats = new Int2ObjectOpenHashMap<Int2LongMap>();
+        final Int2ObjectMap<Int2DoubleMap> groupToPositionToStats = new Int2ObjectOpenHashMap<Int2DoubleMap>();
         for (final int group : groupKeys.keySet()) {
-            groupToPositionToStats.put(group, new Int2LongOpenHashMap());
+            groupToPositionToStats.put(group, new Int2DoubleOpenHashMap());
         }
 
+        // all the fields are iterated in one FTGS pass
+        final List<Field> ftgsFields = Lists.newArrayList();
+        final Map<String, Int2ObjectMap<DoubleList>> fieldToPercentileValues = Maps.newHashMap();
+        final Map<String, List<Integer>> fieldToProjectionPositions = Maps.newHashMap();
+        final Set<String> approxFieldNames = Sets.newHashSet();
         for (final Field f : uniqueFields) {
+            // hack for ramses indexes, it's slower to iterate over a string field as an int field but it's better than
+            // doing a 2D metric regroup like ramhotep does
+            final Field ftgsField = f.isIntField() ? f : Field.intField(f.getFieldName());
+            ftgsFields.add(ftgsField);
+
             final List<Double> fieldPercentiles = Lists.newArrayList();
             final List<Integer> projectionPositions = Lists.newArrayList();
 
             for (int i = 0; i < fields.size(); ++i) {
                 if (f.equals(fields.get(i))) {
-                    fieldPercentiles.add(percentiles.get(i));
-                    projectionPositions.add(fieldProjectionPositions.get(i));
+                    if (approximate.get(i)) {
+                        approxFieldNames.add(ftgsField.getFieldName());
+                    } else {
+                        fieldPercentiles.add(percentiles.get(i));
+                        projectionPositions.add(fieldProjectionPositions.get(i));
+                    }
                 }
             }
+            if (fieldPercentiles.isEmpty()) {
+                continue;
+            }
 
             final Int2ObjectMap<DoubleList> percentileValues = new Int2ObjectOpenHashMap<DoubleList>();
             for (final int group : groupKeys.keySet()) {
@@ -133,13 +163,16 @@ public class PercentileGrouping extends Grouping {
                 percentileValues.put(group, groupPercentileValues);
             }
 
-            final PercentileFTGSCallback callback = new PercentileFTGSCallback(session.getStackDepth(), countStatRef, percentileValues);
-            // hack for ramses indexes, it's slower to iterate over a string field as an int field but it's better than
-            // doing a 2D metric regroup like ramhotep does
-            final Field ftgsField = f.isIntField() ? f : Field.intField(f.getFieldName());
-            session.ftgsIterate(Arrays.asList(ftgsField), callback);
+            fieldToPercentileValues.put(ftgsField.getFieldName(), percentileValues);
+            fieldToProjectionPositions.put(ftgsField.getFieldName(), projectionPositions);
+        }
 
-            final Int2ObjectMap<LongList> groupToPercentileStats = callback.finalizeAndGetGroupToPercentileStats();
+        final PercentileFTGSCallback callback = new PercentileFTGSCallback(session.getStackDepth(), countStatRef, fieldToPercentileValues, approxFieldNames);
+        session.ftgsIterate(ftgsFields, callback);
+
+        for (final String fieldName : fieldToProjectionPositions.keySet()) {
+            final List<Integer> projectionPositions = fieldToProjectionPositions.get(fieldName);
+            final Int2ObjectMap<LongList> groupToPercentileStats = callback.finalizeAndGetGroupToPercentileStats(fieldName);
             for (final int group : groupToPercentileStats.keySet()) {
                 final LongList percentileStats = groupToPercentileStats.get(group);
                 for (int i = 0; i < percentileStats.size(); ++i) {
@@ -149,6 +182,19 @@ public class PercentileGrouping extends Grouping {
             }
         }
 
+        // all the approximate percentiles of a field are answered by the same digests
+        for (int i = 0; i < fields.size(); ++i) {
+            if (!approximate.get(i)) {
+                continue;
+            }
+            final Int2ObjectMap<TDigest> groupToDigest = callback.getGroupToDigest(fields.get(i).getFieldName());
+            for (final int group : groupKeys.keySet()) {
+                final TDigest digest = groupToDigest.get(group);
+                final double value = digest != null ? digest.quantile(percentiles.get(i) / 100) : 0;
+                groupToPositionToStats.get(group).put(fieldProjectionPositions.get(i), value);
+            }
+        }
+
         session.popStat();
         return groupToPositionToStats;
     }
@@ -182,18 +228,72 @@ public class PercentileGrouping extends Grouping {
     }
 
     private static class PercentileFTGSCallback extends FTGSCallback {
+        private final StatReference statRef;
+        private final Map<String, FieldPercentiles> fieldToPercentiles = Maps.newHashMap();
+        private final Map<String, Int2ObjectMap<TDigest>> fieldToGroupDigests = Maps.newHashMap();
+
+        // FTGS goes through the fields one by one so the percentiles and digests of the current field are kept at hand
+        private String currentField;
+        private FieldPercentiles currentPercentiles;
+        private Int2ObjectMap<TDigest> currentGroupDigests;
+
+        private PercentileFTGSCallback(final int numStats, final StatReference statRef, final Map<String, Int2ObjectMap<DoubleList>> fieldToPercentileValues,
+                                       final Set<String> approxFieldNames) {
+            super(numStats);
+
+            this.statRef = statRef;
+            for (final Map.Entry<String, Int2ObjectMap<DoubleList>> entry : fieldToPercentileValues.entrySet()) {
+                fieldToPercentiles.put(entry.getKey(), new FieldPercentiles(entry.getValue()));
+            }
+            for (final String fieldName : approxFieldNames) {
+                fieldToGroupDigests.put(fieldName, new Int2ObjectOpenHashMap<TDigest>());
+            }
+        }
+
+        @Override
+        protected void intTermGroup(final String field, final long term, final int group) {
+            if (!field.equals(currentField)) {
+                currentField = field;
+                currentPercentiles = fieldToPercentiles.get(field);
+                currentGroupDigests = fieldToGroupDigests.get(field);
+            }
+            final long countForTerm = Math.round(getStat(statRef));
+            if (currentPercentiles != null) {
+                currentPercentiles.termGroup(term, group, countForTerm);
+            }
+            if (currentGroupDigests != null) {
+                TDigest digest = currentGroupDigests.get(group);
+                if (digest == null) {
+                    digest = new TDigest();
+                    currentGroupDigests.put(group, digest);
+                }
+                digest.add(term, countForTerm);
+            }
+        }
+
+        @Override
+        protected void stringTermGroup(final String field, final String term, final int group) {
+            throw new UnsupportedOperationException("Percentiles do not work with string fields");
+        }
+
+        public Int2ObjectMap<LongList> finalizeAndGetGroupToPercentileStats(final String field) {
+            return fieldToPercentiles.get(field).finalizeAndGetGroupToPercentileStats();
+        }
+
+        public Int2ObjectMap<TDigest> getGroupToDigest(final String field) {
+            return fieldToGroupDigests.get(field);
+        }
+    }
+
+    private static class FieldPercentiles {
         private final Int2ObjectMap<LongList> groupToPercentileStats;
 
-        private final StatReference statRef;
         private final Int2ObjectMap<DoubleList> percentileValues;
 
         private Int2LongMap groupToPrevCount = new Int2LongOpenHashMap();
         private Int2LongMap groupToPrevTerm = new Int2LongOpenHashMap();
 
-        private PercentileFTGSCallback(final int numStats, final StatReference statRef, final Int2ObjectMap<DoubleList> percentileValues) {
-            super(numStats);
-
-            this.statRef = statRef;
+        private FieldPercentiles(final Int2ObjectMap<DoubleList> percentileValues) {
             this.percentileValues = percentileValues;
 
             groupToPercentileStats = new Int2ObjectOpenHashMap<LongList>();
@@ -206,10 +306,8 @@ public class PercentileGrouping extends Grouping {
             }
         }
 
-        @Override
-        protected void intTermGroup(final String field, final long term, final int group) {
+        private void termGroup(final long term, final int group, final long countForTerm) {
             final long prevCount = groupToPrevCount.get(group);
-            final long countForTerm = Math.round(getStat(statRef));
             final long newCount = prevCount + countForTerm;
 
             final DoubleList groupPercentileValues = percentileValues.get(group);
@@ -224,11 +322,6 @@ public class PercentileGrouping extends Grouping {
             groupToPrevTerm.put(group, term);
         }
 
-        @Override
-        protected void stringTermGroup(final String field, final String term, final int group) {
-            throw new UnsupportedOperationException("Percentiles do not work with string fields");
-        }
-
         public Int2ObjectMap<LongList> finalizeAndGetGroupToPercentileStats() {
             for (final int group : groupToPercentileStats.keySet()) {
                 final LongList stats = groupToPercentileStats.get(group);
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Throwables;
+import com.indeed.imhotep.ez.QueryCancelledException;
+import com.indeed.imhotep.iql.cache.QueryCache;
+import com.indeed.imhotep.iql.cache.TieredQueryCache;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Serves cached results from CSV/TSV text kept in the local disk cache tier.
+ * The text is copied to local disk while all the rows are rendered for a request without a row limit, along with a
+ * sidecar file with the byte offset of the end of each row. Later requests write the text to the output with
+ * FileChannel.transferTo without decoding and formatting the rows again. Requests limited to the first rows find the
+ * cut-off in the row index.
+ * Event stream output is never served this way as it frames every row.
+ * @author vladimir
+ */
+public final class RenderedResultsCache {
+    private static final Logger log = Logger.getLogger(RenderedResultsCache.class);
+
+    static final String ROW_INDEX_SUFFIX = ".rowindex";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private RenderedResultsCache() {
+    }
+
+    /**
+     * Writes up to rowLimit rows of the cached rows file to the output stream like IQLQuery.writeCachedRowsToStream(),
+     * from the local rendered text when possible. The output stream is flushed but not closed.
+     * @return the number of rows written
+     */
+    public static int writeCachedRows(QueryCache queryCache, String cachedRowsFileName, OutputStream outputStream, boolean csv, int rowLimit, boolean progress) throws IOException {
+        if (!progress && queryCache instanceof TieredQueryCache) {
+            final TieredQueryCache cache = (TieredQueryCache) queryCache;
+            final String textFileName = cachedRowsFileName + (csv ? ".csv" : ".tsv");
+            final int rowsTransferred = transferLocalText(cache, textFileName, outputStream, rowLimit);
+            if (rowsTransferred >= 0) {
+                return rowsTransferred;
+            }
+            // limited requests don't render all the rows so they don't make a local copy
+            if (rowLimit == Integer.MAX_VALUE) {
+                final LocalTextCopy localCopy = LocalTextCopy.create(cache, textFileName, outputStream);
+                if (localCopy != null) {
+                    return writeAllRows(cache.getInputStream(cachedRowsFileName), localCopy, csv);
+                }
+            }
+        }
+        return IQLQuery.writeCachedRowsToStream(queryCache.getInputStream(cachedRowsFileName), outputStream, csv, rowLimit, progress);
+    }
+
+    /**
+     * @return the number of rows written or -1 if the text or its row index is not on local disk
+     */
+    private static int transferLocalText(TieredQueryCache cache, String textFileName, OutputStream outputStream, int rowLimit) throws IOException {
+        final File textFile = cache.getLocalFile(textFileName);
+        final File indexFile = cache.getLocalFile(textFileName + ROW_INDEX_SUFFIX);
+        if (textFile == null || indexFile == null) {
+            return -1;
+        }
+        FileInputStream text = null;
+        FileInputStream index = null;
+        try {
+            try {
+                text = new FileInputStream(textFile);
+                index = new FileInputStream(indexFile);
+            } catch (FileNotFoundException e) {
+                return -1;  // evicted in the meantime
+            }
+            final FileChannel indexChannel = index.getChannel();
+            // like IQLQuery.writeRowsToStream() the first row is written even for a row limit of 0
+            final int rows = (int) Math.min(Math.max(rowLimit, 1), indexChannel.size() / 8);
+            final long end;
+            if (rows == 0) {
+                end = 0;
+            } else {
+                final ByteBuffer offset = ByteBuffer.allocate(8);
+                while (offset.hasRemaining()) {
+                    if (indexChannel.read(offset, (rows - 1) * 8L + offset.position()) < 0) {
+                        throw new IOException("Truncated row index " + indexFile.getPath());
+                    }
+                }
+                end = offset.getLong(0);
+            }
+            outputStream.flush();
+            final FileChannel textChannel = text.getChannel();
+            final WritableByteChannel out = Channels.newChannel(outputStream);
+            long position = 0;
+            while (position < end) {
+                final long transferred = textChannel.transferTo(position, end - position, out);
+                if (transferred <= 0) {
+                    throw new IOException("Truncated rendered results " + textFile.getPath());
+                }
+                position += transferred;
+            }
+            outputStream.flush();
+            return rows;
+        } finally {
+            Closeables2.closeQuietly(text, log);
+            Closeables2.closeQuietly(index, log);
+        }
+    }
+
+    /**
+     * Renders all the rows to the local copy which passes them through to the client. The copy is only kept if all
+     * the rows were written. Input stream is closed; output stream is flushed but not closed when done.
+     * @return the number of rows written
+     */
+    private static int writeAllRows(InputStream inputStream, LocalTextCopy localCopy, boolean csv) {
+        GroupStatsCacheFormat.RowReader rows = null;
+        try {
+            rows = new GroupStatsCacheFormat.RowReader(inputStream);
+            final RowEncoder encoder = new RowEncoder(localCopy, csv);
+            int rowsWritten = 0;
+            try {
+                while (rows.hasNext()) {
+                    final GroupStats entry = rows.next();
+                    if (entry == null) {
+                        continue;
+                    }
+                    encoder.writeRow(entry);
+                    localCopy.rowEnd(encoder.getBytesWritten());
+                    rowsWritten++;
+                }
+                encoder.flush();
+            } catch (IOException e) {
+                // only writes to the client fail, the local copy is dropped instead
+                throw new QueryCancelledException("Client disconnected", e);
+            }
+            localCopy.commit();
+            return rowsWritten;
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            localCopy.discard();    // no-op if committed
+            if (rows != null) {
+                rows.close();
+            }
+            Closeables2.closeQuietly(inputStream, log);
+        }
+    }
+
+    /**
+     * Passes the rendered text through to the client and copies it with the row end offsets to local temp files.
+     * The copy is dropped once it gets larger than the local disk tier keeps or if writing it fails, so the copy
+     * never fails the request or costs more than writing the allowed size to disk.
+     */
+    static final class LocalTextCopy extends FilterOutputStream {
+        private final TieredQueryCache cache;
+        private final String textFileName;
+        private final long maxBytes;
+        private final File textFile;
+        private final File indexFile;
+        private final OutputStream textOut;
+        private final DataOutputStream indexOut;
+        private long textBytes = 0;
+        private long indexBytes = 0;
+        private boolean done = false;
+
+        private LocalTextCopy(OutputStream out, TieredQueryCache cache, String textFileName, File textFile, File indexFile) throws IOException {
+            super(out);
+            this.cache = cache;
+            this.textFileName = textFileName;
+            this.textFile = textFile;
+            this.indexFile = indexFile;
+            maxBytes = cache.getMaxLocalEntryBytes();
+            textOut = new BufferedOutputStream(new FileOutputStream(textFile), BUFFER_SIZE);
+            indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), BUFFER_SIZE));
+        }
+
+        /**
+         * @return a copy writing through to the output stream or null if there is no local disk to keep it on
+         */
+        static LocalTextCopy create(TieredQueryCache cache, String textFileName, OutputStream outputStream) {
+            File textFile = null;
+            File indexFile = null;
+            try {
+                textFile = cache.newLocalTempFile();
+                if (textFile == null) {
+                    return null;
+                }
+                indexFile = cache.newLocalTempFile();
+                return new LocalTextCopy(outputStream, cache, textFileName, textFile, indexFile);
+            } catch (IOException e) {
+                log.warn("Failed to create a local copy of " + textFileName, e);
+                if (textFile != null) {
+                    deleteFile(textFile);
+                }
+                if (indexFile != null) {
+                    deleteFile(indexFile);
+                }
+                return null;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (done) {
+                return;
+            }
+            textBytes += len;
+            if (textBytes > maxBytes) {
+                discard();
+                return;
+            }
+            try {
+                textOut.write(b, off, len);
+            } catch (IOException e) {
+                log.warn("Failed to write the local copy of " + textFileName, e);
+                discard();
+            }
+        }
+
+        /**
+         * Records the end of a row at the offset in the text
+         */
+        void rowEnd(long offset) {
+            if (done) {
+                return;
+            }
+            indexBytes += 8;
+            if (indexBytes > maxBytes) {
+                discard();
+                return;
+            }
+            try {
+                indexOut.writeLong(offset);
+            } catch (IOException e) {
+                log.warn("Failed to write the local row index of " + textFileName, e);
+                discard();
+            }
+        }
+
+        /**
+         * Moves the copy into the local disk tier
+         */
+        void commit() {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                textOut.close();
+                indexOut.close();
+            } catch (IOException e) {
+                log.warn("Failed to write the local copy of " + textFileName, e);
+                deleteFile(textFile);
+                deleteFile(indexFile);
+                return;
+            }
+            // the text goes first as it is only used once its index is there
+            cache.admitLocalFile(textFileName, textFile);
+            cache.admitLocalFile(textFileName + ROW_INDEX_SUFFIX, indexFile);
+        }
+
+        void discard() {
+            if (done) {
+                return;
+            }
+            done = true;
+            Closeables2.closeQuietly(textOut, log);
+            Closeables2.closeQuietly(indexOut, log);
+            deleteFile(textFile);
+            deleteFile(indexFile);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            log.info("Failed to delete: " + file.getPath());
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Result rows of one query execution that can be read from the start by any number of readers while they are
+ * still being produced. Readers block until more rows are available.
+ * The first rows are kept in memory and the rest is spilled to a temp file in chunks of {@link GroupStatsCacheFormat}.
+ * The producer and every reader hold a reference and the temp file is deleted when all of them are closed.
+ * @author vladimir
+ */
+public final class ReplayableRowBuffer implements Closeable {
+    private static final Logger log = Logger.getLogger(ReplayableRowBuffer.class);
+
+    private final int memoryRowLimit;
+    private final int chunkRowLimit;
+
+    // rows [0, head.size())
+    private final List<GroupStats> head = Lists.newArrayList();
+    // spilled rows starting at head.size()
+    private final List<Chunk> chunks = Lists.newArrayList();
+    private int spilledRows = 0;
+    // rows [head.size() + spilledRows, rowCount)
+    private List<GroupStats> tail = Lists.newArrayList();
+    private int rowCount = 0;
+
+    private File spillFile;
+    private FileOutputStream spillStream;
+    private long spillLength = 0;
+
+    private boolean finished = false;
+    private Throwable failure;
+    private int references = 1;
+    private boolean producerClosed = false;
+
+    /**
+     * @param memoryRowLimit number of rows from the start that are kept in memory
+     * @param chunkRowLimit number of rows after that which are spilled to disk together
+     */
+    public ReplayableRowBuffer(int memoryRowLimit, int chunkRowLimit) {
+        this.memoryRowLimit = memoryRowLimit;
+        this.chunkRowLimit = chunkRowLimit;
+    }
+
+    /**
+     * Returns an iterator that adds all rows it returns to this buffer. Only one producer may add rows.
+     */
+    public Iterator<GroupStats> tee(final Iterator<GroupStats> rows) {
+        return new AbstractIterator<GroupStats>() {
+            @Override
+            protected GroupStats computeNext() {
+                while (rows.hasNext()) {
+                    final GroupStats row = rows.next();
+                    if (row == null) {
+                        continue;
+                    }
+                    try {
+                        add(row);
+                    } catch (IOException e) {
+                        throw Throwables.propagate(e);
+                    }
+                    return row;
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    public void add(GroupStats row) throws IOException {
+        final List<GroupStats> toSpill;
+        synchronized (this) {
+            if (finished || failure != null) {
+                throw new IllegalStateException("Rows can't be added to a completed buffer");
+            }
+            if (head.size() < memoryRowLimit) {
+                head.add(row);
+            } else {
+                tail.add(row);
+            }
+            rowCount++;
+            notifyAll();
+            if (tail.size() < chunkRowLimit) {
+                return;
+            }
+            toSpill = tail;
+        }
+        // readers keep using the tail until the chunk is written as only the producer modifies it
+        spill(toSpill);
+    }
+
+    private void spill(List<GroupStats> rows) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GroupStatsCacheFormat.write(rows.iterator(), bytes);
+        if (spillStream == null) {
+            spillFile = File.createTempFile(IQLQuery.TEMP_FILE_PREFIX, ".shared");
+            spillStream = new FileOutputStream(spillFile);
+        }
+        bytes.writeTo(spillStream);
+        spillStream.flush();
+        synchronized (this) {
+            chunks.add(new Chunk(head.size() + spilledRows, rows.size(), spillLength, bytes.size()));
+            spillLength += bytes.size();
+            spilledRows += rows.size();
+            tail = Lists.newArrayList();
+        }
+    }
+
+    /**
+     * Marks that all rows have been added.
+     */
+    public synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Marks that the rows couldn't be produced. Readers get a {@link ProducerFailedException} caused by the failure
+     * instead of the remaining rows.
+     */
+    public synchronized void fail(Throwable t) {
+        if (!finished && failure == null) {
+            failure = t;
+        }
+        notifyAll();
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Returns an iterator over all rows of the buffer starting from the first one or null if the buffer is already
+     * released. The reader has to be closed unless it's read to the end.
+     */
+    public synchronized Reader newReader() {
+        if (references <= 0) {
+            return null;
+        }
+        references++;
+        return new Reader();
+    }
+
+    /**
+     * Releases the producer's reference. Rows can't be added after that.
+     */
+    @Override
+    public synchronized void close() {
+        if (producerClosed) {
+            return;
+        }
+        producerClosed = true;
+        fail(new IllegalStateException("Producer of the rows was closed before all rows were added"));
+        release();
+    }
+
+    private synchronized void release() {
+        if (--references > 0) {
+            return;
+        }
+        head.clear();
+        tail.clear();
+        chunks.clear();
+        Closeables2.closeQuietly(spillStream, log);
+        if (spillFile != null && !spillFile.delete()) {
+            log.info("Failed to delete: " + spillFile.getPath());
+        }
+    }
+
+    private List<GroupStats> readChunk(Chunk chunk) throws IOException {
+        final InputStream is = new FileInputStream(spillFile);
+        try {
+            ByteStreams.skipFully(is, chunk.offset);
+            return Lists.newArrayList(GroupStatsCacheFormat.read(ByteStreams.limit(is, chunk.length)));
+        } finally {
+            Closeables2.closeQuietly(is, log);
+        }
+    }
+
+    public final class Reader extends AbstractIterator<GroupStats> implements Closeable {
+        private int position = 0;
+        private List<GroupStats> chunkRows;
+        private int chunkStart;
+        private boolean closed = false;
+
+        private Reader() {
+        }
+
+        @Override
+        protected GroupStats computeNext() {
+            if (chunkRows != null && position < chunkStart + chunkRows.size()) {
+                return chunkRows.get(position++ - chunkStart);
+            }
+            chunkRows = null;
+            final Chunk chunk;
+            synchronized (ReplayableRowBuffer.this) {
+                while (position >= rowCount && !finished && failure == null && !closed) {
+                    try {
+                        ReplayableRowBuffer.this.wait();
+                    } catch (InterruptedException e) {
+                        close();
+                        throw Throwables.propagate(e);
+                    }
+                }
+                if (closed) {
+                    throw new IllegalStateException("The reader was closed");
+                }
+                if (failure != null) {
+                    close();
+                    throw new ProducerFailedException(failure);
+                }
+                if (position >= rowCount) {
+                    close();
+                    return endOfData();
+                }
+                if (position < head.size()) {
+                    return head.get(position++);
+                }
+                final int tailStart = head.size() + spilledRows;
+                if (position >= tailStart) {
+                    return tail.get(position++ - tailStart);
+                }
+                chunk = findChunk(position);
+            }
+            // the chunk is immutable once written so it can be read without holding the lock
+            try {
+                chunkRows = readChunk(chunk);
+            } catch (IOException e) {
+                close();
+                throw Throwables.propagate(e);
+            }
+            chunkStart = chunk.firstRow;
+            return chunkRows.get(position++ - chunkStart);
+        }
+
+        private Chunk findChunk(int row) {
+            for (Chunk chunk : chunks) {
+                if (row < chunk.firstRow + chunk.rowCount) {
+                    return chunk;
+                }
+            }
+            throw new IllegalStateException("Row " + row + " is not in a spilled chunk");
+        }
+
+        /**
+         * Can be called from another thread to stop a reader waiting for rows.
+         */
+        @Override
+        public void close() {
+            synchronized (ReplayableRowBuffer.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                release();
+                ReplayableRowBuffer.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Thrown by readers when the rows couldn't be produced. The rows already read are valid.
+     */
+    public static final class ProducerFailedException extends RuntimeException {
+        private ProducerFailedException(Throwable cause) {
+            super("Producer of the rows failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static final class Chunk {
+        private final int firstRow;
+        private final int rowCount;
+        private final long offset;
+        private final int length;
+
+        private Chunk(int firstRow, int rowCount, long offset, int length) {
+            this.firstRow = firstRow;
+            this.rowCount = rowCount;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
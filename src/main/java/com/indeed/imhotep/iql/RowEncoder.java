@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Charsets;
+import com.indeed.imhotep.ez.GroupKey;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Encodes result rows as TSV or CSV UTF-8 bytes into a reusable buffer. The output is identical to printing the terms
+ * and the stats formatted with DecimalFormat("#.#######") through a PrintWriter for TSV and through opencsv's
+ * CSVWriter with the default settings for CSV.
+ * Integral stats and stats whose rounding to 7 fraction digits is unambiguous are encoded with long arithmetic.
+ * Only stats close to a rounding tie and very large ones go through DecimalFormat.
+ * The terms of the parent group key are encoded once for all the rows sharing it.
+ * @author vladimir
+ */
+final class RowEncoder {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FRACTION_DIGITS = 7;
+    private static final long FRACTION_SCALE = 10000000L;
+    private static final double TWO_POW_52 = 4503599627370496.0;
+    private static final double TWO_POW_53 = 9007199254740992.0;
+    private static final byte TSV_DELIMITER = '\t';
+    private static final byte CSV_SEPARATOR = ',';
+    private static final byte CSV_QUOTE = '"';
+    private static final byte[] TSV_NAN = {'N', 'a', 'N'};
+    private static final byte[] CSV_LINE_END = {'\n'};
+
+    private final OutputStream out;
+    private final boolean csv;
+    // TSV rows end with the PrintWriter.println() line separator
+    private final byte[] lineEnd;
+    // same format as the stats were printed with before, used for the stats that aren't encoded directly
+    private final DecimalFormat format = new DecimalFormat("#.#######");
+    // numbers are only encoded directly for locales with ASCII digits, '.' and '-' like DecimalFormat uses for them
+    private final boolean asciiNumbers;
+    private final byte[] minusSign;
+    private final byte[] nan;
+    private final byte[] infinity;
+    private final byte[] digits = new byte[20];
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count = 0;
+    private long flushedBytes = 0;
+
+    // encoded terms of the parent key of the previous row
+    private GroupKey<?> lastParent;
+    private byte[] lastParentBytes;
+
+    RowEncoder(OutputStream out, boolean csv) {
+        this.out = out;
+        this.csv = csv;
+        lineEnd = csv ? CSV_LINE_END : System.getProperty("line.separator").getBytes(Charsets.UTF_8);
+        final DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+        asciiNumbers = symbols.getZeroDigit() == '0' && symbols.getDecimalSeparator() == '.' && symbols.getMinusSign() == '-';
+        minusSign = String.valueOf(symbols.getMinusSign()).getBytes(Charsets.UTF_8);
+        nan = symbols.getNaN().getBytes(Charsets.UTF_8);
+        infinity = symbols.getInfinity().getBytes(Charsets.UTF_8);
+    }
+
+    void writeRow(GroupStats row) throws IOException {
+        final GroupKey<?> key = row.groupKey;
+        boolean first = true;
+        if (key.size() > 0) {
+            final GroupKey<?> parent = key.parent();
+            if (parent.size() > 0) {
+                if (parent != lastParent) {
+                    lastParent = parent;
+                    lastParentBytes = encodeTerms(parent);
+                }
+                write(lastParentBytes, 0, lastParentBytes.length);
+                first = false;
+            }
+            writeTerm(key.last(), first);
+            first = false;
+        }
+        for (double stat : row.stats) {
+            if (csv) {
+                if (!first) {
+                    writeByte(CSV_SEPARATOR);
+                }
+                writeByte(CSV_QUOTE);
+                writeNumber(stat);
+                writeByte(CSV_QUOTE);
+            } else {
+                writeByte(TSV_DELIMITER);
+                if (Double.isNaN(stat)) {
+                    write(TSV_NAN, 0, TSV_NAN.length);
+                } else {
+                    writeNumber(stat);
+                }
+            }
+            first = false;
+        }
+        write(lineEnd, 0, lineEnd.length);
+    }
+
+    /**
+     * Writes the string as UTF-8. Used for the framing around the rows.
+     */
+    void writeString(String s) throws IOException {
+        writeChars(s, false);
+    }
+
+    void writeLineEnd() throws IOException {
+        write(lineEnd, 0, lineEnd.length);
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Returns the number of bytes encoded so far including the ones that are still buffered
+     */
+    long getBytesWritten() {
+        return flushedBytes + count;
+    }
+
+    /**
+     * Returns the encoded terms of the key the way they are written in a row
+     */
+    private byte[] encodeTerms(GroupKey<?> key) {
+        final StringBuilder sb = new StringBuilder();
+        final Object[] terms = key.toArray();
+        for (int i = 0; i < terms.length; i++) {
+            if (csv) {
+                if (i > 0) {
+                    sb.append((char) CSV_SEPARATOR);
+                }
+                sb.append('"').append(terms[i].toString().replace("\"", "\"\"")).append('"');
+            } else {
+                if (i > 0) {
+                    sb.append((char) TSV_DELIMITER);
+                }
+                sb.append(terms[i]);
+            }
+        }
+        // malformed surrogates are replaced by '?' the same way as in writeChars()
+        return sb.toString().getBytes(Charsets.UTF_8);
+    }
+
+    private void writeTerm(Object term, boolean first) throws IOException {
+        if (csv) {
+            if (!first) {
+                writeByte(CSV_SEPARATOR);
+            }
+            writeByte(CSV_QUOTE);
+            writeChars(term.toString(), true);
+            writeByte(CSV_QUOTE);
+        } else {
+            if (!first) {
+                writeByte(TSV_DELIMITER);
+            }
+            if (term instanceof Long) {
+                writeLong((Long) term);
+            } else {
+                writeChars(String.valueOf(term), false);
+            }
+        }
+    }
+
+    /**
+     * Formats the number like DecimalFormat("#.#######")
+     */
+    private void writeNumber(double value) throws IOException {
+        if (Double.isNaN(value)) {
+            write(nan, 0, nan.length);
+            return;
+        }
+        final boolean negative = Double.doubleToRawLongBits(value) < 0;    // -0.0 is formatted as "-0" too
+        final double abs = Math.abs(value);
+        if (Double.isInfinite(abs)) {
+            if (negative) {
+                write(minusSign, 0, minusSign.length);
+            }
+            write(infinity, 0, infinity.length);
+            return;
+        }
+        if (asciiNumbers) {
+            if (abs < TWO_POW_53 && abs == Math.rint(abs)) {
+                if (negative) {
+                    writeByte('-');
+                }
+                writeLong((long) abs);
+                return;
+            }
+            final double scaled = abs * FRACTION_SCALE;
+            if (scaled < TWO_POW_52) {
+                final double floor = Math.floor(scaled);
+                // DecimalFormat rounds the shortest decimal representation of the double which can only end up on
+                // the other side of a tie than the scaled value if the tie is within a few ulps of it
+                if (Math.abs(scaled - floor - 0.5) > 4 * Math.ulp(scaled)) {
+                    final long rounded = (long) floor + (scaled - floor > 0.5 ? 1 : 0);
+                    if (negative) {
+                        writeByte('-');
+                    }
+                    writeLong(rounded / FRACTION_SCALE);
+                    writeFraction(rounded % FRACTION_SCALE);
+                    return;
+                }
+            }
+        }
+        writeChars(format.format(value), false);
+    }
+
+    /**
+     * Writes the fraction digits without trailing zeros
+     */
+    private void writeFraction(long fraction) throws IOException {
+        if (fraction == 0) {
+            return;
+        }
+        int length = FRACTION_DIGITS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            length--;
+        }
+        ensureCapacity(length + 1);
+        buffer[count++] = '.';
+        for (int i = count + length - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        count += length;
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeChars(Long.toString(value), false);
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        write(digits, start, digits.length - start);
+    }
+
+    /**
+     * Writes the characters as UTF-8 with unpaired surrogates replaced by '?' like OutputStreamWriter does.
+     * Quotes are doubled if escapeQuotes is set like CSVWriter does.
+     */
+    private void writeChars(String s, boolean escapeQuotes) throws IOException {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                ensureCapacity(2);
+                if (escapeQuotes && c == '"') {
+                    buffer[count++] = CSV_QUOTE;
+                }
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buffer[count++] = (byte) (0xc0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                ensureCapacity(4);
+                buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                ensureCapacity(1);
+                buffer[count++] = '?';
+            } else {
+                ensureCapacity(3);
+                buffer[count++] = (byte) (0xe0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        ensureCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length > buffer.length - count) {
+            flushBuffer();
+            if (length > buffer.length) {
+                out.write(bytes, offset, length);
+                flushedBytes += length;
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (length > buffer.length - count) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            flushedBytes += count;
+            count = 0;
+        }
+    }
+}
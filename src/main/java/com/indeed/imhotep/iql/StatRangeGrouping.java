@@ -21,6 +21,7 @@ import com.indeed.imhotep.ez.SingleStatReference;
 import com.indeed.imhotep.ez.StatReference;
 import org.apache.log4j.Logger;
 
+import java.util.List;
 import java.util.Map;
 
 import static com.indeed.imhotep.ez.Stats.Stat;
@@ -67,4 +68,26 @@ public final class StatRangeGrouping extends Grouping {
         session.popStat();
         return ret;
     }
+
+    /**
+     * Returns the number of groups this grouping produces for every parent group.
+     */
+    public long getBucketCount() {
+        return (maxValue - minValue - 1) / intervalSize + 1 + (noGutters ? 0 : 2);
+    }
+
+    /**
+     * Returns the group key terms this grouping produces for every parent group in the bucket order.
+     */
+    public List<String> getBucketLabels() {
+        return EZImhotepSession.metricBucketLabels(minValue, maxValue, intervalSize, noGutters, stringFormatter);
+    }
+
+    /**
+     * Describes the bucket boundaries independent of the grouped range.
+     * Overlapping buckets of two groupings with the same grid and the same label format get the same labels.
+     */
+    public String getBucketGrid() {
+        return intervalSize + "+" + ((minValue % intervalSize) + intervalSize) % intervalSize;
+    }
 }
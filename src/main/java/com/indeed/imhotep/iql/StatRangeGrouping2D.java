@@ -13,6 +13,7 @@
  */
  package com.indeed.imhotep.iql;
 
+import com.google.common.collect.Lists;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.GroupKey;
@@ -20,6 +21,7 @@ import com.indeed.imhotep.ez.SingleStatReference;
 import com.indeed.imhotep.ez.StatReference;
 import org.apache.log4j.Logger;
 
+import java.util.List;
 import java.util.Map;
 
 import static com.indeed.imhotep.ez.Stats.Stat;
@@ -73,4 +75,11 @@ public final class StatRangeGrouping2D extends Grouping {
         session.popStat();
         return ret;
     }
+
+    /**
+     * Returns the group key terms this grouping produces in the bucket order.
+     */
+    public List<String> getBucketLabels() {
+        return Lists.newArrayList(EZImhotepSession.metricBucketLabels2D(xMin, xMax, xIntervalSize, yMin, yMax, yIntervalSize).values());
+    }
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.StatReference;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exploded grouping callback for string fields.
+ * Terms arrive sorted so each distinct term is stored once and shared by the rows of all groups.
+ * @author vladimir
+ */
+public final class StringGroupingFTGSCallback extends GroupingFTGSCallback {
+    private String[] terms = new String[0];
+
+    public StringGroupingFTGSCallback(int numStats, List<StatReference> statRefs, Map<Integer, GroupKey> groupKeys) {
+        super(numStats, statRefs, groupKeys);
+    }
+
+    protected void intTermGroup(final String field, final long term, final int group) {
+        throw new IllegalStateException("Got an int term for string field " + field);
+    }
+
+    protected void stringTermGroup(final String field, final String term, final int group) {
+        final int termCount = getTermCount();
+        if(termCount == 0 || !terms[termCount - 1].equals(term)) {
+            final int termOrdinal = addTerm();
+            terms[termOrdinal] = term;
+        }
+        addGroupStats(group);
+    }
+
+    @Override
+    protected void resizeTerms(int capacity) {
+        terms = Arrays.copyOf(terms, capacity);
+    }
+
+    @Override
+    protected Object getTerm(int termOrdinal) {
+        return terms[termOrdinal];
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * t-digest sketch of a distribution of weighted values for estimating its quantiles.
+ * Values are clustered into centroids that are kept small near the tails so the rank error of a quantile q is roughly
+ * bounded by q * (1 - q) * 4 / compression, e.g. under 1% for the median and under 0.04% for P99 with the default
+ * compression of 100. The minimum and maximum are exact. Digests can be merged and serialized.
+ * @author vladimir
+ */
+public final class TDigest {
+    public static final double DEFAULT_COMPRESSION = 100;
+
+    private final double compression;
+    private double totalWeight = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    // centroids sorted by mean
+    private double[] means = new double[0];
+    private double[] weights = new double[0];
+    private int centroidCount = 0;
+
+    // values added since the last compression
+    private final double[] bufferValues;
+    private final double[] bufferWeights;
+    private int bufferSize = 0;
+
+    public TDigest(double compression) {
+        if (compression < 10) {
+            throw new IllegalArgumentException("t-digest compression has to be at least 10 but was " + compression);
+        }
+        this.compression = compression;
+        final int bufferCapacity = (int) (5 * compression);
+        bufferValues = new double[bufferCapacity];
+        bufferWeights = new double[bufferCapacity];
+    }
+
+    public TDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    public double getCompression() {
+        return compression;
+    }
+
+    public double getTotalWeight() {
+        return totalWeight + sumOf(bufferWeights, bufferSize);
+    }
+
+    public void add(double value, double weight) {
+        if (weight <= 0 || Double.isNaN(value)) {
+            return;
+        }
+        if (bufferSize == bufferValues.length) {
+            compress();
+        }
+        bufferValues[bufferSize] = value;
+        bufferWeights[bufferSize] = weight;
+        bufferSize++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(TDigest other) {
+        other.compress();
+        for (int i = 0; i < other.centroidCount; i++) {
+            add(other.means[i], other.weights[i]);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Merges the buffered values into the centroids
+     */
+    private void compress() {
+        if (bufferSize == 0) {
+            return;
+        }
+        // FTGS passes terms in order so the buffer is usually sorted already
+        sortByValue(bufferValues, bufferWeights, bufferSize);
+        final double newTotalWeight = totalWeight + sumOf(bufferWeights, bufferSize);
+        final double[] newMeans = new double[centroidCount + bufferSize];
+        final double[] newWeights = new double[centroidCount + bufferSize];
+        int newCount = 0;
+        double weightSoFar = 0;
+        int i = 0;
+        int j = 0;
+        while (i < centroidCount || j < bufferSize) {
+            final double mean;
+            final double weight;
+            if (j == bufferSize || (i < centroidCount && means[i] <= bufferValues[j])) {
+                mean = means[i];
+                weight = weights[i];
+                i++;
+            } else {
+                mean = bufferValues[j];
+                weight = bufferWeights[j];
+                j++;
+            }
+            if (newCount > 0) {
+                final double proposedWeight = newWeights[newCount - 1] + weight;
+                final double q = (weightSoFar - newWeights[newCount - 1] + proposedWeight / 2) / newTotalWeight;
+                if (proposedWeight <= 4 * newTotalWeight * q * (1 - q) / compression) {
+                    // absorb into the last centroid
+                    newMeans[newCount - 1] += (mean - newMeans[newCount - 1]) * weight / proposedWeight;
+                    newWeights[newCount - 1] = proposedWeight;
+                    weightSoFar += weight;
+                    continue;
+                }
+            }
+            newMeans[newCount] = mean;
+            newWeights[newCount] = weight;
+            newCount++;
+            weightSoFar += weight;
+        }
+        means = Arrays.copyOf(newMeans, newCount);
+        weights = Arrays.copyOf(newWeights, newCount);
+        centroidCount = newCount;
+        totalWeight = newTotalWeight;
+        bufferSize = 0;
+    }
+
+    private static void sortByValue(double[] values, double[] weights, int size) {
+        // insertion sort is linear for the sorted input that is expected
+        for (int i = 1; i < size; i++) {
+            final double value = values[i];
+            final double weight = weights[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] > value) {
+                values[j + 1] = values[j];
+                weights[j + 1] = weights[j];
+                j--;
+            }
+            values[j + 1] = value;
+            weights[j + 1] = weight;
+        }
+    }
+
+    private static double sumOf(double[] values, int size) {
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the estimated value at quantile q between 0 and 1 or NaN if nothing was added
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantile has to be between 0 and 1 but was " + q);
+        }
+        compress();
+        if (centroidCount == 0) {
+            return Double.NaN;
+        }
+        if (centroidCount == 1) {
+            return means[0];
+        }
+        final double rank = q * totalWeight;
+        // each centroid's weight is centered at its mean so values are interpolated between neighboring means
+        double weightSoFar = weights[0] / 2;
+        if (rank < weightSoFar) {
+            return min + (means[0] - min) * rank / weightSoFar;
+        }
+        for (int i = 0; i < centroidCount - 1; i++) {
+            final double step = (weights[i] + weights[i + 1]) / 2;
+            if (rank < weightSoFar + step) {
+                return means[i] + (means[i + 1] - means[i]) * (rank - weightSoFar) / step;
+            }
+            weightSoFar += step;
+        }
+        final double lastHalf = weights[centroidCount - 1] / 2;
+        return means[centroidCount - 1] + (max - means[centroidCount - 1]) * Math.min((rank - weightSoFar) / lastHalf, 1);
+    }
+
+    /**
+     * Serializes the compression, the bounds and the centroids
+     */
+    public byte[] toBytes() {
+        compress();
+        final ByteBuffer buffer = ByteBuffer.allocate(8 * 4 + 4 + centroidCount * 16);
+        buffer.putDouble(compression);
+        buffer.putDouble(totalWeight);
+        buffer.putDouble(min);
+        buffer.putDouble(max);
+        buffer.putInt(centroidCount);
+        for (int i = 0; i < centroidCount; i++) {
+            buffer.putDouble(means[i]);
+            buffer.putDouble(weights[i]);
+        }
+        return buffer.array();
+    }
+
+    public static TDigest fromBytes(byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final TDigest digest = new TDigest(buffer.getDouble());
+        digest.totalWeight = buffer.getDouble();
+        digest.min = buffer.getDouble();
+        digest.max = buffer.getDouble();
+        digest.centroidCount = buffer.getInt();
+        digest.means = new double[digest.centroidCount];
+        digest.weights = new double[digest.centroidCount];
+        for (int i = 0; i < digest.centroidCount; i++) {
+            digest.means[i] = buffer.getDouble();
+            digest.weights[i] = buffer.getDouble();
+        }
+        return digest;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.math.IntMath;
+import com.google.common.primitives.Longs;
+import com.indeed.imhotep.client.ShardIdWithVersion;
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.iql.cache.QueryCache;
+import com.indeed.util.core.Pair;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.Days;
+import org.joda.time.Interval;
+import org.joda.time.LocalDate;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.math.RoundingMode;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Caches results of executing a query on the time range of individual shards so a query covering some of the same
+ * shards, e.g. a dashboard whose time range moves forward, only has to execute the slices that are missing or whose
+ * shards got a new version.
+ * Slices are stored in {@link GroupStatsCacheFormat} with the totals as the first row.
+ * @author vladimir
+ */
+public final class TimeSliceCache {
+    private static final Logger log = Logger.getLogger(TimeSliceCache.class);
+    // this can be incremented to invalidate the old cached slices
+    private static final byte VERSION_FOR_HASHING = 1;
+    private static final String FILE_PREFIX = "slice_";
+
+    private final QueryCache queryCache;
+    private final String queryKey;
+    private final int maxSlices;
+    private final boolean readEnabled;
+    private final boolean writeEnabled;
+
+    /**
+     * @param queryKey identifies everything that affects the results except for the time range
+     * @param maxSlices maximum number of slices a query is split into. Neighboring shards share a slice above that,
+     *                  see {@link #getTimeSlices}.
+     */
+    public TimeSliceCache(QueryCache queryCache, String queryKey, int maxSlices, boolean readEnabled, boolean writeEnabled) {
+        this.queryCache = queryCache;
+        this.queryKey = queryKey;
+        this.maxSlices = maxSlices;
+        this.readEnabled = readEnabled;
+        this.writeEnabled = writeEnabled;
+    }
+
+    /**
+     * Splits the query time range into up to maxSlices slices whose boundaries don't depend on the query time range
+     * so overlapping queries get identical slices. Every shard start is a boundary when there are few enough shards.
+     * Otherwise boundaries are on a grid of the smallest power of 2 number of days (counted from the epoch in the time
+     * zone of start) that is sparse enough. Grid points inside a shard are moved to the next shard start.
+     */
+    public List<Interval> getTimeSlices(DateTime start, DateTime end, List<ShardIdWithVersion> shards) {
+        final List<DateTime> shardStarts = Lists.newArrayList();
+        for (ShardIdWithVersion shard : shards) {
+            shardStarts.add(shard.getRange().start);
+        }
+        return getAlignedTimeSlices(start, end, shardStarts, Math.max(maxSlices, 1));
+    }
+
+    static List<Interval> getAlignedTimeSlices(DateTime start, DateTime end, List<DateTime> shardStarts, int maxSlices) {
+        final TreeSet<DateTime> boundaries = Sets.newTreeSet();
+        for (DateTime shardStart : shardStarts) {
+            if (shardStart.isAfter(start) && shardStart.isBefore(end)) {
+                boundaries.add(shardStart);
+            }
+        }
+        if (boundaries.size() < maxSlices) {
+            return toSlices(start, end, boundaries);
+        }
+        final LocalDate epoch = new LocalDate(1970, 1, 1);
+        final int startDay = Days.daysBetween(epoch, start.toLocalDate()).getDays();
+        // terminates once the period is long enough to have no grid points in the range
+        for (int periodDays = 1; ; periodDays *= 2) {
+            final TreeSet<DateTime> gridBoundaries = Sets.newTreeSet();
+            for (int day = IntMath.divide(startDay, periodDays, RoundingMode.FLOOR) * periodDays; ; day += periodDays) {
+                final DateTime gridPoint = epoch.plusDays(day).toDateTimeAtStartOfDay(start.getZone());
+                if (!gridPoint.isBefore(end)) {
+                    break;
+                }
+                final DateTime boundary = boundaries.ceiling(gridPoint);
+                if (boundary != null && gridPoint.isAfter(start)) {
+                    gridBoundaries.add(boundary);
+                }
+            }
+            if (gridBoundaries.size() < maxSlices) {
+                return toSlices(start, end, gridBoundaries);
+            }
+        }
+    }
+
+    private static List<Interval> toSlices(DateTime start, DateTime end, Collection<DateTime> boundaries) {
+        final List<Interval> slices = Lists.newArrayList();
+        DateTime sliceStart = start;
+        for (DateTime boundary : boundaries) {
+            slices.add(new Interval(sliceStart, boundary));
+            sliceStart = boundary;
+        }
+        slices.add(new Interval(sliceStart, end));
+        return slices;
+    }
+
+    /**
+     * @param groupingsKey describes how the translated groupings depend on the query time range
+     * @param shards shards chosen for the slice
+     */
+    public String getFileName(String groupingsKey, Interval slice, List<ShardIdWithVersion> shards) {
+        final MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            log.error("Failed to init SHA1", e);
+            throw Throwables.propagate(e);
+        }
+        sha1.update(queryKey.getBytes(Charsets.UTF_8));
+        sha1.update(groupingsKey.getBytes(Charsets.UTF_8));
+        sha1.update(Longs.toByteArray(slice.getStartMillis()));
+        sha1.update(Longs.toByteArray(slice.getEndMillis()));
+        final List<ShardIdWithVersion> sortedShards = Lists.newArrayList(shards);
+        Collections.sort(sortedShards, new Comparator<ShardIdWithVersion>() {
+            @Override
+            public int compare(ShardIdWithVersion o1, ShardIdWithVersion o2) {
+                return o1.getShardId().compareTo(o2.getShardId());
+            }
+        });
+        for (ShardIdWithVersion shard : sortedShards) {
+            sha1.update(shard.getShardId().getBytes(Charsets.UTF_8));
+            sha1.update(Longs.toByteArray(shard.getVersion()));
+        }
+        sha1.update(VERSION_FOR_HASHING);
+        return FILE_PREFIX + Base64.encodeBase64URLSafeString(sha1.digest()) + GroupStatsCacheFormat.FILE_SUFFIX;
+    }
+
+    /**
+     * Returns the totals and the rows of a cached slice or null if the slice is not available.
+     */
+    @Nullable
+    public Pair<double[], List<GroupStats>> read(String fileName) {
+        if (!readEnabled) {
+            return null;
+        }
+        try {
+            if (!queryCache.isFileCached(fileName)) {
+                return null;
+            }
+            final InputStream is = queryCache.getInputStream(fileName);
+            final List<GroupStats> rows;
+            try {
+                rows = Lists.newArrayList(GroupStatsCacheFormat.read(is));
+            } finally {
+                Closeables2.closeQuietly(is, log);
+            }
+            if (rows.isEmpty()) {
+                log.warn("Cached time slice " + fileName + " has no totals");
+                return null;
+            }
+            return Pair.of(rows.get(0).getStats(), rows.subList(1, rows.size()));
+        } catch (Exception e) {
+            // the slice is executed instead
+            log.warn("Failed to read cached time slice " + fileName, e);
+            return null;
+        }
+    }
+
+    public void write(String fileName, double[] totals, List<GroupStats> rows) {
+        if (!writeEnabled) {
+            return;
+        }
+        try {
+            final OutputStream os = queryCache.getOutputStream(fileName);
+            final Iterator<GroupStats> totalsRow = Iterators.singletonIterator(new GroupStats(GroupKey.empty(), totals));
+            GroupStatsCacheFormat.write(Iterators.concat(totalsRow, rows.iterator()), os);
+        } catch (IOException e) {
+            log.warn("Failed to cache time slice " + fileName, e);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.GroupKey;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges rows produced by executing the same query on disjoint time ranges.
+ * Stats are summed for rows with identical group keys so all stats have to be additive.
+ * Rows are returned in the order the single session execution would return them:
+ * field term levels are sorted by term and other levels (e.g. metric buckets) are sorted in the bucket order of
+ * their grouping, see {@link #setBucketOrder}.
+ * @author vladimir
+ */
+final class TimeSliceMerger {
+    private final int statCount;
+    private final boolean[] termLevels;
+    private final boolean explodeLastLevel;
+
+    private final Map<List<Object>, double[]> rows = Maps.newHashMap();
+    private final List<Map<Object, Integer>> levelFirstSeen = Lists.newArrayList();
+    private final Map<Integer, List<String>> levelBucketLabels = Maps.newHashMap();
+
+    /**
+     * @param statCount number of stats in each row
+     * @param termLevels for each group key level whether it holds field terms that have to be sorted by value
+     * @param explodeLastLevel whether rows for all last level terms have to be added to every parent group
+     */
+    TimeSliceMerger(int statCount, boolean[] termLevels, boolean explodeLastLevel) {
+        this.statCount = statCount;
+        this.termLevels = termLevels;
+        this.explodeLastLevel = explodeLastLevel;
+        for (int i = 0; i < termLevels.length; i++) {
+            levelFirstSeen.add(Maps.<Object, Integer>newHashMap());
+        }
+    }
+
+    /**
+     * Sets all the terms a bucketed (e.g. time) level has in the result in their order. Rows with other terms are
+     * dropped and a last level gets rows for all the buckets of every parent group.
+     * Used when slices may have been executed with the buckets of a different range, e.g. by an earlier query.
+     */
+    public void setBucketLabels(int level, List<String> labels) {
+        levelBucketLabels.put(level, labels);
+        setBucketOrder(level, labels);
+    }
+
+    /**
+     * Sets the order of the terms of a bucketed level. Terms that are not in labels are sorted after them in the
+     * order they were first seen in.
+     */
+    public void setBucketOrder(int level, List<String> labels) {
+        final Map<Object, Integer> firstSeen = levelFirstSeen.get(level);
+        firstSeen.clear();
+        for (String label : labels) {
+            if (!firstSeen.containsKey(label)) {
+                firstSeen.put(label, firstSeen.size());
+            }
+        }
+    }
+
+    public void addAll(Iterator<GroupStats> sliceRows) {
+        while (sliceRows.hasNext()) {
+            final GroupStats row = sliceRows.next();
+            if (row != null) {
+                add(Lists.<Object>newArrayList(row.groupKey), row.stats);
+            }
+        }
+    }
+
+    private void add(List<Object> key, double[] stats) {
+        for (Map.Entry<Integer, List<String>> entry : levelBucketLabels.entrySet()) {
+            final int level = entry.getKey();
+            if (level < key.size() && !levelFirstSeen.get(level).containsKey(key.get(level))) {
+                // a bucket outside of the merged range. slices only contain documents from the merged range so it is empty
+                return;
+            }
+        }
+        for (int level = 0; level < key.size() && level < levelFirstSeen.size(); level++) {
+            final Map<Object, Integer> firstSeen = levelFirstSeen.get(level);
+            final Object term = key.get(level);
+            if (!firstSeen.containsKey(term)) {
+                firstSeen.put(term, firstSeen.size());
+            }
+        }
+        final double[] sums = rows.get(key);
+        if (sums == null) {
+            // rows may share stats arrays so we can't modify the provided instance
+            final double[] copy = new double[statCount];
+            System.arraycopy(stats, 0, copy, 0, Math.min(stats.length, statCount));
+            rows.put(key, copy);
+        } else {
+            for (int i = 0; i < sums.length && i < stats.length; i++) {
+                sums[i] += stats[i];
+            }
+        }
+    }
+
+    public Iterator<GroupStats> getResults() {
+        if (explodeLastLevel) {
+            addMissingLastLevelRows(null);
+        } else if (levelBucketLabels.containsKey(termLevels.length - 1)) {
+            addMissingLastLevelRows(levelBucketLabels.get(termLevels.length - 1));
+        }
+        final List<List<Object>> keys = Lists.newArrayList(rows.keySet());
+        Collections.sort(keys, new GroupKeyComparator());
+
+        final List<GroupStats> ret = Lists.newArrayListWithCapacity(keys.size());
+        for (List<Object> key : keys) {
+            ret.add(new GroupStats(toGroupKey(key), rows.get(key)));
+        }
+        return ret.iterator();
+    }
+
+    /**
+     * @param lastLevelTerms terms every parent group has to have rows for. All terms seen in the slices when null.
+     */
+    private void addMissingLastLevelRows(Collection<?> lastLevelTerms) {
+        final Set<List<Object>> parentKeys = Sets.newHashSet();
+        final Set<Object> seenTerms = Sets.newHashSet();
+        for (List<Object> key : rows.keySet()) {
+            if (key.isEmpty()) {
+                continue;
+            }
+            parentKeys.add(parentKey(key));
+            seenTerms.add(key.get(key.size() - 1));
+        }
+        if (lastLevelTerms == null) {
+            lastLevelTerms = seenTerms;
+        }
+        // warning: we are reusing the same array instance for all blank rows to save memory
+        final double[] emptyArray = new double[statCount];
+        for (List<Object> parentKey : parentKeys) {
+            for (Object term : lastLevelTerms) {
+                final List<Object> key = Lists.newArrayList(parentKey);
+                key.add(term);
+                if (!rows.containsKey(key)) {
+                    rows.put(key, emptyArray);
+                }
+            }
+        }
+    }
+
+    private static List<Object> parentKey(List<Object> key) {
+        return key.subList(0, Math.max(key.size() - 1, 0));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static GroupKey toGroupKey(List<Object> key) {
+        GroupKey groupKey = GroupKey.empty();
+        for (Object term : key) {
+            groupKey = groupKey.add(term);
+        }
+        return groupKey;
+    }
+
+    private final class GroupKeyComparator implements Comparator<List<Object>> {
+        @Override
+        public int compare(List<Object> o1, List<Object> o2) {
+            final int levels = Math.min(o1.size(), o2.size());
+            for (int level = 0; level < levels; level++) {
+                final int result = compareLevel(level, o1.get(level), o2.get(level));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return o1.size() - o2.size();
+        }
+
+        private int compareLevel(int level, Object a, Object b) {
+            if (level >= termLevels.length) {
+                return 0;
+            }
+            if (!termLevels[level]) {
+                final Map<Object, Integer> firstSeen = levelFirstSeen.get(level);
+                return firstSeen.get(a).compareTo(firstSeen.get(b));
+            }
+            if (a instanceof Long && b instanceof Long) {
+                return ((Long) a).compareTo((Long) b);
+            }
+            // same order as the terms are returned in by FTGS
+            return EZImhotepSession.compareStringTerms(a.toString(), b.toString());
+        }
+    }
+}
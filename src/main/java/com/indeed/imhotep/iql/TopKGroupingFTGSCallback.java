@@ -14,128 +14,276 @@
  package com.indeed.imhotep.iql;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.indeed.util.core.Pair;
+import com.google.common.primitives.Longs;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.SplittableFTGSCallback;
 import com.indeed.imhotep.ez.StatReference;
-import org.apache.log4j.Logger;
 
 import java.text.DecimalFormat;
-import java.util.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * Keeps the top K terms of each group by the sort stat.
+ * Each group has a binary heap of primitive scores with the candidate to be evicted first at the head. Terms and stats
+ * of the candidates are kept in shared arrays at a slot that is reused by the candidate replacing an evicted one, so
+ * nothing is allocated per candidate and rows are only created for the final top terms.
  * @author jplaisance
  */
-public final class TopKGroupingFTGSCallback extends EZImhotepSession.FTGSCallback {
-    private static final Logger log = Logger.getLogger(TopKGroupingFTGSCallback.class);
-
-    private final Map<Integer, PriorityQueue<Pair<Double, GroupStats>>> groupToTopK = Maps.newHashMap();
-    private final Comparator<Pair<Double, GroupStats>> comparator;
+public final class TopKGroupingFTGSCallback extends EZImhotepSession.FTGSCallback implements SplittableFTGSCallback<TopKGroupingFTGSCallback> {
+    private final int numStats;
     private final int topK;
     private final boolean isBottom;
     private final StatReference countStat;
-    private final List<StatReference> statRefs;
+    private final StatReference[] statRefs;
     private final Map<Integer, GroupKey> groupKeys;
+    private final int numGroups;
+    // heaps indexed by group, allocated when the group is first seen
+    private final double[][] heapScores;
+    private final int[][] heapSlots;
+    private final int[] heapSizes;
+    // candidate terms and stats indexed by slot
+    private boolean isIntField;
+    private long[] slotIntTerms = new long[0];
+    private String[] slotStringTerms = new String[0];
+    private double[] slotStats = new double[0];
+    private int slotCount = 0;
     private int newGroupCount = 0;
 
     public TopKGroupingFTGSCallback(final int numStats, int topK, StatReference countStat, List<StatReference> statRefs,
                                     Map<Integer, GroupKey> groupKeys, boolean isBottom) {
         super(numStats);
+        this.numStats = numStats;
         this.topK = topK;
         this.isBottom = isBottom;
         this.countStat = countStat;
-        this.statRefs = statRefs;
+        this.statRefs = statRefs.toArray(new StatReference[statRefs.size()]);
         this.groupKeys = groupKeys;
-        // do a custom comparator to ensure that real numbers are preferred to NaNs
-        final Comparator<Pair<Double, GroupStats>> baseComparator = new Comparator<Pair<Double, GroupStats>>() {
-            @Override
-            public int compare(Pair<Double, GroupStats> o1, Pair<Double, GroupStats> o2) {
-                Double a = o1.getFirst();
-                if(a.isNaN()) {
-                    a = Double.NEGATIVE_INFINITY;
-                }
-                Double b = o2.getFirst();
-                if(b.isNaN()) {
-                    b = Double.NEGATIVE_INFINITY;
-                }
-                return a.compareTo(b);
-            }
-        };
-        final Comparator<Pair<Double, GroupStats>> reverseComparator = new Comparator<Pair<Double, GroupStats>>() {
-            @Override
-            public int compare(Pair<Double, GroupStats> o1, Pair<Double, GroupStats> o2) {
-                Double a = o1.getFirst();
-                if(a.isNaN()) {
-                    a = Double.POSITIVE_INFINITY;
-                }
-                Double b = o2.getFirst();
-                if(b.isNaN()) {
-                    b = Double.POSITIVE_INFINITY;
-                }
-                return b.compareTo(a);  // reverse the result by swapping the sides
-            }
-        };
-
-        this.comparator = isBottom ? reverseComparator : baseComparator;
+        numGroups = groupKeys.size();
+        heapScores = new double[numGroups + 1][];
+        heapSlots = new int[numGroups + 1][];
+        heapSizes = new int[numGroups + 1];
     }
 
     protected void intTermGroup(final String field, final long term, final int group) {
-        termGroup(term, group);
+        isIntField = true;
+        final int slot = termGroup(group);
+        if (slot >= 0) {
+            slotIntTerms[slot] = term;
+        }
     }
 
     protected void stringTermGroup(final String field, final String term, final int group) {
-        termGroup(term, group);
+        final int slot = termGroup(group);
+        if (slot >= 0) {
+            slotStringTerms[slot] = term;
+        }
     }
 
-    private void termGroup(final Object term, final int group) {
-        PriorityQueue<Pair<Double, GroupStats>> topTerms = groupToTopK.get(group);
-        if (topTerms == null) {
-            topTerms = new PriorityQueue<Pair<Double, GroupStats>>(topK, comparator);
-            groupToTopK.put(group, topTerms);
+    /**
+     * @return slot where the term has to be stored if it is one of the top terms so far or -1
+     */
+    private int termGroup(final int group) {
+        if (group < 1 || group > numGroups) {
+            return -1;
         }
-        final double count = getStat(countStat);
-        if (topTerms.size() < topK) {
-            topTerms.add(getStats(count, group, term));
-
-            if(++newGroupCount > EZImhotepSession.GROUP_LIMIT) {
-                throw new IllegalArgumentException("Number of groups exceeds the limit " +
-                        new DecimalFormat("###,###").format(EZImhotepSession.GROUP_LIMIT) +
-                        ". Please simplify the query.");
+        if (heapSizes[group] < topK) {
+            checkGroupLimit(++newGroupCount);
+        }
+        final int slot = offer(group, getStat(countStat));
+        if (slot >= 0) {
+            final int offset = slot * statRefs.length;
+            for (int i = 0; i < statRefs.length; i++) {
+                slotStats[offset + i] = getStat(statRefs[i]);
             }
+        }
+        return slot;
+    }
+
+    /**
+     * Adds the score to the heap of the group if it is one of the top ones so far
+     * @return slot where the term and stats of the score have to be stored or -1
+     */
+    private int offer(final int group, final double count) {
+        final int slot;
+        if (heapSizes[group] < topK) {
+            slot = newSlot();
         } else {
-            final Double headCount = topTerms.peek().getFirst();
+            final double headCount = heapScores[group][0];
             if ((!isBottom && count > headCount) ||
                     (isBottom && count < headCount) ||
-                    (headCount.isNaN() && !Double.isNaN(count))) {
-                topTerms.remove();
-                topTerms.add(getStats(count, group, term));
+                    (Double.isNaN(headCount) && !Double.isNaN(count))) {
+                slot = heapSlots[group][0];    // reused by the new term
+                poll(group);
+            } else {
+                return -1;
             }
         }
+        add(group, count, slot);
+        return slot;
+    }
+
+    private static void checkGroupLimit(int groupCount) {
+        if (groupCount > EZImhotepSession.GROUP_LIMIT) {
+            throw new IllegalArgumentException("Number of groups exceeds the limit " +
+                    new DecimalFormat("###,###").format(EZImhotepSession.GROUP_LIMIT) +
+                    ". Please simplify the query.");
+        }
     }
 
-    private Pair<Double, GroupStats> getStats(double count, int group, Object term) {
-        final double[] stats = new double[statRefs.size()];
-        for (int i = 0; i < statRefs.size(); i++) {
-            stats[i] = getStat(statRefs.get(i));
+    private int newSlot() {
+        if (slotCount == slotStringTerms.length) {
+            final int capacity = Math.max(slotCount * 2, 16);
+            slotIntTerms = Arrays.copyOf(slotIntTerms, capacity);
+            slotStringTerms = Arrays.copyOf(slotStringTerms, capacity);
+            slotStats = Arrays.copyOf(slotStats, capacity * statRefs.length);
+        }
+        return slotCount++;
+    }
+
+    /**
+     * Orders the scores so that the heap head is the worst one. NaNs are worse than any real number.
+     */
+    private int compare(double a, double b) {
+        if (isBottom) {
+            return Double.compare(Double.isNaN(b) ? Double.POSITIVE_INFINITY : b, Double.isNaN(a) ? Double.POSITIVE_INFINITY : a);
+        } else {
+            return Double.compare(Double.isNaN(a) ? Double.NEGATIVE_INFINITY : a, Double.isNaN(b) ? Double.NEGATIVE_INFINITY : b);
+        }
+    }
+
+    // add() and poll() sift the same way as PriorityQueue so terms with equal scores come out in the same order as before
+
+    private void add(int group, double score, int slot) {
+        double[] scores = heapScores[group];
+        int[] slots = heapSlots[group];
+        int k = heapSizes[group];
+        if (scores == null || k == scores.length) {
+            final int capacity = Math.min(Math.max(k * 2, 4), topK);
+            scores = heapScores[group] = scores == null ? new double[capacity] : Arrays.copyOf(scores, capacity);
+            slots = heapSlots[group] = slots == null ? new int[capacity] : Arrays.copyOf(slots, capacity);
+        }
+        heapSizes[group] = k + 1;
+        while (k > 0) {
+            final int parent = (k - 1) >>> 1;
+            if (compare(score, scores[parent]) >= 0) {
+                break;
+            }
+            scores[k] = scores[parent];
+            slots[k] = slots[parent];
+            k = parent;
+        }
+        scores[k] = score;
+        slots[k] = slot;
+    }
+
+    private void poll(int group) {
+        final double[] scores = heapScores[group];
+        final int[] slots = heapSlots[group];
+        final int size = --heapSizes[group];
+        if (size == 0) {
+            return;
+        }
+        final double score = scores[size];
+        final int slot = slots[size];
+        final int half = size >>> 1;
+        int k = 0;
+        while (k < half) {
+            int child = 2 * k + 1;
+            final int right = child + 1;
+            if (right < size && compare(scores[child], scores[right]) > 0) {
+                child = right;
+            }
+            if (compare(score, scores[child]) <= 0) {
+                break;
+            }
+            scores[k] = scores[child];
+            slots[k] = slots[child];
+            k = child;
+        }
+        scores[k] = score;
+        slots[k] = slot;
+    }
+
+    @Override
+    public TopKGroupingFTGSCallback newSplit() {
+        return new TopKGroupingFTGSCallback(numStats, topK, countStat, Arrays.asList(statRefs), groupKeys, isBottom);
+    }
+
+    /**
+     * Offers the candidates of the splits to the heaps of this callback in the order of their terms, which is the order
+     * the terms are offered in without splits, so candidates with equal scores are kept the same way.
+     * The candidates were counted towards the group limit by the splits so only the merged total is checked.
+     */
+    @Override
+    public void merge(final List<TopKGroupingFTGSCallback> splits) {
+        for (TopKGroupingFTGSCallback split : splits) {
+            isIntField |= split.isIntField;
+        }
+        for (int group = 1; group <= numGroups; group++) {
+            final List<int[]> candidates = Lists.newArrayList();  // split index and heap index
+            for (int i = 0; i < splits.size(); i++) {
+                for (int j = 0; j < splits.get(i).heapSizes[group]; j++) {
+                    candidates.add(new int[] {i, j});
+                }
+            }
+            final int splitGroup = group;
+            Collections.sort(candidates, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    final TopKGroupingFTGSCallback splitA = splits.get(a[0]);
+                    final TopKGroupingFTGSCallback splitB = splits.get(b[0]);
+                    final int slotA = splitA.heapSlots[splitGroup][a[1]];
+                    final int slotB = splitB.heapSlots[splitGroup][b[1]];
+                    if (isIntField) {
+                        return Longs.compare(splitA.slotIntTerms[slotA], splitB.slotIntTerms[slotB]);
+                    }
+                    return EZImhotepSession.compareStringTerms(splitA.slotStringTerms[slotA], splitB.slotStringTerms[slotB]);
+                }
+            });
+            for (int[] candidate : candidates) {
+                final TopKGroupingFTGSCallback split = splits.get(candidate[0]);
+                final int splitSlot = split.heapSlots[group][candidate[1]];
+                final int slot = offer(group, split.heapScores[group][candidate[1]]);
+                if (slot >= 0) {
+                    slotIntTerms[slot] = split.slotIntTerms[splitSlot];
+                    slotStringTerms[slot] = split.slotStringTerms[splitSlot];
+                    System.arraycopy(split.slotStats, splitSlot * statRefs.length, slotStats, slot * statRefs.length, statRefs.length);
+                }
+            }
+            newGroupCount += heapSizes[group];
         }
-        return Pair.of(count, new GroupStats(groupKeys.get(group).add(term), stats));
+        checkGroupLimit(newGroupCount);
     }
 
+    /**
+     * Returns the top terms of each group from the best one. Consumes the heaps.
+     */
     public List<GroupStats> getResults() {
         final List<GroupStats> ret = Lists.newArrayList();
-        final ArrayDeque<Pair<Double, GroupStats>> stack = new ArrayDeque<Pair<Double, GroupStats>>();
-        for (int group = 1; group <= groupKeys.size(); group++) {
-            final PriorityQueue<Pair<Double, GroupStats>> pairs = groupToTopK.get(group);
-            if (pairs != null) {
-                while (!pairs.isEmpty()) {
-                    stack.push(pairs.remove());
+        for (int group = 1; group <= numGroups; group++) {
+            final int size = heapSizes[group];
+            if (size > 0) {
+                final int[] slotsFromWorst = new int[size];
+                for (int i = 0; i < size; i++) {
+                    slotsFromWorst[i] = heapSlots[group][0];
+                    poll(group);
                 }
-                while (!stack.isEmpty()) {
-                    ret.add(stack.remove().getSecond());
+                for (int i = size - 1; i >= 0; i--) {
+                    final int slot = slotsFromWorst[i];
+                    final Object term = isIntField ? (Object) slotIntTerms[slot] : slotStringTerms[slot];
+                    final int offset = slot * statRefs.length;
+                    final double[] stats = Arrays.copyOfRange(slotStats, offset, offset + statRefs.length);
+                    ret.add(new GroupStats(groupKeys.get(group).add(term), stats));
                 }
+                heapScores[group] = null;
+                heapSlots[group] = null;
             } else {    // TODO: do we want these empty rows?
-                ret.add(new GroupStats(groupKeys.get(group).add(""), new double[statRefs.size()]));
+                ret.add(new GroupStats(groupKeys.get(group).add(""), new double[statRefs.length]));
             }
         }
         return ret;
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import java.io.OutputStream;
+
+/**
+ * Cache OutputStream that can be abandoned when writing fails part way.
+ * close() stores the written data in the cache while abort() discards it so no partial file is ever cached.
+ * @author vladimir
+ */
+public abstract class AbortableOutputStream extends OutputStream {
+    /**
+     * Discards everything written so far and releases the resources. Nothing is stored in the cache.
+     * Does nothing if the stream is already closed or aborted.
+     */
+    public abstract void abort();
+
+    /**
+     * Aborts the stream if it supports that and otherwise just closes it.
+     */
+    public static void abortQuietly(OutputStream os, Logger log) {
+        if (os instanceof AbortableOutputStream) {
+            try {
+                ((AbortableOutputStream) os).abort();
+            } catch (RuntimeException e) {
+                log.warn("Failed to abort the cache stream", e);
+            }
+        } else {
+            Closeables2.closeQuietly(os, log);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.indeed.util.varexport.Export;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local disk LRU tier of TieredQueryCache.
+ * Each cached file is stored as a file with the same name in the tier directory.
+ * Files left from the previous run are reused as cache file names are content hashes that never go stale.
+ * @author vladimir
+ */
+final class DiskCacheTier {
+    private static final Logger log = Logger.getLogger(DiskCacheTier.class);
+    private static final String TEMP_FILE_SUFFIX = ".tiertmp";
+
+    private final File dir;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // access ordered so the first entry is the least recently used one
+    private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong admissions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    DiskCacheTier(File dir, long maxBytes, long maxEntryBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create local cache dir " + dir.getPath());
+        }
+        loadExistingFiles();
+    }
+
+    private synchronized void loadExistingFiles() {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.valueOf(o1.lastModified()).compareTo(o2.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                deleteFile(file);
+                continue;
+            }
+            entrySizes.put(file.getName(), file.length());
+            totalBytes += file.length();
+        }
+        evictOverLimit();
+        log.info("Loaded " + entrySizes.size() + " files (" + totalBytes + " bytes) into the local cache from " + dir.getPath());
+    }
+
+    long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    synchronized boolean contains(String fileName) {
+        return entrySizes.containsKey(fileName);
+    }
+
+    /**
+     * Returns the local copy of the cached file or null if the file is not in this tier.
+     */
+    synchronized File get(String fileName) {
+        final File file = getUncounted(fileName);
+        if (file == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return file;
+    }
+
+    /**
+     * Same as get() without counting a hit or a miss. Used for files that are only ever cached locally.
+     */
+    synchronized File getUncounted(String fileName) {
+        if (entrySizes.get(fileName) == null) {
+            return null;
+        }
+        final File file = new File(dir, fileName);
+        if (!file.exists()) {  // deleted from outside
+            totalBytes -= entrySizes.remove(fileName);
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Returns a new file in the tier directory to write data to before it is passed to admit().
+     */
+    File newTempFile() throws IOException {
+        return File.createTempFile("tier", TEMP_FILE_SUFFIX, dir);
+    }
+
+    /**
+     * Moves the provided temp file created by newTempFile() into the cache.
+     */
+    synchronized void admit(String fileName, File tempFile) {
+        final long size = tempFile.length();
+        if (size > maxEntryBytes || !isValidName(fileName)) {
+            rejections.incrementAndGet();
+            deleteFile(tempFile);
+            return;
+        }
+        final File file = new File(dir, fileName);
+        final Long previousSize = entrySizes.remove(fileName);
+        if (previousSize != null) {
+            totalBytes -= previousSize;
+        }
+        if (file.exists()) {
+            deleteFile(file);
+        }
+        if (!tempFile.renameTo(file)) {
+            log.warn("Failed to move " + tempFile.getPath() + " to " + file.getPath());
+            rejections.incrementAndGet();
+            deleteFile(tempFile);
+            return;
+        }
+        entrySizes.put(fileName, size);
+        totalBytes += size;
+        admissions.incrementAndGet();
+        evictOverLimit();
+    }
+
+    /**
+     * Stores a copy of the provided file in the cache.
+     */
+    void admitCopy(String fileName, File localFile) throws IOException {
+        if (localFile.length() > maxEntryBytes) {
+            rejections.incrementAndGet();
+            return;
+        }
+        final File tempFile = newTempFile();
+        try {
+            Files.copy(localFile, tempFile);
+        } catch (IOException e) {
+            deleteFile(tempFile);
+            throw e;
+        }
+        admit(fileName, tempFile);
+    }
+
+    private void evictOverLimit() {
+        final Iterator<Map.Entry<String, Long>> iterator = entrySizes.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.getValue();
+            // readers that already opened the file can still finish reading it
+            deleteFile(new File(dir, eldest.getKey()));
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static boolean isValidName(String fileName) {
+        return fileName.indexOf('/') < 0 && fileName.indexOf(File.separatorChar) < 0 && !fileName.endsWith(TEMP_FILE_SUFFIX);
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            log.info("Failed to delete: " + file.getPath());
+        }
+    }
+
+    /**
+     * Records that a file was not offered to this tier because it is larger than getMaxEntryBytes().
+     */
+    void recordRejection() {
+        rejections.incrementAndGet();
+    }
+
+    @Export(name = "hits", doc = "Number of reads served from local disk")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Export(name = "misses", doc = "Number of reads not found on local disk")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Export(name = "admissions", doc = "Number of files stored on local disk")
+    public long getAdmissions() {
+        return admissions.get();
+    }
+
+    @Export(name = "rejections", doc = "Number of files not stored on local disk because they were too large")
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    @Export(name = "evictions", doc = "Number of files evicted from local disk to stay under the size limit")
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Export(name = "size-bytes", doc = "Total size of files currently stored on local disk")
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+}
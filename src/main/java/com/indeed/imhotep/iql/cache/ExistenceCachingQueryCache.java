@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QueryCache decorator that avoids repeated existence checks against the remote cache.
+ * Cache file names are content hashes that include shard versions so a file that exists never goes stale
+ * and is remembered in a bounded set of known files. Files that were not found are remembered for a short time only
+ * as they may be written by another instance in the meantime.
+ * @author vladimir
+ */
+public class ExistenceCachingQueryCache implements QueryCache {
+    static final Logger log = Logger.getLogger(ExistenceCachingQueryCache.class);
+
+    private final QueryCache backend;
+    private final Cache<String, Boolean> knownFiles;
+    private final Cache<String, Boolean> missingFiles;
+
+    public ExistenceCachingQueryCache(QueryCache backend, long knownFilesLimit, long missingFilesTTLMillis) {
+        this(backend, knownFilesLimit, missingFilesTTLMillis, Ticker.systemTicker());
+    }
+
+    ExistenceCachingQueryCache(QueryCache backend, long knownFilesLimit, long missingFilesTTLMillis, Ticker ticker) {
+        this.backend = backend;
+        knownFiles = CacheBuilder.newBuilder().maximumSize(knownFilesLimit).build();
+        missingFiles = CacheBuilder.newBuilder()
+                .maximumSize(knownFilesLimit)
+                .expireAfterWrite(missingFilesTTLMillis, TimeUnit.MILLISECONDS)
+                .ticker(ticker)
+                .build();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return backend.isEnabled();
+    }
+
+    @Override
+    public boolean isEnabledInConfig() {
+        return backend.isEnabledInConfig();
+    }
+
+    @Override
+    public boolean isFileCached(String fileName) {
+        if(!backend.isEnabled()) {
+            return false;
+        }
+        if(knownFiles.getIfPresent(fileName) != null) {
+            return true;
+        }
+        if(missingFiles.getIfPresent(fileName) != null) {
+            return false;
+        }
+        final boolean cached = backend.isFileCached(fileName);
+        if(cached) {
+            markPresent(fileName);
+        } else {
+            missingFiles.put(fileName, Boolean.TRUE);
+        }
+        return cached;
+    }
+
+    @Override
+    public InputStream getInputStream(String cachedFileName) throws IOException {
+        final InputStream inputStream = backend.getInputStream(cachedFileName);
+        markPresent(cachedFileName);
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream(final String cachedFileName) throws IOException {
+        missingFiles.invalidate(cachedFileName);
+        final OutputStream out = backend.getOutputStream(cachedFileName);
+        return new AbortableOutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                out.close();
+                markPresent(cachedFileName);
+            }
+
+            @Override
+            public void abort() {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                abortQuietly(out, log);
+            }
+        };
+    }
+
+    @Override
+    public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+        missingFiles.invalidate(cachedFileName);
+        backend.writeFromFile(cachedFileName, localFile);
+        markPresent(cachedFileName);
+    }
+
+    @Override
+    public void healthcheck() throws IOException {
+        backend.healthcheck();
+    }
+
+    private void markPresent(String fileName) {
+        knownFiles.put(fileName, Boolean.TRUE);
+        missingFiles.invalidate(fileName);
+    }
+}
@@ -117,7 +117,7 @@ public class HDFSQueryCache implements QueryCache {
 
         final FSDataOutputStream fileOut = hdfs.create(tempPath);
         // Wrap the returned OutputStream so that we can finish when it is closed
-        return new OutputStream() {
+        return new AbortableOutputStream() {
             private boolean closed = false;
 
             @Override
@@ -151,6 +151,24 @@ public class HDFSQueryCache implements QueryCache {
                 // Move to the final file location
                 hdfs.rename(tempPath, filePath);
             }
+
+            @Override
+            public void abort() {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    fileOut.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close aborted HDFS cache file " + tempPath, e);
+                }
+                try {
+                    hdfs.delete(tempPath, false);
+                } catch (IOException e) {
+                    log.warn("Failed to delete aborted HDFS cache file " + tempPath, e);
+                }
+            }
         };
     }
 
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.indeed.util.varexport.Export;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-heap LRU tier of TieredQueryCache holding complete small cached files.
+ * @author vladimir
+ */
+final class MemoryCacheTier {
+    private final long maxEntryBytes;
+    private final Cache<String, byte[]> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong admissions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong sizeBytes = new AtomicLong();
+
+    MemoryCacheTier(long maxBytes, long maxEntryBytes) {
+        this.maxEntryBytes = Math.min(maxEntryBytes, Integer.MAX_VALUE);
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<String, byte[]>() {
+                    @Override
+                    public int weigh(String key, byte[] value) {
+                        return value.length;
+                    }
+                })
+                .removalListener(new RemovalListener<String, byte[]>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, byte[]> notification) {
+                        sizeBytes.addAndGet(-notification.getValue().length);
+                        if (notification.getCause() == RemovalCause.SIZE) {
+                            evictions.incrementAndGet();
+                        }
+                    }
+                })
+                .build();
+    }
+
+    long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    boolean contains(String fileName) {
+        return cache.asMap().containsKey(fileName);
+    }
+
+    /**
+     * Returns the cached file contents or null if the file is not in this tier.
+     */
+    byte[] get(String fileName) {
+        final byte[] data = cache.getIfPresent(fileName);
+        if (data == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return data;
+    }
+
+    void admit(String fileName, byte[] data) {
+        if (data.length > maxEntryBytes) {
+            rejections.incrementAndGet();
+            return;
+        }
+        sizeBytes.addAndGet(data.length);
+        cache.put(fileName, data);
+        admissions.incrementAndGet();
+    }
+
+    /**
+     * Records that a file was not offered to this tier because it is larger than getMaxEntryBytes().
+     */
+    void recordRejection() {
+        rejections.incrementAndGet();
+    }
+
+    @Export(name = "hits", doc = "Number of reads served from memory")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Export(name = "misses", doc = "Number of reads not found in memory")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Export(name = "admissions", doc = "Number of files stored in memory")
+    public long getAdmissions() {
+        return admissions.get();
+    }
+
+    @Export(name = "rejections", doc = "Number of files not stored in memory because they were too large")
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    @Export(name = "evictions", doc = "Number of files evicted from memory to stay under the size limit")
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Export(name = "size-bytes", doc = "Total size of files currently stored in memory")
+    public long getSizeBytes() {
+        return sizeBytes.get();
+    }
+}
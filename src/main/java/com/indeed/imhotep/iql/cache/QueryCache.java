@@ -41,7 +41,7 @@ public interface QueryCache {
     /**
      * Returns OutputStream that can be written to to store data in the cache.
      * close() on the OutputStream MUST be called when done.
-     * Note that for S3 cache this actually writes to a memory buffer first, so large data should be uploaded with writeFromFile().
+     * If writing fails the stream should be passed to AbortableOutputStream.abortQuietly() instead so that partial data is not cached.
      * @param cachedFileName Name of the file to upload to
      */
     public OutputStream getOutputStream(String cachedFileName) throws IOException;
@@ -36,15 +36,57 @@ public class QueryCacheFactory {
             return new NoOpQueryCache();
         }
         cacheType = props.getProperty("query.cache.backend", String.class, "HDFS");
+        final QueryCache backend;
         if ("HDFS".equals(cacheType)) {
-            return new HDFSQueryCache(props);
+            backend = new HDFSQueryCache(props);
+        } else if ("S3".equals(cacheType)) {
+            backend = new S3QueryCache(props);
+        } else {
+            throw new PropertyException("Unknown cache type (property: query.cache.backend): "
+                    + cacheType);
         }
-        if ("S3".equals(cacheType)) {
-            return new S3QueryCache(props);
+        return withLocalTiers(withExistenceCache(backend, props), props);
+    }
+
+    /**
+     * Wraps the remote cache so that existence checks for the same files don't have to go to the remote store.
+     */
+    private static QueryCache withExistenceCache(QueryCache backend, PropertyResolver props) {
+        final long knownFilesLimit = props.getProperty("query.cache.known.files.limit", Long.class, 100000L);
+        final long missingTTLSeconds = props.getProperty("query.cache.missing.files.ttl.seconds", Long.class, 10L);
+        if (knownFilesLimit <= 0) {
+            return backend;
         }
-        
-        throw new PropertyException("Unknown cache type (property: query.cache.backend): "
-                + cacheType);
+        return new ExistenceCachingQueryCache(backend, knownFilesLimit, missingTTLSeconds * 1000);
+    }
+
+    /**
+     * Wraps the remote cache with in-memory and local disk tiers if they are configured.
+     */
+    private static QueryCache withLocalTiers(QueryCache backend, PropertyResolver props) {
+        MemoryCacheTier memoryTier = null;
+        final long memorySizeMB = props.getProperty("query.cache.memory.size.mb", Long.class, 0L);
+        if (memorySizeMB > 0) {
+            final long maxEntryKB = props.getProperty("query.cache.memory.max.entry.kb", Long.class, 1024L);
+            memoryTier = new MemoryCacheTier(memorySizeMB * 1024 * 1024, maxEntryKB * 1024);
+        }
+
+        DiskCacheTier diskTier = null;
+        final String localPath = props.getProperty("query.cache.local.path", String.class, "");
+        final long localSizeMB = props.getProperty("query.cache.local.size.mb", Long.class, 0L);
+        if (localPath != null && !localPath.trim().isEmpty() && localSizeMB > 0) {
+            final long maxEntryMB = props.getProperty("query.cache.local.max.entry.mb", Long.class, localSizeMB / 10);
+            try {
+                diskTier = new DiskCacheTier(new File(localPath.trim()), localSizeMB * 1024 * 1024, maxEntryMB * 1024 * 1024);
+            } catch (IOException e) {
+                log.warn("Failed to initialize the local disk query cache tier. Only the remote cache will be used.", e);
+            }
+        }
+
+        if (memoryTier == null && diskTier == null) {
+            return backend;
+        }
+        return new TieredQueryCache(backend, memoryTier, diskTier);
     }
     
     static class NoOpQueryCache implements QueryCache {
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.collect.Lists;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * OutputStream that uploads the data to S3 in fixed size parts using a multipart upload as it is written.
+ * At most maxPartsInFlight parts are being uploaded at a time so the memory used is bounded by
+ * (maxPartsInFlight + 1) * partSize regardless of the total size.
+ * Data that fits in a single part is uploaded with a plain put on close().
+ * close() MUST be called to complete the upload. If anything fails the multipart upload is aborted.
+ * abort() drops the data written so far without uploading it.
+ * @author vladimir
+ */
+public class S3MultipartOutputStream extends AbortableOutputStream {
+    private static final Logger log = Logger.getLogger(S3MultipartOutputStream.class);
+
+    /** S3 rejects smaller parts except for the last one */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    /** parts are buffered in a byte array */
+    public static final int MAX_PART_SIZE = 1024 * 1024 * 1024;
+
+    private final AmazonS3 client;
+    private final String bucket;
+    private final String key;
+    private final int partSize;
+    private final ExecutorService executor;
+    private final Semaphore partsInFlight;
+
+    private byte[] buffer;
+    private int bufferPos = 0;
+    private String uploadId = null;
+    private final List<Future<PartETag>> partUploads = Lists.newArrayList();
+    private boolean closed = false;
+
+    public S3MultipartOutputStream(AmazonS3 client, String bucket, String key, int partSize, ExecutorService executor, int maxPartsInFlight) {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = partSize;
+        this.executor = executor;
+        this.partsInFlight = new Semaphore(Math.max(maxPartsInFlight, 1));
+        buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if(bufferPos == buffer.length) {
+            uploadBufferAsPart();
+        }
+        buffer[bufferPos++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while(len > 0) {
+            if(bufferPos == buffer.length) {
+                uploadBufferAsPart();
+            }
+            final int toCopy = Math.min(len, buffer.length - bufferPos);
+            System.arraycopy(b, off, buffer, bufferPos, toCopy);
+            bufferPos += toCopy;
+            off += toCopy;
+            len -= toCopy;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if(closed) {
+            throw new IOException("Stream is closed");
+        }
+    }
+
+    private void uploadBufferAsPart() throws IOException {
+        try {
+            checkFailedParts();
+            if(uploadId == null) {
+                uploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+            }
+            partsInFlight.acquire();
+        } catch (InterruptedException e) {
+            abortUpload();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for S3 part uploads for " + key);
+        } catch (AmazonClientException e) {
+            abortUpload();
+            throw new IOException("Failed to start S3 multipart upload for " + key, e);
+        }
+
+        final String partUploadId = uploadId;
+        final byte[] data = buffer;
+        final int length = bufferPos;
+        final int partNumber = partUploads.size() + 1;  // part numbers start from 1
+        try {
+            partUploads.add(executor.submit(new Callable<PartETag>() {
+                @Override
+                public PartETag call() throws Exception {
+                    try {
+                        final UploadPartRequest request = new UploadPartRequest()
+                                .withBucketName(bucket)
+                                .withKey(key)
+                                .withUploadId(partUploadId)
+                                .withPartNumber(partNumber)
+                                .withInputStream(new ByteArrayInputStream(data, 0, length))
+                                .withPartSize(length);
+                        return client.uploadPart(request).getPartETag();
+                    } finally {
+                        partsInFlight.release();
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            partsInFlight.release();
+            abortUpload();
+            throw new IOException("Failed to schedule S3 part upload for " + key, e);
+        }
+        // the submitted array is owned by the upload task now
+        buffer = new byte[partSize];
+        bufferPos = 0;
+    }
+
+    /**
+     * Fails early if one of the already finished part uploads has failed.
+     */
+    private void checkFailedParts() throws IOException, InterruptedException {
+        for(Future<PartETag> partUpload : partUploads) {
+            if(partUpload.isDone()) {
+                waitForPart(partUpload);
+            }
+        }
+    }
+
+    private PartETag waitForPart(Future<PartETag> partUpload) throws IOException, InterruptedException {
+        try {
+            return partUpload.get();
+        } catch (ExecutionException e) {
+            abortUpload();
+            throw new IOException("Failed to upload a part to S3 for " + key, e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if(uploadId == null) {
+                // everything fits in one part so a multipart upload is not needed
+                final ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(bufferPos);
+                client.putObject(bucket, key, new ByteArrayInputStream(buffer, 0, bufferPos), metadata);
+                return;
+            }
+            if(bufferPos > 0) {
+                uploadBufferAsPart();
+            }
+            final List<PartETag> partETags = Lists.newArrayListWithCapacity(partUploads.size());
+            for(Future<PartETag> partUpload : partUploads) {
+                partETags.add(waitForPart(partUpload));
+            }
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+        } catch (InterruptedException e) {
+            abortUpload();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for S3 part uploads for " + key);
+        } catch (AmazonClientException e) {
+            abortUpload();
+            throw new IOException("Failed to upload to S3: " + key, e);
+        } finally {
+            buffer = null;
+        }
+    }
+
+    @Override
+    public void abort() {
+        if(closed) {
+            return;
+        }
+        buffer = null;
+        abortUpload();
+    }
+
+    private void abortUpload() {
+        closed = true;  // nothing else can be written once the upload is aborted
+        for(Future<PartETag> partUpload : partUploads) {
+            partUpload.cancel(true);
+        }
+        if(uploadId == null) {
+            return;
+        }
+        try {
+            client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (Exception e) {
+            log.warn("Failed to abort S3 multipart upload " + uploadId + " for " + key, e);
+        }
+        uploadId = null;
+    }
+}
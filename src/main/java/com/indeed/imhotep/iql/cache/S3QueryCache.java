@@ -16,18 +16,18 @@
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.Region;
 
+import com.indeed.util.core.threads.NamedThreadFactory;
 import org.apache.log4j.Logger;
 import org.springframework.core.env.PropertyResolver;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author darren
@@ -39,12 +39,26 @@ public class S3QueryCache implements QueryCache {
     private boolean enabled;
     private AmazonS3Client client;
     private String bucket;
+    private final int partSize;
+    private final int maxPartsInFlight;
+    private final ExecutorService uploadExecutor;
 
     public S3QueryCache(PropertyResolver props) {
         String awsRegion;
         String awsKey;
         String awsSecret;
         
+        final long requestedPartSize = props.getProperty("query.cache.s3.part.size.mb", Long.class, 8L) * 1024 * 1024;
+        if (requestedPartSize > S3MultipartOutputStream.MAX_PART_SIZE) {
+            log.warn("query.cache.s3.part.size.mb is over the limit of " +
+                    S3MultipartOutputStream.MAX_PART_SIZE / 1024 / 1024 + "MB. Using the limit instead.");
+        }
+        partSize = (int) Math.max(Math.min(requestedPartSize, S3MultipartOutputStream.MAX_PART_SIZE),
+                S3MultipartOutputStream.MIN_PART_SIZE);
+        maxPartsInFlight = props.getProperty("query.cache.s3.upload.parts.in.flight", Integer.class, 2);
+        uploadExecutor = Executors.newFixedThreadPool(props.getProperty("query.cache.s3.upload.threads", Integer.class, 4),
+                new NamedThreadFactory("IQL-S3-Upload"));
+
         enabled = true;
         try {
             bucket = props.getProperty("query.cache.s3.bucket", String.class);
@@ -114,47 +128,7 @@ public class S3QueryCache implements QueryCache {
             throw new IllegalStateException("Can't send data to S3 cache as it is disabled");
         }
 
-        final ByteArrayOutputStream os = new ByteArrayOutputStream();
-        // Wrap the returned OutputStream so that we can write to buffer and do actual write on close()
-        return new OutputStream() {
-            private boolean closed = false;
-
-            @Override
-            public void write(byte[] b) throws IOException {
-                os.write(b);
-            }
-
-            @Override
-            public void write(byte[] b, int off, int len) throws IOException {
-                os.write(b, off, len);
-            }
-
-            @Override
-            public void flush() throws IOException {
-                os.flush();
-            }
-
-            @Override
-            public void write(int b) throws IOException {
-                os.write(b);
-            }
-
-            @Override
-            public void close() throws IOException {
-                if(closed) {
-                    return;
-                }
-                closed = true;
-                os.close();
-
-                // do actual write
-                byte[] csvData = os.toByteArray();
-                ByteArrayInputStream is = new ByteArrayInputStream(csvData);
-                ObjectMetadata metadata = new ObjectMetadata();
-                metadata.setContentLength(csvData.length);
-                client.putObject(bucket, cachedFileName, is, metadata);
-            }
-        };
+        return new S3MultipartOutputStream(client, bucket, cachedFileName, partSize, uploadExecutor, maxPartsInFlight);
     }
 
     @Override
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.io.Files;
+import com.indeed.util.varexport.VarExporter;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * QueryCache decorator that keeps local copies of cached files in an in-heap tier for small files
+ * and a local disk tier for larger ones. The wrapped remote cache stays the source of truth:
+ * all writes go to it and local tiers are only populated once a write or a complete read succeeds.
+ * @author vladimir
+ */
+public class TieredQueryCache implements QueryCache {
+    static final Logger log = Logger.getLogger(TieredQueryCache.class);
+
+    private final QueryCache backend;
+    private final @Nullable MemoryCacheTier memoryTier;
+    private final @Nullable DiskCacheTier diskTier;
+
+    public TieredQueryCache(QueryCache backend, @Nullable MemoryCacheTier memoryTier, @Nullable DiskCacheTier diskTier) {
+        this.backend = backend;
+        this.memoryTier = memoryTier;
+        this.diskTier = diskTier;
+        if(memoryTier != null) {
+            VarExporter.forNamespace("querycache-memory").export(memoryTier, "");
+        }
+        if(diskTier != null) {
+            VarExporter.forNamespace("querycache-disk").export(diskTier, "");
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return backend.isEnabled();
+    }
+
+    @Override
+    public boolean isEnabledInConfig() {
+        return backend.isEnabledInConfig();
+    }
+
+    @Override
+    public boolean isFileCached(String fileName) {
+        if(!backend.isEnabled()) {
+            return false;
+        }
+        if((memoryTier != null && memoryTier.contains(fileName)) || (diskTier != null && diskTier.contains(fileName))) {
+            return true;
+        }
+        return backend.isFileCached(fileName);
+    }
+
+    @Override
+    public InputStream getInputStream(String cachedFileName) throws IOException {
+        if(memoryTier != null) {
+            final byte[] data = memoryTier.get(cachedFileName);
+            if(data != null) {
+                return new ByteArrayInputStream(data);
+            }
+        }
+        if(diskTier != null) {
+            final File localFile = diskTier.get(cachedFileName);
+            if(localFile != null) {
+                try {
+                    return new FileInputStream(localFile);
+                } catch (FileNotFoundException e) {
+                    // evicted in the meantime
+                }
+            }
+        }
+        return new CopyingInputStream(backend.getInputStream(cachedFileName), new LocalCopy(cachedFileName));
+    }
+
+    @Override
+    public OutputStream getOutputStream(String cachedFileName) throws IOException {
+        final OutputStream backendStream = backend.getOutputStream(cachedFileName);
+        final LocalCopy localCopy = new LocalCopy(cachedFileName);
+        return new AbortableOutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                backendStream.write(b);
+                localCopy.write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                backendStream.write(b, off, len);
+                localCopy.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                backendStream.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    backendStream.close();
+                } catch (IOException e) {
+                    localCopy.discard();
+                    throw e;
+                }
+                localCopy.commit();
+            }
+
+            @Override
+            public void abort() {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                localCopy.discard();
+                abortQuietly(backendStream, log);
+            }
+        };
+    }
+
+    @Override
+    public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+        backend.writeFromFile(cachedFileName, localFile);
+        try {
+            final long size = localFile.length();
+            if(memoryTier != null && size <= memoryTier.getMaxEntryBytes()) {
+                memoryTier.admit(cachedFileName, Files.toByteArray(localFile));
+                return;
+            }
+            if(memoryTier != null) {
+                memoryTier.recordRejection();
+            }
+            if(diskTier != null) {
+                diskTier.admitCopy(cachedFileName, localFile);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to store a local copy of " + cachedFileName, e);
+        }
+    }
+
+    /**
+     * Returns the local disk copy of a file admitted by admitLocalFile() or null if it isn't on local disk.
+     * The file can be evicted at any time so it has to be opened right away. Not counted in the disk tier hits.
+     */
+    public @Nullable File getLocalFile(String fileName) {
+        return diskTier != null ? diskTier.getUncounted(fileName) : null;
+    }
+
+    /**
+     * Returns the size of the largest file admitLocalFile() keeps or 0 if there is no local disk tier.
+     */
+    public long getMaxLocalEntryBytes() {
+        return diskTier != null ? diskTier.getMaxEntryBytes() : 0;
+    }
+
+    /**
+     * Returns a new temp file to write data that is only cached locally to before it is passed to admitLocalFile().
+     * Returns null if there is no local disk tier.
+     */
+    public @Nullable File newLocalTempFile() throws IOException {
+        return diskTier != null ? diskTier.newTempFile() : null;
+    }
+
+    /**
+     * Moves a temp file created by newLocalTempFile() into the local disk tier without writing it to the remote cache.
+     * Used for data that is derived from remotely cached files and can be recreated from them.
+     */
+    public void admitLocalFile(String fileName, File tempFile) {
+        diskTier.admit(fileName, tempFile);
+    }
+
+    @Override
+    public void healthcheck() throws IOException {
+        backend.healthcheck();
+    }
+
+    /**
+     * Accumulates a copy of the data passing through to the remote cache.
+     * Data is kept in memory while it fits the memory tier and moved to a disk tier temp file after that.
+     * Copies that don't fit any tier are dropped.
+     */
+    private final class LocalCopy {
+        private final String fileName;
+        private final long memoryLimit = memoryTier != null ? memoryTier.getMaxEntryBytes() : 0;
+        private final long diskLimit = diskTier != null ? diskTier.getMaxEntryBytes() : 0;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private File tempFile;
+        private OutputStream tempFileOut;
+        private long size = 0;
+        private boolean done = false;
+
+        private LocalCopy(String fileName) {
+            this.fileName = fileName;
+        }
+
+        void write(byte[] b, int off, int len) {
+            if(done) {
+                return;
+            }
+            size += len;
+            try {
+                if(tempFile == null && size > memoryLimit) {
+                    if(memoryTier != null) {
+                        memoryTier.recordRejection();
+                    }
+                    if(size > diskLimit) {
+                        rejectFromDisk();
+                        return;
+                    }
+                    tempFile = diskTier.newTempFile();
+                    tempFileOut = new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024);
+                    buffer.writeTo(tempFileOut);
+                    buffer = null;
+                }
+                if(tempFile != null) {
+                    if(size > diskLimit) {
+                        rejectFromDisk();
+                        return;
+                    }
+                    tempFileOut.write(b, off, len);
+                } else {
+                    buffer.write(b, off, len);
+                }
+            } catch (IOException e) {
+                log.warn("Failed to store a local copy of " + fileName, e);
+                discard();
+            }
+        }
+
+        private void rejectFromDisk() {
+            if(diskTier != null) {
+                diskTier.recordRejection();
+            }
+            discard();
+        }
+
+        void commit() {
+            if(done) {
+                return;
+            }
+            done = true;
+            if(tempFile == null) {
+                if(memoryTier != null) {
+                    memoryTier.admit(fileName, buffer.toByteArray());
+                } else if(diskTier != null) {
+                    // the memory tier is disabled and the data is empty
+                    try {
+                        diskTier.admit(fileName, writeTempFile(buffer.toByteArray()));
+                    } catch (IOException e) {
+                        log.warn("Failed to store a local copy of " + fileName, e);
+                    }
+                }
+                buffer = null;
+                return;
+            }
+            try {
+                tempFileOut.close();
+                diskTier.admit(fileName, tempFile);
+            } catch (IOException e) {
+                log.warn("Failed to store a local copy of " + fileName, e);
+                deleteTempFile();
+            }
+        }
+
+        void discard() {
+            if(done) {
+                return;
+            }
+            done = true;
+            buffer = null;
+            if(tempFile != null) {
+                try {
+                    tempFileOut.close();
+                } catch (IOException e) {
+                    // ignore as the file is deleted anyway
+                }
+                deleteTempFile();
+            }
+        }
+
+        private File writeTempFile(byte[] data) throws IOException {
+            final File file = diskTier.newTempFile();
+            Files.write(data, file);
+            return file;
+        }
+
+        private void deleteTempFile() {
+            if(!tempFile.delete() && tempFile.exists()) {
+                log.info("Failed to delete: " + tempFile.getPath());
+            }
+        }
+    }
+
+    /**
+     * Passes data read from the remote cache through to a LocalCopy which is committed only if the stream is read to the end.
+     */
+    private static final class CopyingInputStream extends FilterInputStream {
+        private final LocalCopy localCopy;
+
+        private CopyingInputStream(InputStream in, LocalCopy localCopy) {
+            super(in);
+            this.localCopy = localCopy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if(b < 0) {
+                localCopy.commit();
+            } else {
+                localCopy.write(new byte[] {(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int bytesRead = super.read(b, off, len);
+            if(bytesRead < 0) {
+                localCopy.commit();
+            } else {
+                localCopy.write(b, off, bytesRead);
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            localCopy.discard();    // skipped data can't be copied
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            localCopy.discard();    // no-op if the stream was read to the end
+            super.close();
+        }
+    }
+}
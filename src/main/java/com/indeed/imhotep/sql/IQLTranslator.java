@@ -30,9 +30,11 @@ import com.indeed.imhotep.ez.DynamicMetric;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.Field;
 import com.indeed.imhotep.iql.Condition;
+import com.indeed.imhotep.iql.ConditionOptimizer;
 import com.indeed.imhotep.iql.DistinctGrouping;
 import com.indeed.imhotep.iql.FieldGrouping;
 import com.indeed.imhotep.iql.Grouping;
+import com.indeed.imhotep.iql.HyperLogLog;
 import com.indeed.imhotep.iql.IQLQuery;
 import com.indeed.imhotep.iql.IntInCondition;
 import com.indeed.imhotep.iql.MetricCondition;
@@ -86,6 +88,8 @@ import static com.indeed.imhotep.ez.EZImhotepSession.*;
  */
 public final class IQLTranslator {
     private static final Logger log = Logger.getLogger(IQLTranslator.class);
+    // relative standard error of approx_distinct() when it is not given like in distinct(field, error)
+    private static final int DEFAULT_DISTINCT_ERROR_PERCENT = 2;
 
     public static IQLQuery translate(SelectStatement parse, ImhotepClient client, String username, ImhotepMetadataCache metadata,
                                      long imhotepLocalTempFileSizeLimit, long imhotepDaemonTempFileSizeLimit) {
@@ -136,12 +140,14 @@ public final class IQLTranslator {
 
         handleMultitermIn(conditions, groupings);
 
+        final List<Condition> optimizedConditions = ConditionOptimizer.optimize(conditions);
+
         handleDiffGrouping(groupings, stats);
 
         optimizeGroupings(groupings);
 
         return new IQLQuery(client, stats, fromClause.getDataset(), fromClause.getStart(), fromClause.getEnd(),
-                conditions, groupings, parse.limit, username, metadata, imhotepLocalTempFileSizeLimit, imhotepDaemonTempFileSizeLimit);
+                optimizedConditions, groupings, parse.limit, username, metadata, imhotepLocalTempFileSizeLimit, imhotepDaemonTempFileSizeLimit);
     }
 
     private static void ensureDistinctSelectDoesntMatchGroupings(List<Grouping> groupings, DistinctGrouping distinctGrouping) {
@@ -254,11 +260,17 @@ public final class IQLTranslator {
                 continue;
             }
             FunctionExpression functionProjection = (FunctionExpression) projection;
-            if (!functionProjection.function.equals("distinct")) {
+            final boolean isApprox = functionProjection.function.equals("approx_distinct");
+            if (!isApprox && !functionProjection.function.equals("distinct")) {
                 continue;
             }
-            if(functionProjection.args.size() != 1) {
-                throw new IllegalArgumentException("distinct() takes a field name as an argument and returns distinct count of terms for the field");
+            if(isApprox && functionProjection.args.size() != 1) {
+                throw new IllegalArgumentException("approx_distinct() takes a field name as an argument and returns an estimate " +
+                        "of the distinct count of terms for the field with " + DEFAULT_DISTINCT_ERROR_PERCENT + "% error");
+            }
+            if(functionProjection.args.size() != 1 && functionProjection.args.size() != 2) {
+                throw new IllegalArgumentException("distinct() takes a field name as an argument and returns distinct count of terms for the field. " +
+                        "An optional second argument is the allowed error percent of an estimated count e.g. distinct(country, 1)");
             }
 
             String fieldName = getStr(functionProjection.args.get(0));
@@ -268,7 +280,15 @@ public final class IQLTranslator {
             if(distinctGrouping == null) {
                 distinctGrouping = new DistinctGrouping();
             }
-            distinctGrouping.addField(field, projectionNumber);
+            if(isApprox || functionProjection.args.size() == 2) {
+                final int errorPercent = isApprox ? DEFAULT_DISTINCT_ERROR_PERCENT : parseInt(functionProjection.args.get(1));
+                if(errorPercent <= 0 || errorPercent >= 100) {
+                    throw new IllegalArgumentException("distinct() error percent must be between 0 and 100");
+                }
+                distinctGrouping.addApproxField(field, projectionNumber, HyperLogLog.precisionForError(errorPercent / 100.0));
+            } else {
+                distinctGrouping.addField(field, projectionNumber);
+            }
         }
         return distinctGrouping;
     }
@@ -282,12 +302,14 @@ public final class IQLTranslator {
                 continue;
             }
             FunctionExpression functionProjection = (FunctionExpression) projection;
-            if (!functionProjection.function.equals("percentile")) {
+            final boolean isApprox = functionProjection.function.equals("approx_percentile");
+            if (!isApprox && !functionProjection.function.equals("percentile")) {
                 continue;
             }
             if(functionProjection.args.size() != 2) {
                 throw new IllegalArgumentException(
-                        "percentile() takes a field name and a percentile and returns that percentile, e.g. percentile(tottime, 50)"
+                        functionProjection.function + "() takes a field name and a percentile and returns that percentile, e.g. " +
+                                functionProjection.function + "(tottime, 50)"
                 );
             }
 
@@ -303,7 +325,11 @@ public final class IQLTranslator {
             if(percentileGrouping == null) {
                 percentileGrouping = new PercentileGrouping(countStat);
             }
-            percentileGrouping.addPercentileQuery(field, percentile, projectionNumber);
+            if(isApprox) {
+                percentileGrouping.addApproxPercentileQuery(field, percentile, projectionNumber);
+            } else {
+                percentileGrouping.addPercentileQuery(field, percentile, projectionNumber);
+            }
         }
         return percentileGrouping;
     }
@@ -69,4 +69,19 @@ public class SelectStatement extends IQLStatement implements Serializable {
                 ", select=" + selectStr +
                 ", where=" + whereStr + "}";
     }
+
+    /**
+     * Same as toHashKeyString() but leaves out the time range so it can be used to compare the results of
+     * time ranges that are part of both statements.
+     */
+    public String toTimeIndependentHashKeyString() {
+        final String datasetStr = from != null ? from.getDataset() : "null";
+        final String groupByStr = groupBy != null ? groupBy.toString() : "null";
+        final String selectStr = select != null ? select.toString() : "null";
+        final String whereStr = where != null ? where.toString() : "null";
+        return "SelectStatement {dataset=" + datasetStr +
+                ", groupBy=" + groupByStr +
+                ", select=" + selectStr +
+                ", where=" + whereStr + "}";
+    }
 }
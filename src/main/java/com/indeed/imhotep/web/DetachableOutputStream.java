@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Response stream of an original query execution. When the client disconnects while duplicates of the query read
+ * its rows, the output is discarded from then on so the execution keeps producing the rows for the duplicates.
+ * Otherwise write failures cancel the query.
+ * @author vladimir
+ */
+final class DetachableOutputStream extends FilterOutputStream {
+    private final ExecutionManager.QueryTracker queryTracker;
+
+    DetachableOutputStream(OutputStream out, ExecutionManager.QueryTracker queryTracker) {
+        super(out);
+        this.queryTracker = queryTracker;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (queryTracker.isClientDetached()) {
+            return;
+        }
+        try {
+            out.write(b);
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (queryTracker.isClientDetached()) {
+            return;
+        }
+        try {
+            out.write(b, off, len);
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (queryTracker.isClientDetached()) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (queryTracker.isClientDetached()) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+    private void writeFailed(IOException e) throws IOException {
+        if (queryTracker.clientDisconnected(QueryServlet.CLIENT_DISCONNECTED + e.getMessage())) {
+            throw e;
+        }
+    }
+}
@@ -14,45 +14,77 @@
  package com.indeed.imhotep.web;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.indeed.imhotep.ez.CancellationToken;
+import com.indeed.imhotep.ez.QueryCancelledException;
+import com.indeed.imhotep.iql.ReplayableRowBuffer;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Keeps track of the currently running queries.
  * All public methods on this class operating on internal data structures should be marked synchronized.
+ * Waits for locks and execution slots don't block threads. They complete a callback instead.
  * @author vladimir
  */
 @Component
 public class ExecutionManager {
     private static final Logger log = Logger.getLogger(ExecutionManager.class);
-    // values are used for locking to avoid concurrent processing of identical requests
-    private final Map<String, CountDownLatch> queryToLock = Maps.newHashMap();
+    // rows of shared results kept in memory before spilling to disk in chunks
+    private static final int SHARED_ROWS_IN_MEMORY = 50000;
+    private static final int SHARED_ROWS_PER_CHUNK = 10000;
+    private static final long WAIT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // results of the running queries shared with their duplicates to avoid concurrent processing of identical requests
+    private final Map<String, SharedResults> queryToResults = Maps.newHashMap();
     // used to limit number of concurrent queries per user
-    private final Map<String, Semaphore> userToLock = Maps.newHashMap();
+    private final Map<String, UserSlots> userToSlots = Maps.newHashMap();
     private final Set<QueryTracker> runningQueries = Sets.newHashSet();
 
     @Value("${user.concurrent.query.limit}")
     private int maxQueriesPerUser;
 
+    @Autowired
+    private QueryScheduler queryScheduler;
+    @Autowired
+    private ScheduledExecutorService queryWaitTimeoutExecutor;
+    private final QueryCostEstimator costEstimator = new QueryCostEstimator();
+    private long lastQueryId = 0;
+
     public ExecutionManager() {
     }
 
+    /**
+     * Continuation of a query waiting for a lock or an execution slot.
+     * Exactly one of the methods is called once on the thread that ended the wait so they must not block.
+     */
+    public interface WaitCallback {
+        void acquired();
+
+        void failed(Throwable t);
+    }
+
     @Nonnull
     public synchronized List<QueryTracker> getRunningQueries() {
         return Lists.newArrayList(runningQueries);
@@ -60,51 +92,152 @@ public class ExecutionManager {
 
     /**
      * Keeps track of the query that is going to be executed and makes sure that user allocated limit is not exceeded.
+     * Duplicates of a running query wait for it to publish its results and read them as they are produced.
      * When the query execution is completed (data is in HDFS cache) or fails, the returned Query object must be closed.
      */
     public synchronized QueryTracker queryStarted(String query, String username) throws TimeoutException {
-        final CountDownLatch releaseLock;
-        final CountDownLatch waitLockForQuery;
-        final Semaphore waitLockForUser;
-        if(queryToLock.containsKey(query)) {   // this is a duplicate query and execution will have to wait
-            waitLockForQuery = queryToLock.get(query);
-            waitLockForUser = null;
-            releaseLock = null;
-        } else {    // this is a non-duplicate query and the lock has to be released after execution is finished
-            waitLockForQuery = null;
-            waitLockForUser = getUserSemaphore(username);
-            releaseLock = new CountDownLatch(1);
-            queryToLock.put(query, releaseLock);
-        }
-        final QueryTracker newQueryTracker = new QueryTracker(username, query, waitLockForQuery, waitLockForUser, releaseLock, this);
+        final SharedResults ownResults;
+        final SharedResults originalResults;
+        final UserSlots userSlots;
+        // duplicates only take a user slot when they have to execute the query themselves
+        userSlots = getUserSlots(username);
+        if(queryToResults.containsKey(query)) {   // this is a duplicate query and execution will have to wait
+            originalResults = queryToResults.get(query);
+            originalResults.subscribers++;
+            ownResults = null;
+        } else {    // this is a non-duplicate query and the results have to be closed after execution is finished
+            originalResults = null;
+            ownResults = new SharedResults();
+            queryToResults.put(query, ownResults);
+        }
+        final QueryTracker newQueryTracker = new QueryTracker(++lastQueryId, username, query, originalResults, userSlots, ownResults, this);
+        if(ownResults != null) {
+            ownResults.producer = newQueryTracker;
+        }
         runningQueries.add(newQueryTracker);
         return newQueryTracker;
     }
 
-    private synchronized Semaphore getUserSemaphore(String username) {
-        Semaphore semaphore = userToLock.get(username);
-        if(semaphore == null) {
-            semaphore = new Semaphore(maxQueriesPerUser, true);
-            userToLock.put(username, semaphore);
+    /**
+     * Cancels the running query with the given id closing its Imhotep sessions.
+     * @return false if there is no such query or it was already cancelled
+     */
+    public boolean cancelQuery(long id, String reason) {
+        QueryTracker queryToCancel = null;
+        synchronized (this) {
+            for (QueryTracker queryTracker : runningQueries) {
+                if (queryTracker.id == id) {
+                    queryToCancel = queryTracker;
+                    break;
+                }
+            }
         }
-        return semaphore;
+        // cancelling closes the sessions so it's done without holding the lock
+        return queryToCancel != null && queryToCancel.cancel(reason);
     }
 
-    private synchronized void release(QueryTracker q) {
-        if(q.released) {
-            return; // release called twice
+    private synchronized UserSlots getUserSlots(String username) {
+        UserSlots slots = userToSlots.get(username);
+        if(slots == null) {
+            slots = new UserSlots(maxQueriesPerUser);
+            userToSlots.put(username, slots);
         }
-        q.released = true;
+        return slots;
+    }
 
-        if(q.releaseLock != null) { // this was the original query of this type and it's done now
-            q.releaseLock.countDown();
-            queryToLock.remove(q.query);
+    /**
+     * Takes a slot of the user limit for the query or queues the wait for one.
+     * @return true if the query has a slot
+     */
+    private synchronized boolean takeUserSlot(QueryTracker q, QueryTracker.PendingWait wait) {
+        if(q.userSlotUsed) {
+            return true;
         }
-        if(q.userSlotUsed && q.waitLockForUser != null) {
-            q.waitLockForUser.release();
+        if(q.userSlots.available > 0) {
+            q.userSlots.available--;
+            q.userSlotUsed = true;
+            return true;
         }
+        q.userSlots.waiting.addLast(wait);
+        return false;
+    }
 
-        runningQueries.remove(q);
+    private synchronized void removeUserSlotWait(QueryTracker q, QueryTracker.PendingWait wait) {
+        q.userSlots.waiting.remove(wait);
+    }
+
+    /**
+     * Passes the slot to the longest waiting query of the user.
+     * @return the wait that got the slot and has to be notified outside of the lock
+     */
+    @Nullable
+    private QueryTracker.PendingWait releaseUserSlot(UserSlots slots) {
+        QueryTracker.PendingWait next;
+        while((next = slots.waiting.pollFirst()) != null) {
+            if(next.claim()) {  // skips waits that timed out or were cancelled
+                next.getTracker().userSlotUsed = true;
+                return next;
+            }
+        }
+        slots.available++;
+        return null;
+    }
+
+    /**
+     * Marks that the client of the original query disconnected if its duplicates still need the results.
+     * @return false if the original query has no duplicates left and can be cancelled
+     */
+    private synchronized boolean detachClient(QueryTracker q) {
+        if(q.ownResults == null || q.ownResults.subscribers == 0) {
+            return false;
+        }
+        q.clientDetached = true;
+        return true;
+    }
+
+    /**
+     * Stops counting a duplicate as a reader of the original results. The original query is cancelled if its client
+     * already disconnected and this was its last duplicate.
+     */
+    private void unsubscribe(QueryTracker q) {
+        final QueryTracker producer;
+        synchronized (this) {
+            if(q.originalResults == null || q.unsubscribed) {
+                return;
+            }
+            q.unsubscribed = true;
+            if(--q.originalResults.subscribers > 0 || !q.originalResults.producer.clientDetached) {
+                return;
+            }
+            producer = q.originalResults.producer;
+        }
+        // cancelling closes the sessions so it's done without holding the lock
+        producer.cancel("Client disconnected and no identical queries are reading the results");
+    }
+
+    private void release(QueryTracker q) {
+        final QueryTracker.PendingWait nextUserSlotWait;
+        synchronized (this) {
+            if(q.released) {
+                return; // release called twice
+            }
+            q.released = true;
+
+            if(q.ownResults != null) { // this was the original query of this type and it's done now
+                queryToResults.remove(q.query);
+            }
+            nextUserSlotWait = q.userSlotUsed ? releaseUserSlot(q.userSlots) : null;
+            runningQueries.remove(q);
+        }
+        // callbacks are run outside of the lock as they may release other queries
+        q.executionFinished();  // in case the execution failed without releasing its slot
+        q.abandonPendingWait(new IllegalStateException("Query was closed while waiting"));
+        if(q.ownResults != null) {
+            q.ownResults.close();
+        }
+        if(nextUserSlotWait != null) {
+            nextUserSlotWait.notifyAcquired();
+        }
     }
 
     /**
@@ -112,26 +245,41 @@ public class ExecutionManager {
      * Must be closed when all operations relating to the query processing are complete (including HDFS cache upload).
      */
     public class QueryTracker implements Closeable {
+        private final long id;  // identifies the query for cancellation
         private final String username;  // user running the query
         private final String query; // query text
-        private final CountDownLatch waitLockForQuery;  // lock to wait on before the query starts
-        private final Semaphore waitLockForUser;  // lock to wait on before the query starts
-        private final CountDownLatch releaseLock;   // lock to be released when the query is done
+        private final SharedResults originalResults;  // results of the identical running query to wait on
+        private final UserSlots userSlots;  // limit of the user to wait on before the query starts
+        private final SharedResults ownResults;   // results to be shared with duplicates and closed when the query is done
         private final ExecutionManager owner;
         private final DateTime startedTime = DateTime.now();
+        private final CancellationToken cancellationToken = new CancellationToken();
         private boolean asynchronousRelease = false;
         private boolean released = false;
-        private boolean userSlotUsed = false;
+        private boolean userSlotUsed = false;   // guarded by the ExecutionManager
+        private boolean unsubscribed = false;
+        private volatile boolean clientDetached = false;
+        private volatile QueryScheduler.Ticket executionTicket;
+        private volatile PendingWait pendingWait;
+        private boolean executionRecorded = false;
+        private String queryShape;
+        private int shardCount;
+        private double groupingCostFactor;
 
-        private QueryTracker(String username, String query, CountDownLatch waitLockForQuery, Semaphore waitLockForUser, CountDownLatch releaseLock, ExecutionManager owner) {
+        private QueryTracker(long id, String username, String query, SharedResults originalResults, UserSlots userSlots, SharedResults ownResults, ExecutionManager owner) {
+            this.id = id;
             this.username = username;
             this.query = query;
-            this.waitLockForQuery = waitLockForQuery;
-            this.waitLockForUser = waitLockForUser;
-            this.releaseLock = releaseLock;
+            this.originalResults = originalResults;
+            this.userSlots = userSlots;
+            this.ownResults = ownResults;
             this.owner = owner;
         }
 
+        public long getId() {
+            return id;
+        }
+
         public String getUsername() {
             return username;
         }
@@ -144,43 +292,286 @@ public class ExecutionManager {
             return startedTime.toString();
         }
 
-        public void acquireLocks() throws TimeoutException {
-            waitForQueryLock();
-            waitForUserLock();
+        /**
+         * Waits for the identical running query to publish its results or, if there is none, for a slot of the user
+         * limit. The callback is called when the wait is over, fails after 5 minutes.
+         */
+        public void acquireLocks(WaitCallback callback) {
+            if(originalResults == null) {
+                waitForUserSlot(callback);
+                return;
+            }
+            // same query is already being handled, waiting for its results
+            final PendingWait wait = new PendingWait(callback) {
+                @Override
+                protected void timedOut() {
+                    log.error("Reached timeout waiting for results of: " + query);
+                    failed(new TimeoutException("Reached timeout (5 min) waiting for results of original execution of the query"));
+                }
+            };
+            wait.start();
+            originalResults.whenPublished(new Runnable() {
+                @Override
+                public void run() {
+                    wait.acquired();
+                }
+            });
+        }
+
+        private void waitForUserSlot(WaitCallback callback) {
+            final PendingWait wait = new PendingWait(callback) {
+                @Override
+                protected void timedOut() {
+                    failed(new TimeoutException("Reached timeout (5 min) waiting in queue for query execution"));
+                }
+
+                @Override
+                protected void abandoned() {
+                    owner.removeUserSlotWait(QueryTracker.this, this);
+                }
+            };
+            wait.start();
+            if(owner.takeUserSlot(this, wait)) {
+                wait.acquired();
+            }
+        }
+
+        /**
+         * Makes the rows produced by this query available to its duplicates. Returns null if this is a duplicate.
+         * The returned buffer has to be finished or failed when all rows are added.
+         * @param metadata metadata of the execution returned to the duplicates
+         */
+        @Nullable
+        public ReplayableRowBuffer publishResults(QueryMetadata metadata) {
+            if(ownResults == null) {
+                return null;
+            }
+            final ReplayableRowBuffer rows = new ReplayableRowBuffer(SHARED_ROWS_IN_MEMORY, SHARED_ROWS_PER_CHUNK);
+            ownResults.publish(QueryMetadata.fromJSON(metadata.toJSON()), rows);
+            return rows;
         }
 
-        private void waitForQueryLock() throws TimeoutException {
-            if(waitLockForQuery == null) {
+        /**
+         * Waits for the identical query that was running when this one started to finish including the cache upload.
+         * Used by requests that can only be served from the cache.
+         */
+        public void waitForOriginalCompletion(WaitCallback callback) {
+            if(originalResults == null) {
+                callback.acquired();
                 return;
             }
-            // same query is already being handled, waiting
-            try {
-                if(!waitLockForQuery.await(5, TimeUnit.MINUTES)) {
-                    log.error("Reached timeout waiting for completion of: " + query);
-                    throw new TimeoutException("Reached timeout (5 min) waiting for completion of original execution of the query");
+            final PendingWait wait = new PendingWait(callback) {
+                @Override
+                protected void timedOut() {
+                    log.warn("Reached timeout waiting for completion of: " + query);
+                    acquired();
                 }
-            } catch (InterruptedException ignored) {
-                throw new RuntimeException("Interrupted while waiting for completion of original execution of the query. You can retry.");
-            }
+            };
+            wait.start();
+            originalResults.whenClosed(new Runnable() {
+                @Override
+                public void run() {
+                    wait.acquired();
+                }
+            });
+        }
+
+        /**
+         * Returns a reader of the rows published by the identical query that was running when this one started or null
+         * if there was none or it didn't publish results, e.g. because it was served from the cache.
+         */
+        @Nullable
+        public ReplayableRowBuffer.Reader subscribeToResults() {
+            return originalResults != null ? originalResults.newReader() : null;
+        }
+
+        /**
+         * Returns the metadata of the identical query whose results this query is subscribed to.
+         */
+        @JsonIgnore
+        @Nullable
+        public QueryMetadata getSharedMetadata() {
+            return originalResults != null ? originalResults.getMetadata() : null;
+        }
+
+        /**
+         * Waits until the global scheduler admits the execution of the query on Imhotep. The callback is called when
+         * the query is admitted, fails after 5 minutes or when the query is cancelled.
+         * A duplicate that has to execute the query itself, e.g. because the original execution failed, takes a user
+         * slot first. executionFinished() has to be called when the Imhotep sessions of the query are closed.
+         * @param queryShape identifies queries that differ only in the time range for the cost estimation
+         */
+        public void waitForExecutionSlot(final QueryScheduler.Priority priority, final String queryShape, final int shardCount,
+                                         final double groupingCostFactor, final WaitCallback callback) {
+            waitForUserSlot(new WaitCallback() {
+                @Override
+                public void acquired() {
+                    submitForExecution(priority, queryShape, shardCount, groupingCostFactor, callback);
+                }
+
+                @Override
+                public void failed(Throwable t) {
+                    callback.failed(t);
+                }
+            });
         }
 
-        private void waitForUserLock() throws TimeoutException {
-            if(waitLockForUser == null) {
+        /**
+         * Blocking version of waitForExecutionSlot for the rare executions that can't be continued by a callback.
+         */
+        public void waitForExecutionSlot(QueryScheduler.Priority priority, String queryShape, int shardCount, double groupingCostFactor) throws TimeoutException {
+            final BlockingWait wait = new BlockingWait();
+            waitForExecutionSlot(priority, queryShape, shardCount, groupingCostFactor, wait);
+            wait.await();
+        }
+
+        private void submitForExecution(QueryScheduler.Priority priority, String queryShape, int shardCount, double groupingCostFactor,
+                                        WaitCallback callback) {
+            this.queryShape = queryShape;
+            this.shardCount = shardCount;
+            this.groupingCostFactor = groupingCostFactor;
+            if(cancellationToken.isCancelled()) {
+                callback.failed(new QueryCancelledException(cancellationToken.getCancelReason()));
                 return;
             }
+            final long estimatedCostMillis = costEstimator.estimateMillis(queryShape, shardCount, groupingCostFactor);
+            final QueryScheduler.Ticket ticket = queryScheduler.submit(priority, estimatedCostMillis);
+            synchronized (this) {
+                executionTicket = ticket;
+                executionRecorded = false;
+            }
+            final PendingWait wait = new PendingWait(callback) {
+                @Override
+                protected void timedOut() {
+                    log.warn("Query with estimated cost of " + ticket.getEstimatedCostMillis() + "ms wasn't admitted in " + WAIT_TIMEOUT_MILLIS + "ms");
+                    failed(new TimeoutException("Reached timeout waiting in the global queue for query execution"));
+                }
 
-            try {
-                if(!waitLockForUser.tryAcquire(5, TimeUnit.MINUTES)) {
-                    throw new TimeoutException("Reached timeout (5 min) waiting in queue for query execution");
+                @Override
+                protected void abandoned() {
+                    ticket.close();
                 }
-                userSlotUsed = true;
-            } catch (InterruptedException ignored) {
-                throw new RuntimeException("Wait in queue for query execution was interrupted. You can retry.");
+            };
+            wait.start();
+            ticket.whenAdmitted(new Runnable() {
+                @Override
+                public void run() {
+                    if(ticket.isRunning()) {
+                        wait.acquired();
+                    } else if(cancellationToken.isCancelled()) {
+                        // cancel() frees the slot of a waiting query
+                        wait.failed(new QueryCancelledException(cancellationToken.getCancelReason()));
+                    } else {
+                        wait.failed(new IllegalStateException("Execution slot of the query was released while waiting"));
+                    }
+                }
+            });
+        }
+
+        /**
+         * Records the execution time of the query for estimating the cost of similar queries. Should be called when
+         * all rows are produced so the time the client takes to download them doesn't count.
+         * Only the first call after the query is admitted is recorded.
+         */
+        public synchronized void executionCompleted() {
+            final QueryScheduler.Ticket ticket = executionTicket;
+            if(ticket == null || executionRecorded) {
+                return;
+            }
+            executionRecorded = true;
+            if(!ticket.isQueued() && !cancellationToken.isCancelled()) {
+                costEstimator.record(queryShape, shardCount, groupingCostFactor, ticket.getExecutionMillis());
             }
         }
 
+        /**
+         * Frees the execution slot of the query. Records its execution time if executionCompleted() wasn't called.
+         */
+        public synchronized void executionFinished() {
+            final QueryScheduler.Ticket ticket = executionTicket;
+            if(ticket == null) {
+                return;
+            }
+            executionCompleted();
+            executionTicket = null;
+            ticket.close();
+        }
+
+        /**
+         * Returns the priority class of the query execution or null if it's not waiting for or executing on Imhotep.
+         */
+        public String getPriority() {
+            final QueryScheduler.Ticket ticket = executionTicket;
+            return ticket != null ? ticket.getPriority().toString() : null;
+        }
+
+        /**
+         * Returns the position in the global execution queue or 0 if the query is not waiting.
+         */
+        public int getQueuePosition() {
+            final QueryScheduler.Ticket ticket = executionTicket;
+            return ticket != null ? ticket.getQueuePosition() : 0;
+        }
+
+        public long getEstimatedWaitSeconds() {
+            final QueryScheduler.Ticket ticket = executionTicket;
+            return ticket != null ? TimeUnit.MILLISECONDS.toSeconds(ticket.getEstimatedWaitMillis()) : 0;
+        }
+
+        public long getEstimatedCostSeconds() {
+            final QueryScheduler.Ticket ticket = executionTicket;
+            return ticket != null ? TimeUnit.MILLISECONDS.toSeconds(ticket.getEstimatedCostMillis()) : 0;
+        }
+
+        /**
+         * Token to be checked by the query execution and to register the resources to close when the query is cancelled.
+         */
+        @JsonIgnore
+        public CancellationToken getCancellationToken() {
+            return cancellationToken;
+        }
+
+        public boolean isCancelled() {
+            return cancellationToken.isCancelled();
+        }
+
+        /**
+         * Cancels the query after its client disconnected unless it's an original query whose duplicates read its
+         * results. That query keeps running for the duplicates and is cancelled when the last of them is done.
+         * @return false if the query keeps running and its output has to be discarded
+         */
+        public boolean clientDisconnected(String reason) {
+            if(owner.detachClient(this)) {
+                log.info("Client of query " + id + " disconnected. Running it for its duplicates: " + reason);
+                return false;
+            }
+            cancel(reason);
+            return true;
+        }
+
+        /**
+         * Returns whether the client disconnected while the query keeps running for its duplicates.
+         */
+        public boolean isClientDetached() {
+            return clientDetached;
+        }
+
+        /**
+         * Stops the query execution closing its Imhotep sessions and frees its execution slot.
+         * @return false if the query was already cancelled
+         */
+        public boolean cancel(String reason) {
+            if(!cancellationToken.cancel(reason)) {
+                return false;
+            }
+            abandonPendingWait(new QueryCancelledException(reason));
+            executionFinished();
+            return true;
+        }
+
         @Override
         public void close() throws IOException {
+            owner.unsubscribe(this);
             owner.release(this);
         }
 
@@ -192,5 +583,223 @@ public class ExecutionManager {
         public boolean isAsynchronousRelease() {
             return asynchronousRelease;
         }
+
+        private void abandonPendingWait(Throwable reason) {
+            final PendingWait wait = pendingWait;
+            if(wait != null) {
+                wait.failed(reason);
+            }
+        }
+
+        /**
+         * A wait of the query that ends exactly once: when the awaited lock or slot is acquired, on timeout or when
+         * the query is cancelled.
+         */
+        private abstract class PendingWait implements Runnable {
+            private final WaitCallback callback;
+            private final AtomicBoolean done = new AtomicBoolean(false);
+            private volatile ScheduledFuture<?> timeout;
+
+            private PendingWait(WaitCallback callback) {
+                this.callback = callback;
+            }
+
+            /**
+             * Starts the timeout and makes the wait end on cancellation. Has to be called before the wait can end.
+             */
+            private void start() {
+                pendingWait = this;
+                timeout = queryWaitTimeoutExecutor.schedule(this, WAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if(cancellationToken.isCancelled()) {
+                    failed(new QueryCancelledException(cancellationToken.getCancelReason()));
+                }
+            }
+
+            private QueryTracker getTracker() {
+                return QueryTracker.this;
+            }
+
+            /**
+             * Ends the wait. Only the first call succeeds.
+             */
+            private boolean claim() {
+                if(!done.compareAndSet(false, true)) {
+                    return false;
+                }
+                final ScheduledFuture<?> timeoutFuture = timeout;
+                if(timeoutFuture != null) {
+                    timeoutFuture.cancel(false);
+                }
+                if(pendingWait == this) {
+                    pendingWait = null;
+                }
+                return true;
+            }
+
+            private void notifyAcquired() {
+                callback.acquired();
+            }
+
+            protected void acquired() {
+                if(claim()) {
+                    callback.acquired();
+                }
+            }
+
+            protected void failed(Throwable t) {
+                if(claim()) {
+                    abandoned();
+                    callback.failed(t);
+                }
+            }
+
+            @Override
+            public void run() {
+                timedOut();
+            }
+
+            protected abstract void timedOut();
+
+            /**
+             * Frees what the wait holds after it failed.
+             */
+            protected void abandoned() {
+            }
+        }
+    }
+
+    /**
+     * Slots of the concurrent query limit of a user. Freed slots are passed to the waiting queries in FIFO order.
+     */
+    private static class UserSlots {
+        // guarded by the ExecutionManager
+        private int available;
+        private final Deque<QueryTracker.PendingWait> waiting = new ArrayDeque<QueryTracker.PendingWait>();
+
+        private UserSlots(int available) {
+            this.available = available;
+        }
+    }
+
+    /**
+     * Blocks the calling thread until the wait is over.
+     */
+    private static class BlockingWait implements WaitCallback {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Throwable failure;
+
+        @Override
+        public void acquired() {
+            latch.countDown();
+        }
+
+        @Override
+        public void failed(Throwable t) {
+            failure = t;
+            latch.countDown();
+        }
+
+        private void await() throws TimeoutException {
+            try {
+                latch.await();
+            } catch (InterruptedException ignored) {
+                throw new RuntimeException("Wait in queue for query execution was interrupted. You can retry.");
+            }
+            final Throwable t = failure;
+            if(t instanceof TimeoutException) {
+                throw (TimeoutException) t;
+            }
+            if(t != null) {
+                throw Throwables.propagate(t);
+            }
+        }
+    }
+
+    /**
+     * Results of a query execution that duplicates of the query can read while they are being produced.
+     */
+    private static class SharedResults {
+        // guarded by the ExecutionManager
+        private QueryTracker producer;
+        private int subscribers = 0;    // duplicates that haven't been released yet
+        private QueryMetadata metadata;
+        private ReplayableRowBuffer rows;
+        private boolean closed = false;
+        private final List<Runnable> publishListeners = Lists.newArrayList();
+        private final List<Runnable> closeListeners = Lists.newArrayList();
+
+        private void publish(QueryMetadata metadata, ReplayableRowBuffer rows) {
+            final List<Runnable> listeners;
+            synchronized (this) {
+                this.metadata = metadata;
+                this.rows = rows;
+                listeners = takeAll(publishListeners);
+            }
+            runAll(listeners);
+        }
+
+        /**
+         * Runs the listener when the results are published or the original query is done.
+         * Runs it right away if that already happened.
+         */
+        private void whenPublished(Runnable listener) {
+            synchronized (this) {
+                if(rows == null && !closed) {
+                    publishListeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /**
+         * Runs the listener when the original query is done. Runs it right away if it already is.
+         */
+        private void whenClosed(Runnable listener) {
+            synchronized (this) {
+                if(!closed) {
+                    closeListeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        private static List<Runnable> takeAll(List<Runnable> listeners) {
+            final List<Runnable> ret = Lists.newArrayList(listeners);
+            listeners.clear();
+            return ret;
+        }
+
+        private static void runAll(List<Runnable> listeners) {
+            for(Runnable listener : listeners) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    log.error("Shared results listener failed", e);
+                }
+            }
+        }
+
+        private synchronized QueryMetadata getMetadata() {
+            return metadata;
+        }
+
+        private synchronized ReplayableRowBuffer.Reader newReader() {
+            return rows != null ? rows.newReader() : null;
+        }
+
+        private void close() {
+            final List<Runnable> listeners;
+            synchronized (this) {
+                closed = true;
+                if(rows != null) {
+                    rows.close();   // readers keep their own references
+                }
+                listeners = takeAll(publishListeners);
+                listeners.addAll(takeAll(closeListeners));
+            }
+            runAll(listeners);
+        }
     }
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Estimates how long a query will execute from the number of shards it covers, the work its groupings require per shard
+ * and the timings of previous executions of queries with the same shape (the query without its time range).
+ * @author vladimir
+ */
+public class QueryCostEstimator {
+    // used until a query shape has been executed
+    static final double DEFAULT_MILLIS_PER_UNIT = 100;
+    // weight of the latest execution in the moving average of the timings
+    private static final double HISTORY_WEIGHT = 0.3;
+    private static final int MAX_SHAPES = 10000;
+
+    private final Cache<String, Double> millisPerUnitByShape = CacheBuilder.newBuilder().maximumSize(MAX_SHAPES).build();
+
+    /**
+     * @param shape identifies queries that differ only in the time range
+     * @param shardCount number of shards the query covers
+     * @param groupingCostFactor relative amount of work per shard compared to a query without groupings
+     */
+    public long estimateMillis(String shape, int shardCount, double groupingCostFactor) {
+        final Double millisPerUnit = millisPerUnitByShape.getIfPresent(shape);
+        return (long) Math.ceil(getUnits(shardCount, groupingCostFactor) * (millisPerUnit != null ? millisPerUnit : DEFAULT_MILLIS_PER_UNIT));
+    }
+
+    /**
+     * Updates the timings of the query shape with an execution that took the given time.
+     */
+    public synchronized void record(String shape, int shardCount, double groupingCostFactor, long elapsedMillis) {
+        final double millisPerUnit = elapsedMillis / getUnits(shardCount, groupingCostFactor);
+        final Double previous = millisPerUnitByShape.getIfPresent(shape);
+        millisPerUnitByShape.put(shape, previous == null ? millisPerUnit :
+                HISTORY_WEIGHT * millisPerUnit + (1 - HISTORY_WEIGHT) * previous);
+    }
+
+    private static double getUnits(int shardCount, double groupingCostFactor) {
+        return Math.max(1, shardCount) * Math.max(1, groupingCostFactor);
+    }
+}
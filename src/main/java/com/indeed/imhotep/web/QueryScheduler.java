@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.google.common.collect.Lists;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Global admission control for query executions.
+ * Limits the number of concurrently executing queries and the sum of their estimated costs.
+ * Waiting queries are admitted by stride scheduling between the priority classes so each class gets a share of the
+ * budget proportional to its weight and are admitted in FIFO order within a class.
+ * A query that doesn't fit the remaining budget blocks its class and classes with lower weights,
+ * so big queries are not starved by smaller ones of the same priority while interactive queries keep running.
+ * A query that has waited longer than the starvation limit blocks its class and classes with lower weights until it
+ * fits, so even the most expensive query eventually runs while smaller queries keep arriving. Classes with higher
+ * weights are still admitted, so interactive queries don't wait for the executing batch queries to drain.
+ * @author vladimir
+ */
+public class QueryScheduler {
+    private static final Logger log = Logger.getLogger(QueryScheduler.class);
+
+    public enum Priority {
+        INTERACTIVE(8),
+        BATCH(2),
+        ASYNC(1);
+
+        private final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    static final long DEFAULT_STARVATION_MILLIS = 60 * 1000;
+
+    private final int maxConcurrent;
+    private final long maxCostMillis;
+    private final long starvationMillis;
+
+    private final Map<Priority, Deque<Ticket>> queues = new EnumMap<Priority, Deque<Ticket>>(Priority.class);
+    // virtual time of each class. advanced by the admitted cost divided by the class weight
+    private final Map<Priority, Double> passes = new EnumMap<Priority, Double>(Priority.class);
+    private final List<Ticket> running = Lists.newArrayList();
+    private long runningCostMillis = 0;
+    private long submittedCount = 0;
+    // listeners of the tickets that stopped waiting. run outside of the lock after each dispatch
+    private final List<Runnable> pendingListeners = Lists.newArrayList();
+
+    /**
+     * @param maxConcurrent maximum number of queries executing at the same time
+     * @param maxCostMillis maximum sum of the estimated execution times of the executing queries.
+     *                      A more expensive query is admitted when nothing else is executing.
+     */
+    public QueryScheduler(int maxConcurrent, long maxCostMillis) {
+        this(maxConcurrent, maxCostMillis, DEFAULT_STARVATION_MILLIS);
+    }
+
+    /**
+     * @param starvationMillis time after which a waiting query stops other queries from being admitted until it fits
+     */
+    public QueryScheduler(int maxConcurrent, long maxCostMillis, long starvationMillis) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxCostMillis = Math.max(1, maxCostMillis);
+        this.starvationMillis = Math.max(0, starvationMillis);
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<Ticket>());
+            passes.put(priority, 0.0);
+        }
+    }
+
+    /**
+     * Queues a query for execution. The returned ticket has to be closed when the execution is done or abandoned.
+     */
+    public Ticket submit(Priority priority, long estimatedCostMillis) {
+        final Ticket ticket;
+        synchronized (this) {
+            ticket = new Ticket(priority, Math.min(Math.max(1, estimatedCostMillis), maxCostMillis), submittedCount++);
+            final Deque<Ticket> queue = queues.get(priority);
+            if (queue.isEmpty()) {
+                // an idle class doesn't accumulate credit for the time it was idle
+                passes.put(priority, Math.max(passes.get(priority), getMinActivePass()));
+            }
+            queue.addLast(ticket);
+            dispatch();
+        }
+        runPendingListeners();
+        return ticket;
+    }
+
+    private double getMinActivePass() {
+        double min = Double.MAX_VALUE;
+        boolean any = false;
+        for (Priority priority : Priority.values()) {
+            if (!queues.get(priority).isEmpty()) {
+                min = Math.min(min, passes.get(priority));
+                any = true;
+            }
+        }
+        if (!any) {
+            for (Priority priority : Priority.values()) {
+                min = Math.min(min, passes.get(priority));
+            }
+        }
+        return min;
+    }
+
+    private void dispatch() {
+        while (running.size() < maxConcurrent) {
+            final Ticket next = pickNext();
+            if (next == null) {
+                break;
+            }
+            queues.get(next.priority).removeFirst();
+            passes.put(next.priority, passes.get(next.priority) + (double) next.costMillis / next.priority.weight);
+            running.add(next);
+            runningCostMillis += next.costMillis;
+            next.admittedTime = System.currentTimeMillis();
+            next.state = State.RUNNING;
+            next.queueLeft();
+        }
+        // admitted tickets stop waiting and the others see their new queue positions
+        notifyAll();
+    }
+
+    /**
+     * Returns the first ticket in the order of the class virtual times that fits into the remaining budget,
+     * skipping only classes with higher weights than a blocked class.
+     * A starved ticket blocks the classes with weights up to its own.
+     */
+    private Ticket pickNext() {
+        final Ticket starved = getStarvedTicket();
+        int blockedWeight = 0;
+        if (starved != null) {
+            if (fits(starved)) {
+                return starved;
+            }
+            // the executing queries drain until the starved one fits
+            blockedWeight = starved.priority.weight;
+        }
+        final List<Priority> order = getClassOrder();
+        for (Priority priority : order) {
+            if (priority.weight <= blockedWeight) {
+                continue;
+            }
+            final Ticket head = queues.get(priority).peekFirst();
+            if (fits(head)) {
+                return head;
+            }
+            blockedWeight = Math.max(blockedWeight, priority.weight);
+        }
+        return null;
+    }
+
+    private boolean fits(Ticket ticket) {
+        return running.isEmpty() || runningCostMillis + ticket.costMillis <= maxCostMillis;
+    }
+
+    /**
+     * Returns the longest waiting ticket at the head of its class if it has waited longer than the starvation limit.
+     */
+    private Ticket getStarvedTicket() {
+        final long now = System.currentTimeMillis();
+        Ticket starved = null;
+        for (Deque<Ticket> queue : queues.values()) {
+            final Ticket head = queue.peekFirst();
+            if (head != null && now - head.submittedTime >= starvationMillis &&
+                    (starved == null || head.sequence < starved.sequence)) {
+                starved = head;
+            }
+        }
+        return starved;
+    }
+
+    private List<Priority> getClassOrder() {
+        final List<Priority> order = Lists.newArrayList();
+        for (Priority priority : Priority.values()) {
+            if (!queues.get(priority).isEmpty()) {
+                order.add(priority);
+            }
+        }
+        Collections.sort(order, new Comparator<Priority>() {
+            @Override
+            public int compare(Priority o1, Priority o2) {
+                final int result = Double.compare(passes.get(o1), passes.get(o2));
+                return result != 0 ? result : o2.weight - o1.weight;
+            }
+        });
+        return order;
+    }
+
+    private void release(Ticket ticket) {
+        synchronized (this) {
+            if (ticket.state == State.QUEUED) {
+                queues.get(ticket.priority).remove(ticket);
+                ticket.queueLeft();
+            } else if (ticket.state == State.RUNNING) {
+                running.remove(ticket);
+                runningCostMillis -= ticket.costMillis;
+            }
+            ticket.state = State.DONE;
+            dispatch();
+        }
+        runPendingListeners();
+    }
+
+    private void runPendingListeners() {
+        final List<Runnable> listeners;
+        synchronized (this) {
+            if (pendingListeners.isEmpty()) {
+                return;
+            }
+            listeners = Lists.newArrayList(pendingListeners);
+            pendingListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.error("Admission listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the 1 based position of the ticket in the order it is expected to be admitted or 0 if it's not queued.
+     * Counts the tickets of its own class ahead of it and all tickets of classes with higher weights.
+     */
+    private synchronized int getQueuePosition(Ticket ticket) {
+        return ticket.state == State.QUEUED ? getTicketsAhead(ticket).size() + 1 : 0;
+    }
+
+    /**
+     * Estimates how long the ticket will wait by dividing the remaining work of the executing queries and the
+     * queries ahead of it between the execution slots.
+     */
+    private synchronized long getEstimatedWaitMillis(Ticket ticket) {
+        if (ticket.state != State.QUEUED) {
+            return 0;
+        }
+        final long now = System.currentTimeMillis();
+        long work = 0;
+        for (Ticket runningTicket : running) {
+            work += Math.max(0, runningTicket.costMillis - (now - runningTicket.admittedTime));
+        }
+        for (Ticket ahead : getTicketsAhead(ticket)) {
+            work += ahead.costMillis;
+        }
+        return work / maxConcurrent;
+    }
+
+    private List<Ticket> getTicketsAhead(Ticket ticket) {
+        final List<Ticket> ahead = Lists.newArrayList();
+        for (Priority priority : Priority.values()) {
+            if (priority == ticket.priority) {
+                for (Ticket queued : queues.get(priority)) {
+                    if (queued == ticket) {
+                        break;
+                    }
+                    ahead.add(queued);
+                }
+            } else if (priority.weight > ticket.priority.weight) {
+                ahead.addAll(queues.get(priority));
+            }
+        }
+        return ahead;
+    }
+
+    public synchronized int getQueuedCount() {
+        int count = 0;
+        for (Deque<Ticket> queue : queues.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    public synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    private enum State {
+        QUEUED, RUNNING, DONE
+    }
+
+    public class Ticket {
+        private final Priority priority;
+        private final long costMillis;
+        private final long sequence;    // orders tickets submitted in the same millisecond
+        private final long submittedTime = System.currentTimeMillis();
+        private long admittedTime;
+        private State state = State.QUEUED;
+        private Runnable admissionListener;
+
+        private Ticket(Priority priority, long costMillis, long sequence) {
+            this.priority = priority;
+            this.costMillis = costMillis;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Blocks until the query is admitted for execution.
+         * @throws TimeoutException if the query was not admitted in time. The ticket is closed in that case.
+         */
+        public void await(long timeoutMillis) throws TimeoutException, InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            // released outside of the lock as that runs the admission listeners of other tickets
+            try {
+                synchronized (QueryScheduler.this) {
+                    while (state == State.QUEUED) {
+                        final long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        QueryScheduler.this.wait(remaining);
+                    }
+                    if (state != State.QUEUED) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                release(this);
+                throw e;
+            }
+            release(this);
+            log.warn("Query with estimated cost of " + costMillis + "ms wasn't admitted in " + timeoutMillis + "ms");
+            throw new TimeoutException("Reached timeout waiting in the global queue for query execution");
+        }
+
+        /**
+         * Runs the listener when the query is admitted for execution or the ticket is closed while waiting.
+         * It runs right away if the ticket is not waiting any more. Otherwise it runs on the thread that admitted or
+         * closed the ticket so it must not block. Only one listener can be set.
+         */
+        public void whenAdmitted(Runnable listener) {
+            synchronized (QueryScheduler.this) {
+                if (state == State.QUEUED) {
+                    admissionListener = listener;
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        // guarded by the scheduler
+        private void queueLeft() {
+            if (admissionListener != null) {
+                pendingListeners.add(admissionListener);
+                admissionListener = null;
+            }
+        }
+
+        /**
+         * Frees the budget used by the query or removes it from the queue.
+         */
+        public void close() {
+            release(this);
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public long getEstimatedCostMillis() {
+            return costMillis;
+        }
+
+        public boolean isQueued() {
+            synchronized (QueryScheduler.this) {
+                return state == State.QUEUED;
+            }
+        }
+
+        /**
+         * Returns whether the query was admitted and the ticket is not closed yet.
+         */
+        public boolean isRunning() {
+            synchronized (QueryScheduler.this) {
+                return state == State.RUNNING;
+            }
+        }
+
+        public int getQueuePosition() {
+            return QueryScheduler.this.getQueuePosition(this);
+        }
+
+        public long getEstimatedWaitMillis() {
+            return QueryScheduler.this.getEstimatedWaitMillis(this);
+        }
+
+        /**
+         * Milliseconds the query has been executing or 0 if it wasn't admitted.
+         */
+        public long getExecutionMillis() {
+            synchronized (QueryScheduler.this) {
+                return admittedTime > 0 ? System.currentTimeMillis() - admittedTime : 0;
+            }
+        }
+
+        public long getSubmittedTime() {
+            return submittedTime;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.primitives.Longs;
@@ -23,8 +24,14 @@ import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.client.ImhotepClient;
 import com.indeed.imhotep.client.ShardIdWithVersion;
 import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.QueryCancelledException;
 import com.indeed.imhotep.iql.GroupStats;
+import com.indeed.imhotep.iql.GroupStatsCacheFormat;
+import com.indeed.imhotep.iql.GroupStatsSorter;
 import com.indeed.imhotep.iql.IQLQuery;
+import com.indeed.imhotep.iql.RenderedResultsCache;
+import com.indeed.imhotep.iql.ReplayableRowBuffer;
+import com.indeed.imhotep.iql.TimeSliceCache;
 import com.indeed.imhotep.iql.cache.QueryCache;
 import com.indeed.imhotep.metadata.DatasetMetadata;
 import com.indeed.imhotep.metadata.FieldMetadata;
@@ -60,6 +67,9 @@ import org.springframework.web.bind.annotation.RequestParam;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -82,6 +92,7 @@ import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
 * @author dwahler
@@ -98,10 +109,11 @@ public class QueryServlet {
     private static final Logger dataLog = Logger.getLogger("indeed.logentry");
     private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
     private static final String METADATA_FILE_SUFFIX = ".meta";
+    static final String CLIENT_DISCONNECTED = "Writing the response failed, client probably disconnected: ";
     // this can be incremented to invalidate the old cache
-    private static final byte VERSION_FOR_HASHING = 1;
+    private static final byte VERSION_FOR_HASHING = 2;
 
-    private static final Set<String> USED_PARAMS = Sets.newHashSet("view", "sync", "csv", "json", "interactive", "nocache");
+    private static final Set<String> USED_PARAMS = Sets.newHashSet("view", "sync", "csv", "json", "interactive", "nocache", "notimeslice");
 
     private final ImhotepClient imhotepClient;
     private final ImhotepClient imhotepInteractiveClient;
@@ -110,6 +122,12 @@ public class QueryServlet {
     private final QueryCache queryCache;
     private final ExecutionManager executionManager;
     private final ExecutorService executorService;
+    private final ExecutorService timeSliceExecutorService;
+    private final ExecutorService ftgsSplitExecutorService;
+    private final ExecutorService queryExecutorService;
+    private final int timeSliceMaxSlices;
+    private final int timeSliceCacheMaxSlices;
+    private final int ftgsSplits;
     private final long imhotepLocalTempFileSizeLimit;
     private final long imhotepDaemonTempFileSizeLimit;
 
@@ -121,7 +139,13 @@ public class QueryServlet {
                         QueryCache queryCache,
                         ExecutionManager executionManager,
                         ExecutorService executorService,
+                        ExecutorService timeSliceExecutorService,
+                        ExecutorService ftgsSplitExecutorService,
+                        ExecutorService queryExecutorService,
                         Integer rowLimit,
+                        Integer timeSliceMaxSlices,
+                        Integer timeSliceCacheMaxSlices,
+                        Integer ftgsSplits,
                         Long imhotepLocalTempFileSizeLimit,
                         Long imhotepDaemonTempFileSizeLimit) {
         this.imhotepClient = imhotepClient;
@@ -131,6 +155,12 @@ public class QueryServlet {
         this.queryCache = queryCache;
         this.executionManager = executionManager;
         this.executorService = executorService;
+        this.timeSliceExecutorService = timeSliceExecutorService;
+        this.ftgsSplitExecutorService = ftgsSplitExecutorService;
+        this.queryExecutorService = queryExecutorService;
+        this.timeSliceMaxSlices = timeSliceMaxSlices;
+        this.timeSliceCacheMaxSlices = timeSliceCacheMaxSlices;
+        this.ftgsSplits = ftgsSplits;
         this.imhotepLocalTempFileSizeLimit = imhotepLocalTempFileSizeLimit;
         this.imhotepDaemonTempFileSizeLimit = imhotepDaemonTempFileSizeLimit;
         EZImhotepSession.GROUP_LIMIT = rowLimit;
@@ -142,12 +172,12 @@ public class QueryServlet {
 
         final String httpUserName = getUserNameFromRequest(req);
         final String userName = Strings.nullToEmpty(Strings.isNullOrEmpty(httpUserName) ? req.getParameter("username") : httpUserName);
-        long queryStartTimestamp = System.currentTimeMillis();
+        final long queryStartTimestamp = System.currentTimeMillis();
 
         final boolean json = req.getParameter("json") != null;
         IQLStatement parsedQuery = null;
-        SelectExecutionStats selectExecutionStats = null;
         Throwable errorOccurred = null;
+        boolean processedAsynchronously = false;
         try {
             if(Strings.isNullOrEmpty(req.getParameter("client")) && Strings.isNullOrEmpty(userName)) {
                 throw new IdentificationRequiredException("IQL query requests have to include parameters 'client' and 'username' for identification");
@@ -156,21 +186,12 @@ public class QueryServlet {
             if(parsedQuery instanceof SelectStatement) {
                 logQueryToLog4J(query, (Strings.isNullOrEmpty(userName) ? req.getRemoteAddr() : userName), -1);
 
+                final SelectRequestArgs selectRequestArgs = new SelectRequestArgs(req, userName);
                 final ExecutionManager.QueryTracker queryTracker = executionManager.queryStarted(query, userName);
-                try {
-                    queryTracker.acquireLocks(); // blocks and waits if necessary
-
-                    queryStartTimestamp = System.currentTimeMillis();   // ignore time spent waiting
-
-                    // actually process
-                    final SelectRequestArgs selectRequestArgs = new SelectRequestArgs(req, userName);
-                    selectExecutionStats = handleSelectStatement(selectRequestArgs, resp, (SelectStatement) parsedQuery, queryTracker);
-                } finally {
-                    // this must be closed. but we may have to defer it to the async thread finishing query processing
-                    if(!queryTracker.isAsynchronousRelease()) {
-                        Closeables2.closeQuietly(queryTracker, log);
-                    }
-                }
+                // waiting and execution don't hold the container thread. the request is completed and logged when done
+                new AsyncSelectRequest(req, resp, query, userName, json, (SelectStatement) parsedQuery, selectRequestArgs,
+                        queryTracker, queryStartTimestamp).start();
+                processedAsynchronously = true;
             } else if(parsedQuery instanceof DescribeStatement) {
                 handleDescribeStatement(req, resp, (DescribeStatement)parsedQuery);
             } else if(parsedQuery instanceof ShowStatement) {
@@ -183,13 +204,209 @@ public class QueryServlet {
             handleError(resp, json, e, true, progress);
             errorOccurred = e;
         } finally {
+            if(!processedAsynchronously) {
+                logRequest(req, query, userName, queryStartTimestamp, parsedQuery, null, errorOccurred);
+            }
+        }
+    }
+
+    private void logRequest(HttpServletRequest req, String query, String userName, long queryStartTimestamp,
+                            IQLStatement parsedQuery, SelectExecutionStats selectExecutionStats, Throwable errorOccurred) {
+        try {
+            String remoteAddr = getForwardedForIPAddress(req);
+            if(remoteAddr == null) {
+                remoteAddr = req.getRemoteAddr();
+            }
+            logQuery(req, query, userName, queryStartTimestamp, parsedQuery, selectExecutionStats, errorOccurred, remoteAddr);
+        } catch (Throwable ignored) { }
+    }
+
+    /**
+     * Processes a select request in an asynchronous servlet context so that no container thread is held while the query
+     * waits in queues or executes. The waits for the query locks and for the global scheduler don't hold any thread.
+     * They complete callbacks that hand the request to the execution executor which prepares and executes the query
+     * including writing of the results.
+     */
+    private class AsyncSelectRequest implements AsyncListener {
+        private final HttpServletRequest req;
+        private final HttpServletResponse resp;
+        private final String query;
+        private final String userName;
+        private final boolean json;
+        private final SelectStatement parsedQuery;
+        private final SelectRequestArgs args;
+        private final ExecutionManager.QueryTracker queryTracker;
+        private final long requestStartTimestamp;
+        private AsyncContext asyncContext;
+        private volatile long queryStartTimestamp;
+
+        private AsyncSelectRequest(HttpServletRequest req, HttpServletResponse resp, String query, String userName, boolean json,
+                                   SelectStatement parsedQuery, SelectRequestArgs args, ExecutionManager.QueryTracker queryTracker,
+                                   long requestStartTimestamp) {
+            this.req = req;
+            this.resp = resp;
+            this.query = query;
+            this.userName = userName;
+            this.json = json;
+            this.parsedQuery = parsedQuery;
+            this.args = args;
+            this.queryTracker = queryTracker;
+            this.requestStartTimestamp = requestStartTimestamp;
+        }
+
+        private void start() {
+            try {
+                asyncContext = req.startAsync(req, resp);
+                // the waits and the execution have their own timeouts. a container timeout would complete the response
+                // while it may still be written by the worker thread
+                asyncContext.setTimeout(0);
+                asyncContext.addListener(this);
+            } catch (RuntimeException e) {
+                Closeables2.closeQuietly(queryTracker, log);
+                throw e;
+            }
+            queryTracker.acquireLocks(new ExecutionManager.WaitCallback() {
+                @Override
+                public void acquired() {
+                    if(args.asynchronous) {
+                        waitForOriginalCompletion();
+                    } else {
+                        submitPrepare();
+                    }
+                }
+
+                @Override
+                public void failed(Throwable t) {
+                    finish(requestStartTimestamp, null, t);
+                }
+            });
+        }
+
+        private void waitForOriginalCompletion() {
+            // asynchronous requests are served from the cache so an identical running query has to finish first
+            queryTracker.waitForOriginalCompletion(new ExecutionManager.WaitCallback() {
+                @Override
+                public void acquired() {
+                    submitPrepare();
+                }
+
+                @Override
+                public void failed(Throwable t) {
+                    finish(requestStartTimestamp, null, t);
+                }
+            });
+        }
+
+        private void submitPrepare() {
+            submit(queryExecutorService, new Runnable() {
+                @Override
+                public void run() {
+                    prepare();
+                }
+            });
+        }
+
+        private void prepare() {
+            queryStartTimestamp = System.currentTimeMillis();   // ignore time spent waiting for the locks
+            final SelectExecutionStats selectExecutionStats;
+            try {
+                selectExecutionStats = handleSelectStatement(args, resp, parsedQuery, queryTracker, this);
+            } catch (Throwable e) {
+                finish(queryStartTimestamp, null, e);
+                return;
+            }
+            if(selectExecutionStats != null) {  // otherwise the query is executed when the scheduler admits it
+                finish(queryStartTimestamp, selectExecutionStats, null);
+            }
+        }
+
+        /**
+         * Executes the query on the execution executor when the global scheduler admits it.
+         */
+        private void executeWhenAdmitted(final PendingExecution execution) {
+            queryTracker.waitForExecutionSlot(args.interactive ? QueryScheduler.Priority.INTERACTIVE : QueryScheduler.Priority.BATCH,
+                    execution.queryShape, execution.iqlQuery.getShardVersionList().size(), execution.iqlQuery.getGroupingCostFactor(),
+                    new ExecutionManager.WaitCallback() {
+                        @Override
+                        public void acquired() {
+                            final boolean submitted = submit(queryExecutorService, new Runnable() {
+                                @Override
+                                public void run() {
+                                    execute(execution);
+                                }
+                            });
+                            if(!submitted) {
+                                execution.abandon();
+                            }
+                        }
+
+                        @Override
+                        public void failed(Throwable t) {
+                            execution.abandon();
+                            finish(queryStartTimestamp, null, t);
+                        }
+                    });
+        }
+
+        private void execute(PendingExecution execution) {
+            SelectExecutionStats selectExecutionStats = null;
+            Throwable errorOccurred = null;
             try {
-                String remoteAddr = getForwardedForIPAddress(req);
-                if(remoteAddr == null) {
-                    remoteAddr = req.getRemoteAddr();
+                selectExecutionStats = executeSelectStatement(args, resp, queryTracker, execution);
+            } catch (Throwable e) {
+                errorOccurred = e;
+            }
+            finish(queryStartTimestamp, selectExecutionStats, errorOccurred);
+        }
+
+        /**
+         * @return false if the executor rejected the task. The request is finished with an error in that case.
+         */
+        private boolean submit(ExecutorService executor, Runnable task) {
+            try {
+                executor.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                finish(requestStartTimestamp, null, new RuntimeException("Too many queries are in progress. Please retry later.", e));
+                return false;
+            }
+        }
+
+        private void finish(long queryStartTimestamp, @Nullable SelectExecutionStats selectExecutionStats, @Nullable Throwable errorOccurred) {
+            // this must be closed. but we may have to defer it to the async thread finishing query processing
+            if(!queryTracker.isAsynchronousRelease()) {
+                Closeables2.closeQuietly(queryTracker, log);
+            }
+            try {
+                if(errorOccurred != null) {
+                    handleError(resp, json, errorOccurred, true, args.progress);
                 }
-                logQuery(req, query, userName, queryStartTimestamp, parsedQuery, selectExecutionStats, errorOccurred, remoteAddr);
-            } catch (Throwable ignored) { }
+            } catch (Throwable e) {
+                log.debug("Failed to write the error response", e);
+            }
+            logRequest(req, query, userName, queryStartTimestamp, parsedQuery, selectExecutionStats, errorOccurred);
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                log.debug("Request was already completed by the container", e);   // e.g. after a timeout
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            queryTracker.clientDisconnected("Request failed, client probably disconnected: " + event.getThrowable());
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
         }
     }
     
@@ -265,16 +482,33 @@ public class QueryServlet {
         }
     }
 
-    private SelectExecutionStats handleSelectStatement(final SelectRequestArgs args, final HttpServletResponse resp, SelectStatement parsedQuery, final ExecutionManager.QueryTracker queryTracker) throws IOException {
+    /**
+     * Serves the select request from the cache or the results of an identical running query. A query that has to be
+     * executed is handed to the request to be executed when the global scheduler admits it.
+     * @return null if the query is going to be executed by the request
+     */
+    @Nullable
+    private SelectExecutionStats handleSelectStatement(final SelectRequestArgs args, final HttpServletResponse resp, SelectStatement parsedQuery,
+                                                       final ExecutionManager.QueryTracker queryTracker, AsyncSelectRequest request) throws IOException {
         // hashing is done before calling translate so only original JParsec parsing is considered
         final String queryForHashing = parsedQuery.toHashKeyString();
+        final String queryShape = parsedQuery.toTimeIndependentHashKeyString();
 
         final IQLQuery iqlQuery = IQLTranslator.translate(parsedQuery, args.interactive ? imhotepInteractiveClient : imhotepClient,
                 args.imhotepUserName, metadata, imhotepLocalTempFileSizeLimit, imhotepDaemonTempFileSizeLimit);
+        iqlQuery.setCancellationToken(queryTracker.getCancellationToken());
+        iqlQuery.setFtgsSplitting(ftgsSplitExecutorService, ftgsSplits);
+        if(!args.timeSlicingDisabled) {
+            iqlQuery.setTimeSlicing(timeSliceExecutorService, timeSliceMaxSlices);
+            if(timeSliceCacheMaxSlices > 1 && (!args.cacheReadDisabled || !args.cacheWriteDisabled)) {
+                iqlQuery.setTimeSliceCache(new TimeSliceCache(queryCache, queryShape,
+                        timeSliceCacheMaxSlices, !args.cacheReadDisabled, !args.cacheWriteDisabled));
+            }
+        }
 
-        // TODO: handle requested format mismatch: e.g. cached CSV but asked for TSV shouldn't have to rerun the query
-        final String queryHash = getQueryHash(queryForHashing, iqlQuery.getShardVersionList(), args.csv);
-        final String cacheFileName = queryHash + (args.csv ? ".csv" : ".tsv");
+        // results are cached in a format independent binary form so both CSV and TSV requests can use them
+        final String queryHash = getQueryHash(queryForHashing, iqlQuery.getShardVersionList());
+        final String cacheFileName = queryHash + GroupStatsCacheFormat.FILE_SUFFIX;
         final boolean isCached = queryCache.isFileCached(cacheFileName);
 
         final QueryMetadata queryMetadata = new QueryMetadata();
@@ -286,6 +520,11 @@ public class QueryServlet {
         final String shardList = shardListToString(iqlQuery.getShardVersionList());
         queryMetadata.addItem("IQL-Shard-List", shardList, args.returnShardlist);
 
+        final String approxDistinctErrors = iqlQuery.getApproxDistinctErrors();
+        if(approxDistinctErrors != null) {
+            queryMetadata.addItem("IQL-Distinct-Error", approxDistinctErrors);
+        }
+
         final List<Interval> timeIntervalsMissingShards= iqlQuery.getTimeIntervalsMissingShards();
         if(timeIntervalsMissingShards.size() > 0) {
             final String missingIntervals = intervalListToString(timeIntervalsMissingShards);
@@ -323,68 +562,59 @@ public class QueryServlet {
                     log.info("Failed to load metadata cache from " + cacheFileName + METADATA_FILE_SUFFIX, e);
                 }
 
-                final InputStream cacheInputStream = queryCache.getInputStream(cacheFileName);
-                final int rowsWritten = IQLQuery.copyStream(cacheInputStream, outputStream, iqlQuery.getRowLimit(), args.progress);
+                final int rowsWritten = RenderedResultsCache.writeCachedRows(queryCache, cacheFileName, outputStream, args.csv, iqlQuery.getRowLimit(), args.progress);
                 outputStream.close();
                 return new SelectExecutionStats(isCached, rowsWritten, false, queryHash, 0);
             }
-            final IQLQuery.WriteResults writeResults;
-            final IQLQuery.ExecutionResult executionResult;
-            try {
-                // TODO: should we always get totals? opt out http param?
-                executionResult = iqlQuery.execute(args.progress, outputStream, true);
-                queryMetadata.addItem("IQL-Timings", executionResult.getTimings().replace('\n', '\t'), args.progress);
-                queryMetadata.addItem("IQL-Imhotep-Temp-Bytes-Written", executionResult.getImhotepTempFilesBytesWritten(), args.progress);
-                queryMetadata.addItem("IQL-Totals", Arrays.toString(executionResult.getTotals()), args.getTotals);
-
-                queryMetadata.setPendingHeaders(resp);
-                resp.setHeader("Access-Control-Expose-Headers", StringUtils.join(resp.getHeaderNames(), ", "));
-
-                if(args.progress) {
-                    outputStream.println("event: header");
-                    outputStream.print("data: ");
-                    outputStream.print(queryMetadata.toJSON() + "\n\n");
-                }
-                final Iterator<GroupStats> groupStats = executionResult.getRows();
-                final int groupingColumns = Math.max(1, (parsedQuery.groupBy == null || parsedQuery.groupBy.groupings == null) ? 1 : parsedQuery.groupBy.groupings.size());
-                final int selectColumns = Math.max(1, (parsedQuery.select == null || parsedQuery.select.getProjections() == null) ? 1 : parsedQuery.select.getProjections().size());
-                if(!args.asynchronous) {
-                    writeResults = iqlQuery.outputResults(groupStats, outputStream, args.csv, args.progress, iqlQuery.getRowLimit(), groupingColumns, selectColumns, args.cacheWriteDisabled);
-                } else {
-                    writeResults = new IQLQuery.WriteResults(0, null, groupStats, 0);
-                }
-                if (!args.cacheWriteDisabled && !isCached) {
-                    executorService.submit(new Callable<Void>() {
-                        @Override
-                        public Void call() throws Exception {
-                            try {
-                                try {
-                                    final OutputStream metadataCacheStream = queryCache.getOutputStream(cacheFileName + METADATA_FILE_SUFFIX);
-                                    queryMetadata.toStream(metadataCacheStream);
-                                    metadataCacheStream.close();
-                                } catch (Exception e) {
-                                    log.warn("Failed to upload metadata cache: " + cacheFileName, e);
-                                }
-                                try {
-                                    uploadResultsToCache(writeResults, cacheFileName, args.csv);
-                                } catch (Exception e) {
-                                    log.warn("Failed to upload cache: " + cacheFileName, e);
-                                }
-                            } finally {
-                                Closeables2.closeQuietly(queryTracker, log);
-                            }
-                            return null;
-                        }
-                    });
-                    queryTracker.markAsynchronousRelease(); // going to be closed asynchronously after cache is uploaded
+            final int groupingColumns = Math.max(1, (parsedQuery.groupBy == null || parsedQuery.groupBy.groupings == null) ? 1 : parsedQuery.groupBy.groupings.size());
+            final int selectColumns = Math.max(1, (parsedQuery.select == null || parsedQuery.select.getProjections() == null) ? 1 : parsedQuery.select.getProjections().size());
+            // identical query is running so we stream its results as they are produced instead of executing again
+            final ReplayableRowBuffer.Reader sharedRows = queryTracker.subscribeToResults();
+            if (sharedRows != null) {
+                log.trace("Returning results of the running identical query");
+                // cancelling stops the reader even when it is waiting for the original query to produce rows
+                queryTracker.getCancellationToken().register(sharedRows);
+                final GroupStatsSorter sorter = IQLQuery.newRowSorter(groupingColumns, selectColumns);
+                // a failure of the original execution, e.g. its timeout, shouldn't fail this request
+                final Iterator<GroupStats> rows = new SharedRowsWithFallback(sharedRows) {
+                    @Override
+                    protected Iterator<GroupStats> executeOwnCopy() throws Exception {
+                        queryTracker.waitForExecutionSlot(args.interactive ? QueryScheduler.Priority.INTERACTIVE : QueryScheduler.Priority.BATCH,
+                                queryShape, iqlQuery.getShardVersionList().size(), iqlQuery.getGroupingCostFactor());
+                        final IQLQuery.ExecutionResult executionResult = iqlQuery.execute(false, null, true);
+                        return iqlQuery.getOutputOrder(recordCompletion(executionResult.getRows(), queryTracker), sorter);
+                    }
+                };
+                try {
+                    queryMetadata.mergeIn(queryTracker.getSharedMetadata());
+                    queryMetadata.setPendingHeaders(resp);
+                    resp.setHeader("Access-Control-Expose-Headers", StringUtils.join(resp.getHeaderNames(), ", "));
+                    if(args.progress) {
+                        outputStream.println("event: header");
+                        outputStream.print("data: ");
+                        outputStream.print(queryMetadata.toJSON() + "\n\n");
+                    }
+                    final int rowsWritten = IQLQuery.writeRowsToStream(rows, outputStream, args.csv, iqlQuery.getRowLimit(), args.progress);
+                    outputStream.close();
+                    return new SelectExecutionStats(isCached, rowsWritten, false, queryHash, 0);
+                } catch (IOException e) {
+                    queryTracker.cancel(CLIENT_DISCONNECTED + e.getMessage());
+                    throw e;
+                } catch (QueryCancelledException e) {
+                    queryTracker.cancel(e.getMessage());
+                    throw e;
+                } finally {
+                    queryTracker.getCancellationToken().unregister(sharedRows);
+                    sharedRows.close();    // rows may not have been read to the end because of the row limit
+                    sorter.close();
+                    Closeables2.closeQuietly(iqlQuery, log);
+                    queryTracker.executionFinished();
                 }
-            } catch (ImhotepOutOfMemoryException e) {
-                throw Throwables.propagate(e);
-            } finally {
-                Closeables2.closeQuietly(iqlQuery, log);
             }
-            outputStream.close();
-            return new SelectExecutionStats(isCached, writeResults, queryHash, executionResult.getImhotepTempFilesBytesWritten());
+            // the query waits for the global scheduler without holding a thread
+            request.executeWhenAdmitted(new PendingExecution(queryTracker, iqlQuery, queryShape, queryHash, cacheFileName, isCached,
+                    queryMetadata, outputStream, groupingColumns, selectColumns));
+            return null;
         } else {
             // TODO: rework the async case to use the same code path as the sync case above except running under an executor
             if (!isCached && args.cacheWriteDisabled) {
@@ -394,29 +624,48 @@ public class QueryServlet {
             resp.setContentType("application/json");
 
             if (!isCached) {
-                executorService.submit(new Callable<Void>() {
-                    @Override
-                    public Void call() throws Exception {
-                        try {
-                            // TODO: get totals working with the cache
-                            final IQLQuery.ExecutionResult executionResult = iqlQuery.execute(false, null, false);
-                            final Iterator<GroupStats> groupStats = executionResult.getRows();
-
-                            final OutputStream cacheStream = queryCache.getOutputStream(cacheFileName);
-                            IQLQuery.writeRowsToStream(groupStats, cacheStream, args.csv, Integer.MAX_VALUE, false);
-                            cacheStream.close();    // has to be closed
-                            return null;
-                        } finally {
-                            Closeables2.closeQuietly(iqlQuery, log);
-                            Closeables2.closeQuietly(queryTracker, log);
-                        }
-                    }
-                });
                 queryTracker.markAsynchronousRelease(); // going to be closed asynchronously after cache is uploaded
+                // the query waits for the global scheduler without holding a thread
+                queryTracker.waitForExecutionSlot(QueryScheduler.Priority.ASYNC, queryShape,
+                        iqlQuery.getShardVersionList().size(), iqlQuery.getGroupingCostFactor(), new ExecutionManager.WaitCallback() {
+                            @Override
+                            public void acquired() {
+                                try {
+                                    executorService.submit(new Callable<Void>() {
+                                        @Override
+                                        public Void call() throws Exception {
+                                            try {
+                                                // TODO: get totals working with the cache
+                                                final IQLQuery.ExecutionResult executionResult = iqlQuery.execute(false, null, false);
+                                                final Iterator<GroupStats> groupStats = executionResult.getRows();
+
+                                                final OutputStream cacheStream = queryCache.getOutputStream(cacheFileName);
+                                                GroupStatsCacheFormat.write(groupStats, cacheStream);   // closes the stream or aborts it on failure
+                                                return null;
+                                            } finally {
+                                                Closeables2.closeQuietly(iqlQuery, log);
+                                                queryTracker.executionFinished();
+                                                Closeables2.closeQuietly(queryTracker, log);
+                                            }
+                                        }
+                                    });
+                                } catch (RejectedExecutionException e) {
+                                    failed(e);
+                                }
+                            }
+
+                            @Override
+                            public void failed(Throwable t) {
+                                log.warn("Asynchronous query was not executed: " + queryHash, t);
+                                Closeables2.closeQuietly(iqlQuery, log);
+                                queryTracker.executionFinished();
+                                Closeables2.closeQuietly(queryTracker, log);
+                            }
+                        });
             }
 
             final URL baseURL = new URL(args.requestURL);
-            final URL resultsURL = new URL(baseURL, "results/" + cacheFileName);
+            final URL resultsURL = new URL(baseURL, "results/" + queryHash + (args.csv ? ".csv" : ".tsv"));
 
             final ObjectMapper mapper = new ObjectMapper();
             final ObjectNode ret = mapper.createObjectNode();
@@ -430,6 +679,98 @@ public class QueryServlet {
 
 
 
+    /**
+     * Executes the query admitted by the global scheduler and writes the results to the client and the cache.
+     */
+    private SelectExecutionStats executeSelectStatement(final SelectRequestArgs args, final HttpServletResponse resp,
+                                                        final ExecutionManager.QueryTracker queryTracker, PendingExecution execution) throws IOException {
+        final IQLQuery iqlQuery = execution.iqlQuery;
+        final String queryHash = execution.queryHash;
+        final String cacheFileName = execution.cacheFileName;
+        final boolean isCached = execution.isCached;
+        final QueryMetadata queryMetadata = execution.queryMetadata;
+        final ServletOutputStream outputStream = execution.outputStream;
+        final int groupingColumns = execution.groupingColumns;
+        final int selectColumns = execution.selectColumns;
+        // duplicates may still read the rows of this execution when its client disconnects
+        final DetachableOutputStream clientStream = new DetachableOutputStream(outputStream, queryTracker);
+        final IQLQuery.WriteResults writeResults;
+        final IQLQuery.ExecutionResult executionResult;
+        try {
+            // TODO: should we always get totals? opt out http param?
+            executionResult = iqlQuery.execute(args.progress, clientStream, true);
+            queryMetadata.addItem("IQL-Timings", executionResult.getTimings().replace('\n', '\t'), args.progress);
+            queryMetadata.addItem("IQL-Imhotep-Temp-Bytes-Written", executionResult.getImhotepTempFilesBytesWritten(), args.progress);
+            queryMetadata.addItem("IQL-Totals", Arrays.toString(executionResult.getTotals()), args.getTotals);
+
+            queryMetadata.setPendingHeaders(resp);
+            resp.setHeader("Access-Control-Expose-Headers", StringUtils.join(resp.getHeaderNames(), ", "));
+
+            if(args.progress) {
+                clientStream.write(("event: header\r\ndata: " + queryMetadata.toJSON() + "\n\n").getBytes(UTF8_CHARSET));
+            }
+            final Iterator<GroupStats> groupStats = recordCompletion(executionResult.getRows(), queryTracker);
+            if(!args.asynchronous) {
+                // duplicates of this query that arrive while it's running read the rows as they are output
+                final ReplayableRowBuffer sharedRows = queryTracker.publishResults(queryMetadata);
+                boolean allRowsShared = false;
+                try {
+                    writeResults = iqlQuery.outputResults(groupStats, clientStream, args.csv, args.progress, iqlQuery.getRowLimit(), groupingColumns, selectColumns, args.cacheWriteDisabled, sharedRows);
+                    allRowsShared = true;
+                } finally {
+                    if(sharedRows != null) {
+                        if(allRowsShared) {
+                            sharedRows.finish();
+                        } else {
+                            sharedRows.fail(new IllegalStateException("Original execution of the query failed"));
+                        }
+                    }
+                }
+            } else {
+                writeResults = new IQLQuery.WriteResults(0, null, groupStats, 0);
+            }
+            if (!args.cacheWriteDisabled && !isCached) {
+                executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            try {
+                                final OutputStream metadataCacheStream = queryCache.getOutputStream(cacheFileName + METADATA_FILE_SUFFIX);
+                                queryMetadata.toStream(metadataCacheStream);
+                                metadataCacheStream.close();
+                            } catch (Exception e) {
+                                log.warn("Failed to upload metadata cache: " + cacheFileName, e);
+                            }
+                            try {
+                                uploadResultsToCache(writeResults, cacheFileName);
+                            } catch (Exception e) {
+                                log.warn("Failed to upload cache: " + cacheFileName, e);
+                            }
+                        } finally {
+                            Closeables2.closeQuietly(queryTracker, log);
+                        }
+                        return null;
+                    }
+                });
+                queryTracker.markAsynchronousRelease(); // going to be closed asynchronously after cache is uploaded
+            }
+        } catch (ImhotepOutOfMemoryException e) {
+            throw Throwables.propagate(e);
+        } catch (IOException e) {
+            // a failed write means the client is gone so the query is cancelled to free its resources right away
+            queryTracker.cancel(CLIENT_DISCONNECTED + e.getMessage());
+            throw e;
+        } catch (QueryCancelledException e) {
+            queryTracker.cancel(e.getMessage());
+            throw e;
+        } finally {
+            Closeables2.closeQuietly(iqlQuery, log);
+            queryTracker.executionFinished();
+        }
+        clientStream.close();
+        return new SelectExecutionStats(isCached, writeResults, queryHash, executionResult.getImhotepTempFilesBytesWritten());
+    }
+
     private static final DateTimeFormatter yyyymmddhhmmss = DateTimeFormat.forPattern("yyyyMMddHHmmss").withZone(DateTimeZone.forOffsetHours(-6));
 
     @Nullable
@@ -481,12 +822,11 @@ public class QueryServlet {
         return sb.toString();
     }
 
-    private void uploadResultsToCache(IQLQuery.WriteResults writeResults, String cachedFileName, boolean csv) throws IOException {
+    private void uploadResultsToCache(IQLQuery.WriteResults writeResults, String cachedFileName) throws IOException {
         if(writeResults.resultCacheIterator != null) {
             // use the memory cached data
             final OutputStream cacheStream = queryCache.getOutputStream(cachedFileName);
-            IQLQuery.writeRowsToStream(writeResults.resultCacheIterator, cacheStream, csv, Integer.MAX_VALUE, false);
-            cacheStream.close(); // has to be closed
+            GroupStatsCacheFormat.write(writeResults.resultCacheIterator, cacheStream); // closes the stream or aborts it on failure
         } else if(writeResults.unsortedFile != null) {
             // cache overflowed to disk so read from file
             try {
@@ -501,6 +841,62 @@ public class QueryServlet {
         }
     }
 
+    /**
+     * Records the execution time of the query when all rows are produced. Rows are produced before they are sent
+     * unless the cache is disabled and the rows don't have to be sorted.
+     */
+    private static Iterator<GroupStats> recordCompletion(final Iterator<GroupStats> rows, final ExecutionManager.QueryTracker queryTracker) {
+        return new AbstractIterator<GroupStats>() {
+            @Override
+            protected GroupStats computeNext() {
+                if (rows.hasNext()) {
+                    return rows.next();
+                }
+                queryTracker.executionCompleted();
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Select query that is prepared and waits for the global scheduler to admit its execution.
+     */
+    private static class PendingExecution {
+        private final ExecutionManager.QueryTracker queryTracker;
+        private final IQLQuery iqlQuery;
+        private final String queryShape;
+        private final String queryHash;
+        private final String cacheFileName;
+        private final boolean isCached;
+        private final QueryMetadata queryMetadata;
+        private final ServletOutputStream outputStream;
+        private final int groupingColumns;
+        private final int selectColumns;
+
+        private PendingExecution(ExecutionManager.QueryTracker queryTracker, IQLQuery iqlQuery, String queryShape, String queryHash,
+                                 String cacheFileName, boolean isCached, QueryMetadata queryMetadata, ServletOutputStream outputStream,
+                                 int groupingColumns, int selectColumns) {
+            this.queryTracker = queryTracker;
+            this.iqlQuery = iqlQuery;
+            this.queryShape = queryShape;
+            this.queryHash = queryHash;
+            this.cacheFileName = cacheFileName;
+            this.isCached = isCached;
+            this.queryMetadata = queryMetadata;
+            this.outputStream = outputStream;
+            this.groupingColumns = groupingColumns;
+            this.selectColumns = selectColumns;
+        }
+
+        /**
+         * Releases the resources of the query when it is not going to be executed.
+         */
+        private void abandon() {
+            Closeables2.closeQuietly(iqlQuery, log);
+            queryTracker.executionFinished();
+        }
+    }
+
     private static class SelectExecutionStats {
         public final boolean cached;
         public final int rowsWritten;
@@ -626,7 +1022,7 @@ public class QueryServlet {
     /**
      * Produces a Base64 encoded SHA-1 hash of the query and the list of shard names/versions which has to be sorted.
      */
-    private String getQueryHash(String query, Collection<ShardIdWithVersion> shards, boolean csv) {
+    private String getQueryHash(String query, Collection<ShardIdWithVersion> shards) {
         final MessageDigest sha1;
         try {
             sha1 = MessageDigest.getInstance("SHA-1");
@@ -641,7 +1037,6 @@ public class QueryServlet {
             for(ShardIdWithVersion shard : shards) {
                 sha1.update(shard.getShardId().getBytes(UTF8_CHARSET));
                 sha1.update(Longs.toByteArray(shard.getVersion()));
-                sha1.update(csv ? (byte)1 : 0);
             }
         }
         sha1.update(VERSION_FOR_HASHING);
@@ -835,6 +1230,7 @@ public class QueryServlet {
         public final boolean headOnly;
         public final boolean progress;
         public final boolean getTotals;
+        public final boolean timeSlicingDisabled;
         public final String imhotepUserName;
         public final String requestURL;
 
@@ -850,6 +1246,7 @@ public class QueryServlet {
             headOnly = "HEAD".equals(req.getMethod()) || req.getParameter("head") != null;
             progress = req.getParameter("progress") != null;
             getTotals = req.getParameter("totals") != null;
+            timeSlicingDisabled = req.getParameter("notimeslice") != null;
             final String clientName = Strings.nullToEmpty(req.getParameter("client"));
             imhotepUserName = "IQL:" + (!Strings.isNullOrEmpty(userName) ? userName : clientName);
             requestURL = req.getRequestURL().toString();
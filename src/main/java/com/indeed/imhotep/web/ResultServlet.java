@@ -13,7 +13,9 @@
  */
  package com.indeed.imhotep.web;
 
+import com.indeed.imhotep.iql.GroupStatsCacheFormat;
 import com.indeed.imhotep.iql.IQLQuery;
+import com.indeed.imhotep.iql.RenderedResultsCache;
 import com.indeed.imhotep.iql.cache.QueryCache;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -49,6 +51,17 @@ public class ResultServlet {
         final boolean csv = filename.endsWith(".csv");
         final boolean avoidFileSave = view != null;
 
+        // results are cached in a format independent form and the extension selects the format to render
+        final String cachedRowsFileName = (csv || filename.endsWith(".tsv")) ?
+                filename.substring(0, filename.length() - 4) + GroupStatsCacheFormat.FILE_SUFFIX : null;
+        if (cachedRowsFileName != null && queryCache.isFileCached(cachedRowsFileName)) {
+            setContentType(resp, avoidFileSave, csv, false);
+            RenderedResultsCache.writeCachedRows(queryCache, cachedRowsFileName, outputStream, csv, Integer.MAX_VALUE, false);
+            outputStream.close();
+            return;
+        }
+
+        // results cached as text by older versions
         if (!queryCache.isFileCached(filename)) {
             resp.sendError(404);
             return;
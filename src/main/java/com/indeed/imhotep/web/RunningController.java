@@ -15,7 +15,9 @@
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 import java.util.Collections;
@@ -48,6 +50,16 @@ public class RunningController {
         return new State(queries);
     }
 
+    /**
+     * Cancels the running query with the given id. Its Imhotep sessions are closed immediately.
+     */
+    @RequestMapping(value = "/running/{id}/cancel", method = RequestMethod.POST)
+    @ResponseBody
+    public CancelResult cancel(@PathVariable("id") long id) {
+        final boolean cancelled = executionManager.cancelQuery(id, "Cancelled through the running queries API");
+        return new CancelResult(id, cancelled);
+    }
+
     public static class State {
         private List<ExecutionManager.QueryTracker> queries;
 
@@ -63,4 +75,25 @@ public class RunningController {
             this.queries = queries;
         }
     }
+
+    public static class CancelResult {
+        private final long id;
+        private final boolean cancelled;
+
+        public CancelResult(long id, boolean cancelled) {
+            this.id = id;
+            this.cancelled = cancelled;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * False if the query is not running or was already cancelled.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.indeed.imhotep.iql.GroupStats;
+import com.indeed.imhotep.iql.ReplayableRowBuffer;
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+
+/**
+ * Rows of an identical running query that are produced by executing the query again when the running query fails.
+ * The rows already read from the running query are skipped in the rows of the own execution so the reader gets
+ * every row exactly once.
+ * @author vladimir
+ */
+abstract class SharedRowsWithFallback extends AbstractIterator<GroupStats> {
+    private static final Logger log = Logger.getLogger(SharedRowsWithFallback.class);
+
+    private final ReplayableRowBuffer.Reader sharedRows;
+    private Iterator<GroupStats> ownRows;
+    private int sharedRowsRead = 0;
+
+    SharedRowsWithFallback(ReplayableRowBuffer.Reader sharedRows) {
+        this.sharedRows = sharedRows;
+    }
+
+    /**
+     * Executes the query and returns its rows in the order the running query produces them.
+     */
+    protected abstract Iterator<GroupStats> executeOwnCopy() throws Exception;
+
+    @Override
+    protected GroupStats computeNext() {
+        if (ownRows == null) {
+            try {
+                if (sharedRows.hasNext()) {
+                    sharedRowsRead++;
+                    return sharedRows.next();
+                }
+                return endOfData();
+            } catch (ReplayableRowBuffer.ProducerFailedException e) {
+                log.info("Executing the query after its identical running query failed", e);
+                startOwnCopy();
+            }
+        }
+        while (ownRows.hasNext()) {
+            final GroupStats row = ownRows.next();
+            if (row != null) {
+                return row;
+            }
+        }
+        return endOfData();
+    }
+
+    private void startOwnCopy() {
+        try {
+            ownRows = executeOwnCopy();
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+        for (int skipped = 0; skipped < sharedRowsRead && ownRows.hasNext(); ) {
+            if (ownRows.next() != null) {
+                skipped++;
+            }
+        }
+    }
+}
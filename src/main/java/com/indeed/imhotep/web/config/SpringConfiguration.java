@@ -25,6 +25,7 @@ import com.indeed.imhotep.client.ImhotepClient;
 import com.indeed.imhotep.iql.cache.QueryCache;
 import com.indeed.imhotep.iql.cache.QueryCacheFactory;
 import com.indeed.imhotep.web.ImhotepMetadataCache;
+import com.indeed.imhotep.web.QueryScheduler;
 import com.indeed.imhotep.web.QueryServlet;
 import com.indeed.imhotep.web.TopTermsCache;
 import com.indeed.imhotep.shortlink.ShortLinkRepository;
@@ -46,7 +47,10 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -70,6 +74,53 @@ public class SpringConfiguration extends WebMvcConfigurerAdapter {
         );
     }
 
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService timeSliceExecutorService() {
+        final int threads = env.getProperty("query.timeslice.threads", Integer.class, 16);
+        return Executors.newFixedThreadPool(threads, new NamedThreadFactory("IQL-TimeSlice-Worker"));
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService ftgsSplitExecutorService() {
+        final int threads = env.getProperty("query.ftgs.split.threads", Integer.class, 8);
+        return Executors.newFixedThreadPool(threads, new NamedThreadFactory("IQL-FTGS-Split-Worker"));
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ScheduledExecutorService queryWaitTimeoutExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("IQL-Query-Wait-Timeout"));
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService queryExecutorService() {
+        final int maxThreads = env.getProperty("query.executor.max.threads", Integer.class, 64);
+        return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new NamedThreadFactory("IQL-Query-Execution"));
+    }
+
+    @Bean
+    public Integer timeSliceMaxSlices() {
+        return env.getProperty("query.timeslice.max.slices", Integer.class, 1);
+    }
+
+    @Bean
+    public Integer timeSliceCacheMaxSlices() {
+        return env.getProperty("query.timeslice.cache.max.slices", Integer.class, 0);
+    }
+
+    @Bean
+    public Integer ftgsSplits() {
+        return env.getProperty("query.ftgs.splits", Integer.class, 1);
+    }
+
+    @Bean
+    public QueryScheduler queryScheduler() {
+        final int maxConcurrent = env.getProperty("query.scheduler.max.concurrent", Integer.class, 32);
+        final long maxCostSeconds = env.getProperty("query.scheduler.max.cost.seconds", Long.class, 1800L);
+        final long starvationSeconds = env.getProperty("query.scheduler.starvation.seconds", Long.class, 60L);
+        return new QueryScheduler(maxConcurrent, TimeUnit.SECONDS.toMillis(maxCostSeconds), TimeUnit.SECONDS.toMillis(starvationSeconds));
+    }
+
     @Bean 
     QueryCache queryCache() throws PropertyException {
         return QueryCacheFactory.newQueryCache(env);
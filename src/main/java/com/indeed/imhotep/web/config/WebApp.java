@@ -64,6 +64,7 @@ public class WebApp  extends AbstractAnnotationConfigDispatcherServletInitialize
         super.onStartup(servletContext);
 
         FilterRegistration.Dynamic noCacheFilter = servletContext.addFilter("nocache", NoCacheFilter.class);
+        noCacheFilter.setAsyncSupported(true);  // select queries are processed in async contexts
         noCacheFilter.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), false, "/*");
 
         cleanupTempFiles();
@@ -161,8 +162,9 @@ public class WebApp  extends AbstractAnnotationConfigDispatcherServletInitialize
         final CharacterEncodingFilter utf8 = new CharacterEncodingFilter();
         utf8.setEncoding("utf-8");
         utf8.setForceEncoding(true);
-        servletContext.addFilter("SetCharacterEncodingFilter", utf8)
-                .addMappingForUrlPatterns(null, false, "/*");
+        final FilterRegistration.Dynamic registration = servletContext.addFilter("SetCharacterEncodingFilter", utf8);
+        registration.setAsyncSupported(true);
+        registration.addMappingForUrlPatterns(null, false, "/*");
     }
 
     public static class SystemExports {
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author vladimir
+ */
+public class TestCancellationToken {
+    @Test
+    public void testCancelClosesRegisteredResources() {
+        final CancellationToken token = new CancellationToken();
+        final CountingCloseable registered = new CountingCloseable();
+        final CountingCloseable unregistered = new CountingCloseable();
+        token.register(registered);
+        token.register(unregistered);
+        token.unregister(unregistered);
+        token.checkCancelled();
+
+        assertTrue(token.cancel("test"));
+        assertFalse(token.cancel("again"));
+        assertEquals(1, registered.closeCount);
+        assertEquals(0, unregistered.closeCount);
+        assertEquals("test", token.getCancelReason());
+        try {
+            token.checkCancelled();
+            fail("cancelled token has to throw");
+        } catch (QueryCancelledException expected) {
+        }
+    }
+
+    @Test
+    public void testResourceRegisteredAfterCancelIsClosed() {
+        final CancellationToken token = new CancellationToken();
+        token.cancel("test");
+        final CountingCloseable resource = new CountingCloseable();
+        token.register(resource);
+        assertEquals(1, resource.closeCount);
+    }
+
+    private static class CountingCloseable implements Closeable {
+        private int closeCount = 0;
+
+        @Override
+        public void close() {
+            closeCount++;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.indeed.imhotep.GroupMultiRemapRule;
+import com.indeed.imhotep.RegroupCondition;
+import com.indeed.imhotep.api.ImhotepSession;
+import org.easymock.Capture;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author vladimir
+ */
+public class TestEZImhotepSession {
+    private ImhotepSession session;
+    private EZImhotepSession ezSession;
+
+    @Before
+    public void init() throws Exception {
+        session = createMock(ImhotepSession.class);
+        ezSession = new EZImhotepSession(session);
+    }
+
+    private Capture<GroupMultiRemapRule[]> expectRegroup(int newNumGroups) throws Exception {
+        final Capture<GroupMultiRemapRule[]> rules = new Capture<GroupMultiRemapRule[]>();
+        expect(session.regroup(capture(rules), eq(true))).andReturn(newNumGroups).once();
+        return rules;
+    }
+
+    private static void assertStringTerms(String[] expected, RegroupCondition[] conditions) {
+        final String[] terms = new String[conditions.length];
+        for (int i = 0; i < conditions.length; i++) {
+            terms[i] = conditions[i].stringTerm;
+        }
+        assertArrayEquals(expected, terms);
+    }
+
+    @Test
+    public void testExplodeSkipsRepeatedTerms() throws Exception {
+        final Capture<GroupMultiRemapRule[]> rules = expectRegroup(3);
+        replay(session);
+
+        ezSession.explodeEachGroup(Field.intField("i"), new long[] {5, 7, 5}, null);
+
+        verify(session);
+        assertEquals(1, rules.getValue().length);
+        final GroupMultiRemapRule rule = rules.getValue()[0];
+        assertEquals(2, rule.conditions.length);
+        assertEquals(5, rule.conditions[0].intTerm);
+        assertEquals(7, rule.conditions[1].intTerm);
+        assertArrayEquals(new int[] {1, 2}, rule.positiveGroups);
+        assertEquals(3, ezSession.getNumGroups());
+    }
+
+    @Test
+    public void testFilterRegroupsAllGroupsOnce() throws Exception {
+        expectRegroup(4);
+        final Capture<GroupMultiRemapRule[]> rules = expectRegroup(4);
+        replay(session);
+
+        ezSession.explodeEachGroup(Field.stringField("s"), new String[] {"a", "b", "c"}, null);
+        ezSession.filter(Field.stringField("s"), new String[] {"x", "y", "x"});
+
+        verify(session);
+        assertEquals(3, rules.getValue().length);
+        for (int group = 1; group <= 3; group++) {
+            final GroupMultiRemapRule rule = rules.getValue()[group - 1];
+            assertEquals(group, rule.targetGroup);
+            assertEquals(0, rule.negativeGroup);
+            assertArrayEquals(new int[] {group, group}, rule.positiveGroups);
+            assertStringTerms(new String[] {"x", "y"}, rule.conditions);
+        }
+        assertEquals(4, ezSession.getNumGroups());
+    }
+
+    @Test
+    public void testFilterNegationKeepsUnmatchedDocs() throws Exception {
+        expectRegroup(3);
+        final Capture<GroupMultiRemapRule[]> rules = expectRegroup(3);
+        replay(session);
+
+        ezSession.explodeEachGroup(Field.intField("i"), new long[] {1, 2}, null);
+        ezSession.filterNegation(Field.intField("i"), new long[] {3, 3});
+
+        verify(session);
+        assertEquals(2, rules.getValue().length);
+        for (int group = 1; group <= 2; group++) {
+            final GroupMultiRemapRule rule = rules.getValue()[group - 1];
+            assertEquals(group, rule.negativeGroup);
+            assertArrayEquals(new int[] {0}, rule.positiveGroups);
+            assertEquals(3, rule.conditions[0].intTerm);
+        }
+    }
+
+    @Test
+    public void testRegexFilterStaysOnDaemon() throws Exception {
+        expectRegroup(3);
+        expect(session.regexRegroup("s", "x.*", 1, 0, 1)).andReturn(3).once();
+        expect(session.regexRegroup("s", "x.*", 2, 0, 2)).andReturn(3).once();
+        replay(session);
+
+        ezSession.explodeEachGroup(Field.stringField("s"), new String[] {"a", "b"}, null);
+        ezSession.filterRegex(Field.stringField("s"), "x.*");
+
+        verify(session);
+    }
+
+    @Test
+    public void testPushingTheSameStatTwiceReusesIt() throws Exception {
+        expect(session.pushStat("clicks")).andReturn(1).once();
+        replay(session);
+
+        final SingleStatReference first = ezSession.pushStat(EZImhotepSession.intField("clicks"));
+        final SingleStatReference second = ezSession.pushStat(EZImhotepSession.intField("clicks"));
+
+        verify(session);
+        assertEquals(0, first.depth);
+        assertEquals(0, second.depth);
+        assertEquals(1, ezSession.getStackDepth());
+        assertEquals(7.0, second.getValue(new long[] {7}), 0.0);
+    }
+
+    @Test
+    public void testPoppingAReusedStatKeepsItWhileReferenced() throws Exception {
+        session = createStrictMock(ImhotepSession.class);
+        ezSession = new EZImhotepSession(session);
+        expect(session.pushStat("clicks")).andReturn(1).once();
+        expect(session.popStat()).andReturn(0).once();
+        expect(session.pushStat("clicks")).andReturn(1).once();
+        replay(session);
+
+        final SingleStatReference first = ezSession.pushStat(EZImhotepSession.intField("clicks"));
+        final SingleStatReference second = ezSession.pushStat(EZImhotepSession.intField("clicks"));
+        assertSame(second, ezSession.popStat());
+        assertFalse(second.isValid());
+        assertTrue(first.isValid());
+        assertEquals(1, ezSession.getStackDepth());
+
+        // the stat is gone from the daemon once the last reference is popped so it's pushed again
+        assertSame(first, ezSession.popStat());
+        assertEquals(0, ezSession.getStackDepth());
+        final SingleStatReference third = ezSession.pushStat(EZImhotepSession.intField("clicks"));
+        assertEquals(0, third.depth);
+
+        verify(session);
+    }
+
+    @Test
+    public void testPoppingAReuseBelowTheTopLeavesTheDaemonStack() throws Exception {
+        session = createStrictMock(ImhotepSession.class);
+        ezSession = new EZImhotepSession(session);
+        expect(session.pushStat("clicks")).andReturn(1).once();
+        expect(session.pushStat("impressions")).andReturn(2).once();
+        expect(session.popStat()).andReturn(1).once();
+        expect(session.popStat()).andReturn(0).once();
+        replay(session);
+
+        final SingleStatReference clicks = ezSession.pushStat(EZImhotepSession.intField("clicks"));
+        final SingleStatReference impressions = ezSession.pushStat(EZImhotepSession.intField("impressions"));
+        final SingleStatReference clicksAgain = ezSession.pushStat(EZImhotepSession.intField("clicks"));
+        assertEquals(0, clicksAgain.depth);
+        assertEquals(2, ezSession.getStackDepth());
+
+        // the reuse points into the stack below impressions which has to stay on top
+        assertSame(clicksAgain, ezSession.popStat());
+        assertEquals(2, ezSession.getStackDepth());
+        assertTrue(impressions.isValid());
+        assertEquals(1, impressions.depth);
+        assertEquals(20.0, impressions.getValue(new long[] {10, 20}), 0.0);
+
+        assertSame(impressions, ezSession.popStat());
+        assertSame(clicks, ezSession.popStat());
+        assertEquals(0, ezSession.getStackDepth());
+        assertFalse(clicks.isValid());
+
+        verify(session);
+    }
+}
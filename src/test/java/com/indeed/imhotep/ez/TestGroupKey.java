@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author vladimir
+ */
+public class TestGroupKey {
+    @Test
+    public void testTermsOrder() {
+        final GroupKey<Object> key = GroupKey.<Object>singleton("a").add(1L).add("c");
+        assertEquals(3, key.size());
+        assertArrayEquals(new Object[] {"a", 1L, "c"}, key.toArray());
+        assertEquals(Arrays.<Object>asList("a", 1L, "c"), Lists.newArrayList(key));
+        assertEquals("a", key.head());
+        assertEquals(Arrays.<Object>asList(1L, "c"), Lists.newArrayList(key.tail()));
+        assertTrue(key.tail().tail().tail().isEmpty());
+    }
+
+    @Test
+    public void testEquality() {
+        final GroupKey<String> parent = GroupKey.singleton("a");
+        final GroupKey<String> key = parent.add("b");
+        assertEquals(key, parent.add("b"));
+        assertEquals(key, GroupKey.<String>empty().add("a").add("b"));
+        assertEquals(key.hashCode(), GroupKey.<String>empty().add("a").add("b").hashCode());
+        assertEquals(GroupKey.singleton("b"), key.tail());
+        assertEquals(GroupKey.empty(), parent.tail());
+        assertFalse(key.equals(parent.add("c")));
+        assertFalse(key.equals(GroupKey.singleton("b").add("a")));
+        assertFalse(key.equals(parent));
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.imhotep.api.FTGSIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author vladimir
+ */
+public class TestSplitFTGSIteration {
+    // more terms than fit in a batch
+    private static final int NUM_TERMS = 10000;
+
+    private ExecutorService executor;
+
+    @Before
+    public void init() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    private List<String> iterate(int numSplits, RecordingCallback callback) {
+        new SplitFTGSIteration<RecordingCallback>(new EZImhotepSession(null), callback, executor, numSplits)
+                .iterate(new TestFTGSIterator());
+        return callback.rows;
+    }
+
+    @Test
+    public void testSplitsAggregateTheSameRowsAsOneSplit() {
+        final List<String> expected = iterate(1, new RecordingCallback(null));
+        assertEquals(2 * (NUM_TERMS / 3 * 6 + 1), expected.size());
+        assertEquals(new TestFTGSIterator().rows(), expected);
+
+        final RecordingCallback callback = new RecordingCallback(null);
+        final List<String> rows = Lists.newArrayList(iterate(4, callback));
+        assertEquals(4, callback.splits.size());
+        final Map<String, Integer> iterationOrder = Maps.newHashMap();
+        for (String row : new TestFTGSIterator().rows()) {
+            iterationOrder.put(row, iterationOrder.size());
+        }
+        for (RecordingCallback split : callback.splits) {
+            assertTrue(split.rows.size() < rows.size());
+            // the batches of a split are applied in order
+            int previous = -1;
+            for (String row : split.rows) {
+                final int index = iterationOrder.get(row);
+                assertTrue(index > previous);
+                previous = index;
+            }
+        }
+        Collections.sort(rows);
+        Collections.sort(expected);
+        assertEquals(expected, rows);
+    }
+
+    @Test
+    public void testRunsSplitsOnTheCallingThreadWhenTheExecutorRejects() {
+        final List<String> expected = new TestFTGSIterator().rows();
+        executor.shutdown();
+        final List<String> rows = Lists.newArrayList(iterate(3, new RecordingCallback(null)));
+        Collections.sort(rows);
+        Collections.sort(expected);
+        assertEquals(expected, rows);
+    }
+
+    @Test
+    public void testPropagatesFailureOfASplit() {
+        final TestFTGSIterator iterator = new TestFTGSIterator();
+        final RecordingCallback callback = new RecordingCallback("t005000");
+        try {
+            new SplitFTGSIteration<RecordingCallback>(new EZImhotepSession(null), callback, executor, 4).iterate(iterator);
+            fail("The failure of the split should be thrown");
+        } catch (IllegalStateException e) {
+            assertSame(RecordingCallback.FAILURE, e);
+        }
+        assertTrue(iterator.closed);
+        assertTrue(callback.splits.isEmpty());
+    }
+
+    /**
+     * Records the rows it gets as "field term group stat"
+     */
+    private static final class RecordingCallback extends EZImhotepSession.FTGSCallback implements SplittableFTGSCallback<RecordingCallback> {
+        private static final IllegalStateException FAILURE = new IllegalStateException("failing term");
+
+        private final String failingTerm;
+        private final List<String> rows = Lists.newArrayList();
+        private final List<RecordingCallback> splits = Lists.newArrayList();
+
+        private RecordingCallback(String failingTerm) {
+            super(1);
+            this.failingTerm = failingTerm;
+        }
+
+        @Override
+        protected void intTermGroup(String field, long term, int group) {
+            rows.add(field + " " + term + " " + group + " " + stats[0]);
+        }
+
+        @Override
+        protected void stringTermGroup(String field, String term, int group) {
+            if (term.equals(failingTerm)) {
+                throw FAILURE;
+            }
+            rows.add(field + " " + term + " " + group + " " + stats[0]);
+        }
+
+        @Override
+        public RecordingCallback newSplit() {
+            return new RecordingCallback(failingTerm);
+        }
+
+        @Override
+        public void merge(List<RecordingCallback> splits) {
+            this.splits.addAll(splits);
+            for (RecordingCallback split : splits) {
+                rows.addAll(split.rows);
+            }
+        }
+    }
+
+    /**
+     * An int and a string field with NUM_TERMS terms each. Term i is in groups 1 to i % 3 + 1.
+     */
+    private static final class TestFTGSIterator implements FTGSIterator {
+        private static final String[] FIELDS = {"i", "s"};
+
+        private int field = -1;
+        private int term;
+        private int group;
+        private boolean closed = false;
+
+        List<String> rows() {
+            final List<String> rows = Lists.newArrayList();
+            while (nextField()) {
+                while (nextTerm()) {
+                    while (nextGroup()) {
+                        final String term = fieldIsIntType() ? Long.toString(termIntVal()) : termStringVal();
+                        rows.add(fieldName() + " " + term + " " + group() + " " + (this.term * 10 + group));
+                    }
+                }
+            }
+            return rows;
+        }
+
+        @Override
+        public boolean nextField() {
+            if (++field >= FIELDS.length) {
+                return false;
+            }
+            term = -1;
+            return true;
+        }
+
+        @Override
+        public String fieldName() {
+            return FIELDS[field];
+        }
+
+        @Override
+        public boolean fieldIsIntType() {
+            return field == 0;
+        }
+
+        @Override
+        public boolean nextTerm() {
+            if (++term >= NUM_TERMS) {
+                return false;
+            }
+            group = 0;
+            return true;
+        }
+
+        @Override
+        public long termDocFreq() {
+            return term % 3 + 1;
+        }
+
+        @Override
+        public long termIntVal() {
+            return term * 7L;
+        }
+
+        @Override
+        public String termStringVal() {
+            return String.format("t%06d", term);
+        }
+
+        @Override
+        public boolean nextGroup() {
+            return ++group <= term % 3 + 1;
+        }
+
+        @Override
+        public int group() {
+            return group;
+        }
+
+        @Override
+        public void groupStats(long[] stats) {
+            stats[0] = term * 10 + group;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
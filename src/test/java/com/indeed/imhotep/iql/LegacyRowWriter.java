@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import au.com.bytecode.opencsv.CSVWriter;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.DecimalFormat;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The DecimalFormat, PrintWriter and opencsv based row writer that RowEncoder replaced.
+ * Used as the reference output in tests and as the baseline in RowEncoderBenchmark.
+ * @author vladimir
+ */
+final class LegacyRowWriter {
+    private LegacyRowWriter() {
+    }
+
+    static int writeRowsToStream(final Iterator<GroupStats> rows, OutputStream os, final boolean csv, final int rowLimit, final boolean progress) {
+        final DecimalFormat format = new DecimalFormat("#.#######");
+        final String tsvDelimiter = "\t";
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(os), Charsets.UTF_8));
+
+        final CSVWriter csvWriter;
+        final List<String> csvFields;
+        if(csv) {
+            csvWriter = new CSVWriter(out);
+            csvFields = Lists.newArrayList();
+        } else {
+            csvWriter = null;
+            csvFields = null;
+        }
+        int rowsProcessed = 0;
+
+        if(progress) {
+            out.println("event: resultstream");
+        }
+
+        while (rows.hasNext()) {
+            final GroupStats entry = rows.next();
+            if (entry == null) {
+                continue;
+            }
+            if (progress) {
+                out.print("data: ");
+            }
+            if(!csv) { // TSV
+                final Object[] terms = entry.groupKey.toArray();
+                for (int i = 0; i < terms.length; i++) {
+                    if (i > 0) {
+                        out.print(tsvDelimiter);
+                    }
+                    out.print(terms[i]);
+                }
+                for (double l : entry.stats) {
+                    out.print(tsvDelimiter);
+                    out.print(Double.isNaN(l) ? "NaN" : format.format(l));
+                }
+                out.println();
+            } else {    // csv
+                for (Object term : entry.groupKey.toArray()) {
+                    csvFields.add(term.toString());
+                }
+                for (double l : entry.stats) {
+                    csvFields.add(format.format(l));
+                }
+                csvWriter.writeNext(csvFields.toArray(new String[csvFields.size()]));
+                csvFields.clear();  // reused on next iteration
+            }
+            if(++rowsProcessed >= rowLimit) {
+                break;   // reached the requested row limit
+            }
+        }
+        if(progress) {
+            out.print("\nevent: complete\ndata: :)\n\n");
+        }
+        out.flush();
+        return rowsProcessed;
+    }
+}
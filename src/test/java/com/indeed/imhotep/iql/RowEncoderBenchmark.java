@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of IQLQuery.writeRowsToStream() with the DecimalFormat based LegacyRowWriter.
+ * Rows are written to a stream that discards them. Not run as part of the tests, run main() instead.
+ * @author vladimir
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RowEncoderBenchmark {
+    @Param({"1000000"})
+    public int rowCount;
+
+    @Param({"false", "true"})
+    public boolean csv;
+
+    private List<GroupStats> rows;
+
+    @Setup
+    public void setUp() {
+        rows = createRows(rowCount);
+    }
+
+    @Benchmark
+    public long legacy() {
+        final CountingNullOutputStream out = new CountingNullOutputStream();
+        LegacyRowWriter.writeRowsToStream(rows.iterator(), out, csv, Integer.MAX_VALUE, false);
+        return out.count;
+    }
+
+    @Benchmark
+    public long encoder() {
+        final CountingNullOutputStream out = new CountingNullOutputStream();
+        IQLQuery.writeRowsToStream(rows.iterator(), out, csv, Integer.MAX_VALUE, false);
+        return out.count;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RowEncoderBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    /**
+     * Two level grouping with 100 terms per parent and a mix of count, sum and average like stats
+     */
+    private static List<GroupStats> createRows(int rowCount) {
+        final Random random = new Random(0);
+        final List<GroupStats> rows = Lists.newArrayListWithCapacity(rowCount);
+        GroupKey<Object> parent = null;
+        for (int i = 0; i < rowCount; i++) {
+            if (i % 100 == 0) {
+                parent = GroupKey.<Object>singleton("country" + i / 100);
+            }
+            final long count = random.nextInt(100000);
+            final long sum = count * random.nextInt(1000);
+            rows.add(new GroupStats(parent.add((long) i), new double[] {count, sum, count > 0 ? sum / (double) count / 7 : 0}));
+        }
+        return rows;
+    }
+
+    private static final class CountingNullOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+        }
+    }
+}
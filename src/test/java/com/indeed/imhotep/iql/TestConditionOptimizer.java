@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.Field;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author vladimir
+ */
+public class TestConditionOptimizer {
+    @Test
+    public void testMergesNegatedInConditionsOnTheSameField() {
+        final List<Condition> optimized = ConditionOptimizer.optimize(Lists.<Condition>newArrayList(
+                new StringInCondition(Field.stringField("country"), true, true, "us"),
+                new IntInCondition(Field.intField("status"), true, 5, 7),
+                new StringInCondition(Field.stringField("country"), true, false, "ca", "gb"),
+                new IntInCondition(Field.intField("status"), true, 3, 5)));
+
+        assertEquals(2, optimized.size());
+        final StringInCondition country = (StringInCondition) optimized.get(0);
+        assertTrue(country.isNegation());
+        assertArrayEquals(new String[] {"ca", "gb", "us"}, country.getValues());
+        final IntInCondition status = (IntInCondition) optimized.get(1);
+        assertTrue(status.isNegation());
+        assertArrayEquals(new long[] {3, 5, 7}, status.getValues());
+    }
+
+    @Test
+    public void testKeepsPositiveInConditionsSeparate() {
+        // a doc can have both terms of a multi-term field
+        final List<Condition> optimized = ConditionOptimizer.optimize(Lists.<Condition>newArrayList(
+                new StringInCondition(Field.stringField("grp"), false, true, "a"),
+                new StringInCondition(Field.stringField("grp"), false, true, "b")));
+        assertEquals(2, optimized.size());
+    }
+
+    @Test
+    public void testIntersectsMetricRangesOfTheSameStat() {
+        final List<Condition> optimized = ConditionOptimizer.optimize(Lists.<Condition>newArrayList(
+                new MetricCondition(EZImhotepSession.intField("clicks"), 5, Long.MAX_VALUE, false),
+                new MetricCondition(EZImhotepSession.intField("impressions"), 1, 1, true),
+                new MetricCondition(EZImhotepSession.intField("clicks"), Long.MIN_VALUE, 10, false)));
+
+        assertEquals(2, optimized.size());
+        final MetricCondition clicks = (MetricCondition) optimized.get(0);
+        assertEquals(5, clicks.getMin());
+        assertEquals(10, clicks.getMax());
+        assertFalse(clicks.isNegation());
+        assertTrue(((MetricCondition) optimized.get(1)).isNegation());
+    }
+
+    @Test
+    public void testKeepsRangesOfDifferentStatsWithTheSameNameSeparate() {
+        final List<Condition> optimized = ConditionOptimizer.optimize(Lists.<Condition>newArrayList(
+                new MetricCondition(EZImhotepSession.add(EZImhotepSession.hasString("f", "a + 1"),
+                        EZImhotepSession.constant(2)), 1, 1, false),
+                new MetricCondition(EZImhotepSession.add(EZImhotepSession.hasString("f", "a"),
+                        EZImhotepSession.constant(1), EZImhotepSession.constant(2)), 3, 3, false)));
+        assertEquals(2, optimized.size());
+    }
+
+    @Test
+    public void testOrdersCheapConditionsFirst() {
+        final Condition predicate = new StringPredicateCondition(Field.stringField("q"), Predicates.<String>alwaysTrue(), false);
+        final Condition regex = new RegexCondition(Field.stringField("q"), "a.*", false);
+        final Condition negatedIn = new StringInCondition(Field.stringField("country"), true, true, "us");
+        final Condition metric = new MetricCondition(EZImhotepSession.intField("clicks"), 1, 1, false);
+        final Condition wideIn = new IntInCondition(Field.intField("status"), false, 1, 2, 3);
+        final Condition narrowIn = new StringInCondition(Field.stringField("lang"), false, true, "en");
+
+        final List<Condition> optimized = ConditionOptimizer.optimize(Lists.newArrayList(
+                predicate, regex, negatedIn, metric, wideIn, narrowIn));
+        assertEquals(Lists.newArrayList(narrowIn, wideIn, metric, negatedIn, regex, predicate), optimized);
+    }
+
+    @Test
+    public void testMergesTimeRangeIntoTimeCondition() {
+        final MetricCondition timeCondition = new MetricCondition(EZImhotepSession.intField("unixtime"), 100, 200, false);
+        final Condition other = new StringInCondition(Field.stringField("country"), false, true, "us");
+        assertNull(ConditionOptimizer.mergeTimeCondition(timeCondition, Lists.newArrayList(other)));
+
+        final List<Condition> merged = ConditionOptimizer.mergeTimeCondition(timeCondition, Lists.newArrayList(other,
+                new MetricCondition(EZImhotepSession.intField("unixtime"), 150, Long.MAX_VALUE, false)));
+        assertEquals(2, merged.size());
+        assertSame(other, merged.get(0));
+        assertEquals(150, ((MetricCondition) merged.get(1)).getMin());
+        assertEquals(200, ((MetricCondition) merged.get(1)).getMax());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKey;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * @author vladimir
+ */
+public class TestGroupStatsCacheFormat {
+    @Test
+    public void testRoundTrip() throws IOException {
+        final List<GroupStats> rows = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            rows.add(row(new double[] {i, Double.NaN, -i / 3.0}, "[" + (i % 7) + ", 10)", (long) i - 500, "termé" + (i % 13)));
+        }
+        rows.add(row(new double[0]));
+        rows.add(row(new double[] {1}, Long.MAX_VALUE, Long.MIN_VALUE));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(rows.size(), GroupStatsCacheFormat.write(rows.iterator(), out));
+
+        final Iterator<GroupStats> readRows = GroupStatsCacheFormat.read(new ByteArrayInputStream(out.toByteArray()));
+        for (GroupStats expected : rows) {
+            final GroupStats actual = readRows.next();
+            assertEquals(Lists.newArrayList(expected.getGroupKey()), Lists.newArrayList(actual.getGroupKey()));
+            assertArrayEquals(expected.getStats(), actual.getStats(), 0.0);
+        }
+        assertFalse(readRows.hasNext());
+    }
+
+    @Test
+    public void testTruncatedDataFails() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GroupStatsCacheFormat.write(Lists.newArrayList(row(new double[] {1, 2}, "a"), row(new double[] {3, 4}, "b")).iterator(), out);
+        final byte[] data = out.toByteArray();
+
+        final Iterator<GroupStats> readRows = GroupStatsCacheFormat.read(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 2)));
+        try {
+            while (readRows.hasNext()) {
+                readRows.next();
+            }
+            fail("Truncated data should not be read successfully");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static GroupStats row(double[] stats, Object... terms) {
+        GroupKey groupKey = GroupKey.empty();
+        for (Object term : terms) {
+            groupKey = groupKey.add(term);
+        }
+        return new GroupStats(groupKey, stats);
+    }
+}
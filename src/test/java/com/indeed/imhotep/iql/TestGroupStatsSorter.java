@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKey;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author vladimir
+ */
+public class TestGroupStatsSorter {
+    @Test
+    public void testSortsInMemory() {
+        final List<GroupStats> rows = Lists.newArrayList(row(1, "b", 10L), row(2, "a", 20L), row(3, "a", 3L));
+        final GroupStatsSorter sorter = new GroupStatsSorter(2, 1, 100);
+        final Iterator<GroupStats> sorted = sorter.sort(rows.iterator());
+        assertRow(sorted.next(), 3, "a", 3L);
+        assertRow(sorted.next(), 2, "a", 20L);
+        assertRow(sorted.next(), 1, "b", 10L);
+        assertFalse(sorted.hasNext());
+        sorter.close();
+    }
+
+    @Test
+    public void testSortsTermsInUtf8Order() {
+        // UTF-16 order would put the supplementary character before the high BMP one
+        final List<GroupStats> rows = Lists.newArrayList(row(1, "\ud83d\ude00", 1L), row(2, "\uff41", 1L), row(3, "a", 1L));
+        final GroupStatsSorter sorter = new GroupStatsSorter(2, 1, 100);
+        final Iterator<GroupStats> sorted = sorter.sort(rows.iterator());
+        assertRow(sorted.next(), 3, "a", 1L);
+        assertRow(sorted.next(), 2, "\uff41", 1L);
+        assertRow(sorted.next(), 1, "\ud83d\ude00", 1L);
+        assertFalse(sorted.hasNext());
+        sorter.close();
+    }
+
+    @Test
+    public void testMergesSpilledRuns() {
+        final List<GroupStats> rows = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            rows.add(row(i, "term" + (i % 37), (long) (i % 11)));
+        }
+        Collections.shuffle(rows, new Random(0));
+
+        final GroupStatsSorter sorter = new GroupStatsSorter(2, 1, 64);
+        final Iterator<GroupStats> sorted = sorter.sort(rows.iterator());
+        final GroupStatsSorter.GroupStatsComparator comparator = new GroupStatsSorter.GroupStatsComparator(2, 1);
+        GroupStats previous = null;
+        int count = 0;
+        while (sorted.hasNext()) {
+            final GroupStats current = sorted.next();
+            if (previous != null) {
+                assertTrue(comparator.compare(previous, current) <= 0);
+            }
+            previous = current;
+            count++;
+        }
+        assertEquals(rows.size(), count);
+        sorter.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static GroupStats row(double stat, String term1, Long term2) {
+        return new GroupStats(GroupKey.<Object>singleton(term1).add(term2), new double[] {stat});
+    }
+
+    private static void assertRow(GroupStats row, double stat, String term1, Long term2) {
+        assertEquals(Lists.<Object>newArrayList(term1, term2), Lists.newArrayList(row.getGroupKey()));
+        assertEquals(stat, row.getStats()[0], 0.0);
+    }
+}
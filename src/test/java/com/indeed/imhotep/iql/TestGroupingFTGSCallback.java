@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.StatReference;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author vladimir
+ */
+public class TestGroupingFTGSCallback {
+    @Test
+    public void testStreamsFirstGroupAndZeroFillsInGroupOrder() {
+        final Map<Integer, GroupKey> groupKeys = Maps.newHashMap();
+        groupKeys.put(1, GroupKey.singleton("a"));
+        groupKeys.put(2, GroupKey.singleton("b"));
+        final TestStat stat = new TestStat();
+        final IntGroupingFTGSCallback callback = new IntGroupingFTGSCallback(1, Lists.<StatReference>newArrayList(stat), groupKeys);
+        // term -> (group, value) pairs in FTGS order
+        final TermSteps steps = new TermSteps(callback, stat, new long[][] {
+                {10, 1, 1, 2, 2},
+                {20, 2, 3},
+                {30, 1, 4}});
+
+        final Iterator<GroupStats> results = callback.getResults(steps);
+        assertRow(results.next(), 1, "a", 10L);
+        assertEquals("first row is available after the first term", 1, steps.consumed);
+        assertRow(results.next(), 0, "a", 20L);
+        assertRow(results.next(), 4, "a", 30L);
+        assertRow(results.next(), 2, "b", 10L);
+        assertRow(results.next(), 3, "b", 20L);
+        assertRow(results.next(), 0, "b", 30L);
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testSingleGroupDoesNotCollectTerms() {
+        final Map<Integer, GroupKey> groupKeys = Maps.newHashMap();
+        groupKeys.put(1, GroupKey.<Comparable>empty());
+        final TestStat stat = new TestStat();
+        final IntGroupingFTGSCallback callback = new IntGroupingFTGSCallback(1, Lists.<StatReference>newArrayList(stat), groupKeys);
+        final TermSteps steps = new TermSteps(callback, stat, new long[][] {{1, 1, 5}, {2, 1, 6}, {3, 1, 7}});
+
+        final Iterator<GroupStats> results = callback.getResults(steps);
+        for (long term = 1; term <= 3; term++) {
+            assertRow(results.next(), term + 4, term);
+            assertEquals(0, callback.getTermCount());
+        }
+        assertFalse(results.hasNext());
+    }
+
+    private static void assertRow(GroupStats row, double stat, Object... keys) {
+        assertArrayEquals(keys, row.groupKey.toArray());
+        assertArrayEquals(new double[] {stat}, row.stats, 0);
+    }
+
+    private static class TermSteps extends AbstractIterator<Void> {
+        private final IntGroupingFTGSCallback callback;
+        private final TestStat stat;
+        private final List<long[]> terms;
+        private int consumed = 0;
+
+        private TermSteps(IntGroupingFTGSCallback callback, TestStat stat, long[][] terms) {
+            this.callback = callback;
+            this.stat = stat;
+            this.terms = Lists.newArrayList(terms);
+        }
+
+        @Override
+        protected Void computeNext() {
+            if (consumed == terms.size()) {
+                return endOfData();
+            }
+            final long[] term = terms.get(consumed++);
+            for (int i = 1; i < term.length; i += 2) {
+                stat.value = term[i + 1];
+                callback.intTermGroup("field", term[0], (int) term[i]);
+            }
+            return null;
+        }
+    }
+
+    private static class TestStat implements StatReference {
+        private double value;
+
+        @Override
+        public double[] getGroupStats() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public void invalidate() {
+        }
+
+        @Override
+        public double getValue(long[] stats) {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author vladimir
+ */
+public class TestHyperLogLog {
+    @Test
+    public void testPrecisionForError() {
+        assertEquals(14, HyperLogLog.precisionForError(0.01));
+        assertEquals(12, HyperLogLog.precisionForError(0.02));
+        assertEquals(HyperLogLog.MIN_PRECISION, HyperLogLog.precisionForError(0.5));
+        assertEquals(HyperLogLog.MAX_PRECISION, HyperLogLog.precisionForError(0.0001));
+    }
+
+    @Test
+    public void testEstimateIsWithinErrorBound() {
+        for (int count : new int[] {0, 10, 1000, 100000}) {
+            final HyperLogLog sketch = new HyperLogLog(12);
+            for (int repeat = 0; repeat < 2; repeat++) {
+                for (long term = 0; term < count; term++) {
+                    sketch.addHash(HyperLogLog.hash(term));
+                }
+            }
+            assertEstimate(count, sketch);
+        }
+    }
+
+    @Test
+    public void testStringTerms() {
+        final HyperLogLog sketch = new HyperLogLog(12);
+        for (int term = 0; term < 50000; term++) {
+            sketch.addHash(HyperLogLog.hash("term" + term));
+        }
+        assertEstimate(50000, sketch);
+    }
+
+    @Test
+    public void testMergedSketchEstimatesUnion() {
+        final HyperLogLog sparse = new HyperLogLog(12);
+        final HyperLogLog dense = new HyperLogLog(12);
+        for (long term = 0; term < 100; term++) {
+            sparse.addHash(HyperLogLog.hash(term));
+        }
+        for (long term = 50; term < 20000; term++) {
+            dense.addHash(HyperLogLog.hash(term));
+        }
+        final HyperLogLog union = HyperLogLog.fromBytes(sparse.toBytes());
+        union.merge(dense);
+        assertEstimate(20000, union);
+        dense.merge(sparse);
+        assertEquals(union.estimate(), dense.estimate());
+    }
+
+    @Test
+    public void testSerializationKeepsEstimate() {
+        final HyperLogLog sketch = new HyperLogLog(10);
+        for (long term = 0; term < 300; term++) {
+            sketch.addHash(HyperLogLog.hash(term));
+        }
+        assertEquals(sketch.estimate(), HyperLogLog.fromBytes(sketch.toBytes()).estimate());
+    }
+
+    private static void assertEstimate(long expected, HyperLogLog sketch) {
+        // 4 standard errors
+        final double allowed = Math.max(4 * sketch.getRelativeError() * expected, 1);
+        assertTrue("Estimate " + sketch.estimate() + " is too far from " + expected,
+                Math.abs(sketch.estimate() - expected) <= allowed);
+    }
+}
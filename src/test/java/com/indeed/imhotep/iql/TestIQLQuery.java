@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.Field;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static com.indeed.imhotep.ez.Stats.Stat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author vladimir
+ */
+public class TestIQLQuery {
+    private static final Field COUNTRY = Field.stringField("country");
+    private static final Field LANG = Field.stringField("lang");
+
+    @Test
+    public void testSortsNoExplodeLastGrouping() {
+        assertTrue(IQLQuery.requiresSorting(Lists.<Grouping>newArrayList(
+                new FieldGrouping(COUNTRY), new FieldGrouping(LANG, true))));
+        assertFalse(IQLQuery.requiresSorting(Lists.<Grouping>newArrayList(
+                new FieldGrouping(COUNTRY), new FieldGrouping(LANG))));
+        assertFalse(IQLQuery.requiresSorting(Lists.<Grouping>newArrayList(new FieldGrouping(LANG, true))));
+    }
+
+    @Test
+    public void testKeepsTopKRankOrder() {
+        // group by country[10], lang[]
+        assertFalse(IQLQuery.requiresSorting(Lists.<Grouping>newArrayList(
+                new FieldGrouping(COUNTRY, 10), new FieldGrouping(LANG, true))));
+    }
+
+    @Test
+    public void testTopKIsNotTimeSliced() {
+        final List<Stat> noStats = Collections.emptyList();
+        assertTrue(IQLQuery.isTimeSliceable(noStats, Lists.<Grouping>newArrayList(new FieldGrouping(COUNTRY))));
+        // every slice would have to return all terms to rank them after merging
+        assertFalse(IQLQuery.isTimeSliceable(noStats, Lists.<Grouping>newArrayList(new FieldGrouping(COUNTRY, 10))));
+        assertFalse(IQLQuery.isTimeSliceable(noStats, Lists.<Grouping>newArrayList(
+                new FieldGrouping(COUNTRY, 10), new FieldGrouping(LANG, true))));
+    }
+
+    @Test
+    public void testKeepsTermSubsetOrder() {
+        assertFalse(IQLQuery.requiresSorting(Lists.<Grouping>newArrayList(
+                new FieldGrouping(COUNTRY, false, Lists.newArrayList("us", "de")), new FieldGrouping(LANG, true))));
+        assertFalse(IQLQuery.requiresSorting(Lists.<Grouping>newArrayList(
+                new FieldGrouping(COUNTRY), new FieldGrouping(LANG, true, Collections.singletonList("en")))));
+    }
+}
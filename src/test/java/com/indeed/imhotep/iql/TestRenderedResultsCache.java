@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.iql.cache.QueryCache;
+import com.indeed.imhotep.iql.cache.TieredQueryCache;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author vladimir
+ */
+public class TestRenderedResultsCache {
+    private static final String ROWS_FILE = "query.rows";
+
+    private final Map<String, byte[]> remoteFiles = Maps.newHashMap();
+    private int remoteReads = 0;
+    private File localDir;
+    private LocalFilesCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        localDir = Files.createTempDir();
+        localDir.deleteOnExit();
+        cache = new LocalFilesCache(1024 * 1024);
+        final ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        GroupStatsCacheFormat.write(Lists.newArrayList(
+                row("a", 1),
+                row("multi\nline", 2.5),    // TSV doesn't escape the newline
+                row("say \"hi\"", Double.NaN),
+                row("d", -4)).iterator(), rows);
+        remoteFiles.put(ROWS_FILE, rows.toByteArray());
+    }
+
+    @Test
+    public void testServesLimitedRowsFromRenderedTsv() throws IOException {
+        assertServesRowsFromRenderedText(false);
+    }
+
+    @Test
+    public void testServesLimitedRowsFromRenderedCsv() throws IOException {
+        assertServesRowsFromRenderedText(true);
+    }
+
+    private void assertServesRowsFromRenderedText(boolean csv) throws IOException {
+        assertArrayEquals(expected(csv, Integer.MAX_VALUE), write(csv, Integer.MAX_VALUE, 4));
+        assertEquals(1, remoteReads);
+        final String textFileName = ROWS_FILE + (csv ? ".csv" : ".tsv");
+        assertNotNull(cache.getLocalFile(textFileName));
+        assertNotNull(cache.getLocalFile(textFileName + RenderedResultsCache.ROW_INDEX_SUFFIX));
+
+        for (int rowLimit = 0; rowLimit <= 5; rowLimit++) {
+            assertArrayEquals(expected(csv, rowLimit), write(csv, rowLimit, Math.min(Math.max(rowLimit, 1), 4)));
+        }
+        assertArrayEquals(expected(csv, Integer.MAX_VALUE), write(csv, Integer.MAX_VALUE, 4));
+        assertEquals(1, remoteReads);
+    }
+
+    @Test
+    public void testLimitedRequestsDontRender() throws IOException {
+        assertArrayEquals(expected(false, 2), write(false, 2, 2));
+        assertNull(cache.getLocalFile(ROWS_FILE + ".tsv"));
+        assertEquals(0, localDir.list().length);
+    }
+
+    @Test
+    public void testFallsBackToRowsWhenTheIndexIsEvicted() throws IOException {
+        write(false, Integer.MAX_VALUE, 4);
+        cache.evict(ROWS_FILE + ".tsv" + RenderedResultsCache.ROW_INDEX_SUFFIX);
+
+        assertArrayEquals(expected(false, 3), write(false, 3, 3));
+        assertEquals(2, remoteReads);
+        // the next request without a limit renders the text again
+        assertArrayEquals(expected(false, Integer.MAX_VALUE), write(false, Integer.MAX_VALUE, 4));
+        assertEquals(3, remoteReads);
+        assertArrayEquals(expected(false, 3), write(false, 3, 3));
+        assertEquals(3, remoteReads);
+    }
+
+    @Test
+    public void testDropsTextLargerThanTheLocalLimit() throws IOException {
+        cache = new LocalFilesCache(20);
+        assertArrayEquals(expected(true, Integer.MAX_VALUE), write(true, Integer.MAX_VALUE, 4));
+        assertNull(cache.getLocalFile(ROWS_FILE + ".csv"));
+        assertNull(cache.getLocalFile(ROWS_FILE + ".csv" + RenderedResultsCache.ROW_INDEX_SUFFIX));
+        // temp files are deleted
+        assertEquals(0, localDir.list().length);
+    }
+
+    private byte[] write(boolean csv, int rowLimit, int expectedRows) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(expectedRows, RenderedResultsCache.writeCachedRows(cache, ROWS_FILE, out, csv, rowLimit, false));
+        return out.toByteArray();
+    }
+
+    private byte[] expected(boolean csv, int rowLimit) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IQLQuery.writeCachedRowsToStream(new ByteArrayInputStream(remoteFiles.get(ROWS_FILE)), out, csv, rowLimit, false);
+        return out.toByteArray();
+    }
+
+    private static GroupStats row(String term, double stat) {
+        return new GroupStats(GroupKey.empty().add(term), new double[] {stat});
+    }
+
+    /**
+     * Keeps locally admitted files in the temp dir up to the max entry size like the local disk tier
+     */
+    private final class LocalFilesCache extends TieredQueryCache {
+        private final long maxEntryBytes;
+        private final Map<String, File> localFiles = Maps.newHashMap();
+
+        private LocalFilesCache(long maxEntryBytes) {
+            super(new RemoteCache(), null, null);
+            this.maxEntryBytes = maxEntryBytes;
+        }
+
+        @Override
+        public File getLocalFile(String fileName) {
+            return localFiles.get(fileName);
+        }
+
+        @Override
+        public long getMaxLocalEntryBytes() {
+            return maxEntryBytes;
+        }
+
+        @Override
+        public File newLocalTempFile() throws IOException {
+            return File.createTempFile("tier", ".tiertmp", localDir);
+        }
+
+        @Override
+        public void admitLocalFile(String fileName, File tempFile) {
+            final File file = new File(localDir, fileName);
+            if (tempFile.length() > maxEntryBytes || !tempFile.renameTo(file)) {
+                tempFile.delete();
+                return;
+            }
+            localFiles.put(fileName, file);
+        }
+
+        void evict(String fileName) {
+            localFiles.remove(fileName).delete();
+        }
+    }
+
+    private final class RemoteCache implements QueryCache {
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean isEnabledInConfig() {
+            return true;
+        }
+
+        @Override
+        public boolean isFileCached(String fileName) {
+            return remoteFiles.containsKey(fileName);
+        }
+
+        @Override
+        public InputStream getInputStream(String cachedFileName) throws IOException {
+            remoteReads++;
+            return new ByteArrayInputStream(remoteFiles.get(cachedFileName));
+        }
+
+        @Override
+        public OutputStream getOutputStream(String cachedFileName) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void healthcheck() throws IOException {
+        }
+    }
+}
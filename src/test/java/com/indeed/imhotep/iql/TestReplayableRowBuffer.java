@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKey;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author vladimir
+ */
+public class TestReplayableRowBuffer {
+    @Test
+    public void testReadersGetAllRowsWhileProduced() throws Exception {
+        final ReplayableRowBuffer buffer = new ReplayableRowBuffer(5, 3);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final ReplayableRowBuffer.Reader earlyReader = buffer.newReader();
+            final Future<List<String>> earlyRows = executor.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    return terms(earlyReader);
+                }
+            });
+            final Iterator<GroupStats> produced = buffer.tee(rows(0, 20));
+            for (int i = 0; i < 10; i++) {
+                produced.next();
+            }
+            // joins after some rows were spilled to disk
+            final ReplayableRowBuffer.Reader lateReader = buffer.newReader();
+            final Future<List<String>> lateRows = executor.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    return terms(lateReader);
+                }
+            });
+            while (produced.hasNext()) {
+                produced.next();
+            }
+            buffer.finish();
+            buffer.close();
+
+            assertEquals(terms(rows(0, 20)), earlyRows.get());
+            assertEquals(terms(rows(0, 20)), lateRows.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertNull(buffer.newReader());
+    }
+
+    @Test
+    public void testClosingWaitingReaderStopsIt() throws Exception {
+        final ReplayableRowBuffer buffer = new ReplayableRowBuffer(5, 3);
+        final ReplayableRowBuffer.Reader reader = buffer.newReader();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Boolean> waiting = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return reader.hasNext();
+                }
+            });
+            Thread.sleep(50);
+            reader.close();
+            try {
+                waiting.get();
+                fail("closed reader has to stop waiting with an exception");
+            } catch (ExecutionException expected) {
+            }
+        } finally {
+            executor.shutdownNow();
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void testFailureIsPropagated() {
+        final ReplayableRowBuffer buffer = new ReplayableRowBuffer(2, 2);
+        final Iterator<GroupStats> produced = buffer.tee(rows(0, 3));
+        produced.next();
+        final ReplayableRowBuffer.Reader reader = buffer.newReader();
+        reader.next();
+        final IllegalStateException failure = new IllegalStateException("failed");
+        buffer.fail(failure);
+        try {
+            reader.next();
+            fail("failure not propagated");
+        } catch (ReplayableRowBuffer.ProducerFailedException expected) {
+            assertSame(failure, expected.getCause());
+        }
+        buffer.close();
+        assertNull(buffer.newReader());
+    }
+
+    @Test
+    public void testClosedReaderKeepsBufferUntilDone() {
+        final ReplayableRowBuffer buffer = new ReplayableRowBuffer(1, 1);
+        final Iterator<GroupStats> produced = buffer.tee(rows(0, 4));
+        while (produced.hasNext()) {
+            produced.next();
+        }
+        buffer.finish();
+        final ReplayableRowBuffer.Reader reader = buffer.newReader();
+        buffer.close();
+        assertEquals(terms(rows(0, 4)), terms(reader));
+        assertFalse(reader.hasNext());
+        assertNull(buffer.newReader());
+    }
+
+    private static Iterator<GroupStats> rows(int from, int to) {
+        final List<GroupStats> rows = Lists.newArrayList();
+        for (int i = from; i < to; i++) {
+            rows.add(new GroupStats(GroupKey.<Object>singleton("term" + i).add((long) i), new double[] {i}));
+        }
+        return rows.iterator();
+    }
+
+    private static List<String> terms(Iterator<GroupStats> rows) {
+        final List<String> ret = Lists.newArrayList();
+        while (rows.hasNext()) {
+            final GroupStats row = rows.next();
+            ret.add(Lists.newArrayList(row.getGroupKey()) + "=" + row.getStats()[0]);
+        }
+        return ret;
+    }
+}
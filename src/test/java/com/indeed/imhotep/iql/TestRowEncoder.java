@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKey;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author vladimir
+ */
+public class TestRowEncoder {
+    private static final double[] SPECIAL_STATS = {0, -0.0, 1, -1, 0.5, -5.5, 1e-8, -1e-8, 1.5e-7, 2.5e-7, 123.45,
+            1e20, -1.2345678901234567E18, 9007199254740993.0, 1000000000.0000001, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE};
+
+    @Test
+    public void testSpecialStatsMatchLegacyWriter() {
+        final List<GroupStats> rows = Lists.newArrayList();
+        for (double stat : SPECIAL_STATS) {
+            rows.add(new GroupStats(GroupKey.<Object>singleton(1L), new double[] {stat, -stat}));
+        }
+        assertMatchesLegacyWriter(rows);
+    }
+
+    @Test
+    public void testRandomRowsMatchLegacyWriter() {
+        final Random random = new Random(42);
+        final List<GroupStats> rows = Lists.newArrayList();
+        GroupKey<Object> parent = GroupKey.<Object>empty().add("parent");
+        for (int i = 0; i < 20000; i++) {
+            if (random.nextInt(10) == 0) {
+                parent = GroupKey.<Object>empty().add(randomTerm(random)).add(random.nextLong());
+            }
+            final GroupKey<Object> key = random.nextInt(20) == 0 ? GroupKey.empty() : parent.add(randomTerm(random));
+            final double[] stats = new double[random.nextInt(4)];
+            for (int j = 0; j < stats.length; j++) {
+                stats[j] = randomStat(random);
+            }
+            rows.add(new GroupStats(key, stats));
+        }
+        assertMatchesLegacyWriter(rows);
+    }
+
+    @Test
+    public void testRowLimitAndEventStream() {
+        final List<GroupStats> rows = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            rows.add(new GroupStats(GroupKey.<Object>singleton("term" + i), new double[] {i / 3.0}));
+        }
+        rows.add(3, null);
+        for (boolean csv : new boolean[] {false, true}) {
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            assertEquals(5, LegacyRowWriter.writeRowsToStream(rows.iterator(), expected, csv, 5, true));
+            assertEquals(5, IQLQuery.writeRowsToStream(rows.iterator(), actual, csv, 5, true));
+            assertEquals(new String(expected.toByteArray(), Charsets.UTF_8), new String(actual.toByteArray(), Charsets.UTF_8));
+        }
+    }
+
+    private static void assertMatchesLegacyWriter(List<GroupStats> rows) {
+        for (boolean csv : new boolean[] {false, true}) {
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            LegacyRowWriter.writeRowsToStream(rows.iterator(), expected, csv, Integer.MAX_VALUE, false);
+            IQLQuery.writeRowsToStream(rows.iterator(), actual, csv, Integer.MAX_VALUE, false);
+            final String[] expectedLines = new String(expected.toByteArray(), Charsets.UTF_8).split("\n", -1);
+            final String[] actualLines = new String(actual.toByteArray(), Charsets.UTF_8).split("\n", -1);
+            for (int i = 0; i < Math.min(expectedLines.length, actualLines.length); i++) {
+                assertEquals("line " + i, expectedLines[i], actualLines[i]);
+            }
+            assertEquals(expectedLines.length, actualLines.length);
+        }
+    }
+
+    private static Object randomTerm(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return random.nextLong() >> random.nextInt(64);
+            case 1:
+                return "a\"b\"\"c,d\te";
+            case 2:
+                return "é中😀\ud800x";
+            default:
+                return Integer.toString(random.nextInt(1000));
+        }
+    }
+
+    private static double randomStat(Random random) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return random.nextInt(2000000) - 1000000;
+            case 1:
+                return (random.nextInt(2000000) - 1000000) / 1e7 + 0.5e-7;  // close to a rounding tie
+            case 2:
+                return random.nextDouble() * Math.pow(10, random.nextInt(30) - 10);
+            case 3:
+                return -random.nextDouble() * 1000;
+            case 4:
+                return Double.longBitsToDouble(random.nextLong());
+            default:
+                return random.nextInt(1000) / (double) (random.nextInt(999) + 1);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author vladimir
+ */
+public class TestTDigest {
+    private static final int COUNT = 100000;
+
+    @Test
+    public void testSortedValues() {
+        final TDigest digest = new TDigest();
+        for (int value = 1; value <= COUNT; value++) {
+            digest.add(value, 1);
+        }
+        assertQuantiles(digest);
+        assertEquals(1, digest.quantile(0), 0);
+        assertEquals(COUNT, digest.quantile(1), 0);
+    }
+
+    @Test
+    public void testShuffledValuesInMergedDigests() {
+        final Random random = new Random(0);
+        final TDigest first = new TDigest();
+        final TDigest second = new TDigest();
+        for (int value = 1; value <= COUNT; value++) {
+            (random.nextBoolean() ? first : second).add(COUNT + 1 - value, 1);
+        }
+        first.merge(second);
+        assertEquals(COUNT, first.getTotalWeight(), 0);
+        assertQuantiles(first);
+    }
+
+    @Test
+    public void testWeightedValues() {
+        final TDigest digest = new TDigest();
+        // each value has as many docs as the value so the median is around 1 / sqrt(2) of the max
+        for (int value = 1; value <= 1000; value++) {
+            digest.add(value, value);
+        }
+        assertEquals(707, digest.quantile(0.5), 5);
+    }
+
+    @Test
+    public void testSerialization() {
+        final TDigest digest = new TDigest();
+        for (int value = 1; value <= COUNT; value++) {
+            digest.add(value, 1);
+        }
+        final TDigest deserialized = TDigest.fromBytes(digest.toBytes());
+        for (double q : new double[] {0, 0.1, 0.5, 0.95, 1}) {
+            assertEquals(digest.quantile(q), deserialized.quantile(q), 0);
+        }
+    }
+
+    @Test
+    public void testEmptyAndSingleValue() {
+        final TDigest digest = new TDigest();
+        assertTrue(Double.isNaN(digest.quantile(0.5)));
+        digest.add(42, 3);
+        assertEquals(42, digest.quantile(0.5), 0);
+    }
+
+    /**
+     * Checks the quantiles of 1..COUNT against the documented rank error
+     */
+    private static void assertQuantiles(TDigest digest) {
+        for (double q : new double[] {0.01, 0.1, 0.5, 0.9, 0.95, 0.99, 0.999}) {
+            final double allowedRankError = Math.max(q * (1 - q) * 4 / digest.getCompression(), 1.0 / COUNT);
+            assertEquals("quantile " + q, q * COUNT, digest.quantile(q), allowedRankError * COUNT);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Interval;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author vladimir
+ */
+public class TestTimeSliceCache {
+    private static final DateTimeZone ZONE = DateTimeZone.forOffsetHours(-6);
+
+    @Test
+    public void testSlicesEveryShard() {
+        final DateTime start = new DateTime(2015, 3, 1, 5, 0, ZONE);
+        final List<Interval> slices = TimeSliceCache.getAlignedTimeSlices(start, start.plusHours(3),
+                hourlyShards(start.minusHours(1), 5), 4);
+        assertEquals(Lists.newArrayList(
+                new Interval(start, start.plusHours(1)),
+                new Interval(start.plusHours(1), start.plusHours(2)),
+                new Interval(start.plusHours(2), start.plusHours(3))), slices);
+    }
+
+    @Test
+    public void testMovedRangeSharesSlices() {
+        final DateTime start = new DateTime(2015, 3, 1, 5, 0, ZONE);
+        final List<DateTime> shards = hourlyShards(start, 24 * 40);
+        final List<Interval> slices = TimeSliceCache.getAlignedTimeSlices(start, start.plusDays(30), shards, 8);
+        final List<Interval> movedSlices = TimeSliceCache.getAlignedTimeSlices(start.plusHours(1), start.plusDays(30).plusHours(1), shards, 8);
+        assertTrue(slices.size() <= 8);
+        assertTrue(movedSlices.size() <= 8);
+        // only the first and the last slice differ
+        assertEquals(slices.subList(1, slices.size() - 1), movedSlices.subList(1, movedSlices.size() - 1));
+        for (Interval slice : slices.subList(1, slices.size())) {
+            assertEquals(0, slice.getStart().getMillisOfDay());
+        }
+    }
+
+    @Test
+    public void testMovesGridPointsToShardStarts() {
+        // shards are 6 hours long and start at 3am, 9am, ...
+        final DateTime start = new DateTime(2015, 3, 1, 3, 0, ZONE);
+        final List<DateTime> shards = Lists.newArrayList();
+        for (int i = 0; i < 12; i++) {
+            shards.add(start.plusHours(6 * i));
+        }
+        final List<Interval> slices = TimeSliceCache.getAlignedTimeSlices(start, start.plusDays(3), shards, 3);
+        assertEquals(Lists.newArrayList(
+                new Interval(start, start.plusDays(1)),
+                new Interval(start.plusDays(1), start.plusDays(2)),
+                new Interval(start.plusDays(2), start.plusDays(3))), slices);
+    }
+
+    @Test
+    public void testSingleSlice() {
+        final DateTime start = new DateTime(2015, 3, 1, 5, 0, ZONE);
+        final List<Interval> slices = TimeSliceCache.getAlignedTimeSlices(start, start.plusDays(100),
+                hourlyShards(start, 24 * 100), 1);
+        assertEquals(Lists.newArrayList(new Interval(start, start.plusDays(100))), slices);
+    }
+
+    private static List<DateTime> hourlyShards(DateTime start, int count) {
+        final List<DateTime> shards = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            shards.add(start.plusHours(i));
+        }
+        return shards;
+    }
+}
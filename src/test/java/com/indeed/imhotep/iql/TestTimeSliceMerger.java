@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKey;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author vladimir
+ */
+public class TestTimeSliceMerger {
+    @Test
+    public void testSumsMatchingRows() {
+        final TimeSliceMerger merger = new TimeSliceMerger(2, new boolean[] {true}, false);
+        merger.addAll(Lists.newArrayList(row(new double[] {1, 2}, "b"), row(new double[] {3, 4}, "c")).iterator());
+        merger.addAll(Lists.newArrayList(row(new double[] {10, 20}, "a"), row(new double[] {30, 40}, "b")).iterator());
+
+        final Iterator<GroupStats> results = merger.getResults();
+        assertRow(results.next(), new double[] {10, 20}, "a");
+        assertRow(results.next(), new double[] {31, 42}, "b");
+        assertRow(results.next(), new double[] {3, 4}, "c");
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testSortsTermsInUtf8Order() {
+        // UTF-16 order would put the supplementary character before the high BMP one
+        final TimeSliceMerger merger = new TimeSliceMerger(1, new boolean[] {true}, false);
+        merger.addAll(Lists.newArrayList(row(new double[] {1}, "\ud83d\ude00"), row(new double[] {2}, "\uff41")).iterator());
+        merger.addAll(Lists.newArrayList(row(new double[] {3}, "a")).iterator());
+
+        final Iterator<GroupStats> results = merger.getResults();
+        assertRow(results.next(), new double[] {3}, "a");
+        assertRow(results.next(), new double[] {2}, "\uff41");
+        assertRow(results.next(), new double[] {1}, "\ud83d\ude00");
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testKeepsFirstSeenOrderForBuckets() {
+        final TimeSliceMerger merger = new TimeSliceMerger(1, new boolean[] {false, true}, false);
+        merger.addAll(Lists.newArrayList(row(new double[] {1}, "[2, 10)", 5L), row(new double[] {1}, "[10, 18)", 3L)).iterator());
+        merger.addAll(Lists.newArrayList(row(new double[] {1}, "[2, 10)", 4L), row(new double[] {1}, "[10, 18)", 3L)).iterator());
+
+        final Iterator<GroupStats> results = merger.getResults();
+        assertRow(results.next(), new double[] {1}, "[2, 10)", 4L);
+        assertRow(results.next(), new double[] {1}, "[2, 10)", 5L);
+        assertRow(results.next(), new double[] {2}, "[10, 18)", 3L);
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testSortsBucketsInBucketOrder() {
+        // the first slice has no documents in the first bucket so its bucket is seen last
+        final TimeSliceMerger merger = new TimeSliceMerger(1, new boolean[] {false}, false);
+        merger.setBucketOrder(0, Lists.newArrayList("[0, 1)", "[1, 2)", "< 0", ">= 2"));
+        merger.addAll(Lists.newArrayList(row(new double[] {1}, ">= 2"), row(new double[] {2}, "[1, 2)")).iterator());
+        merger.addAll(Lists.newArrayList(row(new double[] {3}, "[0, 1)"), row(new double[] {4}, "[1, 2)")).iterator());
+
+        final Iterator<GroupStats> results = merger.getResults();
+        assertRow(results.next(), new double[] {3}, "[0, 1)");
+        assertRow(results.next(), new double[] {6}, "[1, 2)");
+        assertRow(results.next(), new double[] {1}, ">= 2");
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testExplodesLastLevel() {
+        final TimeSliceMerger merger = new TimeSliceMerger(1, new boolean[] {true, true}, true);
+        merger.addAll(Lists.newArrayList(row(new double[] {1}, "x", "a")).iterator());
+        merger.addAll(Lists.newArrayList(row(new double[] {2}, "y", "b")).iterator());
+
+        final Iterator<GroupStats> results = merger.getResults();
+        assertRow(results.next(), new double[] {1}, "x", "a");
+        assertRow(results.next(), new double[] {0}, "x", "b");
+        assertRow(results.next(), new double[] {0}, "y", "a");
+        assertRow(results.next(), new double[] {2}, "y", "b");
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testRestrictsBucketsToLabels() {
+        // the first slice was cached by a query with a range that started an hour earlier
+        final TimeSliceMerger merger = new TimeSliceMerger(1, new boolean[] {true, false}, false);
+        merger.setBucketLabels(1, Lists.newArrayList("[1, 2)", "[2, 3)", "[3, 4)", "< 1", ">= 4"));
+        merger.addAll(Lists.newArrayList(
+                row(new double[] {0}, "a", "[0, 1)"),
+                row(new double[] {5}, "a", "[1, 2)"),
+                row(new double[] {0}, "a", "< 0"),
+                row(new double[] {0}, "a", ">= 2")).iterator());
+        merger.addAll(Lists.newArrayList(row(new double[] {7}, "b", "[3, 4)")).iterator());
+
+        final Iterator<GroupStats> results = merger.getResults();
+        assertRow(results.next(), new double[] {5}, "a", "[1, 2)");
+        assertRow(results.next(), new double[] {0}, "a", "[2, 3)");
+        assertRow(results.next(), new double[] {0}, "a", "[3, 4)");
+        assertRow(results.next(), new double[] {0}, "a", "< 1");
+        assertRow(results.next(), new double[] {0}, "a", ">= 4");
+        assertRow(results.next(), new double[] {0}, "b", "[1, 2)");
+        assertRow(results.next(), new double[] {0}, "b", "[2, 3)");
+        assertRow(results.next(), new double[] {7}, "b", "[3, 4)");
+        assertRow(results.next(), new double[] {0}, "b", "< 1");
+        assertRow(results.next(), new double[] {0}, "b", ">= 4");
+        assertFalse(results.hasNext());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static GroupStats row(double[] stats, Object... terms) {
+        GroupKey groupKey = GroupKey.empty();
+        for (Object term : terms) {
+            groupKey = groupKey.add(term);
+        }
+        return new GroupStats(groupKey, stats);
+    }
+
+    private static void assertRow(GroupStats row, double[] stats, Object... terms) {
+        final List<Object> expectedKey = Lists.newArrayList(terms);
+        assertEquals(expectedKey, Lists.newArrayList(row.getGroupKey()));
+        assertArrayEquals(stats, row.getStats(), 0.0);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.StatReference;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * @author vladimir
+ */
+public class TestTopKGroupingFTGSCallback {
+    @Test
+    public void testKeepsTopTermsOfEachGroupBestFirst() {
+        final TestStat stat = new TestStat();
+        final TopKGroupingFTGSCallback callback = new TopKGroupingFTGSCallback(1, 2, stat,
+                Lists.<StatReference>newArrayList(stat), groupKeys(3), false);
+        feed(callback, stat, 1, new double[] {10, 1, 12, 9, 5, 7, Double.NaN});
+        feed(callback, stat, 2, new double[] {Double.NaN, 3});
+
+        final Iterator<GroupStats> results = callback.getResults().iterator();
+        assertRow(results.next(), 12, 1, 102L);
+        assertRow(results.next(), 10, 1, 100L);
+        assertRow(results.next(), 3, 2, 101L);
+        assertRow(results.next(), Double.NaN, 2, 100L);
+        assertRow(results.next(), 0, 3, "");
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testKeepsBottomTermsOfEachGroupBestFirst() {
+        final TestStat stat = new TestStat();
+        final TopKGroupingFTGSCallback callback = new TopKGroupingFTGSCallback(1, 3, stat,
+                Lists.<StatReference>newArrayList(stat), groupKeys(1), true);
+        feed(callback, stat, 1, new double[] {Double.NaN, 4, 8, 2, 6, 1});
+
+        final Iterator<GroupStats> results = callback.getResults().iterator();
+        assertRow(results.next(), 1, 1, 105L);
+        assertRow(results.next(), 2, 1, 103L);
+        assertRow(results.next(), 4, 1, 101L);
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testMergesSplitsIntoTopTerms() {
+        final TestStat stat = new TestStat();
+        final TopKGroupingFTGSCallback callback = new TopKGroupingFTGSCallback(1, 2, stat,
+                Lists.<StatReference>newArrayList(stat), groupKeys(2), false);
+        final TopKGroupingFTGSCallback split1 = callback.newSplit();
+        final TopKGroupingFTGSCallback split2 = callback.newSplit();
+        feed(split1, stat, 1, new double[] {10, 1, 12});
+        feed(split2, stat, 1, new double[] {11, 13});
+        feed(split2, stat, 2, new double[] {5});
+        callback.merge(Arrays.asList(split1, split2));
+
+        final Iterator<GroupStats> results = callback.getResults().iterator();
+        assertRow(results.next(), 13, 1, 101L);
+        assertRow(results.next(), 12, 1, 102L);
+        assertRow(results.next(), 5, 2, 100L);
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testMergeKeepsTiesLikeWithoutSplits() {
+        final TestStat stat = new TestStat();
+        final TopKGroupingFTGSCallback callback = new TopKGroupingFTGSCallback(1, 1, stat,
+                Lists.<StatReference>newArrayList(stat), groupKeys(1), false);
+        final TopKGroupingFTGSCallback split1 = callback.newSplit();
+        final TopKGroupingFTGSCallback split2 = callback.newSplit();
+        // without splits the first of the terms with equal counts is kept
+        feedTerm(split1, stat, 1, 102, 5);
+        feedTerm(split2, stat, 1, 100, 5);
+        feedTerm(split1, stat, 1, 101, 5);
+        callback.merge(Arrays.asList(split1, split2));
+
+        final Iterator<GroupStats> results = callback.getResults().iterator();
+        assertRow(results.next(), 5, 1, 100L);
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testMergeCountsCandidatesTowardsGroupLimitOnce() {
+        final int groupLimit = EZImhotepSession.GROUP_LIMIT;
+        EZImhotepSession.GROUP_LIMIT = 4;
+        try {
+            final TestStat stat = new TestStat();
+            final TopKGroupingFTGSCallback callback = new TopKGroupingFTGSCallback(1, 2, stat,
+                    Lists.<StatReference>newArrayList(stat), groupKeys(2), false);
+            final TopKGroupingFTGSCallback split1 = callback.newSplit();
+            final TopKGroupingFTGSCallback split2 = callback.newSplit();
+            for (int group = 1; group <= 2; group++) {
+                feedTerm(split1, stat, group, 100, 1);
+                feedTerm(split2, stat, group, 101, 2);
+            }
+            callback.merge(Arrays.asList(split1, split2));
+            assertEquals(4, callback.getResults().size());
+
+            final TopKGroupingFTGSCallback overLimit = new TopKGroupingFTGSCallback(1, 3, stat,
+                    Lists.<StatReference>newArrayList(stat), groupKeys(2), false);
+            final TopKGroupingFTGSCallback split3 = overLimit.newSplit();
+            final TopKGroupingFTGSCallback split4 = overLimit.newSplit();
+            feedTerm(split3, stat, 1, 100, 1);
+            feedTerm(split3, stat, 1, 102, 1);
+            feedTerm(split4, stat, 1, 101, 1);
+            feedTerm(split4, stat, 2, 101, 1);
+            feedTerm(split4, stat, 2, 103, 1);
+            try {
+                overLimit.merge(Arrays.asList(split3, split4));
+                fail("5 candidates exceed the limit of 4");
+            } catch (IllegalArgumentException expected) {
+            }
+        } finally {
+            EZImhotepSession.GROUP_LIMIT = groupLimit;
+        }
+    }
+
+    private static Map<Integer, GroupKey> groupKeys(int numGroups) {
+        final Map<Integer, GroupKey> groupKeys = Maps.newHashMap();
+        for (int group = 1; group <= numGroups; group++) {
+            groupKeys.put(group, GroupKey.singleton(group));
+        }
+        return groupKeys;
+    }
+
+    /**
+     * Sends terms 100, 101, ... to the group with the given stat values
+     */
+    private static void feed(TopKGroupingFTGSCallback callback, TestStat stat, int group, double[] values) {
+        for (int i = 0; i < values.length; i++) {
+            stat.value = values[i];
+            callback.intTermGroup("field", 100 + i, group);
+        }
+    }
+
+    private static void feedTerm(TopKGroupingFTGSCallback callback, TestStat stat, int group, long term, double value) {
+        stat.value = value;
+        callback.intTermGroup("field", term, group);
+    }
+
+    private static void assertRow(GroupStats row, double stat, Object... keys) {
+        assertArrayEquals(keys, row.groupKey.toArray());
+        assertArrayEquals(new double[] {stat}, row.stats, 0);
+    }
+
+    private static class TestStat implements StatReference {
+        private double value;
+
+        @Override
+        public double[] getGroupStats() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public void invalidate() {
+        }
+
+        @Override
+        public double getValue(long[] stats) {
+            return value;
+        }
+    }
+}
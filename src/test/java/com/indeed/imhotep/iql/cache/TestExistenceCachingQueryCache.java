@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Sets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author vladimir
+ */
+public class TestExistenceCachingQueryCache {
+    private static final long MISSING_FILES_TTL_MILLIS = 1000;
+
+    private final Set<String> remoteFiles = Sets.newHashSet();
+    private int existenceChecks = 0;
+    private long nanos = 0;
+    private ExistenceCachingQueryCache cache;
+
+    @Before
+    public void setUp() {
+        final Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return nanos;
+            }
+        };
+        cache = new ExistenceCachingQueryCache(new RemoteQueryCache(), 2, MISSING_FILES_TTL_MILLIS, ticker);
+    }
+
+    @Test
+    public void testKnownFilesAreLimited() {
+        remoteFiles.add("a");
+        remoteFiles.add("b");
+        remoteFiles.add("c");
+        assertTrue(cache.isFileCached("a"));
+        assertTrue(cache.isFileCached("b"));
+        assertTrue(cache.isFileCached("c"));
+        assertEquals(3, existenceChecks);
+
+        assertTrue(cache.isFileCached("b"));
+        assertTrue(cache.isFileCached("c"));
+        assertEquals(3, existenceChecks);
+
+        // the least recently used file was dropped
+        assertTrue(cache.isFileCached("a"));
+        assertEquals(4, existenceChecks);
+    }
+
+    @Test
+    public void testMissingFilesExpire() {
+        assertFalse(cache.isFileCached("a"));
+        assertEquals(1, existenceChecks);
+
+        // written by another instance
+        remoteFiles.add("a");
+        nanos += TimeUnit.MILLISECONDS.toNanos(MISSING_FILES_TTL_MILLIS - 1);
+        assertFalse(cache.isFileCached("a"));
+        assertEquals(1, existenceChecks);
+
+        nanos += TimeUnit.MILLISECONDS.toNanos(1);
+        assertTrue(cache.isFileCached("a"));
+        assertEquals(2, existenceChecks);
+
+        assertTrue(cache.isFileCached("a"));
+        assertEquals(2, existenceChecks);
+    }
+
+    @Test
+    public void testWritesInvalidateMissingFiles() throws IOException {
+        assertFalse(cache.isFileCached("a"));
+        assertFalse(cache.isFileCached("b"));
+        assertEquals(2, existenceChecks);
+
+        final OutputStream out = cache.getOutputStream("a");
+        out.write(1);
+        // not uploaded until closed
+        assertFalse(cache.isFileCached("a"));
+        assertEquals(3, existenceChecks);
+        out.close();
+        assertTrue(cache.isFileCached("a"));
+        assertEquals(3, existenceChecks);
+
+        cache.writeFromFile("b", new File("b"));
+        assertTrue(cache.isFileCached("b"));
+        assertEquals(3, existenceChecks);
+    }
+
+    private class RemoteQueryCache implements QueryCache {
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean isEnabledInConfig() {
+            return true;
+        }
+
+        @Override
+        public boolean isFileCached(String fileName) {
+            existenceChecks++;
+            return remoteFiles.contains(fileName);
+        }
+
+        @Override
+        public InputStream getInputStream(String cachedFileName) throws IOException {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public OutputStream getOutputStream(final String cachedFileName) throws IOException {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    remoteFiles.add(cachedFileName);
+                }
+            };
+        }
+
+        @Override
+        public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+            remoteFiles.add(cachedFileName);
+        }
+
+        @Override
+        public void healthcheck() throws IOException {
+        }
+    }
+}
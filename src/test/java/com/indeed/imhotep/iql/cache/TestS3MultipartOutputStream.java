@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author vladimir
+ */
+public class TestS3MultipartOutputStream {
+    private static final int PART_SIZE = 1024;
+
+    private ExecutorService executor;
+    private LocalS3 s3;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        s3 = new LocalS3();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSmallDataIsPutDirectly() throws IOException {
+        final byte[] data = testData(PART_SIZE);
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "small", PART_SIZE, executor, 2);
+        out.write(data);
+        out.close();
+        assertArrayEquals(data, s3.objects.get("small"));
+        assertEquals(0, s3.initiatedUploads.get());
+    }
+
+    @Test
+    public void testLargeDataIsUploadedInParts() throws IOException {
+        final byte[] data = testData(10 * PART_SIZE + 17);
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "large", PART_SIZE, executor, 2);
+        // mix single byte and block writes
+        out.write(data[0]);
+        for (int off = 1; off < data.length; off += 300) {
+            out.write(data, off, Math.min(300, data.length - off));
+        }
+        out.close();
+        assertArrayEquals(data, s3.objects.get("large"));
+        assertEquals(1, s3.initiatedUploads.get());
+        assertTrue(s3.maxConcurrentParts.get() <= 2);
+    }
+
+    @Test
+    public void testFailedPartAbortsUpload() throws IOException {
+        s3.failPartNumber = 3;
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "failed", PART_SIZE, executor, 2);
+        try {
+            out.write(testData(10 * PART_SIZE));
+            out.close();
+            fail("Upload should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(s3.objects.containsKey("failed"));
+        assertEquals(1, s3.abortedUploads.get());
+    }
+
+    private static byte[] testData(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    /**
+     * Keeps objects and multipart uploads in memory following the S3 semantics used by the stream.
+     */
+    private static class LocalS3 extends AmazonS3Client {
+        final ConcurrentMap<String, byte[]> objects = Maps.newConcurrentMap();
+        final ConcurrentMap<String, Map<Integer, byte[]>> uploads = Maps.newConcurrentMap();
+        final AtomicInteger initiatedUploads = new AtomicInteger();
+        final AtomicInteger abortedUploads = new AtomicInteger();
+        final AtomicInteger concurrentParts = new AtomicInteger();
+        final AtomicInteger maxConcurrentParts = new AtomicInteger();
+        volatile int failPartNumber = -1;
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+            final String uploadId = request.getKey() + "-" + initiatedUploads.incrementAndGet();
+            uploads.put(uploadId, Maps.<Integer, byte[]>newConcurrentMap());
+            final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId(uploadId);
+            return result;
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest request) {
+            final int concurrent = concurrentParts.incrementAndGet();
+            try {
+                synchronized (maxConcurrentParts) {
+                    maxConcurrentParts.set(Math.max(maxConcurrentParts.get(), concurrent));
+                }
+                if (request.getPartNumber() == failPartNumber) {
+                    throw new AmazonClientException("Part upload failed");
+                }
+                final byte[] data = toByteArray(request.getInputStream());
+                assertEquals(request.getPartSize(), data.length);
+                uploads.get(request.getUploadId()).put(request.getPartNumber(), data);
+                final UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag("etag" + request.getPartNumber());
+                return result;
+            } finally {
+                concurrentParts.decrementAndGet();
+            }
+        }
+
+        @Override
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            final Map<Integer, byte[]> parts = uploads.remove(request.getUploadId());
+            final ByteArrayOutputStream object = new ByteArrayOutputStream();
+            int expectedPartNumber = 1;
+            for (PartETag partETag : request.getPartETags()) {
+                assertEquals(expectedPartNumber++, partETag.getPartNumber());
+                final byte[] part = parts.get(partETag.getPartNumber());
+                object.write(part, 0, part.length);
+            }
+            objects.put(request.getKey(), object.toByteArray());
+            return new CompleteMultipartUploadResult();
+        }
+
+        @Override
+        public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+            uploads.remove(request.getUploadId());
+            abortedUploads.incrementAndGet();
+        }
+
+        @Override
+        public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+            final byte[] data = toByteArray(input);
+            assertEquals(metadata.getContentLength(), data.length);
+            objects.put(key, data);
+            return new PutObjectResult();
+        }
+
+        private static byte[] toByteArray(InputStream input) {
+            try {
+                return ByteStreams.toByteArray(input);
+            } catch (IOException e) {
+                throw new AmazonClientException(e.getMessage());
+            }
+        }
+    }
+}
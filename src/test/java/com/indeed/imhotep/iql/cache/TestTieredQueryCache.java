@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.iql.GroupStats;
+import com.indeed.imhotep.iql.GroupStatsCacheFormat;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author vladimir
+ */
+public class TestTieredQueryCache {
+    private final Map<String, byte[]> remoteFiles = Maps.newHashMap();
+    private int remoteReads = 0;
+    private File localDir;
+    private MemoryCacheTier memoryTier;
+    private DiskCacheTier diskTier;
+    private TieredQueryCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        localDir = Files.createTempDir();
+        localDir.deleteOnExit();
+        memoryTier = new MemoryCacheTier(100, 10);
+        diskTier = new DiskCacheTier(localDir, 100, 50);
+        cache = new TieredQueryCache(new InMemoryQueryCache(), memoryTier, diskTier);
+    }
+
+    @Test
+    public void testWritesArePlacedInTiersBySize() throws IOException {
+        write("small", 5);
+        write("large", 30);
+        write("huge", 60);
+        assertEquals(1, memoryTier.getAdmissions());
+        assertEquals(1, diskTier.getAdmissions());
+        assertEquals(1, diskTier.getRejections());
+
+        assertEquals(5, read("small").length);
+        assertEquals(30, read("large").length);
+        assertEquals(0, remoteReads);
+        assertEquals(60, read("huge").length);
+        assertEquals(1, remoteReads);
+        assertEquals(1, memoryTier.getHits());
+        assertEquals(1, diskTier.getHits());
+    }
+
+    @Test
+    public void testOnlyCompleteReadsAreCopied() throws IOException {
+        remoteFiles.put("partial", new byte[40]);
+        final InputStream partial = cache.getInputStream("partial");
+        assertEquals(5, partial.read(new byte[5]));
+        partial.close();
+        assertFalse(diskTier.contains("partial"));
+
+        remoteFiles.put("complete", new byte[40]);
+        assertEquals(40, read("complete").length);
+        assertTrue(diskTier.contains("complete"));
+        assertEquals(40, read("complete").length);
+        assertEquals(2, remoteReads);
+    }
+
+    @Test
+    public void testDiskTierEvictsLeastRecentlyUsed() throws IOException {
+        write("a", 40);
+        write("b", 40);
+        read("a");
+        write("c", 40);
+        assertTrue(diskTier.contains("a"));
+        assertFalse(diskTier.contains("b"));
+        assertTrue(diskTier.contains("c"));
+        assertEquals(1, diskTier.getEvictions());
+        assertEquals(80, diskTier.getSizeBytes());
+
+        // files are picked up again after restart
+        assertEquals(80, new DiskCacheTier(localDir, 100, 50).getSizeBytes());
+    }
+
+    @Test
+    public void testLocalFilesAreNotCountedAsHits() throws IOException {
+        final File tempFile = cache.newLocalTempFile();
+        Files.write(new byte[10], tempFile);
+        cache.admitLocalFile("local", tempFile);
+        assertTrue(cache.getLocalFile("local").isFile());
+        assertEquals(null, cache.getLocalFile("missing"));
+        assertEquals(0, diskTier.getHits());
+        assertEquals(0, diskTier.getMisses());
+    }
+
+    @Test
+    public void testFailedResultsWriteIsNotCached() throws IOException {
+        final Iterator<GroupStats> failingRows = new AbstractIterator<GroupStats>() {
+            private int rows = 0;
+
+            @Override
+            protected GroupStats computeNext() {
+                if (rows++ == 3) {
+                    throw new IllegalStateException("Query failed");
+                }
+                return new GroupStats(GroupKey.empty().add("term" + rows), new double[] {rows});
+            }
+        };
+        try {
+            GroupStatsCacheFormat.write(failingRows, cache.getOutputStream("failed"));
+            fail("The failure should be propagated");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertFalse(cache.isFileCached("failed"));
+        assertFalse(remoteFiles.containsKey("failed"));
+        assertEquals(0, memoryTier.getAdmissions());
+        assertEquals(0, diskTier.getAdmissions());
+    }
+
+    private void write(String fileName, int size) throws IOException {
+        final OutputStream out = cache.getOutputStream(fileName);
+        out.write(new byte[size]);
+        out.close();
+        assertArrayEquals(new byte[size], remoteFiles.get(fileName));
+    }
+
+    private byte[] read(String fileName) throws IOException {
+        final InputStream in = cache.getInputStream(fileName);
+        final byte[] data = ByteStreams.toByteArray(in);
+        in.close();
+        return data;
+    }
+
+    private class InMemoryQueryCache implements QueryCache {
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean isEnabledInConfig() {
+            return true;
+        }
+
+        @Override
+        public boolean isFileCached(String fileName) {
+            return remoteFiles.containsKey(fileName);
+        }
+
+        @Override
+        public InputStream getInputStream(String cachedFileName) throws IOException {
+            remoteReads++;
+            return new ByteArrayInputStream(remoteFiles.get(cachedFileName));
+        }
+
+        @Override
+        public OutputStream getOutputStream(final String cachedFileName) throws IOException {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            return new AbortableOutputStream() {
+                @Override
+                public void write(int b) {
+                    data.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    data.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    remoteFiles.put(cachedFileName, data.toByteArray());
+                }
+
+                @Override
+                public void abort() {
+                }
+            };
+        }
+
+        @Override
+        public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+            remoteFiles.put(cachedFileName, Files.toByteArray(localFile));
+        }
+
+        @Override
+        public void healthcheck() throws IOException {
+        }
+    }
+}
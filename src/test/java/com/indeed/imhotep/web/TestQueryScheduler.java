@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author vladimir
+ */
+public class TestQueryScheduler {
+    @Test
+    public void testCostBudget() {
+        final QueryScheduler scheduler = new QueryScheduler(10, 100);
+        final QueryScheduler.Ticket first = scheduler.submit(QueryScheduler.Priority.BATCH, 60);
+        final QueryScheduler.Ticket second = scheduler.submit(QueryScheduler.Priority.BATCH, 60);
+        final QueryScheduler.Ticket third = scheduler.submit(QueryScheduler.Priority.BATCH, 10);
+        assertFalse(first.isQueued());
+        assertTrue(second.isQueued());
+        // waits behind the second query of the same class even though it fits
+        assertTrue(third.isQueued());
+        assertEquals(1, second.getQueuePosition());
+        assertEquals(2, third.getQueuePosition());
+        assertEquals(0, first.getQueuePosition());
+
+        first.close();
+        assertFalse(second.isQueued());
+        assertFalse(third.isQueued());
+        assertEquals(0, scheduler.getQueuedCount());
+        assertEquals(2, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void testInteractiveBypassesBlockedBatch() {
+        final QueryScheduler scheduler = new QueryScheduler(10, 100);
+        scheduler.submit(QueryScheduler.Priority.BATCH, 80);
+        final QueryScheduler.Ticket batch = scheduler.submit(QueryScheduler.Priority.BATCH, 50);
+        final QueryScheduler.Ticket async = scheduler.submit(QueryScheduler.Priority.ASYNC, 10);
+        final QueryScheduler.Ticket interactive = scheduler.submit(QueryScheduler.Priority.INTERACTIVE, 10);
+        assertTrue(batch.isQueued());
+        assertTrue(async.isQueued());
+        assertFalse(interactive.isQueued());
+    }
+
+    @Test
+    public void testConcurrencyLimit() {
+        final QueryScheduler scheduler = new QueryScheduler(1, 100);
+        final QueryScheduler.Ticket first = scheduler.submit(QueryScheduler.Priority.INTERACTIVE, 1);
+        final QueryScheduler.Ticket second = scheduler.submit(QueryScheduler.Priority.INTERACTIVE, 1);
+        assertTrue(second.isQueued());
+        assertTrue(second.getEstimatedWaitMillis() <= 1);
+        first.close();
+        assertFalse(second.isQueued());
+    }
+
+    @Test
+    public void testExpensiveQueryRunsAlone() throws Exception {
+        final QueryScheduler scheduler = new QueryScheduler(10, 100);
+        final QueryScheduler.Ticket small = scheduler.submit(QueryScheduler.Priority.BATCH, 10);
+        final QueryScheduler.Ticket huge = scheduler.submit(QueryScheduler.Priority.BATCH, 1000);
+        assertEquals(100, huge.getEstimatedCostMillis());
+        try {
+            huge.await(10);
+            fail("admitted over the budget");
+        } catch (TimeoutException expected) {
+        }
+        assertEquals(0, scheduler.getQueuedCount());
+
+        final QueryScheduler.Ticket retried = scheduler.submit(QueryScheduler.Priority.BATCH, 1000);
+        assertTrue(retried.isQueued());
+        small.close();
+        retried.await(10);
+        assertEquals(1, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void testStarvedQueryWaitsOnlyForHigherPriorities() {
+        // every waiting query counts as starved right away
+        final QueryScheduler scheduler = new QueryScheduler(10, 100, 0);
+        final QueryScheduler.Ticket running = scheduler.submit(QueryScheduler.Priority.BATCH, 10);
+        final QueryScheduler.Ticket huge = scheduler.submit(QueryScheduler.Priority.BATCH, 1000);
+        final QueryScheduler.Ticket batch = scheduler.submit(QueryScheduler.Priority.BATCH, 10);
+        final QueryScheduler.Ticket async = scheduler.submit(QueryScheduler.Priority.ASYNC, 10);
+        final QueryScheduler.Ticket interactive = scheduler.submit(QueryScheduler.Priority.INTERACTIVE, 10);
+        assertTrue(huge.isQueued());
+        assertTrue(batch.isQueued());
+        assertTrue(async.isQueued());
+        assertFalse(interactive.isQueued());
+
+        running.close();
+        assertTrue(huge.isQueued());
+        interactive.close();
+        assertFalse(huge.isQueued());
+        assertTrue(batch.isQueued());
+        huge.close();
+        assertFalse(batch.isQueued());
+        assertFalse(async.isQueued());
+    }
+
+    @Test
+    public void testInteractiveLatencyUnderBatchBacklog() {
+        // every waiting query counts as starved right away
+        final QueryScheduler scheduler = new QueryScheduler(10, 100, 0);
+        final Deque<QueryScheduler.Ticket> batches = new ArrayDeque<QueryScheduler.Ticket>();
+        for (int i = 0; i < 10; i++) {
+            batches.addLast(scheduler.submit(QueryScheduler.Priority.BATCH, 40));
+        }
+        for (int i = 0; i < 100; i++) {
+            // the budget is full of batch queries and the head of the backlog doesn't fit
+            assertEquals(2, scheduler.getRunningCount());
+            final QueryScheduler.Ticket interactive = scheduler.submit(QueryScheduler.Priority.INTERACTIVE, 10);
+            assertFalse(interactive.isQueued());
+            interactive.close();
+
+            batches.removeFirst().close();
+            batches.addLast(scheduler.submit(QueryScheduler.Priority.BATCH, 40));
+        }
+        assertEquals(8, scheduler.getQueuedCount());
+    }
+
+    @Test
+    public void testAdmissionListener() {
+        final QueryScheduler scheduler = new QueryScheduler(1, 100);
+        final QueryScheduler.Ticket first = scheduler.submit(QueryScheduler.Priority.BATCH, 10);
+        final QueryScheduler.Ticket second = scheduler.submit(QueryScheduler.Priority.BATCH, 10);
+        final QueryScheduler.Ticket third = scheduler.submit(QueryScheduler.Priority.BATCH, 10);
+        final AtomicInteger firstCalls = new AtomicInteger();
+        final AtomicInteger secondCalls = new AtomicInteger();
+        final AtomicInteger thirdCalls = new AtomicInteger();
+        first.whenAdmitted(newCounter(firstCalls));
+        second.whenAdmitted(newCounter(secondCalls));
+        third.whenAdmitted(newCounter(thirdCalls));
+        // already running
+        assertEquals(1, firstCalls.get());
+        assertEquals(0, secondCalls.get());
+
+        first.close();
+        assertEquals(1, secondCalls.get());
+        assertTrue(second.isRunning());
+        // a ticket closed while queued completes the listener too
+        third.close();
+        assertEquals(1, thirdCalls.get());
+        assertFalse(third.isRunning());
+        second.close();
+        assertEquals(1, thirdCalls.get());
+        assertEquals(0, scheduler.getRunningCount());
+    }
+
+    private static Runnable newCounter(final AtomicInteger calls) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                calls.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void testCostEstimateFollowsHistory() {
+        final QueryCostEstimator estimator = new QueryCostEstimator();
+        assertEquals((long) (10 * 2 * QueryCostEstimator.DEFAULT_MILLIS_PER_UNIT), estimator.estimateMillis("q", 10, 2));
+        estimator.record("q", 10, 2, 20);
+        assertEquals(20, estimator.estimateMillis("q", 10, 2));
+        assertEquals(40, estimator.estimateMillis("q", 20, 2));
+        estimator.record("q", 10, 2, 120);
+        assertEquals(50, estimator.estimateMillis("q", 10, 2));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.iql.GroupStats;
+import com.indeed.imhotep.iql.ReplayableRowBuffer;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author vladimir
+ */
+public class TestSharedRowsWithFallback {
+    @Test
+    public void testReadsSharedRows() {
+        final ReplayableRowBuffer buffer = new ReplayableRowBuffer(10, 10);
+        final ReplayableRowBuffer.Reader reader = buffer.newReader();
+        drain(buffer.tee(rows(0, 3)));
+        buffer.finish();
+        assertEquals(Lists.newArrayList("0", "1", "2"), terms(new FailingFallback(reader)));
+    }
+
+    @Test
+    public void testExecutesAfterProducerFailed() {
+        final ReplayableRowBuffer buffer = new ReplayableRowBuffer(10, 10);
+        final ReplayableRowBuffer.Reader reader = buffer.newReader();
+        drain(buffer.tee(rows(0, 2)));
+        buffer.fail(new IllegalStateException("Original execution of the query failed"));
+        final Iterator<GroupStats> rows = new SharedRowsWithFallback(reader) {
+            @Override
+            protected Iterator<GroupStats> executeOwnCopy() {
+                final List<GroupStats> rows = Lists.newArrayList(rows(0, 4));
+                rows.add(1, null);
+                return rows.iterator();
+            }
+        };
+        // rows read before the failure are not repeated
+        assertEquals(Lists.newArrayList("0", "1", "2", "3"), terms(rows));
+    }
+
+    private static final class FailingFallback extends SharedRowsWithFallback {
+        private FailingFallback(ReplayableRowBuffer.Reader sharedRows) {
+            super(sharedRows);
+        }
+
+        @Override
+        protected Iterator<GroupStats> executeOwnCopy() {
+            throw new AssertionError("the query must not be executed again");
+        }
+    }
+
+    private static void drain(Iterator<GroupStats> rows) {
+        while (rows.hasNext()) {
+            rows.next();
+        }
+    }
+
+    private static Iterator<GroupStats> rows(int from, int to) {
+        final List<GroupStats> rows = Lists.newArrayList();
+        for (int i = from; i < to; i++) {
+            rows.add(new GroupStats(GroupKey.<Object>singleton(String.valueOf(i)), new double[] {i}));
+        }
+        return rows.iterator();
+    }
+
+    private static List<String> terms(Iterator<GroupStats> rows) {
+        final List<String> ret = Lists.newArrayList();
+        while (rows.hasNext()) {
+            ret.add(String.valueOf(rows.next().getGroupKey().last()));
+        }
+        return ret;
+    }
+}